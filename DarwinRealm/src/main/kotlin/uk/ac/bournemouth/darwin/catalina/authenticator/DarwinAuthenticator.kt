@@ -24,6 +24,7 @@ import org.apache.catalina.connector.Request
 import org.apache.catalina.connector.Response
 import org.apache.catalina.valves.ValveBase
 import org.apache.naming.ContextBindings
+import uk.ac.bournemouth.darwin.accounts.AuthTokenCache
 import uk.ac.bournemouth.darwin.accounts.DARWINCOOKIENAME
 import uk.ac.bournemouth.darwin.accounts.MAXTOKENLIFETIME
 import uk.ac.bournemouth.darwin.accounts.accountDb
@@ -74,6 +75,12 @@ class DarwinAuthenticator : ValveBase(), Lifecycle, Authenticator {
         log.info("Initialising DarwinAuthenticatorValve")
     }
 
+    override fun stopInternal() {
+        super.stopInternal()
+        // Write out the pending token use and stop the background sweep
+        if (dataSourceDelegate.isInitialized()) AuthTokenCache.release(dataSource)
+    }
+
     fun NamingContext.print(out:PrintStream, name:String, indent:Int = 0) {
         for( binding in listBindings(name)) {
             out.print(" ".repeat(indent))
@@ -85,7 +92,7 @@ class DarwinAuthenticator : ValveBase(), Lifecycle, Authenticator {
         }
     }
 
-    val dataSource by lazy {
+    private val dataSourceDelegate = lazy {
 
         val loader = ContextBindings.getClassLoader()
         try {
@@ -100,6 +107,8 @@ class DarwinAuthenticator : ValveBase(), Lifecycle, Authenticator {
         }
     }
 
+    val dataSource: DataSource by dataSourceDelegate
+
 
 
     private fun invokeNext(request: Request, response: Response) {
@@ -236,6 +245,10 @@ class DarwinAuthenticator : ValveBase(), Lifecycle, Authenticator {
     @Throws(ServletException::class)
     override fun logout(request: Request) {
         log.fine("Logging out")
+        (request.getNote(DARWINCOOKIENAME) as? String)?.let { authToken ->
+            AuthTokenCache.forDataSource(dataSource).invalidateToken(authToken)
+            accountDb(dataSource) { logout(authToken) }
+        }
         (request.getNote("response") as? HttpServletResponse) ?.let { response ->
             clearCookies(request, response)
         }
@@ -320,23 +333,21 @@ class DarwinAuthenticator : ValveBase(), Lifecycle, Authenticator {
 
             try {
 
-                accountDb(dataSource) {
-                    cleanAuthTokens() // First get rid of no longer needed tokens
+                // Expired tokens are removed by the cache's background sweep, and token use is written out in batches.
+                val tokenCache = AuthTokenCache.forDataSource(dataSource)
 
-                    // Try all cookies, not the first
-                    val userInfo = authTokens.asSequence().map { authToken ->
-                        userFromToken(authToken, request.remoteAddr)?.let { user -> authToken to user }
-                    }.filterNotNull().firstOrNull()
+                // Try all cookies, not the first
+                val userInfo = authTokens.asSequence().map { authToken ->
+                    tokenCache.lookup(authToken, request.remoteAddr)?.let { info -> authToken to info }
+                }.filterNotNull().firstOrNull()
 
-                    if (userInfo != null) {
-                        val user = userInfo.second
-                        val authToken = userInfo.first
-                        request.userPrincipal = DarwinUserPrincipalImpl(dataSource, user, getUserRoles(user))
-                        // Set the cookie as a note so it can be removed for example in logout
-                        request.setNote(DARWINCOOKIENAME, authToken)
+                if (userInfo != null) {
+                    val (authToken, info) = userInfo
+                    request.userPrincipal = DarwinUserPrincipalImpl(dataSource, info.user, info.roles)
+                    // Set the cookie as a note so it can be removed for example in logout
+                    request.setNote(DARWINCOOKIENAME, authToken)
 
-                        return AuthResult.AUTHENTICATED.apply { log.fine("authenticateHelper: authenticated as ${request.userPrincipal.name}") }
-                    }
+                    return AuthResult.AUTHENTICATED.apply { log.fine("authenticateHelper: authenticated as ${request.userPrincipal.name}") }
                 }
                 // invalidate all old cookies
                 clearCookies(request, response)
@@ -49,7 +49,7 @@ abstract class DarwinBasePrincipal
      */
     protected fun needsRefresh(): Boolean {
         val now = System.currentTimeMillis()
-        return now < lastChecked + MAX_CACHE
+        return lastChecked == java.lang.Long.MIN_VALUE || now >= lastChecked + MAX_CACHE
     }
 
     protected fun notifyRefresh() { lastChecked = System.currentTimeMillis() }
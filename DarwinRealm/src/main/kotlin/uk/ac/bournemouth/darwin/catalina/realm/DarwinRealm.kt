@@ -24,7 +24,7 @@ import org.apache.catalina.realm.GenericPrincipal
 import org.apache.catalina.realm.RealmBase
 import org.apache.naming.ContextBindings
 import org.ietf.jgss.GSSContext
-import uk.ac.bournemouth.darwin.accounts.AccountDb
+import uk.ac.bournemouth.darwin.accounts.AuthTokenCache
 import uk.ac.bournemouth.darwin.accounts.DBRESOURCE
 import uk.ac.bournemouth.darwin.accounts.accountDb
 import java.security.Principal
@@ -51,7 +51,7 @@ class DarwinRealm : RealmBase(), Lifecycle {
         log.fine("Authentication requested for username $username")
         accountDb(dataSource) {
             if (verifyCredentials(username, credentials)) {
-                return getDarwinPrincipal(this, username)
+                return getDarwinPrincipal(username)
             } else {
                 return null
             }
@@ -100,11 +100,7 @@ class DarwinRealm : RealmBase(), Lifecycle {
     }
 
     private fun getDarwinPrincipal(name: String): DarwinUserPrincipalImpl {
-        return DarwinUserPrincipalImpl(dataSource, name)
-    }
-
-    private fun getDarwinPrincipal(accountDb: AccountDb, user: String): DarwinUserPrincipalImpl {
-        return DarwinUserPrincipalImpl(dataSource, user, accountDb.getUserRoles(user))
+        return DarwinUserPrincipalImpl(dataSource, name, AuthTokenCache.forDataSource(dataSource).rolesFor(name))
     }
 
     override fun getPrincipal(username: String): Principal {
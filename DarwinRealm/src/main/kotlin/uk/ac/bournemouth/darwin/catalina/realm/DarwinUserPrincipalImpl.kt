@@ -19,7 +19,7 @@ package uk.ac.bournemouth.darwin.catalina.realm
 import net.devrieze.util.StringCache
 import net.devrieze.util.lookup
 import org.ietf.jgss.GSSCredential
-import uk.ac.bournemouth.darwin.accounts.accountDb
+import uk.ac.bournemouth.darwin.accounts.AuthTokenCache
 import java.security.Principal
 import java.util.*
 import javax.security.auth.login.LoginContext
@@ -29,7 +29,12 @@ class DarwinUserPrincipalImpl(private val dataSource: DataSource, name: String,
 
     constructor(dataSource: DataSource, name: String) : this(dataSource, name, Collections.emptyList<String>())
 
-    private var darwinRoles: Array<String> = emptyArray()
+    private var darwinRoles: Array<String> = roles.toTypedArray().apply { sort() }
+
+    init {
+        // Roles passed in are fresh, so don't look them up again until they expire.
+        if (roles.isNotEmpty()) notifyRefresh()
+    }
 
     /**
      * Get a set of all the roles in the principal. Note that this will create a
@@ -51,9 +56,7 @@ class DarwinUserPrincipalImpl(private val dataSource: DataSource, name: String,
 
     @Synchronized private fun refreshIfNeeded() {
         if (needsRefresh()) {
-            accountDb(dataSource) {
-                darwinRoles = getUserRoles(getName()).toTypedArray().apply { sort() }
-            }
+            darwinRoles = AuthTokenCache.forDataSource(dataSource).rolesFor(getName()).toTypedArray().apply { sort() }
             notifyRefresh()
         }
     }
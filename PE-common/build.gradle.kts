@@ -115,6 +115,8 @@ kotlin {
 //                implementation(project(":ProcessEngine:core"))
 //                implementation(project(":JavaCommonApi"))
                 implementation(project(":DarwinJavaApi"))
+                implementation(project(":java-common:jvmonly"))
+                implementation(libs.servletApi)
 //                implementation(project(":TestSupport"))
                 implementation(libs.junit5.api)
 
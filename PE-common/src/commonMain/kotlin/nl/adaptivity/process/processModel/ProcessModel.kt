@@ -42,6 +42,12 @@ interface ProcessModel<out NodeT : ProcessNode> {
      */
     fun getNode(nodeId: Identifiable): NodeT?
 
+    /**
+     * Index of the (transitive) predecessor relation between the nodes of the model, if the model provides one.
+     * Models that can still change do not.
+     */
+    val reachability: ReachabilityIndex? get() = null
+
     @ProcessModelDSL
     interface Builder {
         val rootBuilder: RootProcessModel.Builder
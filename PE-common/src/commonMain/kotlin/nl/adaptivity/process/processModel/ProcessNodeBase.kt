@@ -143,11 +143,26 @@ abstract class ProcessNodeBase : ProcessNode {
     }
 
     override fun isPredecessorOf(node: ProcessNode): Boolean {
+        val ownerModel = _ownerModel
+        val ownId = id
+        val nodeId = node.id
+        if (ownerModel != null && ownId != null && nodeId != null && node.ownerModel === ownerModel) {
+            ownerModel.reachability?.isPredecessor(ownId, nodeId)?.let { return it }
+        }
+        return isPredecessorOf(node, HashSet())
+    }
+
+    /**
+     * Walk the predecessors of the node. [visited] records the nodes already seen so that shared predecessors are
+     * only visited once and loops terminate.
+     */
+    private fun isPredecessorOf(node: ProcessNode, visited: MutableSet<String>): Boolean {
         return node.predecessors.any { pred ->
             this === pred ||
                 id == pred.id ||
-                (pred is ProcessNode && isPredecessorOf(pred)) ||
-                _ownerModel?.getNode(pred)?.let { node -> isPredecessorOf(node) } ?: false
+                (visited.add(pred.id) && (
+                    (pred is ProcessNode && isPredecessorOf(pred, visited)) ||
+                        _ownerModel?.getNode(pred)?.let { node -> isPredecessorOf(node, visited) } ?: false))
         }
     }
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.processModel
+
+/**
+ * Immutable index of the transitive predecessor relation between the nodes of a model. Every node gets a dense
+ * index, and for every node the set of (transitive) predecessors is stored as a bitset. This makes predecessor and
+ * successor queries constant time rather than a walk of the graph.
+ *
+ * The index reflects the nodes as passed to the constructor, it must be created for a model whose nodes no longer
+ * change.
+ */
+class ReachabilityIndex(nodes: Collection<ProcessNode>) {
+
+    private val indices: Map<String, Int>
+
+    /** For every node the bitset of nodes that are (transitive) predecessors. */
+    private val ancestors: Array<LongArray>
+
+    /** For every node the indices of its direct predecessors. */
+    private val directPredecessors: Array<IntArray>
+
+    init {
+        val ids = nodes.mapNotNull { it.id }
+        indices = ids.withIndex().associate { (idx, id) -> id to idx }
+
+        val words = (ids.size + 63) ushr 6
+        ancestors = Array(ids.size) { LongArray(words) }
+
+        directPredecessors = Array(ids.size) { IntArray(0) }
+        for (node in nodes) {
+            val idx = indices[node.id ?: continue] ?: continue
+            directPredecessors[idx] = node.predecessors.mapNotNull { indices[it.id] }.toIntArray()
+        }
+
+        val order = topologicalOrder(directPredecessors)
+        // For an acyclic model the first pass already gives the closure, the second just confirms it. Cycles
+        // (loops in the model) need additional passes until nothing changes.
+        do {
+            var changed = false
+            for (idx in order) {
+                val target = ancestors[idx]
+                for (pred in directPredecessors[idx]) {
+                    changed = target.setBit(pred) or changed
+                    changed = target.orWith(ancestors[pred]) or changed
+                }
+            }
+        } while (changed)
+    }
+
+    /** The amount of nodes in the index. */
+    val size: Int get() = ancestors.size
+
+    /**
+     * Determine whether the node with id [predecessorId] is a (transitive) predecessor of the node with id [nodeId].
+     * @return The answer, or `null` if either of the nodes is not part of the index.
+     */
+    fun isPredecessor(predecessorId: String, nodeId: String): Boolean? {
+        val predIdx = indices[predecessorId] ?: return null
+        val nodeIdx = indices[nodeId] ?: return null
+        return ancestors[nodeIdx].hasBit(predIdx)
+    }
+
+    /**
+     * Determine whether the node with id [successorId] is a (transitive) successor of the node with id [nodeId].
+     * @return The answer, or `null` if either of the nodes is not part of the index.
+     */
+    fun isSuccessor(successorId: String, nodeId: String): Boolean? = isPredecessor(nodeId, successorId)
+
+    /**
+     * Determine whether the node with id [nodeId] can only be reached through the node with id [predecessorId]
+     * without passing a join: walking back from the node, every node has a single predecessor until [predecessorId]
+     * is reached. A single instance of [predecessorId] is then on the path of every instance of the node.
+     * @return The answer, or `null` if either of the nodes is not part of the index.
+     */
+    fun isSingleEntryPath(predecessorId: String, nodeId: String): Boolean? {
+        val predIdx = indices[predecessorId] ?: return null
+        var idx = indices[nodeId] ?: return null
+        // Each step moves to a distinct node unless there is a cycle, so the walk is bounded by the size
+        repeat(size) {
+            val predecessors = directPredecessors[idx]
+            if (predecessors.size != 1) return false
+            idx = predecessors[0]
+            if (idx == predIdx) return true
+        }
+        return false
+    }
+
+    private companion object {
+
+        /**
+         * Order the nodes such that (outside of cycles) predecessors come before their successors. Nodes that are
+         * part of a cycle are added at the end.
+         */
+        fun topologicalOrder(directPredecessors: Array<IntArray>): IntArray {
+            val nodeCount = directPredecessors.size
+            val pendingPredecessors = IntArray(nodeCount) { directPredecessors[it].size }
+            val successors = Array(nodeCount) { mutableListOf<Int>() }
+            for (idx in 0 until nodeCount) {
+                for (pred in directPredecessors[idx]) successors[pred].add(idx)
+            }
+
+            val order = IntArray(nodeCount)
+            val placed = BooleanArray(nodeCount)
+            var count = 0
+            for (idx in 0 until nodeCount) {
+                if (pendingPredecessors[idx] == 0) {
+                    order[count++] = idx
+                    placed[idx] = true
+                }
+            }
+            var next = 0
+            while (next < count) {
+                for (successor in successors[order[next++]]) {
+                    if (--pendingPredecessors[successor] == 0) {
+                        order[count++] = successor
+                        placed[successor] = true
+                    }
+                }
+            }
+            for (idx in 0 until nodeCount) {
+                if (!placed[idx]) order[count++] = idx
+            }
+            return order
+        }
+
+        fun LongArray.hasBit(bit: Int): Boolean = (this[bit ushr 6] and (1L shl bit)) != 0L
+
+        /** Set the bit, returning whether this changed the set. */
+        fun LongArray.setBit(bit: Int): Boolean {
+            val word = bit ushr 6
+            val old = this[word]
+            val new = old or (1L shl bit)
+            this[word] = new
+            return old != new
+        }
+
+        /** Add all bits of [other] to this set, returning whether this changed the set. */
+        fun LongArray.orWith(other: LongArray): Boolean {
+            var changed = false
+            for (i in indices) {
+                val old = this[i]
+                val new = old or other[i]
+                if (old != new) {
+                    this[i] = new
+                    changed = true
+                }
+            }
+            return changed
+        }
+    }
+}
@@ -72,7 +72,10 @@ abstract class RootProcessModelBase<NodeT : ProcessNode> :
      * @return An array of all nodes.
      */
     override val modelNodes: IdentifyableSet<NodeT>
-        get() = _processNodes.readOnly()
+        get() = _modelNodes ?: _processNodes.readOnly().also { _modelNodes = it }
+
+    /** Read only copy of the nodes, the nodes don't change after construction so the copy can be reused. */
+    private var _modelNodes: IdentifyableSet<NodeT>? = null
 
     override val ref: IProcessModelRef<NodeT, RootProcessModel<NodeT>>
         get() {
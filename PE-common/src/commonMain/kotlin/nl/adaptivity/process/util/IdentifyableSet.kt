@@ -16,10 +16,8 @@
 
 package nl.adaptivity.process.util
 
-import net.devrieze.util.ArraySet
 import net.devrieze.util.MutableReadMap
 import net.devrieze.util.ReadMap
-import net.devrieze.util.toArraySet
 
 
 interface MutableIdentifyableSet<T : Identifiable> : IdentifyableSet<T>, MutableSet<T>, MutableReadMap<String, T> {
@@ -74,6 +72,10 @@ interface IdentifyableSet<out T : Identifiable> : ListSet<T>, List<T>, Set<T>, R
         @Suppress("UNCHECKED_CAST")
         constructor(delegate: IdentifyableSet<T>) : this(delegate.toTypedArray<Identifiable>() as Array<T>)
 
+        /** Position of the elements (with an id) in [data]. */
+        private val positions: Map<String, Int> = HashMap<String, Int>(data.size).apply {
+            data.forEachIndexed { idx, elem -> elem.id?.let { put(it, idx) } }
+        }
 
         fun clone(): ReadOnlyIdentifyableSet<T> {
             return this
@@ -87,9 +89,16 @@ interface IdentifyableSet<out T : Identifiable> : ListSet<T>, List<T>, Set<T>, R
             return data[index]
         }
 
+        override fun get(key: String): T? = positions[key]?.let { data[it] }
+
+        override fun containsKey(key: String) = key in positions
+
         override fun contains(element: T) = indexOf(element) >= 0
 
-        override fun indexOf(element: T) = data.indexOf(element)
+        override fun indexOf(element: T): Int {
+            val elementId = element.id ?: return data.indexOf(element)
+            return positions[elementId]?.takeIf { data[it] == element } ?: -1
+        }
 
         override fun lastIndexOf(element: T) = data.lastIndexOf(element)
 
@@ -102,7 +111,13 @@ interface IdentifyableSet<out T : Identifiable> : ListSet<T>, List<T>, Set<T>, R
         override fun equals(other: Any?): Boolean {
             return other is IdentifyableSet<*>
                 && data.size == other.size &&
-                other.all { it in data }
+                other.all { hasElement(it) }
+        }
+
+        /** Check for an equal element using the index, [other] is of any (identifiable) type. */
+        private fun hasElement(other: Identifiable): Boolean {
+            val otherId = other.id ?: return data.any { it == other }
+            return positions[otherId]?.let { data[it] == other } ?: false
         }
 
         override fun hashCode() = data.hashCode()
@@ -113,26 +128,37 @@ interface IdentifyableSet<out T : Identifiable> : ListSet<T>, List<T>, Set<T>, R
 
     }
 
-    private class BaseIdentifyableSet<V : Identifiable>(private val data: ArraySet<V> = ArraySet()) :
-        MutableIdentifyableSet<V>, MutableSet<V> by data {
+    /**
+     * Default mutable implementation. The elements are stored in insertion order, with a hash index from id to
+     * position so that lookups by id, containment checks and duplicate detection do not need to scan the elements.
+     * Elements without id are compared by equality (and are expected to be rare).
+     */
+    private class BaseIdentifyableSet<V : Identifiable>(initialCapacity: Int = 10) : MutableIdentifyableSet<V> {
 
-        constructor(initialcapacity: Int) : this(ArraySet(initialcapacity))
+        private val data = ArrayList<V>(initialCapacity)
+
+        /** Position of the elements (with an id) in [data]. */
+        private val positions = HashMap<String, Int>(initialCapacity)
 
         constructor(c: Sequence<V>) : this() {
             addAll(c)
         }
 
-        constructor(c: Iterable<V>) : this((c as? Collection<*>)?.let { ArraySet<V>(it.size) } ?: ArraySet<V>()) {
+        constructor(c: Iterable<V>) : this((c as? Collection<*>)?.size ?: 10) {
             addAll(c)
         }
 
-        constructor(a: Array<out V>) : this(ArraySet<V>(a.size)) {
-            addAll(a)
+        constructor(a: Array<out V>) : this(a.size) {
+            for (element in a) add(element)
         }
 
+        override val size: Int get() = data.size
+
         override fun get(index: Int) = data[index]
 
-        override fun containsAll(elements: Collection<V>) = data.containsAll(elements)
+        override fun get(key: String): V? = positions[key]?.let { data[it] }
+
+        override fun containsKey(key: String) = key in positions
 
         override fun isEmpty() = data.isEmpty()
 
@@ -140,18 +166,14 @@ interface IdentifyableSet<out T : Identifiable> : ListSet<T>, List<T>, Set<T>, R
             TODO("not implemented, we don't really need it")
         }
 
-        override fun listIterator(index: Int): MutableListIterator<V> {
-            return data.listIterator(index)
-        }
+        override fun iterator(): MutableIterator<V> = listIterator(0)
 
-        override fun iterator(): MutableIterator<V> {
-            return data.iterator()
-        }
+        override fun listIterator(index: Int): MutableListIterator<V> = IndexedIterator(index)
 
 //    override fun spliterator() = data.spliterator()
 
         fun clone(): BaseIdentifyableSet<V> {
-            return BaseIdentifyableSet(data.toArraySet())
+            return BaseIdentifyableSet<V>(data)
         }
 
         override fun add(element: V): Boolean {
@@ -161,33 +183,100 @@ interface IdentifyableSet<out T : Identifiable> : ListSet<T>, List<T>, Set<T>, R
                 if (data.contains(element)) {
                     return false
                 }
-            } else if (containsKey(name)) {
+            } else if (name in positions) {
                 return false
+            } else {
+                positions[name] = data.size
             }
 
             data.add(element)
             return true
         }
 
-        override fun set(index: Int, value: V) = data.set(index, value)
+        /**
+         * Insert the element at the given position, moving the following elements. Like [add] this does nothing if the
+         * element (or one with the same id) is already present.
+         */
+        private fun insert(index: Int, element: V): Boolean {
+            if (index == data.size) return add(element)
+            if (element in this) return false
+
+            data.add(index, element)
+            for (pos in index until data.size) {
+                data[pos].id?.let { positions[it] = pos }
+            }
+            return true
+        }
+
+        override fun addAll(elements: Collection<V>): Boolean {
+            data.ensureCapacity(data.size + elements.size)
+            return elements.fold(false) { acc, element -> add(element) or acc }
+        }
+
+        override fun set(index: Int, value: V): V {
+            val previous = data[index]
+            if (previous == value) return previous
+
+            val valueId = value.id
+            val existing = if (valueId != null) positions[valueId] ?: -1 else data.indexOf(value)
+            when {
+                // It's already contained, so just remove the previous value, don't add the new one
+                existing >= 0 && existing != index -> removeAt(index)
+
+                else                               -> {
+                    previous.id?.let { positions.remove(it) }
+                    valueId?.let { positions[it] = index }
+                    data[index] = value
+                }
+            }
+            return previous
+        }
+
+        override fun remove(element: V): Boolean {
+            val pos = indexOf(element)
+            if (pos < 0) return false
+            removeAt(pos)
+            return true
+        }
 
-        override fun removeAll(elements: Collection<V>) = data.removeAll(elements)
+        override fun removeAll(elements: Collection<V>) = elements.fold(false) { acc, element -> remove(element) or acc }
 
-        override fun retainAll(elements: Collection<V>) = data.removeAll(elements)
+        override fun retainAll(elements: Collection<V>): Boolean {
+            val retained = data.filter { it in elements }
+            if (retained.size == data.size) return false
+            clear()
+            retained.forEach { add(it) }
+            return true
+        }
 
-        override fun removeAt(index: Int) = data.removeAt(index)
+        override fun removeAt(index: Int): V {
+            val removed = data.removeAt(index)
+            removed.id?.let { positions.remove(it) }
+            for (pos in index until data.size) {
+                data[pos].id?.let { positions[it] = pos }
+            }
+            return removed
+        }
 
         override operator fun contains(element: V): Boolean {
             val elementId = element.id
             return if (elementId != null) {
-                data.any { it.id == elementId }
+                elementId in positions
             } else {
-                data.any { it == element }
+                data.contains(element)
             }
         }
 
+        override fun indexOf(element: V): Int {
+            val elementId = element.id ?: return data.indexOf(element)
+            return positions[elementId]?.takeIf { data[it] == element } ?: -1
+        }
+
+        override fun lastIndexOf(element: V): Int = indexOf(element)
+
         override fun clear() {
             data.clear()
+            positions.clear()
         }
 
         override fun values(): IdentifyableSet<V> {
@@ -199,17 +288,70 @@ interface IdentifyableSet<out T : Identifiable> : ListSet<T>, List<T>, Set<T>, R
             if (other !is IdentifyableSet<*>) return false
 
             if (size!=other.size) return false
-            return other.all { it in data }
+            return other.all { hasElement(it) }
+        }
+
+        /** Check for an equal element using the index, [other] is of any (identifiable) type. */
+        private fun hasElement(other: Identifiable): Boolean {
+            val otherId = other.id ?: return data.any { it == other }
+            return positions[otherId]?.let { data[it] == other } ?: false
         }
 
         override fun hashCode(): Int {
-            return data.hashCode()
+            // Set semantics, the order does not matter
+            return data.sumOf { it.hashCode() }
         }
 
         override fun toString(): String {
             return data.joinToString(prefix = "BaseIdentifyableSet{", postfix = "}")
         }
 
+        /** Iterator that keeps the index up to date when the set is modified through it. */
+        private inner class IndexedIterator(private var pos: Int) : MutableListIterator<V> {
+            private var last = -1
+
+            init {
+                if (pos < 0 || pos > size) throw IndexOutOfBoundsException()
+            }
+
+            override fun hasNext() = pos < data.size
+
+            override fun hasPrevious() = pos > 0
+
+            override fun next(): V {
+                if (pos >= data.size) throw NoSuchElementException("The iterator is at the end")
+                last = pos
+                return data[pos++]
+            }
+
+            override fun previous(): V {
+                if (pos <= 0) throw NoSuchElementException("The iterator is at the start")
+                last = --pos
+                return data[pos]
+            }
+
+            override fun nextIndex() = pos
+
+            override fun previousIndex() = pos - 1
+
+            override fun remove() {
+                if (last < 0) throw IllegalStateException("No current element")
+                removeAt(last)
+                if (last < pos) pos--
+                last = -1
+            }
+
+            override fun set(element: V) {
+                if (last < 0) throw IllegalStateException("No current element")
+                this@BaseIdentifyableSet[last] = element
+            }
+
+            /** Insert the element before the cursor. As this is a set, an element already present is not added again. */
+            override fun add(element: V) {
+                if (insert(pos, element)) pos++
+                last = -1
+            }
+        }
 
     }
 
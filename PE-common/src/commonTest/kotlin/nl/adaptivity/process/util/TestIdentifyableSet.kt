@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.util
+
+import kotlin.test.*
+
+/**
+ * Tests that the id index of the default mutable [IdentifyableSet] stays in line with its elements.
+ */
+class TestIdentifyableSet {
+
+    private data class Elem(override val id: String?, val value: Int = 0) : Identifiable
+
+    private fun newSet(vararg ids: String) = IdentifyableSet.processNodeSet(ids.map { Elem(it) })
+
+    /** Verify the index against the element order, and that the removed ids are no longer indexed. */
+    private fun MutableIdentifyableSet<Elem>.assertIndexed(expectedIds: List<String>, vararg absentIds: String) {
+        assertEquals(expectedIds, map { it.id })
+        for ((pos, id) in expectedIds.withIndex()) {
+            val elem = get(id)
+            assertNotNull(elem, "Element $id should be found by id")
+            assertEquals(pos, indexOf(elem), "Position of $id")
+            assertTrue(containsKey(id))
+            assertTrue(elem in this)
+        }
+        for (id in absentIds) {
+            assertNull(get(id), "Element $id should no longer be found")
+            assertFalse(containsKey(id))
+            assertFalse(Elem(id) in this)
+        }
+    }
+
+    @Test
+    fun testAdd() {
+        val set = newSet("a", "b")
+        assertTrue(set.add(Elem("c")))
+        assertFalse(set.add(Elem("a", 1)), "An element with an existing id should not be added")
+        set.assertIndexed(listOf("a", "b", "c"))
+        assertEquals(0, set["a"]?.value)
+    }
+
+    @Test
+    fun testSet() {
+        val set = newSet("a", "b", "c")
+        assertEquals(Elem("b"), set.set(1, Elem("d")))
+        set.assertIndexed(listOf("a", "d", "c"), "b")
+
+        // Setting an element that is already present elsewhere removes the replaced element
+        set[0] = Elem("c")
+        set.assertIndexed(listOf("d", "c"), "a")
+    }
+
+    @Test
+    fun testRemoveAt() {
+        val set = newSet("a", "b", "c", "d")
+        assertEquals(Elem("b"), set.removeAt(1))
+        set.assertIndexed(listOf("a", "c", "d"), "b")
+        assertTrue(set.remove(Elem("a")))
+        set.assertIndexed(listOf("c", "d"), "a", "b")
+    }
+
+    @Test
+    fun testIteratorRemove() {
+        val set = newSet("a", "b", "c", "d")
+        val it = set.iterator()
+        while (it.hasNext()) {
+            if (it.next().id in setOf("a", "c")) it.remove()
+        }
+        set.assertIndexed(listOf("b", "d"), "a", "c")
+    }
+
+    @Test
+    fun testIteratorAddInsertsAtCursor() {
+        val set = newSet("a", "b", "c")
+        val it = set.listIterator(0) as MutableListIterator<Elem>
+        assertEquals("a", it.next().id)
+        it.add(Elem("x"))
+        assertEquals(2, it.nextIndex())
+        assertEquals("b", it.next().id, "The inserted element should not be returned by next")
+        it.add(Elem("a")) // Already present, so not added
+        assertEquals("c", it.next().id)
+        assertFalse(it.hasNext())
+        set.assertIndexed(listOf("a", "x", "b", "c"))
+    }
+
+    @Test
+    fun testRetainAll() {
+        val set = newSet("a", "b", "c", "d")
+        assertTrue(set.retainAll(listOf(Elem("b"), Elem("d"))))
+        set.assertIndexed(listOf("b", "d"), "a", "c")
+        assertFalse(set.retainAll(listOf(Elem("b"), Elem("d"))))
+    }
+
+    @Test
+    fun testClear() {
+        val set = newSet("a", "b")
+        set.clear()
+        set.assertIndexed(emptyList(), "a", "b")
+        assertTrue(set.add(Elem("a")))
+        set.assertIndexed(listOf("a"), "b")
+    }
+
+    @Test
+    fun testEquals() {
+        val set = newSet("a", "b", "c")
+        assertEquals<Any>(newSet("c", "a", "b"), set)
+        assertEquals<Any>(set.readOnly(), set)
+        assertEquals<Any>(set, set.readOnly())
+        assertNotEquals<Any>(newSet("a", "b", "d"), set)
+        assertNotEquals<Any>(IdentifyableSet.processNodeSet(listOf(Elem("a"), Elem("b", 1), Elem("c"))), set)
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.messaging
+
+import nl.adaptivity.util.activation.SourceDataSource
+import nl.adaptivity.ws.soap.SoapHelper
+import nl.adaptivity.ws.soap.SoapMessageHandler
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.io.OutputStreamWriter
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.time.Duration
+import java.util.ArrayDeque
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.logging.Level
+import java.util.logging.Logger
+import javax.xml.bind.JAXB
+import javax.xml.namespace.QName
+import javax.xml.transform.Source
+import javax.xml.transform.stream.StreamSource
+
+/**
+ * Messenger that sends messages using the JDK [HttpClient]. The client keeps connections alive and pools them, and
+ * messages are sent asynchronously so a slow service does not hold a thread for every outstanding message. The amount
+ * of concurrent messages to a single destination (scheme, host and port) is limited, further messages to that
+ * destination wait in a queue instead of being rejected. Response bodies are streamed rather than buffered, and
+ * completion listeners are notified in parallel.
+ *
+ * Registered local endpoints are handled in the same way as by [DarwinMessenger].
+ *
+ * @param maxConcurrentPerDestination The maximum amount of messages in flight to a single destination.
+ * @param localUrl The url that relative endpoint locations are resolved against.
+ */
+class HttpClientMessenger @JvmOverloads constructor(
+    val maxConcurrentPerDestination: Int = DEFAULT_MAX_PER_DESTINATION,
+    private val localUrl: URI? = defaultLocalUrl(),
+    private val requestTimeout: Duration = DEFAULT_REQUEST_TIMEOUT
+) : IMessenger {
+
+    /**
+     * Queue of messages to a single destination. Messages are started as long as less than the maximum are in flight,
+     * otherwise they wait until a running message completes.
+     */
+    private inner class DestinationQueue {
+        private var running = 0
+        private val waiting = ArrayDeque<() -> Unit>()
+
+        fun submit(start: () -> Unit) {
+            synchronized(this) {
+                if (running >= maxConcurrentPerDestination) {
+                    waiting.addLast(start)
+                    return
+                }
+                running++
+            }
+            start()
+        }
+
+        fun release() {
+            val next = synchronized(this) {
+                waiting.pollFirst() ?: run { running--; null }
+            }
+            next?.invoke()
+        }
+
+        val queued: Int get() = synchronized(this) { waiting.size }
+    }
+
+    private var services: ConcurrentMap<QName, ConcurrentMap<String, EndpointDescriptor>> = ConcurrentHashMap()
+
+    private val destinations = ConcurrentHashMap<String, DestinationQueue>()
+
+    /** Executor used by the client and for reading the responses. */
+    private val responseExecutor: ExecutorService = Executors.newCachedThreadPool(daemonThreads("response"))
+
+    /** Executor on which completion listeners are notified. */
+    private val completionExecutor: ExecutorService = Executors.newWorkStealingPool(COMPLETION_PARALLELISM)
+
+    private val client: HttpClient = HttpClient.newBuilder()
+        .executor(responseExecutor)
+        .connectTimeout(CONNECT_TIMEOUT)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build()
+
+    init {
+        require(maxConcurrentPerDestination > 0) { "At least one message per destination must be allowed" }
+    }
+
+    /** The amount of messages that are waiting for a destination to become available. */
+    val queuedMessages: Int get() = destinations.values.sumOf { it.queued }
+
+    override fun registerEndpoint(service: QName, endPoint: String, target: URI): EndpointDescriptor {
+        val endpoint = EndpointDescriptorImpl(service, endPoint, target)
+        registerEndpoint(endpoint)
+        return endpoint
+    }
+
+    @Synchronized
+    override fun registerEndpoint(endpoint: EndpointDescriptor) {
+        val serviceName = requireNotNull(endpoint.serviceName) { "Registered endpoints must have a service name" }
+        val endpointName = requireNotNull(endpoint.endpointName) { "Registered endpoints must have an endpoint name" }
+        services.getOrPut(serviceName) { ConcurrentHashMap() }[endpointName] = endpoint
+    }
+
+    override val registeredEndpoints: List<EndpointDescriptor>
+        get() = synchronized(this) { services.values.flatMap { it.values } }
+
+    @Synchronized
+    override fun unregisterEndpoint(endpoint: EndpointDescriptor): Boolean {
+        val serviceName = endpoint.serviceName ?: return false
+        val service = services[serviceName] ?: return false
+        val result = endpoint.endpointName?.let { service.remove(it) }
+        if (service.isEmpty()) services.remove(serviceName)
+        return result != null
+    }
+
+    fun getEndpoint(endpoint: EndpointDescriptor): EndpointDescriptor? {
+        val service = endpoint.serviceName?.let { services[it] } ?: return null
+        return endpoint.endpointName?.let { service[it] }
+    }
+
+    override fun <T> sendMessage(
+        message: ISendableMessage,
+        completionListener: CompletionListener<T>?,
+        returnType: Class<out T?>,
+        returnTypeContext: Array<out Class<*>>
+    ): Future<T> {
+        val registeredEndpoint = getEndpoint(message.destination)
+
+        if (registeredEndpoint is DirectEndpoint) {
+            return registeredEndpoint.deliverMessage<T>(message, completionListener, returnType)
+        }
+
+        if (registeredEndpoint is Endpoint && "application/soap+xml" == message.contentType) {
+            return deliverLocal(registeredEndpoint, message, completionListener, returnType, returnTypeContext)
+        }
+
+        val endpointLocation = (registeredEndpoint ?: message.destination).endpointLocation
+            ?: return failedFuture(
+                NullPointerException("No endpoint location specified, and the service could not be found")
+            )
+        val destURL = localUrl?.resolve(endpointLocation) ?: endpointLocation
+
+        return sendRemote(destURL, message, completionListener, returnType)
+    }
+
+    private fun <T> deliverLocal(
+        endpoint: Endpoint,
+        message: ISendableMessage,
+        completionListener: CompletionListener<T>?,
+        returnType: Class<out T?>,
+        returnTypeContext: Array<out Class<*>>
+    ): Future<T> {
+        val result = CompletableFuture<T>()
+        try {
+            val resultSource: Source =
+                SoapMessageHandler.newInstance(endpoint).processMessage(message.bodyReader, message.attachments)
+            @Suppress("UNCHECKED_CAST")
+            val value = when {
+                returnType.isAssignableFrom(SourceDataSource::class.java) ->
+                    returnType.cast(SourceDataSource("application/soap+xml", resultSource))
+                else -> SoapHelper.processResponse(returnType, returnTypeContext, emptyArray(), resultSource)
+            } as T
+            result.complete(value)
+        } catch (e: Exception) {
+            result.completeExceptionally(e)
+            return result
+        }
+        completionListener?.onMessageCompletion(result)
+        return result
+    }
+
+    private fun <T> sendRemote(
+        destURL: URI,
+        message: ISendableMessage,
+        completionListener: CompletionListener<T>?,
+        returnType: Class<out T?>
+    ): Future<T> {
+        val result = CompletableFuture<T>()
+        if (completionListener != null) {
+            result.whenCompleteAsync({ _, _ -> completionListener.onMessageCompletion(result) }, completionExecutor)
+        }
+
+        val request = try {
+            createRequest(destURL, message)
+        } catch (e: Exception) {
+            logger.log(Level.WARNING, "Error sending message", e)
+            result.completeExceptionally(e)
+            return result
+        }
+
+        val queue = destinations.computeIfAbsent(destinationKey(destURL)) { DestinationQueue() }
+        queue.submit {
+            if (result.isDone) { // Cancelled while waiting
+                queue.release()
+            } else {
+                client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                    .thenApplyAsync({ response -> readResponse(request, response, returnType) }, responseExecutor)
+                    .whenComplete { value, error ->
+                        queue.release()
+                        if (error == null) {
+                            result.complete(value)
+                        } else {
+                            val cause = (error as? CompletionException)?.cause ?: error
+                            logger.log(Level.WARNING, "Error sending message", cause)
+                            result.completeExceptionally(cause)
+                        }
+                    }
+            }
+        }
+        return result
+    }
+
+    private fun createRequest(destURL: URI, message: ISendableMessage): HttpRequest {
+        val builder = HttpRequest.newBuilder(destURL).timeout(requestTimeout)
+        for (header in message.headers) {
+            // The client manages the connection headers itself and rejects them on requests
+            if (header.name.lowercase() !in RESTRICTED_HEADERS) builder.header(header.name, header.value)
+        }
+
+        val body = message.bodySource
+        val method = message.method ?: if (body != null) "POST" else "GET"
+        if (body == null) {
+            builder.method(method, HttpRequest.BodyPublishers.noBody())
+        } else {
+            builder.setHeader("Content-Type", "${message.contentType}; charset=UTF-8")
+            val content = ByteArrayOutputStream()
+            OutputStreamWriter(content, Charsets.UTF_8).use { body.writeTo(it) }
+            builder.method(method, HttpRequest.BodyPublishers.ofByteArray(content.toByteArray()))
+        }
+        return builder.build()
+    }
+
+    private fun <T> readResponse(request: HttpRequest, response: HttpResponse<InputStream>, returnType: Class<out T?>): T {
+        val responseCode = response.statusCode()
+        if (responseCode < 200 || responseCode >= 400) {
+            val errorBody = response.body().use { String(it.readBytes()) }
+            val errorMessage = "Error in sending message with ${request.method()} to (${request.uri()}) [$responseCode]:\n$errorBody"
+            logger.info(errorMessage)
+            throw HttpResponseException(responseCode, errorMessage)
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        return when {
+            // Hand the body stream to the caller, rather than reading it into memory first
+            returnType.isAssignableFrom(SourceDataSource::class.java) -> {
+                val contentType = response.headers().firstValue("Content-Type").orElse("application/octet-stream")
+                returnType.cast(SourceDataSource(contentType, StreamSource(response.body())))
+            }
+
+            else -> response.body().use { JAXB.unmarshal(it, returnType) }
+        } as T
+    }
+
+    /**
+     * Shut down the messenger. If the messenger is registered it will also be unregistered.
+     */
+    override fun shutdown() {
+        synchronized(MessagingRegistry) {
+            if (MessagingRegistry.messenger === this) MessagingRegistry.registerMessenger(null)
+        }
+        responseExecutor.shutdown()
+        completionExecutor.shutdown()
+        services = ConcurrentHashMap()
+    }
+
+    companion object {
+
+        /** The system property used to select this messenger for the servlet contexts. */
+        const val TRANSPORT_PROPERTY = "nl.adaptivity.messaging.transport"
+
+        const val TRANSPORT_NAME = "httpclient"
+
+        /** The system property used to set the maximum amount of concurrent messages to a single destination. */
+        const val MAX_PER_DESTINATION_PROPERTY = "nl.adaptivity.messaging.maxPerDestination"
+
+        const val DEFAULT_MAX_PER_DESTINATION = 16
+
+        private val DEFAULT_REQUEST_TIMEOUT: Duration = Duration.ofMinutes(5)
+
+        private val CONNECT_TIMEOUT: Duration = Duration.ofSeconds(30)
+
+        private val COMPLETION_PARALLELISM = maxOf(2, Runtime.getRuntime().availableProcessors())
+
+        private val RESTRICTED_HEADERS = setOf("connection", "content-length", "expect", "host", "upgrade")
+
+        private val logger = Logger.getLogger(HttpClientMessenger::class.java.name)
+
+        private fun defaultLocalUrl(): URI? {
+            val localUrl = System.getProperty("nl.adaptivity.messaging.localurl") ?: return null
+            return try {
+                URI.create(localUrl)
+            } catch (e: IllegalArgumentException) {
+                logger.log(Level.SEVERE, "The given local url is not a valid uri.", e)
+                null
+            }
+        }
+
+        private fun destinationKey(uri: URI) = "${uri.scheme}://${uri.host}:${uri.port}"
+
+        private fun <T> failedFuture(e: Exception): Future<T> = CompletableFuture<T>().apply { completeExceptionally(e) }
+
+        private fun daemonThreads(kind: String): ThreadFactory {
+            val threadCount = AtomicInteger()
+            return ThreadFactory { runnable ->
+                Thread(runnable, "${HttpClientMessenger::class.java.simpleName} - $kind ${threadCount.incrementAndGet()}")
+                    .apply { isDaemon = true }
+            }
+        }
+
+        /**
+         * Register a new messenger with the [MessagingRegistry]. The maximum amount of concurrent messages to a
+         * destination is taken from the [MAX_PER_DESTINATION_PROPERTY] system property.
+         */
+        fun register() {
+            val maxPerDestination =
+                System.getProperty(MAX_PER_DESTINATION_PROPERTY)?.toIntOrNull() ?: DEFAULT_MAX_PER_DESTINATION
+            MessagingRegistry.registerMessenger(HttpClientMessenger(maxPerDestination))
+        }
+
+        /**
+         * Register the messenger selected by the [TRANSPORT_PROPERTY] system property. This is the
+         * [HttpClientMessenger] if the property is set to [TRANSPORT_NAME], otherwise the [DarwinMessenger].
+         */
+        fun registerSelected() {
+            when (System.getProperty(TRANSPORT_PROPERTY)) {
+                TRANSPORT_NAME -> register()
+                else -> DarwinMessenger.register()
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.messaging
+
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Executor for requests that are handled asynchronously by the [EndpointServlet]. At most [maxConcurrent] requests are
+ * handled at the same time, and at most [maxQueued] requests wait for their turn. Further requests are rejected. Where
+ * the JVM supports it every request gets its own virtual thread, otherwise a fixed pool of [maxConcurrent] threads is
+ * used.
+ *
+ * The time requests spend waiting is recorded, see [averageQueueTimeMillis] and [maxQueueTimeMillis].
+ */
+class AsyncRequestDispatcher(
+    val maxConcurrent: Int = DEFAULT_MAX_CONCURRENT,
+    val maxQueued: Int = DEFAULT_MAX_QUEUED,
+    name: String = "EndpointServlet"
+) : AutoCloseable {
+
+    private val permits = Semaphore(maxConcurrent, true)
+
+    private val executor: ExecutorService = newVirtualThreadExecutor()
+        ?: ThreadPoolExecutor(
+            maxConcurrent, maxConcurrent, 60L, TimeUnit.SECONDS, LinkedBlockingQueue(),
+            object : ThreadFactory {
+                private val count = AtomicInteger()
+                override fun newThread(r: Runnable) = Thread(r, "$name-async-${count.incrementAndGet()}").apply {
+                    isDaemon = true
+                }
+            }
+        )
+
+    private val queued = AtomicInteger()
+
+    private val active = AtomicInteger()
+
+    private val completed = LongAdder()
+
+    private val rejected = LongAdder()
+
+    private val totalQueueNanos = LongAdder()
+
+    private val maxQueueNanos = AtomicLong()
+
+    /** The amount of requests waiting to be handled. */
+    val queuedRequests: Int get() = queued.get()
+
+    /** The amount of requests being handled. */
+    val activeRequests: Int get() = active.get()
+
+    /** The amount of requests that have been handled. */
+    val completedRequests: Long get() = completed.sum()
+
+    /** The amount of requests that were rejected because the queue was full. */
+    val rejectedRequests: Long get() = rejected.sum()
+
+    /** The average time requests waited before being handled. */
+    val averageQueueTimeMillis: Double
+        get() {
+            val count = completed.sum()
+            return if (count == 0L) 0.0 else totalQueueNanos.sum().toDouble() / count / 1_000_000.0
+        }
+
+    /** The longest time a request waited before being handled. */
+    val maxQueueTimeMillis: Double get() = maxQueueNanos.get() / 1_000_000.0
+
+    /**
+     * Handle the request on the executor.
+     *
+     * @param task The actual handling of the request.
+     * @return `false` if the request was rejected as too many requests are waiting.
+     */
+    fun submit(task: () -> Unit): Boolean {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet()
+            rejected.increment()
+            return false
+        }
+        val submitted = System.nanoTime()
+        try {
+            executor.execute {
+                permits.acquireUninterruptibly()
+                queued.decrementAndGet()
+                active.incrementAndGet()
+                recordQueueTime(System.nanoTime() - submitted)
+                try {
+                    task()
+                } catch (e: Exception) {
+                    logger.log(Level.WARNING, "Uncaught failure in asynchronous request", e)
+                } finally {
+                    active.decrementAndGet()
+                    completed.increment()
+                    permits.release()
+                }
+            }
+        } catch (e: RejectedExecutionException) {
+            queued.decrementAndGet()
+            rejected.increment()
+            return false
+        }
+        return true
+    }
+
+    private fun recordQueueTime(nanos: Long) {
+        totalQueueNanos.add(nanos)
+        maxQueueNanos.accumulateAndGet(nanos) { a, b -> maxOf(a, b) }
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("Request queued for ${nanos / 1_000_000.0}ms")
+        }
+    }
+
+    override fun toString(): String {
+        return "AsyncRequestDispatcher(active=$activeRequests, queued=$queuedRequests, completed=$completedRequests, " +
+            "rejected=$rejectedRequests, averageQueueTime=${averageQueueTimeMillis}ms, maxQueueTime=${maxQueueTimeMillis}ms)"
+    }
+
+    /** Stop accepting requests and wait (a limited time) for the running requests to finish. */
+    override fun close() {
+        executor.shutdown()
+        if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            executor.shutdownNow()
+        }
+        logger.info("Asynchronous request statistics: $this")
+    }
+
+    companion object {
+        const val DEFAULT_MAX_CONCURRENT = 64
+        const val DEFAULT_MAX_QUEUED = 1024
+
+        private const val SHUTDOWN_TIMEOUT_SECONDS = 30L
+
+        private val logger = Logger.getLogger(AsyncRequestDispatcher::class.java.name)
+
+        /** Create a virtual thread per task executor if the JVM supports it (Java 21+). */
+        private fun newVirtualThreadExecutor(): ExecutorService? {
+            return try {
+                Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor").invoke(null) as ExecutorService
+            } catch (e: ReflectiveOperationException) {
+                null
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.messaging
+
+import jakarta.servlet.AsyncContext
+import jakarta.servlet.AsyncEvent
+import jakarta.servlet.AsyncListener
+import jakarta.servlet.ServletOutputStream
+import jakarta.servlet.WriteListener
+import jakarta.servlet.http.HttpServletResponse
+import jakarta.servlet.http.HttpServletResponseWrapper
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStreamWriter
+import java.io.PrintWriter
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Response wrapper for asynchronously handled requests. The body is collected in memory while the handler runs, and
+ * afterwards written to the client with a [WriteListener] so that no thread blocks on a slow client.
+ *
+ * The asynchronous request is completed exactly once, either by [writeAndComplete] when the handler is done, or by
+ * [abort] when the request timed out or failed first. Whichever comes second does nothing.
+ */
+internal class BufferedAsyncResponse(response: HttpServletResponse) : HttpServletResponseWrapper(response) {
+
+    private val buffer = ByteArrayOutputStream()
+
+    private var outputStream: ServletOutputStream? = null
+
+    private var writer: PrintWriter? = null
+
+    /** The error sent by the handler (the container then provides the body), only passed on when completing. */
+    private var errorStatus: Int? = null
+
+    private var errorMessage: String? = null
+
+    private val completed = AtomicBoolean()
+
+    /** `true` once the request has been completed or aborted, any further handling is pointless. */
+    val isCompleted: Boolean get() = completed.get()
+
+    override fun getOutputStream(): ServletOutputStream {
+        if (writer != null) throw IllegalStateException("getWriter() has already been called")
+        return outputStream ?: object : ServletOutputStream() {
+            override fun write(b: Int) = buffer.write(b)
+
+            override fun write(b: ByteArray, off: Int, len: Int) = buffer.write(b, off, len)
+
+            override fun isReady(): Boolean = true
+
+            override fun setWriteListener(writeListener: WriteListener) = writeListener.onWritePossible()
+        }.also { outputStream = it }
+    }
+
+    override fun getWriter(): PrintWriter {
+        if (outputStream != null) throw IllegalStateException("getOutputStream() has already been called")
+        return writer ?: PrintWriter(OutputStreamWriter(buffer, characterEncoding)).also { writer = it }
+    }
+
+    override fun flushBuffer() {
+        writer?.flush()
+    }
+
+    override fun resetBuffer() {
+        super.resetBuffer()
+        writer?.flush()
+        buffer.reset()
+    }
+
+    override fun reset() {
+        super.reset()
+        writer?.flush()
+        buffer.reset()
+    }
+
+    override fun isCommitted(): Boolean = errorStatus != null || super.isCommitted()
+
+    @Throws(IOException::class)
+    override fun sendError(sc: Int, msg: String?) {
+        if (isCommitted) throw IllegalStateException("The response has already been committed")
+        errorStatus = sc
+        errorMessage = msg
+    }
+
+    @Throws(IOException::class)
+    override fun sendError(sc: Int) {
+        sendError(sc, null)
+    }
+
+    /**
+     * Write the collected body to the actual response without blocking, and complete the asynchronous request once
+     * that is done.
+     */
+    fun writeAndComplete(asyncContext: AsyncContext) {
+        if (!completed.compareAndSet(false, true)) return
+
+        writer?.flush()
+        val response = response as HttpServletResponse
+        val errorStatus = errorStatus
+        if (errorStatus != null || buffer.size() == 0) {
+            try {
+                if (errorStatus != null) response.sendError(errorStatus, errorMessage)
+            } finally {
+                asyncContext.complete()
+            }
+            return
+        }
+
+        val content = ByteBuffer.wrap(buffer.toByteArray())
+        response.setContentLength(content.remaining())
+        val out = response.outputStream
+        out.setWriteListener(object : WriteListener {
+            override fun onWritePossible() {
+                while (out.isReady) {
+                    if (!content.hasRemaining()) {
+                        asyncContext.complete()
+                        return
+                    }
+                    val count = minOf(content.remaining(), CHUNK_SIZE)
+                    out.write(content.array(), content.position(), count)
+                    content.position(content.position() + count)
+                }
+            }
+
+            override fun onError(t: Throwable) {
+                logger.log(Level.WARNING, "Failure writing an asynchronous response", t)
+                asyncContext.complete()
+            }
+        })
+    }
+
+    /**
+     * Complete the request with the given error [status] instead of the handler result, unless it was completed
+     * already. Any later output of the handler is discarded.
+     *
+     * @return `true` if this call completed the request.
+     */
+    fun abort(asyncContext: AsyncContext, status: Int): Boolean {
+        if (!completed.compareAndSet(false, true)) return false
+
+        try {
+            val response = response as HttpServletResponse
+            if (!response.isCommitted) response.sendError(status)
+        } catch (e: IOException) {
+            logger.log(Level.FINE, "Could not send the error status of an aborted request", e)
+        } catch (e: IllegalStateException) {
+            logger.log(Level.FINE, "Could not send the error status of an aborted request", e)
+        } finally {
+            asyncContext.complete()
+        }
+        return true
+    }
+
+    /**
+     * Listener that aborts the request when it times out ([HttpServletResponse.SC_SERVICE_UNAVAILABLE]) or fails
+     * ([HttpServletResponse.SC_INTERNAL_SERVER_ERROR]) before the handler has completed it.
+     */
+    inner class AbortListener(private val requestUri: String?) : AsyncListener {
+
+        override fun onTimeout(event: AsyncEvent) {
+            if (abort(event.asyncContext, HttpServletResponse.SC_SERVICE_UNAVAILABLE)) {
+                logger.warning("Asynchronous request for $requestUri timed out")
+            }
+        }
+
+        override fun onError(event: AsyncEvent) {
+            if (abort(event.asyncContext, HttpServletResponse.SC_INTERNAL_SERVER_ERROR)) {
+                logger.log(Level.WARNING, "Asynchronous request for $requestUri failed", event.throwable)
+            }
+        }
+
+        override fun onComplete(event: AsyncEvent) = Unit
+
+        override fun onStartAsync(event: AsyncEvent) = Unit
+    }
+
+    private companion object {
+        const val CHUNK_SIZE = 8192
+
+        val logger: Logger = Logger.getLogger(BufferedAsyncResponse::class.java.name)
+    }
+}
@@ -40,6 +40,10 @@ import java.util.logging.Logger
 /**
  * A servlet that serves up web services provided by a [GenericEndpoint]
  *
+ * When the `async` init parameter is `true` (and the servlet is declared async-supported) requests are handled on an
+ * [AsyncRequestDispatcher] rather than on the container thread. The `asyncMaxConcurrent`, `asyncMaxQueued` and
+ * `asyncTimeout` (milliseconds) parameters configure its limits.
+ *
  * @author Paul de Vrieze
  */
 open class EndpointServlet : HttpServlet {
@@ -73,6 +77,12 @@ open class EndpointServlet : HttpServlet {
      */
     private val restMessageHandler: RestMessageHandler by lazy { RestMessageHandler.newInstance(endpointProvider!!) }
 
+    /** The dispatcher for asynchronous handling, `null` when requests are handled synchronously. */
+    protected var asyncDispatcher: AsyncRequestDispatcher? = null
+        private set
+
+    private var asyncTimeout: Long = DEFAULT_ASYNC_TIMEOUT
+
     /**
      * Default constructor that allows this servlet to be instantiated directly in
      * tomcat. This will set the endpoint to the object itself if the object
@@ -99,7 +109,7 @@ open class EndpointServlet : HttpServlet {
      */
     @Throws(ServletException::class, IOException::class)
     override fun doDelete(req: HttpServletRequest, resp: HttpServletResponse) {
-        processRestSoap(HttpMethod.DELETE, req, resp)
+        dispatchRestSoap(HttpMethod.DELETE, req, resp)
     }
 
     /**
@@ -107,7 +117,7 @@ open class EndpointServlet : HttpServlet {
      */
     @Throws(ServletException::class, IOException::class)
     override fun doGet(req: HttpServletRequest, resp: HttpServletResponse) {
-        processRestSoap(HttpMethod.GET, req, resp)
+        dispatchRestSoap(HttpMethod.GET, req, resp)
     }
 
     /**
@@ -115,7 +125,7 @@ open class EndpointServlet : HttpServlet {
      */
     @Throws(ServletException::class, IOException::class)
     override fun doHead(req: HttpServletRequest, resp: HttpServletResponse) {
-        processRestSoap(HttpMethod.HEAD, req, resp)
+        dispatchRestSoap(HttpMethod.HEAD, req, resp)
     }
 
     /**
@@ -123,7 +133,7 @@ open class EndpointServlet : HttpServlet {
      */
     @Throws(ServletException::class, IOException::class)
     override fun doPost(req: HttpServletRequest, resp: HttpServletResponse) {
-        processRestSoap(HttpMethod.POST, req, resp)
+        dispatchRestSoap(HttpMethod.POST, req, resp)
     }
 
     /**
@@ -131,7 +141,37 @@ open class EndpointServlet : HttpServlet {
      */
     @Throws(ServletException::class, IOException::class)
     override fun doPut(req: HttpServletRequest, resp: HttpServletResponse) {
-        processRestSoap(HttpMethod.PUT, req, resp)
+        dispatchRestSoap(HttpMethod.PUT, req, resp)
+    }
+
+    /**
+     * Process the request, asynchronously if that is configured and supported by the request.
+     */
+    private fun dispatchRestSoap(method: HttpMethod, request: HttpServletRequest, response: HttpServletResponse) {
+        val dispatcher = asyncDispatcher
+        if (dispatcher == null || !request.isAsyncSupported) {
+            processRestSoap(method, request, response)
+            return
+        }
+
+        val asyncContext = request.startAsync(request, response)
+        asyncContext.timeout = asyncTimeout
+        val bufferedResponse = BufferedAsyncResponse(response)
+        asyncContext.addListener(bufferedResponse.AbortListener(request.requestURI))
+        val accepted = dispatcher.submit {
+            // Requests that timed out while queued are not handled at all
+            if (!bufferedResponse.isCompleted) {
+                try {
+                    processRestSoap(method, request, bufferedResponse)
+                } finally {
+                    bufferedResponse.writeAndComplete(asyncContext)
+                }
+            }
+        }
+        if (!accepted) {
+            logger.warning("Rejecting request for ${request.requestURI}, too many queued requests ($dispatcher)")
+            bufferedResponse.abort(asyncContext, HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+        }
     }
 
     /**
@@ -198,6 +238,8 @@ open class EndpointServlet : HttpServlet {
             } catch (e: HttpResponseException) {
                 response.sendError(e.responseCode, e.message)
                 logger.log(Level.SEVERE, "Error in processing the request for " + request.requestURI, e)
+            } finally {
+                message.close()
             }
 
         } catch (e: Exception) {
@@ -222,6 +264,14 @@ open class EndpointServlet : HttpServlet {
     @Throws(ServletException::class)
     override fun init(config: ServletConfig) {
         super.init(config)
+        if (config.getInitParameter("async")?.toBoolean() == true) {
+            asyncDispatcher = AsyncRequestDispatcher(
+                config.getInitParameter("asyncMaxConcurrent")?.toInt() ?: AsyncRequestDispatcher.DEFAULT_MAX_CONCURRENT,
+                config.getInitParameter("asyncMaxQueued")?.toInt() ?: AsyncRequestDispatcher.DEFAULT_MAX_QUEUED,
+                config.servletName
+            )
+            asyncTimeout = config.getInitParameter("asyncTimeout")?.toLong() ?: DEFAULT_ASYNC_TIMEOUT
+        }
         val className = config.getInitParameter("endpoint")
         if (className == null && endpointProvider === null) {
             throw ServletException("The EndpointServlet needs to be configured with an endpoint parameter.")
@@ -254,6 +304,8 @@ open class EndpointServlet : HttpServlet {
     }
 
     override fun destroy() {
+        asyncDispatcher?.close()
+        asyncDispatcher = null
         endpointProvider?.destroy()
 
         super.destroy()
@@ -265,6 +317,8 @@ open class EndpointServlet : HttpServlet {
 
         private val serialVersionUID = 5882346515807438320L
 
+        private const val DEFAULT_ASYNC_TIMEOUT = 60_000L
+
         /**
          * Get a logger object for this servlet.
          *
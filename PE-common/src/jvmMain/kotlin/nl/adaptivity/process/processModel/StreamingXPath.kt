@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.processModel
+
+import nl.adaptivity.xmlutil.*
+import nl.adaptivity.xmlutil.util.CompactFragment
+import nl.adaptivity.xmlutil.util.ICompactFragment
+import java.io.CharArrayWriter
+import javax.xml.XMLConstants
+import javax.xml.namespace.NamespaceContext
+
+/**
+ * Evaluator for the subset of XPath used by most results and defines that works on the events of a fragment rather
+ * than on a DOM tree. Supported are location paths (absolute or relative to the fragment) made of child (`/`) and
+ * descendant (`//`) steps. A step is an element name or `*`, optionally followed by predicates of the form
+ * `[@name]`, `[@name='value']` and (as last predicate) `[n]`. The last step may also be `text()` or an attribute
+ * (`@name` or `@*`). The paths `.` and `/` select the whole fragment.
+ *
+ * The result is the same as evaluating the path as node set on the fragment and converting it with
+ * `DomUtil.nodeListToFragment`, except that selected attributes result in their value (as text). Instances are
+ * created by [compile], which returns `null` for paths outside of the subset. Those need a full XPath implementation.
+ */
+class StreamingXPath private constructor(private val steps: Array<Step>) {
+
+    private enum class Kind { ELEMENT, TEXT, ATTRIBUTE }
+
+    /** A name test where `null` matches any namespace or name. An empty namespace is no namespace. */
+    private class NameTest(val namespace: String?, val localName: String?) {
+        fun matches(namespace: String, localName: String): Boolean {
+            return (this.localName == null || this.localName == localName) &&
+                (this.namespace == null || this.namespace == namespace)
+        }
+    }
+
+    private class AttributeTest(val namespace: String, val localName: String, val value: String?) {
+        fun matches(reader: XmlReader): Boolean {
+            for (i in 0 until reader.attributeCount) {
+                if (reader.getAttributeLocalName(i) == localName && reader.getAttributeNamespace(i) == namespace) {
+                    return value == null || reader.getAttributeValue(i) == value
+                }
+            }
+            return false
+        }
+    }
+
+    /**
+     * A single step of the path.
+     * @property position The position required by a positional predicate, or 0 if there is none.
+     */
+    private class Step(
+        val descendant: Boolean,
+        val kind: Kind,
+        val name: NameTest,
+        val attributeTests: List<AttributeTest>,
+        val position: Int
+    )
+
+    private val hasPositions = steps.any { it.position > 0 }
+
+    /** Evaluate the path against the fragment. The result has the same content as the nodes selected by the path. */
+    fun evaluate(fragment: ICompactFragment): ICompactFragment {
+        if (steps.isEmpty()) return fragment
+        return Evaluation(fragment.getXmlReader()).run()
+    }
+
+    /** A single pass over the events of a fragment. */
+    private inner class Evaluation(private val reader: XmlReader) {
+        private val stepCount = steps.size
+
+        private val last = stepCount - 1
+
+        private val finalKind = steps[last].kind
+
+        /**
+         * For the fragment (at depth 0) and each open element, the bitset of the steps that its children are to be
+         * matched against. A step is included when the element matched the previous step, or when it is a
+         * descendant step that applies to one of its ancestors.
+         */
+        private var stepSets = LongArray(16)
+
+        /** Per depth and step the amount of children that passed the tests of the step, for positional predicates. */
+        private var positions = if (hasPositions) IntArray(16 * stepCount) else IntArray(0)
+
+        private var depth = 0
+
+        /** Selected elements in document order. */
+        private val captures = mutableListOf<Capture>()
+
+        /** Selected elements that have not been completely read yet. */
+        private val openCaptures = mutableListOf<Capture>()
+
+        /** Selected text nodes or attribute values in document order. */
+        private val texts = mutableListOf<String>()
+
+        /** A selected text node that may still continue in the next event. */
+        private var pendingText: StringBuilder? = null
+
+        fun run(): ICompactFragment {
+            stepSets[0] = 1L
+            loop@ while (reader.hasNext()) {
+                when (reader.next()) {
+                    EventType.START_ELEMENT -> {
+                        flushText()
+                        startElement()
+                    }
+
+                    EventType.END_ELEMENT -> {
+                        flushText()
+                        if (depth == 0) break@loop
+                        endElement()
+                    }
+
+                    EventType.TEXT,
+                    EventType.CDSECT,
+                    EventType.IGNORABLE_WHITESPACE,
+                    EventType.ENTITY_REF -> text()
+
+                    EventType.END_DOCUMENT -> break@loop
+
+                    EventType.START_DOCUMENT,
+                    EventType.DOCDECL -> {}
+
+                    else -> {
+                        flushText()
+                        writeToCaptures()
+                    }
+                }
+            }
+            flushText()
+            for (capture in openCaptures) capture.close()
+            return result()
+        }
+
+        private fun startElement() {
+            var childSet = 0L
+            var remaining = stepSets[depth]
+            while (remaining != 0L) {
+                val k = java.lang.Long.numberOfTrailingZeros(remaining)
+                remaining = remaining and (remaining - 1)
+                val step = steps[k]
+                if (step.descendant) childSet = childSet or (1L shl k)
+                if (step.kind == Kind.ELEMENT && matches(step, k)) childSet = childSet or (1L shl (k + 1))
+            }
+            push(childSet)
+
+            when (finalKind) {
+                Kind.ELEMENT -> if (childSet and (1L shl stepCount) != 0L) {
+                    Capture(depth).also { captures.add(it); openCaptures.add(it) }
+                }
+
+                Kind.ATTRIBUTE -> if (childSet and (1L shl last) != 0L) selectAttributes(steps[last].name)
+
+                Kind.TEXT -> {}
+            }
+            writeToCaptures()
+        }
+
+        private fun endElement() {
+            writeToCaptures()
+            val it = openCaptures.iterator()
+            while (it.hasNext()) {
+                val capture = it.next()
+                if (capture.depth == depth) {
+                    capture.close()
+                    it.remove()
+                }
+            }
+            depth--
+        }
+
+        private fun text() {
+            writeToCaptures()
+            if (finalKind == Kind.TEXT && stepSets[depth] and (1L shl last) != 0L) {
+                (pendingText ?: StringBuilder().also { pendingText = it }).append(reader.text)
+            }
+        }
+
+        /** Adjacent text events form a single text node. */
+        private fun flushText() {
+            pendingText?.let {
+                texts.add(it.toString())
+                pendingText = null
+            }
+        }
+
+        private fun matches(step: Step, k: Int): Boolean {
+            if (!step.name.matches(reader.namespaceURI, reader.localName)) return false
+            for (test in step.attributeTests) {
+                if (!test.matches(reader)) return false
+            }
+            return step.position <= 0 || ++positions[depth * stepCount + k] == step.position
+        }
+
+        private fun selectAttributes(name: NameTest) {
+            for (i in 0 until reader.attributeCount) {
+                val namespace = reader.getAttributeNamespace(i)
+                if (namespace == XMLConstants.XMLNS_ATTRIBUTE_NS_URI) continue
+                if (name.matches(namespace, reader.getAttributeLocalName(i))) texts.add(reader.getAttributeValue(i))
+            }
+        }
+
+        private fun push(stepSet: Long) {
+            depth++
+            if (depth == stepSets.size) stepSets = stepSets.copyOf(depth * 2)
+            stepSets[depth] = stepSet
+            if (hasPositions) {
+                val end = (depth + 1) * stepCount
+                if (end > positions.size) positions = positions.copyOf(end * 2)
+                positions.fill(0, depth * stepCount, end)
+            }
+        }
+
+        private fun writeToCaptures() {
+            for (capture in openCaptures) reader.writeCurrent(capture.writer)
+        }
+
+        private fun result(): ICompactFragment = when (finalKind) {
+            Kind.ELEMENT -> when (captures.size) {
+                0 -> CompactFragment("")
+                1 -> CompactFragment(captures[0].content)
+                else -> CompactFragment(captures.joinToString("") { it.content })
+            }
+
+            // Like DomUtil.nodeToFragment a single text is used as is, multiple texts are serialized
+            else -> when (texts.size) {
+                0 -> CompactFragment("")
+                1 -> CompactFragment(texts[0])
+                else -> CompactFragment(buildString { for (text in texts) appendEscaped(text) })
+            }
+        }
+    }
+
+    /** The serialization of a selected element, it declares the namespaces that it uses. */
+    private class Capture(val depth: Int) {
+        private val buffer = CharArrayWriter()
+
+        val writer: XmlWriter = xmlStreaming.newWriter(buffer, repairNamespaces = true)
+
+        var content: String = ""
+            private set
+
+        fun close() {
+            writer.close()
+            content = buffer.toString()
+        }
+    }
+
+    private class Parser(private val path: String, private val namespaceContext: NamespaceContext?) {
+        private var pos = 0
+
+        private val current: Char? get() = path.getOrNull(pos)
+
+        fun parse(): Array<Step>? {
+            if (path.isEmpty()) return null
+            val steps = mutableListOf<Step>()
+            var descendant = when {
+                path.startsWith("//") -> { pos = 2; true }
+                path.startsWith("/") -> { pos = 1; false }
+                else -> false
+            }
+            while (true) {
+                val step = parseStep(descendant) ?: return null
+                steps.add(step)
+                if (pos == path.length) return steps.toTypedArray()
+                // Only the last step can select something else than elements
+                if (step.kind != Kind.ELEMENT) return null
+                descendant = when {
+                    path.startsWith("//", pos) -> { pos += 2; true }
+                    path.startsWith("/", pos) -> { pos += 1; false }
+                    else -> return null
+                }
+            }
+        }
+
+        private fun parseStep(descendant: Boolean): Step? {
+            if (path.startsWith("text()", pos)) {
+                pos += 6
+                return Step(descendant, Kind.TEXT, NameTest(null, null), emptyList(), 0)
+            }
+            if (current == '@') {
+                pos++
+                val name = parseNameTest() ?: return null
+                return Step(descendant, Kind.ATTRIBUTE, name, emptyList(), 0)
+            }
+
+            val name = parseNameTest() ?: return null
+            val attributeTests = mutableListOf<AttributeTest>()
+            var position = 0
+            while (current == '[') {
+                // A positional predicate must be the last, otherwise positions depend on other predicates
+                if (position != 0) return null
+                pos++
+                skipSpaces()
+                if (current == '@') {
+                    pos++
+                    val attrName = parseNameTest() ?: return null
+                    val attrNamespace = attrName.namespace ?: return null
+                    val attrLocalName = attrName.localName ?: return null
+                    skipSpaces()
+                    var value: String? = null
+                    if (current == '=') {
+                        pos++
+                        skipSpaces()
+                        value = parseLiteral() ?: return null
+                        skipSpaces()
+                    }
+                    attributeTests.add(AttributeTest(attrNamespace, attrLocalName, value))
+                } else {
+                    val start = pos
+                    while (current?.isDigit() == true) pos++
+                    position = path.substring(start, pos).toIntOrNull()?.takeIf { it > 0 } ?: return null
+                    skipSpaces()
+                }
+                if (current != ']') return null
+                pos++
+            }
+            return Step(descendant, Kind.ELEMENT, name, attributeTests, position)
+        }
+
+        private fun parseNameTest(): NameTest? {
+            if (current == '*') {
+                pos++
+                return NameTest(null, null)
+            }
+            val first = parseNCName() ?: return null
+            if (current != ':') return NameTest(XMLConstants.NULL_NS_URI, first)
+
+            pos++
+            val namespace = namespaceContext?.getNamespaceURI(first)?.takeIf { it.isNotEmpty() } ?: return null
+            if (current == '*') {
+                pos++
+                return NameTest(namespace, null)
+            }
+            return NameTest(namespace, parseNCName() ?: return null)
+        }
+
+        private fun parseNCName(): String? {
+            val start = pos
+            val first = current ?: return null
+            if (!(first.isLetter() || first == '_')) return null
+            pos++
+            while (current?.let { it.isLetterOrDigit() || it == '_' || it == '-' || it == '.' } == true) pos++
+            return path.substring(start, pos)
+        }
+
+        private fun parseLiteral(): String? {
+            val quote = current?.takeIf { it == '\'' || it == '"' } ?: return null
+            val end = path.indexOf(quote, pos + 1)
+            if (end < 0) return null
+            return path.substring(pos + 1, end).also { pos = end + 1 }
+        }
+
+        private fun skipSpaces() {
+            while (current?.isWhitespace() == true) pos++
+        }
+    }
+
+    companion object {
+        /** The steps are tracked in the bits of a long, including one for "all steps matched". */
+        private const val MAX_STEPS = 63
+
+        private val SELF = StreamingXPath(emptyArray())
+
+        /**
+         * Compile the path for streaming evaluation.
+         * @param namespaceContext The context used to resolve the prefixes in the path.
+         * @return The compiled path, or `null` if the path is not supported.
+         */
+        fun compile(path: String, namespaceContext: NamespaceContext?): StreamingXPath? {
+            val trimmed = path.trim()
+            if (trimmed == "." || trimmed == "/") return SELF
+            val steps = Parser(trimmed, namespaceContext).parse() ?: return null
+            return if (steps.size > MAX_STEPS) null else StreamingXPath(steps)
+        }
+
+        private fun StringBuilder.appendEscaped(text: String) {
+            for (c in text) {
+                when (c) {
+                    '&' -> append("&amp;")
+                    '<' -> append("&lt;")
+                    '>' -> append("&gt;")
+                    else -> append(c)
+                }
+            }
+        }
+    }
+}
@@ -51,6 +51,9 @@ actual abstract class XPathHolder actual constructor(
 
     val xPath: XPathExpression? get() = _path
 
+    /** The path compiled for evaluation on the event stream, or `null` if it needs the full [xPath]. */
+    val streamingXPath: StreamingXPath? by lazy { StreamingXPath.compile(path ?: ".", content.namespaces) }
+
 
     actual override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -221,6 +221,23 @@ object DomUtil {
         return fragment
     }
 
+    /**
+     * Read the document element of a reader that is at the start of a document into a fragment.
+     */
+    @JvmStatic
+    fun documentElementToFragment(input: XmlReader): DocumentFragment {
+        val doc = xmlStreaming.platformDOMImplementation.createDocument(null, null, null)
+
+        val documentFragment = doc.createDocumentFragment()
+        input.skipPreamble()
+        if (input.eventType === EventType.START_ELEMENT) {
+            val out = xmlStreaming.newWriter(documentFragment)
+            input.writeCurrent(out)
+            out.writeElementContent(null, input)
+        }
+        return documentFragment
+    }
+
     @JvmStatic
     fun childrenToDocumentFragment(input: XmlReader): DocumentFragment {
 
@@ -17,10 +17,13 @@
 package nl.adaptivity.util
 
 import io.github.pdvrieze.util.jvmOnly.HttpRequest
+import io.github.pdvrieze.util.jvmOnly.SpoolingOutputStream
+import io.github.pdvrieze.util.jvmOnly.copyPooled
 import io.github.pdvrieze.util.jvmOnly.parseMultipartFormDataTo
 import jakarta.servlet.http.HttpServletRequest
 import kotlinx.serialization.KSerializer
 import kotlinx.serialization.Serializable
+import kotlinx.serialization.Transient
 import kotlinx.serialization.descriptors.PrimitiveKind
 import kotlinx.serialization.descriptors.PrimitiveSerialDescriptor
 import kotlinx.serialization.descriptors.SerialDescriptor
@@ -35,23 +38,24 @@ import nl.adaptivity.xmlutil.*
 import nl.adaptivity.xmlutil.serialization.XmlSerialName
 import nl.adaptivity.xmlutil.util.CompactFragment
 import nl.adaptivity.xmlutil.util.ICompactFragment
-import org.w3c.dom.Document
 import java.io.*
 import java.net.URLDecoder
-import java.nio.ByteBuffer
 import java.nio.charset.Charset
 import java.security.Principal
 import java.util.*
-import javax.activation.DataHandler
 import javax.activation.DataSource
 import javax.xml.bind.annotation.XmlAttribute
 import kotlin.collections.Map.Entry
 
 
-// TODO change this to handle regular request bodies.
+/**
+ * Representation of an http request for the rest and soap handlers. The body of the request is only read when it is
+ * first used, and is then spooled (to disk if it is large) so that it can be read as a stream more than once. Close the
+ * message to release the spooled content.
+ */
 @Serializable
 @XmlSerialName(ELEMENTLOCALNAME, NAMESPACE, "http")
-class HttpMessage {
+class HttpMessage : AutoCloseable {
 
     private val _queries: MutableMap<String, String>// by lazy { HashMap<String, String>() }
 
@@ -65,13 +69,45 @@ class HttpMessage {
     val posts: Collection<Post>
         get() = PostCollection(_post)
 
+    /**
+     * The raw body of the request (if it is not a form), read from the request on first use.
+     */
+    @Transient
+    private var rawBody: Lazy<SpoolingOutputStream?> = lazyOf(null)
+
+    /** Whether the raw body is an xml document, only determined when needed. */
+    private val isXmlBody: Boolean by lazy {
+        rawBody.value?.let { spool ->
+            spool.openInputStream().use { xmlStreaming.newReader(it, characterEncoding!!.name()).isXml() }
+        } ?: false
+    }
+
+    /**
+     * The body of the message as fragment. For requests this is only created when asked for, prefer [content] to read
+     * the body as stream.
+     */
     @XmlSerialName("body", NAMESPACE, "http")
     var body: ICompactFragment? = null
+        get() {
+            if (field == null && isXmlBody) {
+                // After close the spool is gone, only a body that was read before is still available
+                val spool = rawBody.value ?: return null
+                field = spool.openInputStream().reader(characterEncoding!!).use { reader ->
+                    CompactFragment(emptyList(), reader.readText().toCharArray())
+                }
+            }
+            return field
+        }
 
-    private val _byteContent: MutableList<ByteContentDataSource> by lazy { ArrayList<ByteContentDataSource>() }
-
-    val byteContent: List<ByteContentDataSource>
-        get() = _byteContent
+    /** The body of the request as data source, if the body is not xml. */
+    val byteContent: List<DataSource>
+        get() {
+            val spool = rawBody.value
+            return when {
+                spool == null || isXmlBody -> emptyList()
+                else                       -> listOf(spool.toDataSource(null, contentType))
+            }
+        }
 
     @get:XmlAttribute
     var requestPath: String? = null
@@ -100,9 +136,18 @@ class HttpMessage {
     var userPrincipal: Principal? = null
         internal set
 
+    /**
+     * A reader for the xml body of the message. For requests this streams the body rather than creating a fragment.
+     */
     val content: XmlReader?
         @Throws(XmlException::class)
-        get() = body?.getXmlReader()
+        get() {
+            val spool = rawBody.value
+            return when {
+                spool != null && isXmlBody -> xmlStreaming.newReader(spool.openInputStream(), characterEncoding!!.name())
+                else                       -> body?.getXmlReader()
+            }
+        }
 
     @XmlSerialName("user", NAMESPACE, "http")
     internal var user: String?
@@ -111,50 +156,6 @@ class HttpMessage {
             userPrincipal = name?.let { SimplePrincipal(it) }
         }
 
-    class ByteContentDataSource(
-        private var name: String?,
-        private var contentType: String?,
-        var byteContent: ByteArray?
-                               ) : DataSource {
-
-        val dataHandler: DataHandler
-            get() = DataHandler(this)
-
-        fun setContentType(contentType: String) {
-            this.contentType = contentType
-        }
-
-        override fun getContentType(): String? {
-            return contentType
-        }
-
-        fun setName(name: String) {
-            this.name = name
-        }
-
-        override fun getName(): String? {
-            return name
-        }
-
-        @Throws(IOException::class)
-        override fun getInputStream(): InputStream {
-            return ByteArrayInputStream(byteContent!!)
-        }
-
-        @Throws(IOException::class)
-        override fun getOutputStream(): OutputStream {
-            throw UnsupportedOperationException("Byte content is not writable")
-
-        }
-
-        override fun toString(): String {
-            return "ByteContentDataSource [name=" + name + ", contentType=" + contentType + ", byteContent=\"" + String(
-                byteContent!!
-                                                                                                                       ) + "\"]"
-        }
-
-    }
-
     private class QueryIterator(iterator: MutableIterator<Entry<String, String>>) : PairBaseIterator<Query>(iterator) {
 
         override fun newItem(): Query {
@@ -370,37 +371,13 @@ class HttpMessage {
             }
             val isMultipart = contentType != null && contentType!!.startsWith("multipart/")
             if ("application/x-www-form-urlencoded" == contentType) {
-                post = toQueries(String(getBody(request)))
+                post = toQueries(getFormBody(request, characterEncoding!!))
             } else if (isMultipart) {
                 request.inputStream.parseMultipartFormDataTo(attachments, HttpRequest.mimeType(request.contentType))
             } else {
-                val bytes = getBody(request)
-
-                val xml: Document
-
-                val isXml =
-                    xmlStreaming.newReader(ByteArrayInputStream(bytes), characterEncoding!!.name()).isXml()
-
-                if (!isXml) {
-                    addByteContent(bytes, request.contentType)
-                } else {
-                    val decoder = characterEncoding!!.newDecoder()
-                    val buffer = decoder.decode(ByteBuffer.wrap(bytes))
-                    var chars: CharArray? = null
-                    if (buffer.hasArray()) {
-                        chars = buffer.array()
-                        if (chars!!.size > buffer.limit()) {
-                            chars = null
-                        }
-                    }
-                    if (chars == null) {
-                        chars = CharArray(buffer.limit())
-                        buffer.get(chars)
-                    }
-
-                    body = CompactFragment(emptyList(), chars)
+                rawBody = lazy {
+                    request.inputStream.use { SpoolingOutputStream.spool(it) }
                 }
-
             }
         }
         this._post = post ?: mutableMapOf()
@@ -412,10 +389,6 @@ class HttpMessage {
         return Charset.forName(request.characterEncoding)
     }
 
-    private fun addByteContent(byteArray: ByteArray, contentType: String) {
-        _byteContent.add(ByteContentDataSource(null, contentType, byteArray))
-    }
-
     /*
    * Getters and setters
    */
@@ -465,6 +438,15 @@ class HttpMessage {
         } else list[0]
     }
 
+    /** Release the spooled body and attachments, removing any temporary files. */
+    override fun close() {
+        if (rawBody.isInitialized()) rawBody.value?.dispose()
+        rawBody = lazyOf(null)
+        for (attachment in _attachments.values) {
+            (attachment as? AutoCloseable)?.close()
+        }
+    }
+
     companion object {
 
         const val NULL_KEY = "KJJMBZLZKNC<MNCJHASIUJZNCZM>NSJHLCALSNDM<>BNADSBLKH"
@@ -547,21 +529,14 @@ class HttpMessage {
         }
 
 
-        private fun getBody(request: HttpServletRequest): ByteArray {
+        private fun getFormBody(request: HttpServletRequest, charset: Charset): String {
             val contentLength = request.contentLength
             val baos: ByteArrayOutputStream =
                 if (contentLength > 0) ByteArrayOutputStream(contentLength) else ByteArrayOutputStream()
 
-            val buffer = ByteArray(0xfffff)
-            request.inputStream.use { inStream ->
-                var i: Int = inStream.read(buffer)
-                while (i >= 0) {
-                    baos.write(buffer, 0, i)
-                    i = inStream.read(buffer)
-                }
-            }
+            request.inputStream.use { it.copyPooled(baos) }
 
-            return baos.toByteArray()
+            return baos.toString(charset.name())
         }
     }
 }
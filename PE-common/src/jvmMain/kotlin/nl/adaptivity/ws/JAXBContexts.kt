@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.ws
+
+import javax.xml.bind.JAXBContext
+import javax.xml.bind.JAXBException
+
+/**
+ * Shared cache of [JAXBContext]s keyed by the set of classes they are created for. Creating a context is expensive,
+ * but contexts are thread safe, so they can be shared by all requests. The cache is bounded, dropping the least
+ * recently used context first.
+ */
+object JAXBContexts {
+
+    private const val MAX_CONTEXTS = 64
+
+    private val contexts = object : LinkedHashMap<Set<Class<*>>, JAXBContext>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Set<Class<*>>, JAXBContext>?): Boolean {
+            return size > MAX_CONTEXTS
+        }
+    }
+
+    @Throws(JAXBException::class)
+    operator fun get(vararg classes: Class<*>): JAXBContext = get(classes.asList())
+
+    @Throws(JAXBException::class)
+    operator fun get(classes: Collection<Class<*>>): JAXBContext {
+        val key: Set<Class<*>> = LinkedHashSet(classes)
+        synchronized(contexts) { contexts[key]?.let { return it } }
+
+        // Create the context outside of the lock, in the rare case of a race the first one stored wins.
+        val context = JAXBContext.newInstance(*key.toTypedArray())
+        synchronized(contexts) { return contexts.getOrPut(key) { context } }
+    }
+}
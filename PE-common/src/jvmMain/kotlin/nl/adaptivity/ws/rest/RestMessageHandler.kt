@@ -26,14 +26,13 @@ import jakarta.servlet.http.HttpServletResponse
 import javax.xml.transform.TransformerException
 
 import java.io.IOException
-import java.lang.reflect.Method
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 
 
 class RestMessageHandler private constructor(private val target: Any) {
 
-    private var cache: MutableMap<Class<*>, EnumMap<HttpMethod, PrefixMap<Method>>>? = null
+    private val cache = ConcurrentHashMap<Class<*>, EnumMap<HttpMethod, PrefixMap<RestMethodDescriptor>>>()
 
     @Throws(IOException::class)
     fun processRequest(method: HttpMethod, request: HttpMessage, response: HttpServletResponse): Boolean {
@@ -64,7 +63,7 @@ class RestMessageHandler private constructor(private val target: Any) {
         var resultAnnotation: RestMethod? = null
 
         for (candidate in candidates) {
-            val annotation = candidate.getAnnotation(RestMethod::class.java)
+            val annotation = candidate.restMethod
             val pathParams = HashMap<String, String>()
 
             if (annotation != null && annotation.method === httpMethod
@@ -82,19 +81,8 @@ class RestMessageHandler private constructor(private val target: Any) {
         return result
     }
 
-    private fun getCandidatesFor(pHttpMethod: HttpMethod, pPathInfo: String?): Collection<Method> {
-        val targetClass = target.javaClass
-        var v: EnumMap<HttpMethod, PrefixMap<Method>>?
-        if (cache == null) {
-            cache = HashMap()
-            v = null
-        } else {
-            v = cache!![targetClass]
-        }
-        if (v == null) {
-            v = createCacheElem(targetClass)
-            cache!![targetClass] = v
-        }
+    private fun getCandidatesFor(pHttpMethod: HttpMethod, pPathInfo: String?): Collection<RestMethodDescriptor> {
+        val v = cache.computeIfAbsent(target.javaClass, ::createCacheElem)
         val w = v[pHttpMethod] ?: return emptyList()
 
         return w.getPrefixValues(pPathInfo!!)
@@ -104,7 +92,7 @@ class RestMessageHandler private constructor(private val target: Any) {
     fun isRestRequest(pHttpMethod: HttpMethod, pRequest: HttpMessage): Boolean {
         val candidates = getCandidatesFor(pHttpMethod, pRequest.requestPath)
         for (candidate in candidates) {
-            val annotation = candidate.getAnnotation(RestMethod::class.java)
+            val annotation = candidate.restMethod
             val pathParams = HashMap<String, String>()
 
             if (annotation != null && annotation.method === pHttpMethod
@@ -152,8 +140,8 @@ class RestMessageHandler private constructor(private val target: Any) {
                 || postdiff <= 0 && getdiff <= 0 && querydiff < 0)
         }
 
-        private fun createCacheElem(pClass: Class<*>): EnumMap<HttpMethod, PrefixMap<Method>> {
-            val result = EnumMap<HttpMethod, PrefixMap<Method>>(HttpMethod::class.java)
+        private fun createCacheElem(pClass: Class<*>): EnumMap<HttpMethod, PrefixMap<RestMethodDescriptor>> {
+            val result = EnumMap<HttpMethod, PrefixMap<RestMethodDescriptor>>(HttpMethod::class.java)
             val methods = pClass.declaredMethods
 
             for (m in methods) {
@@ -161,12 +149,12 @@ class RestMessageHandler private constructor(private val target: Any) {
                 if (annotation != null) {
                     val prefix = getPrefix(annotation.path)
                     val operation = annotation.method
-                    var x: PrefixMap<Method>? = result[operation]
+                    var x: PrefixMap<RestMethodDescriptor>? = result[operation]
                     if (x == null) {
                         x = PrefixMap()
                         result[operation] = x
                     }
-                    x.put(prefix, m)
+                    x.put(prefix, RestMethodDescriptor[m])
                 }
             }
             return result
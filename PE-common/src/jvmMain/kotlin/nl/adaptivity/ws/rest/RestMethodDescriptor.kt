@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.ws.rest
+
+import net.devrieze.util.Annotations
+import net.devrieze.util.ObjectPool
+import nl.adaptivity.rest.annotations.RestMethod
+import nl.adaptivity.rest.annotations.RestParam
+import nl.adaptivity.rest.annotations.RestParamType
+import nl.adaptivity.ws.JAXBContexts
+import nl.adaptivity.xmlutil.xmlserializable.XmlDeserializer
+import nl.adaptivity.xmlutil.xmlserializable.XmlDeserializerFactory
+import javax.xml.bind.JAXBContext
+import javax.xml.bind.JAXBException
+import javax.xml.bind.annotation.XmlElementWrapper
+import javax.xml.bind.annotation.XmlSeeAlso
+import javax.xml.xpath.XPathExpression
+import javax.xml.xpath.XPathExpressionException
+import javax.xml.xpath.XPathFactory
+import java.lang.reflect.Method
+import java.lang.reflect.Type
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The reflection data of a rest method needed to bind a request to it. This is determined once for each method
+ * instead of for every request.
+ */
+class RestMethodDescriptor private constructor(val method: Method) {
+
+    /**
+     * How a single parameter of the method is bound to the request.
+     */
+    class ParamBinding internal constructor(
+        val type: Class<*>,
+        val name: String,
+        val restParamType: RestParamType,
+        val xpath: String?
+    ) {
+        /**
+         * The compiled xpath expressions, or `null` if this is not an xpath parameter or the expression is invalid.
+         * The expression is checked once, on first use. XPath expressions are not thread safe, so they are pooled.
+         */
+        private val xpathExpressions: ObjectPool<XPathExpression>? by lazy {
+            when (restParamType) {
+                RestParamType.XPATH -> try {
+                    compileXPath(xpath)
+                    ObjectPool(ObjectPool.DEFAULT_MAX_IDLE) { compileXPath(xpath) }
+                } catch (e: XPathExpressionException) {
+                    null
+                }
+                else -> null
+            }
+        }
+
+        /**
+         * Run [body] with the compiled xpath expression, or with `null` if this is not an xpath parameter or the
+         * expression is invalid. The expression must not be used after [body] returns.
+         */
+        fun <R> useXPathExpression(body: (XPathExpression?) -> R): R {
+            val pool = xpathExpressions ?: return body(null)
+            return pool.use(body)
+        }
+
+        /** The factory named by the [XmlDeserializer] annotation on the parameter type, created on first use. */
+        val deserializerFactory: XmlDeserializerFactory<*>? by lazy {
+            type.getAnnotation(XmlDeserializer::class.java)?.value?.java?.getDeclaredConstructor()?.newInstance()
+        }
+    }
+
+    val restMethod: RestMethod? = method.getAnnotation(RestMethod::class.java)
+
+    val elementWrapper: XmlElementWrapper? = method.getAnnotation(XmlElementWrapper::class.java)
+
+    val parameterTypes: Array<Class<*>> = method.parameterTypes
+
+    val returnType: Class<*> = method.returnType
+
+    val genericReturnType: Type = method.genericReturnType
+
+    val declaringClass: Class<*> = method.declaringClass
+
+    val params: List<ParamBinding>
+
+    /** The amount of parameters bound to attachments. */
+    val attachmentCount: Int
+
+    /** The classes listed in the [XmlSeeAlso] annotation of the declaring class. */
+    private val seeAlsoClasses: List<Class<*>> =
+        declaringClass.getAnnotation(XmlSeeAlso::class.java)?.value?.map { it.java } ?: emptyList()
+
+    init {
+        // Make it work with private methods
+        method.isAccessible = true
+
+        val parameterAnnotations = method.parameterAnnotations
+        params = parameterTypes.mapIndexed { i, parameterType ->
+            val annotation = Annotations.getAnnotation(parameterAnnotations[i], RestParam::class.java)
+            when (annotation) {
+                null -> ParamBinding(parameterType, "arg0", RestParamType.QUERY, null)
+                else -> ParamBinding(parameterType, annotation.name, annotation.type, annotation.xpath)
+            }
+        }
+        attachmentCount = params.count { it.restParamType == RestParamType.ATTACHMENT }
+    }
+
+    /** The context for marshalling the return type. */
+    @get:Throws(JAXBException::class)
+    val returnTypeContext: JAXBContext
+        get() = JAXBContexts[returnType]
+
+    /** Get a context for the given classes that also knows about the classes the declaring class refers to. */
+    @Throws(JAXBException::class)
+    fun jaxbContext(vararg classes: Class<*>): JAXBContext = JAXBContexts[seeAlsoClasses + classes]
+
+    companion object {
+
+        private val descriptors = ConcurrentHashMap<Method, RestMethodDescriptor>()
+
+        @Throws(XPathExpressionException::class)
+        private fun compileXPath(xpath: String?): XPathExpression {
+            return XPathFactory.newInstance().newXPath().compile(xpath ?: ".")
+        }
+
+        operator fun get(method: Method): RestMethodDescriptor = descriptors.computeIfAbsent(method, ::RestMethodDescriptor)
+    }
+}
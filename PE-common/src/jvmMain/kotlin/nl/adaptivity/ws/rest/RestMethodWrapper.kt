@@ -20,13 +20,11 @@ import io.github.pdvrieze.util.jvmOnly.JAXBCollectionWrapper
 import jakarta.servlet.http.HttpServletResponse
 import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.serializerOrNull
-import net.devrieze.util.Annotations
 import net.devrieze.util.ReaderInputStream
 import net.devrieze.util.Types
 import nl.adaptivity.messaging.HttpResponseException
 import nl.adaptivity.messaging.MessagingException
 import nl.adaptivity.rest.annotations.RestMethod
-import nl.adaptivity.rest.annotations.RestParam
 import nl.adaptivity.rest.annotations.RestParamType
 import nl.adaptivity.util.DomUtil
 import nl.adaptivity.util.HttpMessage
@@ -37,7 +35,6 @@ import nl.adaptivity.xmlutil.*
 import nl.adaptivity.xmlutil.serialization.XML
 import nl.adaptivity.xmlutil.util.CompactFragment
 import nl.adaptivity.xmlutil.util.ICompactFragment
-import nl.adaptivity.xmlutil.xmlserializable.XmlDeserializer
 import nl.adaptivity.xmlutil.xmlserializable.XmlSerializable
 import org.w3c.dom.Node
 import org.w3c.dom.NodeList
@@ -50,11 +47,9 @@ import javax.activation.DataSource
 import javax.xml.XMLConstants
 import javax.xml.bind.JAXB
 import javax.xml.bind.JAXBContext
-import javax.xml.bind.JAXBException
 import javax.xml.bind.Marshaller
 import javax.xml.bind.annotation.XmlElementWrapper
 import javax.xml.bind.annotation.XmlRootElement
-import javax.xml.bind.annotation.XmlSeeAlso
 import javax.xml.bind.util.JAXBSource
 import javax.xml.namespace.QName
 import javax.xml.stream.FactoryConfigurationError
@@ -63,37 +58,17 @@ import javax.xml.transform.Source
 import javax.xml.transform.TransformerException
 import javax.xml.transform.dom.DOMSource
 import javax.xml.xpath.XPathConstants
+import javax.xml.xpath.XPathExpression
 import javax.xml.xpath.XPathExpressionException
-import javax.xml.xpath.XPathFactory
 
-abstract class RestMethodWrapper protected constructor(owner: Any, method: Method) : nl.adaptivity.ws.WsMethodWrapper(
-    owner, method
-) {
+abstract class RestMethodWrapper protected constructor(
+    owner: Any,
+    protected val descriptor: RestMethodDescriptor
+) : nl.adaptivity.ws.WsMethodWrapper(owner, descriptor.method) {
 
 
-    private class Java6RestMethodWrapper(pOwner: Any, pMethod: Method) : RestMethodWrapper(pOwner, pMethod) {
-
-        override val parameterTypes: Array<Class<*>>
-            get() = method.parameterTypes
-
-        override val parameterAnnotations: Array<Array<Annotation>>
-            get() = method.parameterAnnotations
-
-        override val elementWrapper: XmlElementWrapper?
-            get() = method.getAnnotation(XmlElementWrapper::class.java)
-
-
-        override val returnType: Class<*>
-            get() = method.returnType
-
-        override val genericReturnType: Type
-            get() = method.genericReturnType
-
-        override val restMethod: RestMethod?
-            get() = method.getAnnotation(RestMethod::class.java)
-
-        override val declaringClass: Class<*>
-            get() = method.declaringClass
+    private class Java6RestMethodWrapper(pOwner: Any, descriptor: RestMethodDescriptor) :
+        RestMethodWrapper(pOwner, descriptor) {
 
         override fun exec() {
             val params = params ?: throw IllegalArgumentException("Argument unmarshalling has not taken place yet")
@@ -113,32 +88,10 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
 
     }
 
-    private class Java8RestMethodWrapper(owner: Any, method: Method) : RestMethodWrapper(owner, method) {
-
-        private val methodHandle: Method = method
-        override val parameterAnnotations: Array<Array<Annotation>>
-        override val elementWrapper: XmlElementWrapper?
-        override val genericReturnType: Type
-        override val returnType: Class<*>
-        override val restMethod: RestMethod?
-        override val declaringClass: Class<*>
-
-        init {
-            try {
-                parameterAnnotations = method.parameterAnnotations
-                elementWrapper = method.getAnnotation(XmlElementWrapper::class.java)
-                genericReturnType = method.genericReturnType
-                returnType = method.returnType
-                restMethod = method.getAnnotation(RestMethod::class.java)
-                declaringClass = method.declaringClass
-            } catch (e: IllegalAccessException) {
-                throw RuntimeException(e)
-            }
-
-        }
+    private class Java8RestMethodWrapper(owner: Any, descriptor: RestMethodDescriptor) :
+        RestMethodWrapper(owner, descriptor) {
 
-        override val parameterTypes: Array<Class<*>>
-            get() = methodHandle.parameterTypes
+        private val methodHandle: Method = descriptor.method
 
         override fun exec() {
             val params = params ?: throw IllegalArgumentException("Argument unmarshalling has not taken place yet")
@@ -160,19 +113,17 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
 
     private var contentTypeSet = false
 
-    protected abstract val elementWrapper: XmlElementWrapper?
+    protected val elementWrapper: XmlElementWrapper? get() = descriptor.elementWrapper
 
-    protected abstract val restMethod: RestMethod?
+    protected val restMethod: RestMethod? get() = descriptor.restMethod
 
-    protected abstract val parameterAnnotations: Array<Array<Annotation>>
+    protected val parameterTypes: Array<Class<*>> get() = descriptor.parameterTypes
 
-    protected abstract val parameterTypes: Array<Class<*>>
+    protected val returnType: Class<*> get() = descriptor.returnType
 
-    protected abstract val returnType: Class<*>
+    protected val genericReturnType: Type get() = descriptor.genericReturnType
 
-    protected abstract val genericReturnType: Type
-
-    protected abstract val declaringClass: Class<*>
+    protected val declaringClass: Class<*> get() = descriptor.declaringClass
 
     private object HasMethodHandleHelper {
         val HASHANDLES: Boolean
@@ -198,48 +149,28 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
         if (paramsInitialised) {
             throw IllegalStateException("Parameters have already been unmarshalled")
         }
-        val parameterTypes = parameterTypes
-        val parameterAnnotations = parameterAnnotations
-        val argCnt = 0
-        val params = arrayOfNulls<Any?>(parameterTypes.size)
-
-
-        for (i in parameterTypes.indices) {
-            val annotation = Annotations.getAnnotation(parameterAnnotations[i], RestParam::class.java)
-            val name: String
-            val type: RestParamType
-            val xpath: String?
-            if (annotation == null) {
-                name = "arg" + Integer.toString(argCnt)
-                type = RestParamType.QUERY
-                xpath = null
-            } else {
-                name = annotation.name
-                type = annotation.type
-                xpath = annotation.xpath
-            }
+        val bindings = descriptor.params
+        val params = arrayOfNulls<Any?>(bindings.size)
+
 
-            when (type) {
+        for ((i, binding) in bindings.withIndex()) {
+            when (binding.restParamType) {
                 RestParamType.ATTACHMENT -> {
                     if (httpMessage.attachments.isEmpty()) {
                         // No attachments, are we the only one, then take the body
-                        val attachmentCount = parameterAnnotations.asSequence()
-                            .mapNotNull { Annotations.getAnnotation(it, RestParam::class.java) }
-                            .count { it.type == RestParamType.ATTACHMENT }
-
-                        if (attachmentCount == 1) {
+                        if (descriptor.attachmentCount == 1) {
                             val messageBody = httpMessage.body
                             if (messageBody != null) {
-                                params[i] = coerceBody(parameterTypes[i], name, messageBody)
+                                params[i] = coerceBody(binding.type, binding.name, messageBody)
                             } else if (httpMessage.byteContent.size == 1) {
-                                params[i] = coerceSource(parameterTypes[i], httpMessage.byteContent[0])
+                                params[i] = coerceSource(binding.type, httpMessage.byteContent[0])
                             }
                         }
                     } else {
-                        params[i] = getParam(parameterTypes[i], name, type, xpath, httpMessage)
+                        params[i] = getParam(binding, httpMessage)
                     }
                 }
-                else -> params[i] = getParam(parameterTypes[i], name, type, xpath, httpMessage)
+                else -> params[i] = getParam(binding, httpMessage)
             }
 
 
@@ -250,23 +181,17 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
     }
 
     @Throws(XmlException::class)
-    private fun getParam(
-        parameterJavaClass: Class<*>,
-        paramName: String,
-        restParamType: RestParamType,
-        xpath: String?,
-        httpMessage: HttpMessage
-    ): Any? {
-        var result = when (restParamType) {
+    private fun getParam(binding: RestMethodDescriptor.ParamBinding, httpMessage: HttpMessage): Any? {
+        val parameterJavaClass = binding.type
+        val paramName = binding.name
+        var result = when (binding.restParamType) {
             RestParamType.GET -> getParamGet(paramName, httpMessage)
             RestParamType.POST -> getParamPost(paramName, httpMessage)
             RestParamType.QUERY -> getParamGet(paramName, httpMessage) ?: getParamPost(paramName, httpMessage)
             RestParamType.VAR -> pathParams[paramName]
-            RestParamType.XPATH -> getParamXPath(
-                parameterJavaClass,
-                xpath ?: ".",
-                httpMessage.body ?: CompactFragment("")
-            )
+            RestParamType.XPATH -> binding.useXPathExpression { xpathExpression ->
+                getParamXPath(parameterJavaClass, xpathExpression, httpMessage.body ?: CompactFragment(""))
+            }
             RestParamType.BODY -> getBody(parameterJavaClass, httpMessage)
             RestParamType.ATTACHMENT -> getAttachment(parameterJavaClass, paramName, httpMessage)
             RestParamType.PRINCIPAL -> if (parameterJavaClass.isAssignableFrom(String::class.java)) {
@@ -290,17 +215,15 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
                 val clazz = parameterJavaClass as Class<Enum<*>>
                 result = clazz.valueOf(result.toString())
             } else if (result is Node) {
-                val factory = parameterJavaClass.getAnnotation(XmlDeserializer::class.java)
+                val factory = try {
+                    binding.deserializerFactory
+                } catch (e: IllegalAccessException) {
+                    throw XmlException(e)
+                } catch (e: InstantiationException) {
+                    throw XmlException(e)
+                }
                 if (factory != null) {
-                    try {
-                        result = factory.value.java.getDeclaredConstructor().newInstance()
-                            .deserialize(xmlStreaming.newReader(result))
-                    } catch (e: IllegalAccessException) {
-                        throw XmlException(e)
-                    } catch (e: InstantiationException) {
-                        throw XmlException(e)
-                    }
-
+                    result = factory.deserialize(xmlStreaming.newReader(result))
                 } else {
                     result = JAXB.unmarshal(DOMSource(result as Node?), parameterJavaClass)
                 }
@@ -357,7 +280,7 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
             else -> {
                 setContentType(pResponse, "text/xml")
 
-                val jaxbSource = JAXBSource(JAXBContext.newInstance(returnType), value)
+                val jaxbSource = JAXBSource(descriptor.returnTypeContext, value)
                 jaxbSource.writeToStream(pResponse.outputStream)
             }
         }
@@ -393,8 +316,7 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
         }
 
         result?.javaClass?.getAnnotation(XmlRootElement::class.java)?.let { xmlRootElement ->
-            val jaxbContext = JAXBContext.newInstance(returnType)
-            val jaxbSource = JAXBSource(jaxbContext, result)
+            val jaxbSource = JAXBSource(descriptor.returnTypeContext, result)
             setContentType(pResponse, "text/xml")
             jaxbSource.writeToStream(pResponse.outputStream)
             Unit
@@ -466,8 +388,8 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
                             else -> {
                                 val m = marshaller ?: run {
                                     val jaxbcontext: JAXBContext = when (elementType) {
-                                        null -> newJAXBContext(JAXBCollectionWrapper::class.java)
-                                        else -> newJAXBContext(JAXBCollectionWrapper::class.java, elementType)
+                                        null -> descriptor.jaxbContext(JAXBCollectionWrapper::class.java)
+                                        else -> descriptor.jaxbContext(JAXBCollectionWrapper::class.java, elementType)
                                     }
                                     jaxbcontext.createMarshaller().also { marshaller = it }
                                 }
@@ -484,38 +406,29 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
 
     }
 
-    @Throws(JAXBException::class)
-    private fun newJAXBContext(vararg classes: Class<*>): JAXBContext {
-        val seeAlso = declaringClass.getAnnotation(XmlSeeAlso::class.java)
-        val classList: Array<out Class<*>?> = when {
-            seeAlso != null && seeAlso.value.isNotEmpty() -> {
-                val seeAlsoClasses: Array<Class<*>> = seeAlso.value.let { t -> Array<Class<*>>(t.size) { t[it].java } }
-                seeAlsoClasses + classes
-            }
-            else -> classes
-        }
-        return JAXBContext.newInstance(*classList)
-    }
-
     companion object {
 
         private val xmlFormat = XML { autoPolymorphic = true }
 
-        operator fun get(pOwner: Any, pMethod: Method): RestMethodWrapper {
-            // Make it work with private methods and
-            pMethod.isAccessible = true
+        operator fun get(pOwner: Any, pMethod: Method): RestMethodWrapper = get(pOwner, RestMethodDescriptor[pMethod])
+
+        operator fun get(pOwner: Any, descriptor: RestMethodDescriptor): RestMethodWrapper {
             if (HasMethodHandleHelper.HASHANDLES && "1.7" != "java.specification.version") {
-                return Java8RestMethodWrapper(pOwner, pMethod)
+                return Java8RestMethodWrapper(pOwner, descriptor)
             } else {
-                return Java6RestMethodWrapper(pOwner, pMethod)
+                return Java6RestMethodWrapper(pOwner, descriptor)
             }
         }
 
         @Throws(XmlException::class)
         private fun getBody(pClass: Class<*>, pMessage: HttpMessage): Any? {
-            val body = pMessage.body
-            if (body != null) {
-                return DomUtil.childrenToDocumentFragment(body.getXmlReader())
+            val content = pMessage.content
+            if (content != null) {
+                try {
+                    return DomUtil.documentElementToFragment(content)
+                } finally {
+                    content.close()
+                }
             } else {
                 return getAttachment(pClass, null, pMessage)
             }
@@ -565,7 +478,8 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
         private fun getParamPost(pName: String, pMessage: HttpMessage) = pMessage.getPosts(pName)
 
         @Throws(XmlException::class)
-        private fun <T> getParamXPath(paramType: Class<T>, xpath: String, body: ICompactFragment): T? {
+        private fun <T> getParamXPath(paramType: Class<T>, xpath: XPathExpression?, body: ICompactFragment): T? {
+            if (xpath == null) return null
             val isCharSeq = CharSequence::class.java.isAssignableFrom(paramType)
             var match: Node?
             val fragment = DomUtil.childrenToDocumentFragment(body.getXmlReader())
@@ -597,12 +511,10 @@ abstract class RestMethodWrapper protected constructor(owner: Any, method: Metho
             return pNode.textContent
         }
 
-        private fun xpathMatch(pN: Node, pXpath: String): Node? {
-            val factory = XPathFactory.newInstance()
-            val xpath = factory.newXPath()
+        private fun xpathMatch(pN: Node, pXpath: XPathExpression): Node? {
             val result: NodeList
             try {
-                result = xpath.evaluate(pXpath, DOMSource(pN), XPathConstants.NODESET) as NodeList
+                result = pXpath.evaluate(DOMSource(pN), XPathConstants.NODESET) as NodeList
             } catch (e: XPathExpressionException) {
                 return null
             }
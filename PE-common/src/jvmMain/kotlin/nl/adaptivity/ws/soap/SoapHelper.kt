@@ -26,6 +26,7 @@ import nl.adaptivity.messaging.MessagingException
 import nl.adaptivity.xmlutil.util.ICompactFragment
 import nl.adaptivity.util.DomUtil
 import nl.adaptivity.util.activation.toInputStream
+import nl.adaptivity.ws.JAXBContexts
 import nl.adaptivity.xmlutil.*
 import nl.adaptivity.xmlutil.xmlserializable.XmlDeserializer
 import nl.adaptivity.xmlutil.xmlserializable.XmlDeserializerFactory
@@ -50,7 +51,6 @@ import java.lang.reflect.InvocationTargetException
 import java.lang.reflect.Method
 import java.security.Principal
 import java.util.*
-import kotlin.reflect.KClass
 
 
 /**
@@ -198,9 +198,9 @@ object SoapHelper {
                     run {
                         val context: JAXBContext
                         if (headerElem is JAXBElement<*> || headerElem == null) {
-                            context = JAXBContext.newInstance()
+                            context = JAXBContexts[emptyList()]
                         } else {
-                            context = JAXBContext.newInstance(headerElem.javaClass)
+                            context = JAXBContexts[headerElem.javaClass]
                         }
                         marshaller = context.createMarshaller()
                     }
@@ -290,7 +290,7 @@ object SoapHelper {
 
             val marshaller: Marshaller
             run {
-                val context = JAXBContext.newInstance(*paramTypes.toTypedArray())
+                val context = JAXBContexts[paramTypes]
                 marshaller = context.createMarshaller()
             }
             for (elem in params) {
@@ -309,7 +309,7 @@ object SoapHelper {
         } else {
             val marshaller: Marshaller
             run {
-                val context = JAXBContext.newInstance(paramType)
+                val context = JAXBContexts[paramType]
                 marshaller = context.createMarshaller()
             }
             marshaller.marshal(pParam.elem3, wrapper)
@@ -349,7 +349,7 @@ object SoapHelper {
                     EventType.START_ELEMENT -> {
                         val params = unmarshalWrapper(reader)
                         // This is the parameter wrapper
-                        return unMarshalNode(null, resultType, context, useSiteAnnotations, params[RESULT])
+                        return unMarshalResult(resultType, context, useSiteAnnotations, params[RESULT])
                     }
                     else -> throw XmlException("Unexpected content in soap response")
                 }// whitespace is ignored
@@ -470,6 +470,47 @@ object SoapHelper {
         return result
     }
 
+    /**
+     * Unmarshal the result of a response. Collection results (as returned by getProcessNodeInstances) are
+     * unmarshalled element by element. Other results, and all parameters, go through [unMarshalNode] directly.
+     */
+    internal fun <T> unMarshalResult(
+        resultType: Class<T>,
+        context: Array<out Class<*>>,
+        useSiteAnnotations: Array<out Annotation>,
+        resultWrapper: Node?
+    ): T? {
+        if (Collection::class.java.isAssignableFrom(resultType) && context.isNotEmpty()) {
+            return resultType.cast(unMarshalCollection(null, context, useSiteAnnotations, resultWrapper))
+        }
+        return unMarshalNode(null, resultType, context, useSiteAnnotations, resultWrapper)
+    }
+
+    /**
+     * Unmarshal a collection result. Every child element of the wrapper is an element of the collection, of the type
+     * that is the first class of the context.
+     */
+    private fun unMarshalCollection(
+        method: Method?,
+        jaxbContext: Array<out Class<*>>,
+        useSiteAnnotations: Array<out Annotation>,
+        attrWrapper: Node?
+    ): List<Any?> {
+        val elementType = jaxbContext[0]
+        val result = ArrayList<Any?>()
+        var child: Node? = attrWrapper?.firstChild
+        while (child != null) {
+            if (child is Element) {
+                // Give every element a wrapper of its own so that it is unmarshalled as a single value
+                val elementWrapper = child.ownerDocument.createDocumentFragment()
+                elementWrapper.appendChild(child.cloneNode(true))
+                result.add(unMarshalNode(method, elementType, jaxbContext, useSiteAnnotations, elementWrapper))
+            }
+            child = child.nextSibling
+        }
+        return result
+    }
+
     internal fun <T> unMarshalNode(
         method: Method?,
         clazz: Class<T>,
@@ -619,22 +660,11 @@ object SoapHelper {
 
     @Throws(JAXBException::class)
     private fun newJAXBContext(method: Method?, classes: List<Class<*>>): JAXBContext {
-        val classList: Array<Class<*>>
-        val seeAlso: XmlSeeAlso?
-        if (method != null) {
-            val clazz = method.declaringClass
-            seeAlso = clazz.getAnnotation(XmlSeeAlso::class.java)
-        } else {
-            seeAlso = null
-        }
-        if (seeAlso != null && seeAlso.value.isNotEmpty()) {
-
-            classList = (seeAlso.value.map<KClass<*>, Class<*>> { javaClass } + classes).toTypedArray()
-
-        } else {
-            classList = classes.toTypedArray()
+        val seeAlso: XmlSeeAlso? = method?.declaringClass?.getAnnotation(XmlSeeAlso::class.java)
+        return when {
+            seeAlso != null && seeAlso.value.isNotEmpty() -> JAXBContexts[seeAlso.value.map { it.java } + classes]
+            else -> JAXBContexts[classes]
         }
-        return JAXBContext.newInstance(*classList)
     }
 
 }
@@ -20,7 +20,6 @@ import net.devrieze.util.PrefixMap
 import net.devrieze.util.ValueCollection
 import nl.adaptivity.messaging.HttpResponseException
 import nl.adaptivity.util.HttpMessage
-import nl.adaptivity.xmlutil.util.ICompactFragment
 import nl.adaptivity.xmlutil.*
 import org.w3.soapEnvelope.Envelope
 
@@ -49,14 +48,17 @@ abstract class SoapMessageHandler {
 
         @Throws(IOException::class, XmlException::class)
         override fun processRequest(request: HttpMessage, response: HttpServletResponse): Boolean {
-            val source = request.body
+            val source = request.content
+                ?: throw HttpResponseException(HttpServletResponse.SC_BAD_REQUEST, "Missing soap envelope")
 
             val result: Source
             try {
-                result = processMessage(source!!, request.attachments)
+                result = processMessage(source, request.attachments)
             } catch (e: HttpResponseException) {
                 response.sendError(e.responseCode, e.message)
                 return false
+            } finally {
+                source.close()
             }
 
             SoapMethodWrapper.marshalResult(response, result)
@@ -64,12 +66,6 @@ abstract class SoapMessageHandler {
         }
 
 
-        @Throws(XmlException::class)
-        private fun processMessage(source: ICompactFragment, pAttachments: Map<String, DataSource>): Source {
-            val reader = source.getXmlReader()
-            return processMessage(reader, pAttachments)
-        }
-
         @Throws(XmlException::class)
         override fun processMessage(source: Reader, attachments: Map<String, DataSource>): Source {
             return processMessage(xmlStreaming.newReader(source), attachments)
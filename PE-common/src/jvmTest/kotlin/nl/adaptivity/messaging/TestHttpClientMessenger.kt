@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.messaging
+
+import com.sun.net.httpserver.HttpServer
+import nl.adaptivity.util.activation.SourceDataSource
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.io.StringReader
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.URI
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import javax.xml.namespace.QName
+import javax.xml.transform.stream.StreamSource
+
+/**
+ * Load test for the [HttpClientMessenger] against a local stub server that responds slowly.
+ */
+class TestHttpClientMessenger {
+
+    private lateinit var server: HttpServer
+    private lateinit var messenger: HttpClientMessenger
+
+    private val inFlight = AtomicInteger()
+    private val maxInFlight = AtomicInteger()
+    private val received = AtomicInteger()
+
+    @BeforeEach
+    fun startServer() {
+        server = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0).apply {
+            executor = Executors.newFixedThreadPool(SERVER_THREADS)
+            createContext("/ok") { exchange ->
+                val current = inFlight.incrementAndGet()
+                maxInFlight.accumulateAndGet(current, ::maxOf)
+                try {
+                    exchange.requestBody.use { it.readBytes() }
+                    received.incrementAndGet()
+                    Thread.sleep(RESPONSE_DELAY_MS)
+                } finally {
+                    // Count down before responding, the client may send the next message as soon as it has a response
+                    inFlight.decrementAndGet()
+                }
+                val response = "<result>${exchange.requestURI.query}</result>".toByteArray()
+                exchange.responseHeaders.add("Content-Type", "text/xml")
+                exchange.sendResponseHeaders(200, response.size.toLong())
+                exchange.responseBody.use { it.write(response) }
+            }
+            createContext("/fail") { exchange ->
+                exchange.requestBody.use { it.readBytes() }
+                val response = "broken".toByteArray()
+                exchange.sendResponseHeaders(500, response.size.toLong())
+                exchange.responseBody.use { it.write(response) }
+            }
+            start()
+        }
+        messenger = HttpClientMessenger(MAX_PER_DESTINATION, null)
+    }
+
+    @AfterEach
+    fun stopServer() {
+        messenger.shutdown()
+        server.stop(0)
+        (server.executor as ExecutorService).shutdownNow()
+    }
+
+    private fun message(path: String): ISendableMessage {
+        val location = URI("http://localhost:${server.address.port}$path")
+        val destination = EndpointDescriptorImpl(QName("urn:test", "stub"), "soap", location)
+        return SendableSoapSource(destination, StreamSource(StringReader("<request/>")))
+    }
+
+    @Test
+    fun testBurstIsLimitedPerDestinationAndCompletes() {
+        val completions = CountDownLatch(MESSAGE_COUNT)
+
+        val futures = (1..MESSAGE_COUNT).map { i ->
+            messenger.sendMessage(message("/ok?$i"), CompletionListener<SourceDataSource> {
+                completions.countDown()
+            }, SourceDataSource::class.java)
+        }
+
+        assertTrue(completions.await(60, TimeUnit.SECONDS), "Not all messages completed")
+        for ((i, future) in futures.withIndex()) {
+            val body = future.get().inputStream.use { String(it.readBytes()) }
+            assertEquals("<result>${i + 1}</result>", body)
+        }
+
+        assertEquals(MESSAGE_COUNT, received.get())
+        assertTrue(maxInFlight.get() <= MAX_PER_DESTINATION) {
+            "At most $MAX_PER_DESTINATION messages should be in flight, but there were ${maxInFlight.get()}"
+        }
+        assertEquals(0, messenger.queuedMessages)
+    }
+
+    @Test
+    fun testErrorResponseFailsFuture() {
+        val future = messenger.sendMessage(message("/fail"), null, SourceDataSource::class.java)
+        val e = try {
+            future.get(30, TimeUnit.SECONDS)
+            null
+        } catch (e: ExecutionException) {
+            e.cause
+        }
+        assertTrue(e is HttpResponseException) { "Expected a http response exception, got $e" }
+        assertEquals(500, (e as HttpResponseException).responseCode)
+    }
+
+    companion object {
+        private const val MESSAGE_COUNT = 200
+        private const val MAX_PER_DESTINATION = 4
+        private const val SERVER_THREADS = 16
+        private const val RESPONSE_DELAY_MS = 10L
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.messaging
+
+import com.nhaarman.mockitokotlin2.*
+import jakarta.servlet.AsyncContext
+import jakarta.servlet.AsyncEvent
+import jakarta.servlet.http.HttpServletResponse
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+/**
+ * Tests for the completion of asynchronous requests by [BufferedAsyncResponse], in particular when they time out.
+ */
+class TestBufferedAsyncResponse {
+
+    private val response = mock<HttpServletResponse>()
+
+    private val asyncContext = mock<AsyncContext>()
+
+    private val buffered = BufferedAsyncResponse(response)
+
+    @Test
+    fun testTimeoutBeforeCompletion() {
+        buffered.AbortListener("/test").onTimeout(AsyncEvent(asyncContext))
+        assertTrue(buffered.isCompleted)
+        verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+        verify(asyncContext, times(1)).complete()
+
+        // The handler finishing late must not write to or complete the request again
+        buffered.outputStream.write("late".toByteArray())
+        buffered.writeAndComplete(asyncContext)
+        verify(response, never()).outputStream
+        verify(asyncContext, times(1)).complete()
+    }
+
+    @Test
+    fun testTimeoutAfterCompletion() {
+        buffered.writeAndComplete(asyncContext)
+        verify(asyncContext, times(1)).complete()
+
+        buffered.AbortListener("/test").onTimeout(AsyncEvent(asyncContext))
+        verify(response, never()).sendError(any())
+        verify(asyncContext, times(1)).complete()
+    }
+
+    @Test
+    fun testErrorBeforeCompletion() {
+        buffered.AbortListener("/test").onError(AsyncEvent(asyncContext, IllegalStateException("Broken connection")))
+        verify(response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR)
+        verify(asyncContext, times(1)).complete()
+
+        buffered.writeAndComplete(asyncContext)
+        verify(asyncContext, times(1)).complete()
+    }
+
+    @Test
+    fun testHandlerErrorIsSentOnCompletion() {
+        buffered.sendError(HttpServletResponse.SC_NOT_FOUND, "Missing")
+        assertTrue(buffered.isCommitted)
+        verify(response, never()).sendError(any(), any())
+
+        buffered.writeAndComplete(asyncContext)
+        verify(response).sendError(HttpServletResponse.SC_NOT_FOUND, "Missing")
+        verify(asyncContext, times(1)).complete()
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.processModel
+
+import io.github.pdvrieze.xmlutil.testutil.assertXmlEquals
+import nl.adaptivity.util.DomUtil
+import nl.adaptivity.xmlutil.SimpleNamespaceContext
+import nl.adaptivity.xmlutil.util.CompactFragment
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.w3c.dom.NodeList
+import javax.xml.xpath.XPathConstants
+import javax.xml.xpath.XPathFactory
+
+class TestStreamingXPath {
+
+    private val namespaces = SimpleNamespaceContext(mapOf("umh" to "urn:umh"))
+
+    private val data = CompactFragment(
+        "<umh:result xmlns:umh=\"urn:umh\">" +
+            "<umh:value name=\"user\">Paul</umh:value>" +
+            "<umh:value name=\"role\">admin</umh:value>" +
+            "<other a=\"1\"><umh:value name=\"nested\">x</umh:value></other>" +
+            "</umh:result>"
+    )
+
+    private fun streaming(path: String): String {
+        val compiled = StreamingXPath.compile(path, namespaces)
+        assertNotNull(compiled, "$path should be supported")
+        return compiled!!.evaluate(data).contentString
+    }
+
+    private fun dom(path: String): String {
+        val xPath = XPathFactory.newInstance().newXPath().apply { namespaceContext = namespaces }.compile(path)
+        val nodes = xPath.evaluate(DomUtil.childrenToDocumentFragment(data.getXmlReader()), XPathConstants.NODESET)
+        return DomUtil.nodeListToFragment(nodes as NodeList).contentString
+    }
+
+    @Test
+    fun testTextSelectionMatchesDom() {
+        for (path in listOf(
+            "/umh:result/umh:value[@name='user']/text()",
+            "/umh:result/umh:value[2]/text()",
+            "umh:result/*[1]/text()",
+            "//umh:value/text()",
+            "/umh:result/other//text()",
+            "/umh:result/missing/text()"
+        )) {
+            assertEquals(dom(path), streaming(path), path)
+        }
+    }
+
+    @Test
+    fun testElementSelection() {
+        assertXmlEquals(
+            "<umh:value xmlns:umh=\"urn:umh\" name=\"role\">admin</umh:value>",
+            streaming("/umh:result/umh:value[@name=\"role\"]")
+        )
+        assertXmlEquals(
+            "<other a=\"1\"><umh:value xmlns:umh=\"urn:umh\" name=\"nested\">x</umh:value></other>",
+            streaming("//other[@a]")
+        )
+        assertEquals("", streaming("/umh:result/umh:value[3]"))
+    }
+
+    @Test
+    fun testAttributeSelection() {
+        assertEquals("1", streaming("/umh:result/other/@a"))
+        assertEquals("userrolenested", streaming("//umh:value/@name"))
+    }
+
+    @Test
+    fun testSelf() {
+        assertSame(data, StreamingXPath.compile(".", namespaces)!!.evaluate(data))
+        assertSame(data, StreamingXPath.compile("/", namespaces)!!.evaluate(data))
+    }
+
+    @Test
+    fun testUnsupportedPaths() {
+        for (path in listOf(
+            "count(//umh:value)",
+            "/umh:result/umh:value[last()]",
+            "/umh:result/umh:value[1][@name='user']",
+            "/child::umh:result",
+            "/umh:result/../umh:value",
+            "/umh:result/text()/foo",
+            "/unknown:result"
+        )) {
+            assertNull(StreamingXPath.compile(path, namespaces), path)
+        }
+    }
+}
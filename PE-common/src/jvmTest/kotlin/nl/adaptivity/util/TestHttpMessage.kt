@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.util
+
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import jakarta.servlet.ReadListener
+import jakarta.servlet.ServletInputStream
+import jakarta.servlet.http.HttpServletRequest
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.util.*
+
+/**
+ * Tests for the handling of the spooled request body of [HttpMessage].
+ */
+class TestHttpMessage {
+
+    private fun request(body: String, contentType: String): HttpServletRequest {
+        val input = ByteArrayInputStream(body.toByteArray(Charsets.UTF_8))
+        val servletInput = object : ServletInputStream() {
+            override fun read(): Int = input.read()
+            override fun isFinished(): Boolean = input.available() == 0
+            override fun isReady(): Boolean = true
+            override fun setReadListener(readListener: ReadListener?) = throw UnsupportedOperationException()
+        }
+        return mock {
+            on { method } doReturn "POST"
+            on { servletPath } doReturn "/test"
+            on { this.contentType } doReturn "$contentType; charset=UTF-8"
+            on { headerNames } doReturn Collections.emptyEnumeration()
+            on { inputStream } doReturn servletInput
+        }
+    }
+
+    @Test
+    fun testXmlBodyIsStreamed() {
+        HttpMessage(request(XMLBODY, "text/xml")).use { message ->
+            assertTrue(message.byteContent.isEmpty())
+            assertEquals(XMLBODY, message.body!!.contentString)
+            // The body can be read more than once
+            assertEquals(XMLBODY, message.body!!.contentString)
+        }
+    }
+
+    @Test
+    fun testBodyAfterClose() {
+        val message = HttpMessage(request(XMLBODY, "text/xml"))
+        assertNotNull(message.content)
+        message.close()
+
+        assertNull(message.body, "The body is released on close")
+        assertNull(message.content)
+        assertTrue(message.byteContent.isEmpty())
+    }
+
+    @Test
+    fun testBodyReadBeforeCloseIsKept() {
+        val message = HttpMessage(request(XMLBODY, "text/xml"))
+        val body = message.body
+        message.close()
+
+        assertSame(body, message.body)
+        assertNotNull(message.content)
+    }
+
+    @Test
+    fun testNonXmlBodyIsByteContent() {
+        HttpMessage(request("plain text", "text/plain")).use { message ->
+            assertNull(message.body)
+            val source = message.byteContent.single()
+            assertEquals("text/plain", source.contentType)
+            assertEquals("plain text", source.inputStream.use { String(it.readBytes(), Charsets.UTF_8) })
+        }
+    }
+
+    companion object {
+        private const val XMLBODY = "<test xmlns=\"urn:test\"><value>42</value></test>"
+    }
+}
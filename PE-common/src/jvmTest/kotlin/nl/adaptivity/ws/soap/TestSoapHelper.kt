@@ -121,6 +121,25 @@ class TestSoapHelper {
         assertFalse(parseResult.namespaces.iterator().hasNext())
     }
 
+    @Test
+    @Throws(Exception::class)
+    fun testUnmarshalCollectionResult() {
+        val input = """<getStatesResponse xmlns="urn:test">
+  <rpc:result xmlns:rpc="http://www.w3.org/2003/05/soap-rpc">result</rpc:result>
+  <result>
+    <state>Complete</state>
+    <state>Taken</state>
+  </result>
+</getStatesResponse>"""
+        val params = SoapHelper.unmarshalWrapper(xmlStreaming.newReader(StringReader(input)))
+        val result = SoapHelper.unMarshalResult(
+            List::class.java, arrayOf(TestState::class.java), emptyArray(), params[SoapHelper.RESULT]
+        )
+        Assertions.assertEquals(listOf(TestState.Complete, TestState.Taken), result)
+    }
+
+    enum class TestState { Complete, Taken }
+
     companion object {
 
         private val SOAP_RESPONSE1_BODY = """<getProcessNodeInstanceSoapResponse>
@@ -20,6 +20,7 @@ import net.devrieze.util.Handle
 import net.devrieze.util.MutableTransactionedHandleMap
 import net.devrieze.util.Transaction
 import net.devrieze.util.TransactionedHandleMap
+import nl.adaptivity.util.net.devrieze.util.HasForEach
 
 import java.sql.SQLException
 
@@ -32,6 +33,17 @@ interface IUserTaskMap<T : Transaction> : TransactionedHandleMap<XmlTask, T> {
 
   @Throws(SQLException::class)
   fun containsRemoteHandle(transaction: T, remoteHandle: Handle<*>): Handle<XmlTask>?
+
+  /**
+   * Get all tasks in the map, including those that are no longer active on the engine (their state is final or
+   * missing). Implementations may answer from a local snapshot rather than asking the engine for each task.
+   */
+  @Throws(SQLException::class)
+  fun pendingTasks(transaction: T): List<XmlTask> {
+    return mutableListOf<XmlTask>().also { result ->
+      forEach(transaction, HasForEach.ForEachReceiver { _, task -> result.add(task) })
+    }
+  }
 }
 
 interface IMutableUserTaskMap<T : Transaction> : IUserTaskMap<T>, MutableTransactionedHandleMap<XmlTask, T>
\ No newline at end of file
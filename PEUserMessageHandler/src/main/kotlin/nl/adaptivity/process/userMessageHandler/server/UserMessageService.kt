@@ -112,19 +112,19 @@ class UserMessageService<T : Transaction> private constructor(
     }
 
     fun getPendingTasks(transaction: T, user: Principal): Collection<XmlTask> {
-        return tasks.inWriteTransaction(transaction) {
-            buildList<XmlTask> {  }
-            mutableListOf<XmlTask>().also { result ->
-                forEach { task ->
-                    val taskState = task.state
-                    if (taskState == null || !task.remoteHandle.isValid || taskState.isFinal) {
-                        remove(task.handle)
-                    } else {
-                        result.add(task)
-                    }
+        val (pending, finished) = tasks.pendingTasks(transaction).partition { task ->
+            val taskState = task.state
+            taskState != null && task.remoteHandle.isValid && !taskState.isFinal
+        }
+        // Remove the tasks that are no longer active after listing, rather than while iterating over the tasks.
+        if (finished.isNotEmpty()) {
+            tasks.inWriteTransaction(transaction) {
+                for (task in finished) {
+                    remove(task.handle)
                 }
             }
         }
+        return pending
     }
 
     @Throws(SQLException::class)
@@ -140,6 +140,8 @@ class UserMessageService<T : Transaction> private constructor(
         task.setState(NodeInstanceState.Complete, user)
         if (task.state?.isFinal ?: false) {
             tasks.remove(transaction, taskHandle)
+        } else {
+            tasks.invalidateCache(taskHandle)
         }
         return task.state ?: throw NullPointerException("Task has an unspecified state")
     }
@@ -151,6 +153,8 @@ class UserMessageService<T : Transaction> private constructor(
         task.setState(NodeInstanceState.Cancelled, user)
         if (task.state?.isFinal ?: false) {
             tasks.remove(transaction, taskHandle)
+        } else {
+            tasks.invalidateCache(taskHandle)
         }
         return task.state ?: throw NullPointerException("Task has an unspecified state")
 
@@ -167,6 +171,7 @@ class UserMessageService<T : Transaction> private constructor(
             throw AuthenticationNeededException("There is no user associated with this request")
         }
         getTask(transaction, handle)!!.setState(NodeInstanceState.Taken, user)
+        tasks.invalidateCache(handle)
         return NodeInstanceState.Taken
     }
 
@@ -208,6 +213,7 @@ class UserMessageService<T : Transaction> private constructor(
             throw AuthenticationNeededException("There is no user associated with this request")
         }
         getTask(transaction, handle)!!.setState(NodeInstanceState.Started, user)
+        tasks.invalidateCache(handle)
         return NodeInstanceState.Taken
     }
 
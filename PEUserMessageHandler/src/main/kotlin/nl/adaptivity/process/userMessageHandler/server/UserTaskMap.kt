@@ -38,8 +38,14 @@ import nl.adaptivity.process.engine.processModel.XmlProcessNodeInstance
 import nl.adaptivity.xmlutil.serialization.XML
 import org.w3.soapEnvelope.Envelope
 import uk.ac.bournemouth.ac.db.darwin.usertasks.UserTaskDB
+import java.sql.SQLException
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
 
 
 class UserTaskMap(connectionProvider: DBTransactionFactory<MonadicDBTransaction<UserTaskDB>, UserTaskDB>) :
@@ -105,16 +111,7 @@ class UserTaskMap(connectionProvider: DBTransactionFactory<MonadicDBTransaction<
                 } catch (e: MessagingException) {
                     handleException(e)
                 }
-                instance?.body?.let { body ->
-                    val env = XML.decodeFromReader<Envelope<XmlTask>>(body.getXmlReader())
-                    env.body.child.apply {
-                        setHandleValue(handle.handleValue)
-                        this.remoteHandle = remoteHandle
-                        state = instance.state
-                    }
-                }
-
-                XmlTask(handle.handleValue)
+                instance?.let { decodeTask(handle, remoteHandle, it) } ?: XmlTask(handle.handleValue)
 
             }
         }
@@ -219,6 +216,183 @@ class UserTaskMap(connectionProvider: DBTransactionFactory<MonadicDBTransaction<
 
     }
 
+    private class TaskSnapshot(val task: XmlTask, val generation: Long, val version: Long, val retrievedAt: Long)
+
+    private class TaskRow(val handle: Handle<XmlTask>, val remoteHandle: Handle<Unit>) {
+        val items = mutableListOf<Pair<String, String?>>()
+    }
+
+    private val snapshots = ConcurrentHashMap<Handle<XmlTask>, TaskSnapshot>()
+
+    /** Per task counter that is bumped on every local change so that snapshots taken before the change are ignored. */
+    private val versions = ConcurrentHashMap<Handle<XmlTask>, Long>()
+
+    /** Counter bumped when the entire cache is invalidated. */
+    private val generation = AtomicLong()
+
+    /**
+     * List all tasks. The task rows and their item data are read with one query each, tasks for which there is a
+     * current snapshot are served from (a copy of) it, and the remaining tasks are looked up on the engine in a single
+     * bulk request. If that request fails or does not complete in time the tasks are left out (or served from an
+     * expired snapshot if there is one); tasks that no longer exist on the engine are returned without state so that
+     * the caller can remove them.
+     */
+    override fun pendingTasks(transaction: MonadicDBTransaction<UserTaskDB>): List<XmlTask> {
+        val rows = with(transaction) {
+            SELECT(u.taskhandle, u.remotehandle)
+                .WHERE { u.taskhandle gt Handle.invalid<XmlTask>() }
+                .map { wrapper ->
+                    val result = LinkedHashMap<Handle<XmlTask>, TaskRow>()
+                    while (wrapper.next()) {
+                        val (handle, remoteHandle) = wrapper.rowData
+                        if (handle == null || remoteHandle == null) continue
+                        @Suppress("UNCHECKED_CAST")
+                        result[handle] = TaskRow(handle, remoteHandle as Handle<Unit>)
+                    }
+                    result
+                }.evaluateNow()
+        }
+        if (rows.isEmpty()) return emptyList()
+
+        with(transaction) {
+            SELECT(nd.taskhandle, nd.name, nd.data)
+                .WHERE { nd.taskhandle gt Handle.invalid<XmlTask>() }
+                .map { wrapper ->
+                    while (wrapper.next()) {
+                        val (handle, name, data) = wrapper.rowData
+                        if (handle != null && name != null) rows[handle]?.items?.add(name to data)
+                    }
+                }.evaluateNow()
+        }
+
+        val now = System.currentTimeMillis()
+        val result = ArrayList<XmlTask>(rows.size)
+        val toFetch = mutableListOf<TaskRow>()
+        for (row in rows.values) {
+            val snapshot = snapshots[row.handle]
+            if (snapshot != null && isCurrent(snapshot) && now - snapshot.retrievedAt < SNAPSHOT_MAX_AGE_MILLIS) {
+                result.add(snapshot.task.copy())
+            } else {
+                toFetch.add(row)
+            }
+        }
+        if (toFetch.isNotEmpty()) {
+            result.addAll(fetchTasks(toFetch))
+        }
+        return result
+    }
+
+    private fun isCurrent(snapshot: TaskSnapshot): Boolean {
+        return snapshot.generation == generation.get() && snapshot.version == (versions[snapshot.task.handle] ?: 0L)
+    }
+
+    /**
+     * Refresh the given tasks from the engine. Snapshots keep their own copy of the task, so that changes by the caller
+     * to the returned tasks do not leak into later listings.
+     */
+    private fun fetchTasks(rows: List<TaskRow>): List<XmlTask> {
+        val snapshotGeneration = generation.get()
+        val snapshotVersions = rows.associate { row -> row.handle to (versions[row.handle] ?: 0L) }
+        val nodeInstances = lookupNodeInstances(rows)
+
+        val result = ArrayList<XmlTask>(rows.size)
+        for (row in rows) {
+            val task = nodeInstances?.let { instances ->
+                instances[row.remoteHandle.handleValue]?.let { decodeTask(row.handle, row.remoteHandle, it) }
+                    ?: goneTask(row)
+            }
+            when {
+                task != null -> {
+                    for ((name, data) in row.items) {
+                        task[name]?.let { it.value = data }
+                    }
+                    snapshots[row.handle] = TaskSnapshot(
+                        task.copy(),
+                        snapshotGeneration,
+                        snapshotVersions.getValue(row.handle),
+                        System.currentTimeMillis()
+                    )
+                    result.add(task)
+                }
+
+                else         -> snapshots[row.handle]?.let { result.add(it.task.copy()) }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Look up the node instances of the given tasks on the engine with a single request. Node instances that the
+     * engine could not find are missing from the result.
+     *
+     * @return The node instances by their (remote) handle, or `null` if the lookup failed or timed out.
+     */
+    private fun lookupNodeInstances(rows: List<TaskRow>): Map<Long, XmlProcessNodeInstance>? {
+        val handles = rows.joinToString(",") { it.remoteHandle.handleValue.toString() }
+        val future = try {
+            ServletProcessEngineClient.getProcessNodeInstances(
+                handles,
+                SYSTEMPRINCIPAL,
+                null,
+                XmlProcessNodeInstance::class.java,
+                XmlTask::class.java,
+                Envelope::class.java
+            )
+        } catch (e: MessagingException) {
+            logger.log(Level.WARNING, "Could not request ${rows.size} tasks", e)
+            return null
+        }
+
+        return try {
+            future.get(BULK_LOOKUP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).associateBy { it.handle }
+        } catch (e: TimeoutException) {
+            future.cancel(true)
+            logger.fine { "Timed out retrieving ${rows.size} tasks" }
+            null
+        } catch (e: ExecutionException) {
+            logger.log(Level.WARNING, "Error retrieving ${rows.size} tasks", e)
+            null
+        } catch (e: MessagingException) {
+            logger.log(Level.WARNING, "Error retrieving ${rows.size} tasks", e)
+            null
+        }
+    }
+
+    private fun goneTask(row: TaskRow) = XmlTask(row.handle.handleValue).apply {
+        remoteHandle = row.remoteHandle
+        state = null
+    }
+
+    @Throws(SQLException::class)
+    override fun set(
+        transaction: MonadicDBTransaction<UserTaskDB>,
+        handle: Handle<XmlTask>,
+        value: XmlTask
+    ): XmlTask? {
+        invalidateCache(handle)
+        return super.set(transaction, handle, value)
+    }
+
+    override fun remove(transaction: MonadicDBTransaction<UserTaskDB>, handle: Handle<XmlTask>): Boolean {
+        invalidateCache(handle)
+        return super.remove(transaction, handle)
+    }
+
+    override fun clear(transaction: MonadicDBTransaction<UserTaskDB>) {
+        invalidateCache()
+        super.clear(transaction)
+    }
+
+    override fun invalidateCache(handle: Handle<XmlTask>) {
+        versions.merge(handle, 1L) { old, increment -> old + increment }
+        snapshots.remove(handle)
+    }
+
+    override fun invalidateCache() {
+        generation.incrementAndGet()
+        snapshots.clear()
+    }
+
     override fun containsRemoteHandle(
         transaction: MonadicDBTransaction<UserTaskDB>,
         remoteHandle: Handle<*>
@@ -236,5 +410,27 @@ class UserTaskMap(connectionProvider: DBTransactionFactory<MonadicDBTransaction<
         val u = UserTaskDB.usertasks
         val nd = UserTaskDB.nodedata
 
+        /** The time an unchanged snapshot of a task is used before it is refreshed from the engine. */
+        const val SNAPSHOT_MAX_AGE_MILLIS = 30_000L
+
+        /** The time allowed for refreshing all stale tasks when listing tasks. */
+        const val BULK_LOOKUP_TIMEOUT_MILLIS = 5_000L
+
+        private val logger = Logger.getLogger(UserTaskMap::class.java.name)
+
+        private fun decodeTask(
+            handle: Handle<XmlTask>,
+            remoteHandle: Handle<Unit>,
+            instance: XmlProcessNodeInstance
+        ): XmlTask? {
+            val body = instance.body ?: return null
+            val env = XML.decodeFromReader<Envelope<XmlTask>>(body.getXmlReader())
+            return env.body.child.apply {
+                setHandleValue(handle.handleValue)
+                this.remoteHandle = remoteHandle
+                state = instance.state
+            }
+        }
+
     }
 }
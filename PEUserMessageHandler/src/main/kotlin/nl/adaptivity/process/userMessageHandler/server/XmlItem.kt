@@ -38,6 +38,16 @@ class XmlItem : TaskItem {
     @XmlSerialName(OPTION_LOCALNAME, Constants.USER_MESSAGE_HANDLER_NS, Constants.USER_MESSAGE_HANDLER_NS_PREFIX)
     override var options: List<String> = listOf<String>()
 
+    /** Create a copy of this item. */
+    fun copy(): XmlItem = XmlItem().also { copy ->
+        copy.name = name
+        copy.label = label
+        copy.type = type
+        copy.value = value
+        copy.params = params
+        copy.options = options.toList()
+    }
+
     companion object {
 
         const val ELEMENTLOCALNAME = "item"
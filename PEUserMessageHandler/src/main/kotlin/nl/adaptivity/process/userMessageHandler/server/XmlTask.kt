@@ -118,6 +118,13 @@ class XmlTask : UserTask<XmlTask> {
         this.items = XmlItem.get(task.items)
     }
 
+    /** Create a copy of this task that shares no mutable state, including its items, with this task. */
+    fun copy(): XmlTask = XmlTask(this).also { copy ->
+        copy.endPoint = endPoint
+        copy.accessRestriction = accessRestriction
+        copy.items = _items.map { it.copy() }
+    }
+
     override fun setState(newState: NodeInstanceState, user: Principal) { // TODO handle transactions
         try {
             state = when (newState) {
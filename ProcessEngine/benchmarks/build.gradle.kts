@@ -0,0 +1,70 @@
+import org.jetbrains.kotlin.gradle.dsl.JvmTarget
+import org.jetbrains.kotlin.gradle.dsl.KotlinVersion
+
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+plugins {
+    kotlin("jvm")
+    alias(libs.plugins.jmh)
+    idea
+}
+
+base {
+    archivesName.set("${project.parent?.name}-${project.name}")
+}
+
+version = "1.0.0"
+description = "JMH benchmarks for the hot paths of the process engine core."
+
+kotlin {
+    compilerOptions {
+        jvmTarget = JvmTarget.fromTarget(libs.versions.kotlin.classTarget.get())
+        languageVersion = KotlinVersion.fromVersion(libs.versions.kotlin.languageVersion.get())
+        apiVersion = KotlinVersion.fromVersion(libs.versions.kotlin.apiVersion.get())
+        optIn.add("nl.adaptivity.process.engine.ProcessInstanceStorage")
+    }
+}
+
+dependencies {
+    jmh(project(":ProcessEngine:core"))
+    jmh(project(":ProcessEngine:testLib"))
+    jmh(project(":TestSupport"))
+    jmh(project(":PE-common"))
+    jmh(project(":JavaCommonApi"))
+    jmh(project(":DarwinJavaApi"))
+    jmh(libs.xmlutil.core)
+    jmh(libs.xmlutil.serialization)
+    jmh(libs.kotlinx.serialization.json)
+    jmh(kotlin("stdlib-jdk8"))
+    jmhRuntimeOnly(libs.woodstox)
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh.get())
+    // Record allocation rates next to the timings, the engine hot paths are mostly allocation bound.
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results.json"))
+    // Allow selecting a subset of the benchmarks with -Pjmh.includes=<regex>
+    (findProperty("jmh.includes") as String?)?.let { includes.add(it) }
+}
+
+idea {
+    module {
+        name = "${parent?.name}-${project.name}"
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.benchmark
+
+import net.devrieze.util.security.RolePrincipal
+import nl.adaptivity.messaging.EndpointDescriptorImpl
+import nl.adaptivity.process.engine.*
+import nl.adaptivity.process.engine.test.ProcessEngineTestSupport
+import nl.adaptivity.process.messaging.InvokableMethod
+import nl.adaptivity.process.messaging.RESTMethodDesc
+import nl.adaptivity.process.processModel.IXmlMessage
+import nl.adaptivity.process.processModel.condition
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import nl.adaptivity.process.processModel.engine.PMHandle
+import nl.adaptivity.process.util.Identifiable
+import nl.adaptivity.xmlutil.util.CompactFragment
+import nl.adaptivity.xmlutil.util.ICompactFragment
+import java.net.URI
+import java.util.*
+import javax.xml.namespace.QName
+
+/**
+ * Message used by the activities of the benchmark models. The [StubMessageService] only records it.
+ */
+object BenchmarkMessage : IXmlMessage {
+    override val targetMethod: InvokableMethod
+        get() = RESTMethodDesc(QName("benchmark"), "POST", "/benchmark", "application/x-benchmark")
+    override val operation: String?
+        get() = null
+    override val messageBody: ICompactFragment
+        get() = CompactFragment("")
+    override val url: String?
+        get() = "/benchmark"
+
+    override fun toString(): String = "BenchmarkMessage"
+}
+
+val benchmarkOwner = object : RolePrincipal {
+    override fun hasRole(role: String): Boolean = role == "admin"
+
+    override fun getName(): String = "benchmarkOwner"
+}
+
+/**
+ * Factory for the models used by the benchmarks. They are modelled on the workflow patterns used in the engine tests,
+ * but their size is a parameter.
+ */
+object BenchmarkModels {
+
+    /** WCP1: A sequence of [length] activities. */
+    fun sequence(length: Int): ExecutableProcessModel = ExecutableProcessModel.build {
+        owner = benchmarkOwner
+        name = "sequence$length"
+        var previous: Identifiable = startNode { id = "start" }
+        for (i in 1..length) {
+            val predecessor = previous
+            previous = activity { id = "ac$i"; message = BenchmarkMessage; this.predecessor = predecessor.identifier }
+        }
+        val last = previous
+        endNode { id = "end"; predecessor = last }
+    }
+
+    /** WCP2/WCP3: A parallel split into [width] activities that are synchronized by a join. */
+    fun splitJoin(width: Int): ExecutableProcessModel = ExecutableProcessModel.build {
+        owner = benchmarkOwner
+        name = "splitJoin$width"
+        val start = startNode { id = "start" }
+        val split = split { id = "split"; predecessor = start.identifier; min = width; max = width }
+        val branches = (1..width).map { i ->
+            activity { id = "ac$i"; message = BenchmarkMessage; predecessor = split.identifier }
+        }
+        val join = join { id = "join"; predecessors(*branches.toTypedArray()); min = width; max = width }
+        endNode { id = "end"; predecessor = join }
+    }
+
+    /** A sequence of [length] activities that each have the given (XPath) condition. */
+    fun conditionalSequence(length: Int, condition: String): ExecutableProcessModel = ExecutableProcessModel.build {
+        owner = benchmarkOwner
+        name = "conditional$length"
+        var previous: Identifiable = startNode { id = "start" }
+        for (i in 1..length) {
+            val predecessor = previous
+            previous = activity {
+                id = "ac$i"
+                message = BenchmarkMessage
+                this.predecessor = predecessor.identifier
+                condition(condition)
+            }
+        }
+        val last = previous
+        endNode { id = "end"; predecessor = last }
+    }
+
+    fun create(shape: String, size: Int): ExecutableProcessModel = when (shape) {
+        "sequence"  -> sequence(size)
+        "splitJoin" -> splitJoin(size)
+        else        -> throw IllegalArgumentException("Unsupported model shape: $shape")
+    }
+}
+
+/**
+ * An in-memory engine (as used by the engine tests) together with a single transaction.
+ */
+class EngineFixture : AutoCloseable {
+    val messageService = StubMessageService(localEndpoint)
+
+    val engine: ProcessEngine<StubProcessTransaction> = ProcessEngineTestSupport.defaultEngineFactory(
+        messageService,
+        object : ProcessTransactionFactory<StubProcessTransaction> {
+            override fun startTransaction(engineData: IProcessEngineData<StubProcessTransaction>): StubProcessTransaction {
+                return StubProcessTransaction(engineData)
+            }
+        },
+        ProcessContextFactory.DEFAULT
+    )
+
+    val transaction: StubProcessTransaction = engine.startTransaction()
+
+    fun addModel(model: ExecutableProcessModel): PMHandle {
+        return engine.addProcessModel(transaction, model, benchmarkOwner).handle
+    }
+
+    fun start(modelHandle: PMHandle): PIHandle {
+        return engine.startProcess(transaction, benchmarkOwner, modelHandle, "benchmark", UUID.randomUUID(), null)
+    }
+
+    /**
+     * Finish all tasks that have been sent, including those sent as a consequence of finishing earlier tasks.
+     * @return The amount of finished tasks.
+     */
+    fun finishAllTasks(): Int {
+        var finished = 0
+        while (finished < messageService.messages.size) {
+            engine.finishTask(transaction, messageService.messages[finished].source, null, benchmarkOwner)
+            finished++
+        }
+        messageService.clear()
+        return finished
+    }
+
+    override fun close() {
+        transaction.close()
+    }
+
+    companion object {
+        val localEndpoint = EndpointDescriptorImpl(
+            QName.valueOf("processEngine"), "processEngine",
+            URI.create("http://localhost/")
+        )
+    }
+}
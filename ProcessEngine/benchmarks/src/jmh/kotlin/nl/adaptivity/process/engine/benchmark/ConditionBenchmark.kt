@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.benchmark
+
+import nl.adaptivity.process.ProcessConsts.Engine
+import nl.adaptivity.process.engine.IProcessInstance
+import nl.adaptivity.process.engine.ProcessInstance
+import nl.adaptivity.process.engine.impl.dom.toDocumentFragment
+import nl.adaptivity.process.engine.processModel.IProcessNodeInstance
+import nl.adaptivity.process.engine.processModel.ProcessNodeInstance
+import nl.adaptivity.process.processModel.engine.ConditionResult
+import nl.adaptivity.process.processModel.engine.ExecutableXPathCondition
+import nl.adaptivity.xmlutil.SimpleNamespaceContext
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+import javax.xml.namespace.QName
+import javax.xml.parsers.DocumentBuilderFactory
+import javax.xml.xpath.*
+
+/**
+ * Evaluation of XPath conditions against a node instance. [evaluateCompiled] reuses the condition (and with it its
+ * pooled compiled expressions), [evaluateBaseline] evaluates the way conditions were evaluated before they were
+ * compiled: creating the factories, documents and expression on every evaluation. The difference between the two is
+ * the gain of compiling conditions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ConditionBenchmark {
+
+    @Param("true()", "1 + 1 = 2", "string-length(concat('ab', 'cd')) > 3")
+    var expression: String = "true()"
+
+    private lateinit var fixture: EngineFixture
+
+    private lateinit var instance: ProcessInstance
+
+    private lateinit var nodeInstance: ProcessNodeInstance<*>
+
+    private lateinit var condition: ExecutableXPathCondition
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        fixture = EngineFixture()
+        val modelHandle = fixture.addModel(BenchmarkModels.conditionalSequence(1, expression))
+        val instanceHandle = fixture.start(modelHandle)
+        val engineData = fixture.transaction.readableEngineData
+        instance = engineData.instance(instanceHandle).withPermission()
+        nodeInstance = instance.getChild("ac1", 1)?.withPermission()
+            ?: throw IllegalStateException("The activity was not instantiated")
+        condition = ExecutableXPathCondition(expression, null)
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        fixture.close()
+    }
+
+    @Benchmark
+    fun evaluateCompiled(): ConditionResult {
+        return condition.eval(instance, nodeInstance)
+    }
+
+    @Benchmark
+    fun evaluateBaseline(): Boolean {
+        return evaluateUncompiled(expression, instance, nodeInstance)
+    }
+}
+
+/**
+ * The evaluation of [ExecutableXPathCondition] before conditions were compiled, kept as the baseline to compare with.
+ */
+private fun evaluateUncompiled(condition: String, nodeSource: IProcessInstance, nodeInstance: IProcessNodeInstance): Boolean {
+    val documentBuilder = DocumentBuilderFactory.newInstance().apply { isNamespaceAware = true }.newDocumentBuilder()
+
+    val factory = XPathFactory.newInstance()
+    val resolver = BaselineResolver(nodeSource, nodeInstance)
+    factory.setXPathFunctionResolver(resolver)
+    factory.setXPathVariableResolver(resolver)
+
+    val doc = documentBuilder.newDocument()
+    documentBuilder.newDocument() // The baseline created a second document for the resolver
+
+    val xpath = factory.newXPath()
+    xpath.namespaceContext = SimpleNamespaceContext(Engine.NSPREFIX, Engine.NAMESPACE)
+
+    val expression = xpath.compile(condition)
+    return expression.evaluate(doc.createDocumentFragment(), XPathConstants.BOOLEAN) as Boolean
+}
+
+/** Copy of the resolver used for condition evaluation in the engine. */
+private class BaselineResolver(
+    private val nodeSource: IProcessInstance,
+    private val nodeInstance: IProcessNodeInstance
+) : XPathFunctionResolver, XPathVariableResolver {
+
+    private val defaultNodeFunction = XPathFunction { args ->
+        val pred = nodeInstance.resolvePredecessor(nodeSource, args.single().toString())
+        when {
+            pred == null -> null
+            pred.results.size == 1 -> pred.results.single().content.toDocumentFragment()
+            else -> pred.results.firstOrNull { it.name == "result" }?.content?.toDocumentFragment()
+        }
+    }
+
+    private val resultNodeFunction = XPathFunction { args ->
+        val pred = nodeInstance.resolvePredecessor(nodeSource, args[0].toString())
+        pred?.results?.firstOrNull { it.name == args[1].toString() }?.content?.toDocumentFragment()
+    }
+
+    override fun resolveFunction(functionName: QName, arity: Int): XPathFunction? {
+        if (functionName.namespaceURI != Engine.NAMESPACE || functionName.localPart != "node") return null
+        return when (arity) {
+            1 -> defaultNodeFunction
+            2 -> resultNodeFunction
+            else -> null
+        }
+    }
+
+    override fun resolveVariable(variableName: QName): Any? = null
+}
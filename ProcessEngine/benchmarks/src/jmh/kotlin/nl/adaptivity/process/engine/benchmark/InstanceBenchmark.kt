@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.benchmark
+
+import nl.adaptivity.process.engine.PIHandle
+import nl.adaptivity.process.processModel.engine.PMHandle
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Throughput of the engine for whole instances: starting an instance, running it to completion by finishing all its
+ * tasks, and tickling a running instance.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class InstanceBenchmark {
+
+    @Param("sequence", "splitJoin")
+    var shape: String = "sequence"
+
+    @Param("1", "10", "50")
+    var size: Int = 1
+
+    private lateinit var fixture: EngineFixture
+
+    private lateinit var modelHandle: PMHandle
+
+    private lateinit var runningInstance: PIHandle
+
+    /** Use a fresh engine for each iteration so the in-memory stores don't grow without bounds. */
+    @Setup(Level.Iteration)
+    fun setUp() {
+        fixture = EngineFixture()
+        modelHandle = fixture.addModel(BenchmarkModels.create(shape, size))
+        runningInstance = fixture.start(modelHandle)
+        fixture.messageService.clear()
+    }
+
+    @TearDown(Level.Iteration)
+    fun tearDown() {
+        fixture.close()
+    }
+
+    @Benchmark
+    fun startInstance(blackhole: Blackhole) {
+        blackhole.consume(fixture.start(modelHandle))
+        fixture.messageService.clear()
+    }
+
+    @Benchmark
+    fun runToCompletion(blackhole: Blackhole) {
+        blackhole.consume(fixture.start(modelHandle))
+        blackhole.consume(fixture.finishAllTasks())
+    }
+
+    @Benchmark
+    fun tickleInstance(): Boolean {
+        return fixture.engine.tickleInstance(fixture.transaction, runningInstance.handleValue, benchmarkOwner)
+    }
+}
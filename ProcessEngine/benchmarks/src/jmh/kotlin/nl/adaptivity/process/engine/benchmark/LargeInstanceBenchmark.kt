@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.benchmark
+
+import nl.adaptivity.process.engine.PIHandle
+import nl.adaptivity.process.engine.ProcessInstance
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Operations on an instance that has accumulated many node instances: a long sequence of which all but the last
+ * activity have been finished. Tickling and child lookups should not degrade quadratically with the amount of
+ * children.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class LargeInstanceBenchmark {
+
+    @Param("1000", "5000")
+    var size: Int = 1000
+
+    private lateinit var fixture: EngineFixture
+
+    private lateinit var instanceHandle: PIHandle
+
+    private lateinit var nodeIds: List<String>
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        fixture = EngineFixture()
+        val modelHandle = fixture.addModel(BenchmarkModels.sequence(size + 1))
+        fixture.messageService.clear()
+        instanceHandle = fixture.start(modelHandle)
+        repeat(size) {
+            val task = fixture.messageService.messages.single().source
+            fixture.messageService.clear()
+            fixture.engine.finishTask(fixture.transaction, task, null, benchmarkOwner)
+        }
+        fixture.messageService.clear()
+        nodeIds = (1..size).map { "ac$it" }
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        fixture.close()
+    }
+
+    private val instance: ProcessInstance
+        get() = fixture.transaction.readableEngineData.instance(instanceHandle).withPermission()
+
+    @Benchmark
+    fun tickleInstance(): Boolean {
+        return fixture.engine.tickleInstance(fixture.transaction, instanceHandle.handleValue, benchmarkOwner)
+    }
+
+    @Benchmark
+    fun lookupAllChildren(blackhole: Blackhole) {
+        val instance = instance
+        for (nodeId in nodeIds) {
+            blackhole.consume(instance.getChild(nodeId, 1))
+        }
+    }
+
+    @Benchmark
+    fun lookupChildBuilders(blackhole: Blackhole) {
+        val builder = instance.builder()
+        for (child in builder.children) {
+            blackhole.consume(builder.getChildNodeInstance(child))
+        }
+    }
+}
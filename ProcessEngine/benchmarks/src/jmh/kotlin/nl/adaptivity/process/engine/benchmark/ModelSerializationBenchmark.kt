@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.benchmark
+
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.json.Json
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import nl.adaptivity.process.processModel.engine.XmlProcessModel
+import nl.adaptivity.xmlutil.serialization.XML
+import nl.adaptivity.xmlutil.xmlStreaming
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Serialization and deserialization of process models. The XML variants follow the path the engine used to store and
+ * load models before compiled models were stored, which is still used for models without a compiled form. The JSON
+ * variants follow the path used by the REST clients.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ModelSerializationBenchmark {
+
+    @Param("sequence", "splitJoin")
+    var shape: String = "sequence"
+
+    @Param("1", "10", "50")
+    var size: Int = 1
+
+    private lateinit var model: ExecutableProcessModel
+
+    private lateinit var xml: String
+
+    private lateinit var json: String
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        model = BenchmarkModels.create(shape, size)
+        xml = XML.encodeToString(model)
+        json = Json.encodeToString(model)
+    }
+
+    @Benchmark
+    fun serializeXml(): String = XML.encodeToString(model)
+
+    @Benchmark
+    fun deserializeXml(): ExecutableProcessModel {
+        return ExecutableProcessModel(XmlProcessModel.Builder.deserialize(xmlStreaming.newReader(xml)))
+    }
+
+    @Benchmark
+    fun serializeJson(): String = Json.encodeToString(model)
+
+    @Benchmark
+    fun deserializeJson(): ExecutableProcessModel = Json.decodeFromString<ExecutableProcessModel>(json)
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.benchmark
+
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import nl.adaptivity.process.util.IdentifyableSet
+import nl.adaptivity.process.util.Identifier
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Building of (large) node sets and models, and lookup of nodes by id. These are dominated by the id lookups of
+ * [IdentifyableSet].
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class NodeLookupBenchmark {
+
+    @Param("100", "2000")
+    var size: Int = 100
+
+    private lateinit var identifiers: List<Identifier>
+
+    private lateinit var model: ExecutableProcessModel
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        identifiers = (1..size).map { Identifier("ac$it") }
+        model = BenchmarkModels.sequence(size)
+    }
+
+    @Benchmark
+    fun buildNodeSet(): IdentifyableSet<Identifier> = IdentifyableSet.processNodeSet(identifiers)
+
+    @Benchmark
+    fun buildModel(): ExecutableProcessModel = BenchmarkModels.sequence(size)
+
+    @Benchmark
+    fun lookupAllNodes(blackhole: Blackhole) {
+        for (identifier in identifiers) {
+            blackhole.consume(model.getNode(identifier))
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.benchmark
+
+import nl.adaptivity.process.engine.processModel.PNIHandle
+import nl.adaptivity.process.processModel.engine.PMHandle
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Cost of split and join evaluation. Each invocation finishes all branches of a freshly started split/join instance,
+ * so the join is re-evaluated once for every branch that completes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class SplitJoinBenchmark {
+
+    @Param("2", "8", "32")
+    var width: Int = 2
+
+    private lateinit var fixture: EngineFixture
+
+    private lateinit var modelHandle: PMHandle
+
+    private lateinit var branches: List<PNIHandle>
+
+    @Setup(Level.Iteration)
+    fun setUpEngine() {
+        fixture = EngineFixture()
+        modelHandle = fixture.addModel(BenchmarkModels.splitJoin(width))
+    }
+
+    @TearDown(Level.Iteration)
+    fun tearDownEngine() {
+        fixture.close()
+    }
+
+    /** Start the instance outside of the measurement, that is measured by [InstanceBenchmark]. */
+    @Setup(Level.Invocation)
+    fun startInstance() {
+        fixture.messageService.clear()
+        fixture.start(modelHandle)
+        branches = fixture.messageService.messages.map { it.source }
+        fixture.messageService.clear()
+    }
+
+    @Benchmark
+    fun finishBranches(): Int {
+        for (branch in branches) {
+            fixture.engine.finishTask(fixture.transaction, branch, null, benchmarkOwner)
+        }
+        return branches.size
+    }
+}
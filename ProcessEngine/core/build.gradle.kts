@@ -93,6 +93,7 @@ kotlin {
                 api(libs.jwsApi)
                 api(libs.activationApi)
                 implementation(libs.kotlinx.serialization.core)
+                implementation(libs.kotlinx.serialization.cbor)
                 implementation(kotlin("stdlib-jdk8"))
 
                 runtimeOnly(libs.woodstox)
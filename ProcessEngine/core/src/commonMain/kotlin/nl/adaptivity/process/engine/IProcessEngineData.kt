@@ -16,6 +16,7 @@
 
 package nl.adaptivity.process.engine
 
+import net.devrieze.util.CachingHandleMap
 import net.devrieze.util.MutableTransactionedHandleMap
 import net.devrieze.util.TransactionFactory
 import net.devrieze.util.security.SecurityProvider
@@ -53,16 +54,49 @@ abstract class IProcessEngineData<T : ContextProcessTransaction> : TransactionFa
         }
     }
 
+    /**
+     * Invalidate the cached instance and its cached node instances. Only the caches are inspected, so nothing is
+     * loaded just to be evicted again. The node instances are found through the group index of their cache (see
+     * [nodeInstanceGroup]) so this works whether or not the instance itself is still cached.
+     */
+    fun invalidateCachedInstance(handle: PIHandle) {
+        if (!handle.isValid) return
+        @Suppress("UNCHECKED_CAST")
+        (processNodeInstances as? CachingHandleMap<SecureProcessNodeInstance, T>)
+            ?.invalidateCacheGroup(handle.handleValue)
+        invalidateCachePI(handle)
+    }
+
 
     inline fun <R> inReadonlyTransaction(transaction: T, body: ProcessEngineDataAccess.() -> R): R {
         return body(createReadDelegate(transaction))
     }
 
+    /**
+     * Get the summaries of the instances owned by the given user ordered by handle. Only instances with a handle larger
+     * than [after] are included, up to [limit] of them. This default loads all instances, implementations backed by
+     * storage should override it with a query.
+     */
+    open fun ownedInstanceRefs(
+        transaction: T,
+        ownerName: String,
+        after: PIHandle,
+        limit: Int
+    ): List<ProcessInstance.ProcessInstanceRef> {
+        return inReadonlyTransaction(transaction) {
+            instances.map { it.withPermission() }
+                .filter { it.owner.name == ownerName && it.handle.handleValue > after.handleValue }
+                .sortedBy { it.handle.handleValue }
+                .take(limit)
+                .map { it.ref }
+        }
+    }
+
     open fun createReadDelegate(transaction: T): ProcessEngineDataAccess = createWriteDelegate(transaction)
 
     abstract fun createWriteDelegate(transaction: T): MutableProcessEngineDataAccess
 
-    abstract fun queueTickle(instanceHandle: PIHandle)
+    abstract fun queueTickle(transaction: T, instanceHandle: PIHandle)
 
     @Suppress("UNUSED_PARAMETER")
     inline fun <R> inReadonlyTransaction(
@@ -92,6 +126,12 @@ abstract class IProcessEngineData<T : ContextProcessTransaction> : TransactionFa
         }
     }
 
+    companion object {
+        /** The cache group of a node instance: the handle of its process instance. */
+        fun nodeInstanceGroup(pni: SecureProcessNodeInstance): Long? {
+            return pni.withPermission().hProcessInstance.takeIf { it.isValid }?.handleValue
+        }
+    }
 }
 
 
@@ -29,4 +29,8 @@ interface IProcessInstance : ReadableHandleAware<SecureProcessInstance> {
     fun getChildNodeInstance(handle: PNIHandle): IProcessNodeInstance
 
     fun allChildNodeInstances(): Sequence<IProcessNodeInstance>
+
+    /** The child instances of the node with the given id. */
+    fun getChildNodeInstances(nodeId: String): Sequence<IProcessNodeInstance> =
+        allChildNodeInstances().filter { it.node.id == nodeId }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import net.devrieze.util.ObjectPool
+import nl.adaptivity.process.engine.impl.dom.XPathExpression
+import nl.adaptivity.process.engine.impl.generateXmlString
+import nl.adaptivity.process.util.Constants
+import nl.adaptivity.xmlutil.*
+import nl.adaptivity.xmlutil.XmlEvent.*
+import nl.adaptivity.xmlutil.util.CompactFragment
+
+/**
+ * A template for the [PETransformer] that has been parsed into a list of instructions: runs of literal events and
+ * slots for the `pe:value`, `pe:element` and `pe:attribute` placeholders. Instantiating the template writes the
+ * literal events and the resolved values to a writer without parsing the template again. Templates are immutable, so
+ * they can be compiled once (see [compile]) and shared.
+ *
+ * The output is the same as that of [PETransformer.transform] on the template.
+ */
+class PETemplate private constructor(private val instructions: List<Instruction>) {
+
+    private sealed class Instruction {
+        abstract fun write(context: PETransformer.PETransformerContext, out: XmlWriter)
+    }
+
+    private class Literal(private val events: List<XmlEvent>) : Instruction() {
+        override fun write(context: PETransformer.PETransformerContext, out: XmlWriter) {
+            for (event in events) event.writeTo(out)
+        }
+    }
+
+    /**
+     * The slot for a `pe:value` or `pe:element`.
+     * @property valueName The name of the value, `null` for the default value.
+     */
+    private class ElementSlot(
+        private val valueName: String?,
+        xpath: String?,
+        namespaceContext: NamespaceContext,
+        filterNamespaceContext: NamespaceContext?
+    ) : Instruction() {
+        /**
+         * The compiled path, `null` if the whole value is used. Compiled expressions are not thread safe, so they are
+         * pooled. They are compiled on first use, so an invalid path only fails the instantiation.
+         */
+        private val expressions: ObjectPool<XPathExpression>? = when {
+            xpath == null || xpath == "." -> null
+            else -> ObjectPool(ObjectPool.DEFAULT_MAX_IDLE) {
+                PETransformer.compileXPath(xpath, namespaceContext, filterNamespaceContext)
+            }
+        }
+
+        override fun write(context: PETransformer.PETransformerContext, out: XmlWriter) {
+            val value = when (valueName) {
+                null -> context.resolveDefaultValue()
+                else -> context.resolveElementValue(valueName)
+            }
+            val events = when (expressions) {
+                null -> value
+                else -> expressions.use { expression -> PETransformer.applyXpath(expression, value) }
+            }
+            for (event in events) {
+                if (!event.isIgnorable) event.writeTo(out)
+            }
+        }
+    }
+
+    private class AttributeSlot(private val attributes: Map<String, CharSequence>) : Instruction() {
+        override fun write(context: PETransformer.PETransformerContext, out: XmlWriter) {
+            PETransformer.resolveAttribute(context, attributes).writeTo(out)
+        }
+    }
+
+    fun instantiate(context: PETransformer.PETransformerContext, out: XmlWriter) {
+        for (instruction in instructions) {
+            instruction.write(context, out)
+        }
+    }
+
+    /** Instantiate the template with the given data, the single value (if any) is the default value. */
+    fun instantiate(vararg processData: ProcessData): CompactFragment {
+        val context = PETransformer.ProcessDataContext(*processData)
+        return CompactFragment(emptyList(), generateXmlString(true) { instantiate(context, it) })
+    }
+
+    private class Compiler(
+        private val input: XmlReader,
+        private val filterNamespaceContext: NamespaceContext?,
+        private val removeWhitespace: Boolean
+    ) {
+        private val instructions = mutableListOf<Instruction>()
+
+        private val literal = mutableListOf<XmlEvent>()
+
+        fun compile(): List<Instruction> {
+            while (input.hasNext()) {
+                when (input.next()) {
+                    EventType.START_DOCUMENT,
+                    EventType.END_DOCUMENT -> {}
+
+                    EventType.IGNORABLE_WHITESPACE -> if (!removeWhitespace) literal.add(XmlEvent.from(input))
+
+                    EventType.TEXT -> if (!removeWhitespace || !isXmlWhitespace(input.text)) {
+                        literal.add(XmlEvent.from(input))
+                    }
+
+                    EventType.START_ELEMENT -> startElement(XmlEvent.from(input) as StartElementEvent)
+
+                    else -> literal.add(XmlEvent.from(input))
+                }
+            }
+            flushLiteral()
+            return instructions
+        }
+
+        private fun startElement(element: StartElementEvent) {
+            if (Constants.MODIFY_NS_STR != element.namespaceUri) {
+                literal.add(PETransformer.withoutModifyNamespace(element, input.namespaceContext))
+                return
+            }
+
+            val attributes = PETransformer.parseAttributes(element)
+            val instruction = when (element.localName) {
+                "attribute" -> {
+                    // Whitespace before an attribute would end the start tag
+                    while ((literal.lastOrNull() as? TextEvent)?.let { isXmlWhitespace(it.text) } == true) {
+                        literal.removeAt(literal.lastIndex)
+                    }
+                    AttributeSlot(attributes)
+                }
+
+                "element" -> ElementSlot(
+                    attributes["value"]?.toString()
+                        ?: throw XmlException("This context does not allow for a missing value parameter"),
+                    attributes["xpath"]?.toString(),
+                    element.namespaceContext,
+                    filterNamespaceContext
+                )
+
+                "value" -> ElementSlot(
+                    attributes["value"]?.toString(),
+                    attributes["xpath"]?.toString(),
+                    element.namespaceContext,
+                    filterNamespaceContext
+                )
+
+                else -> throw XmlException("Unsupported element: {${element.namespaceUri}}${element.localName}")
+            }
+            flushLiteral()
+            instructions.add(instruction)
+            readEndTag(element)
+        }
+
+        private fun readEndTag(element: StartElementEvent) {
+            while (input.hasNext()) {
+                when (input.next()) {
+                    EventType.IGNORABLE_WHITESPACE,
+                    EventType.COMMENT -> {}
+
+                    EventType.TEXT -> if (!isXmlWhitespace(input.text)) {
+                        throw XmlException("Unexpected text found when expecting an end tag for $element")
+                    }
+
+                    EventType.END_ELEMENT -> {
+                        if (input.namespaceURI == element.namespaceUri && input.localName == element.localName) return
+                        throw XmlException("Unexpected end tag found when expecting an end tag for $element")
+                    }
+
+                    else -> throw XmlException("Unexpected tag found (${input.eventType}) when expecting an end tag for $element")
+                }
+            }
+        }
+
+        private fun flushLiteral() {
+            if (literal.isNotEmpty()) {
+                instructions.add(Literal(literal.toList()))
+                literal.clear()
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Compile the template read from the reader.
+         * @param namespaceContext The context used (together with the context of the placeholder) to resolve the
+         *                         prefixes in placeholder paths.
+         * @param removeWhitespace Whether whitespace only text is to be left out of the output.
+         */
+        fun compile(input: XmlReader, namespaceContext: NamespaceContext?, removeWhitespace: Boolean): PETemplate {
+            return PETemplate(Compiler(input, namespaceContext, removeWhitespace).compile())
+        }
+    }
+}
@@ -111,36 +111,7 @@ class PETransformer private constructor(
                     else        -> throw XmlException("Unsupported element: {${element.namespaceUri}}${element.localName}")
                 }
             } else {
-                var filterAttributes = false
-                val newAttrs = ArrayList<Attribute>()
-                for (attr in element.attributes) {
-                    if (attr.hasNamespaceUri() && Constants.MODIFY_NS_STR == attr.value) {
-                        filterAttributes = true
-                    } else {
-                        newAttrs.add(attr)
-                    }
-                }
-                val newNamespaces = ArrayList<Namespace>()
-                for (ns in element.namespaceDecls) {
-                    if (Constants.MODIFY_NS_STR == ns.namespaceURI) {
-                        filterAttributes = true
-                    } else {
-                        newNamespaces.add(ns)
-                    }
-                }
-                if (filterAttributes) {
-                    results.add(
-                        StartElementEvent(
-                            element.extLocationInfo, element.namespaceUri, element.localName,
-                            element.prefix,
-                            newAttrs.toTypedArray(),
-                            namespaceContext.freeze(),
-                            newNamespaces
-                        )
-                    )
-                } else {
-                    results.add(element)
-                }
+                results.add(withoutModifyNamespace(element, namespaceContext))
             }
         }
 
@@ -215,7 +186,6 @@ class PETransformer private constructor(
             }
         }
 
-        @OptIn(XmlUtilInternal::class)
         private fun applyXpath(
             namespaceContext: NamespaceContext,
             pendingEvents: List<XmlEvent>,
@@ -225,61 +195,10 @@ class PETransformer private constructor(
             if (xpathstr == null || "." == xpathstr) {
                 return pendingEvents
             }
-            // TODO add a function resolver
-            val rawPath = newXPath()
-            // Do this better
-            if (filterNamespaceContext == null) {
-                rawPath.setNamespaceContext(namespaceContext)
-            } else {
-                rawPath.setNamespaceContext(CombinedNamespaceContext(namespaceContext, filterNamespaceContext))
-            }
-            val xpathexpr = rawPath.compile(xpathstr)
-            val result = ArrayList<XmlEvent>()
-            val dbf = newDocumentBuilderFactory()
-            dbf.isNamespaceAware = true
-            val db = dbf.newDocumentBuilder()
-            val eventFragment = db.newDocument().createDocumentFragment()
-            val domResult = DOMResult(eventFragment)
-
-            val writer = domResult.newWriter()
-            for (event in pendingEvents) {
-                event.writeTo(writer)
-            }
-            writer.close()
-            val applicationResult = xpathexpr.evaluate(eventFragment, XPathConstants.NODESET) as NodeList
-            if (applicationResult.getLength() > 0) {
-                result.addAll(toEvents(ProcessData("--xpath result--", applicationResult.toFragment())))
-            }
-            return result
-        }
-
-        private fun parseAttributes(startElement: StartElementEvent): Map<String, CharSequence> {
-            val result = mutableMapOf<String, CharSequence>()
-
-            for (attribute in startElement.attributes) {
-                result[attribute.localName] = attribute.value
-            }
-            return result
+            return applyXpath(compileXPath(xpathstr, namespaceContext, filterNamespaceContext), pendingEvents)
         }
 
-        private fun getAttribute(attributes: Map<String, CharSequence>): XmlEvent {
-            val valueName = attributes["value"]?.toString()
-            val xpath = attributes["xpath"]
-            var paramName: CharSequence? = attributes["name"]
-
-            if (valueName != null) {
-                if (paramName == null) {
-                    paramName = context.resolveAttributeName(valueName)
-                }
-                val value = context.resolveAttributeValue(valueName, xpath?.toString())
-                return Attribute(
-                    null, XMLConstants.NULL_NS_URI, paramName, XMLConstants.DEFAULT_NS_PREFIX,
-                    value
-                )
-            } else {
-                throw MessagingFormatException("Missing parameter name")
-            }
-        }
+        private fun getAttribute(attributes: Map<String, CharSequence>): XmlEvent = resolveAttribute(context, attributes)
     }
 
 
@@ -429,6 +348,107 @@ class PETransformer private constructor(
             return PETransformer(context, namespaceContext, removeWhitespace)
         }
 
+        /** Remove the declarations of the modification namespace from a regular element. */
+        internal fun withoutModifyNamespace(
+            element: StartElementEvent,
+            namespaceContext: NamespaceContext
+        ): StartElementEvent {
+            var filterAttributes = false
+            val newAttrs = ArrayList<Attribute>()
+            for (attr in element.attributes) {
+                if (attr.hasNamespaceUri() && Constants.MODIFY_NS_STR == attr.value) {
+                    filterAttributes = true
+                } else {
+                    newAttrs.add(attr)
+                }
+            }
+            val newNamespaces = ArrayList<Namespace>()
+            for (ns in element.namespaceDecls) {
+                if (Constants.MODIFY_NS_STR == ns.namespaceURI) {
+                    filterAttributes = true
+                } else {
+                    newNamespaces.add(ns)
+                }
+            }
+            if (!filterAttributes) return element
+
+            return StartElementEvent(
+                element.extLocationInfo, element.namespaceUri, element.localName,
+                element.prefix,
+                newAttrs.toTypedArray(),
+                namespaceContext.freeze(),
+                newNamespaces
+            )
+        }
+
+        internal fun parseAttributes(startElement: StartElementEvent): Map<String, CharSequence> {
+            val result = mutableMapOf<String, CharSequence>()
+
+            for (attribute in startElement.attributes) {
+                result[attribute.localName] = attribute.value
+            }
+            return result
+        }
+
+        /** Create the attribute for a `pe:attribute` element with the given attributes. */
+        internal fun resolveAttribute(context: PETransformerContext, attributes: Map<String, CharSequence>): Attribute {
+            val valueName = attributes["value"]?.toString()
+            val xpath = attributes["xpath"]
+            var paramName: CharSequence? = attributes["name"]
+
+            if (valueName != null) {
+                if (paramName == null) {
+                    paramName = context.resolveAttributeName(valueName)
+                }
+                val value = context.resolveAttributeValue(valueName, xpath?.toString())
+                return Attribute(
+                    null, XMLConstants.NULL_NS_URI, paramName, XMLConstants.DEFAULT_NS_PREFIX,
+                    value
+                )
+            } else {
+                throw MessagingFormatException("Missing parameter name")
+            }
+        }
+
+        /** Compile the path of a `pe:value` or `pe:element`. */
+        internal fun compileXPath(
+            xpathstr: String,
+            namespaceContext: NamespaceContext,
+            filterNamespaceContext: NamespaceContext?
+        ): XPathExpression {
+            // TODO add a function resolver
+            val rawPath = newXPath()
+            // Do this better
+            if (filterNamespaceContext == null) {
+                rawPath.setNamespaceContext(namespaceContext)
+            } else {
+                rawPath.setNamespaceContext(CombinedNamespaceContext(namespaceContext, filterNamespaceContext))
+            }
+            return rawPath.compile(xpathstr)
+        }
+
+        @OptIn(XmlUtilInternal::class)
+        internal fun applyXpath(xpathexpr: XPathExpression, pendingEvents: List<XmlEvent>): Collection<XmlEvent> {
+
+            val result = ArrayList<XmlEvent>()
+            val dbf = newDocumentBuilderFactory()
+            dbf.isNamespaceAware = true
+            val db = dbf.newDocumentBuilder()
+            val eventFragment = db.newDocument().createDocumentFragment()
+            val domResult = DOMResult(eventFragment)
+
+            val writer = domResult.newWriter()
+            for (event in pendingEvents) {
+                event.writeTo(writer)
+            }
+            writer.close()
+            val applicationResult = xpathexpr.evaluate(eventFragment, XPathConstants.NODESET) as NodeList
+            if (applicationResult.getLength() > 0) {
+                result.addAll(toEvents(ProcessData("--xpath result--", applicationResult.toFragment())))
+            }
+            return result
+        }
+
         protected fun toEvents(data: ProcessData): List<XmlEvent> {
             val result = ArrayList<XmlEvent>()
 
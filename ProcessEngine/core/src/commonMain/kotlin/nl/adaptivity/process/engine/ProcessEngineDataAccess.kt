@@ -58,6 +58,13 @@ interface MutableProcessEngineDataAccess : ProcessEngineDataAccess {
 
     fun invalidateCachePNI(handle: PNIHandle)
 
+    /**
+     * Invalidate the cached state of a single process instance and its node instances so that they are reloaded on
+     * next access. Unlike invalidating with an invalid handle this leaves the caches of other instances intact. This
+     * does not load anything.
+     */
+    fun invalidateCachedInstance(hProcessInstance: PIHandle)
+
     fun commit()
 
     fun rollback()
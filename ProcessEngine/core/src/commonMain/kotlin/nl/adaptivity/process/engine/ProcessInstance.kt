@@ -92,6 +92,73 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
         }
     }
 
+    /** Key to look up child node instances by node id and entry number. */
+    private data class NodeEntryKey(val nodeId: String, val entryNo: Int)
+
+    /**
+     * The pending children of a builder, indexed by handle and by node and entry number. The indices are only updated
+     * when children are added or replaced, not when the handle of a builder is assigned on building. Lookups therefore
+     * verify the child that they find.
+     */
+    private class PendingChildren : AbstractList<InstanceFuture>() {
+        private val futures = mutableListOf<InstanceFuture>()
+        private val byHandle = HashMap<PNIHandle, Int>()
+        private val byNodeEntry = HashMap<NodeEntryKey, Int>()
+
+        override val size: Int get() = futures.size
+
+        override fun get(index: Int): InstanceFuture = futures[index]
+
+        fun add(future: InstanceFuture) {
+            index(future, futures.size, replace = false)
+            futures.add(future)
+        }
+
+        operator fun set(index: Int, future: InstanceFuture) {
+            futures[index] = future
+            index(future, index, replace = true)
+        }
+
+        fun clear() {
+            futures.clear()
+            byHandle.clear()
+            byNodeEntry.clear()
+        }
+
+        private fun index(future: InstanceFuture, index: Int, replace: Boolean) {
+            val builder = future.origBuilder
+            val key = NodeEntryKey(builder.node.id, builder.entryNo)
+            if (builder.handle.isValid) {
+                if (replace || !isValidIndex(byHandle[builder.handle])) byHandle[builder.handle] = index
+            }
+            if (replace || !isValidIndex(byNodeEntry[key])) byNodeEntry[key] = index
+        }
+
+        private fun isValidIndex(index: Int?) = index != null && index < futures.size
+
+        /** The position of the child with the given handle, or -1 if not pending. */
+        fun indexOfHandle(handle: PNIHandle): Int {
+            if (!handle.isValid) return -1
+            val index = byHandle[handle] ?: return -1
+            return if (futures[index].origBuilder.handle == handle) index else futures.indexOfFirst { it.origBuilder.handle == handle }
+        }
+
+        /** The position of the child for the given node and entry number, or -1 if not pending. */
+        fun indexOfNodeEntry(node: ExecutableProcessNode, entryNo: Int): Int {
+            val index = byNodeEntry[NodeEntryKey(node.id, entryNo)] ?: return -1
+            val builder = futures[index].origBuilder
+            return when {
+                builder.node == node && builder.entryNo == entryNo -> index
+                else -> futures.indexOfFirst { it.origBuilder.node == node && it.origBuilder.entryNo == entryNo }
+            }
+        }
+
+        fun withHandle(handle: PNIHandle): InstanceFuture? = indexOfHandle(handle).let { if (it < 0) null else futures[it] }
+
+        fun withNodeEntry(node: ExecutableProcessNode, entryNo: Int): InstanceFuture? =
+            indexOfNodeEntry(node, entryNo).let { if (it < 0) null else futures[it] }
+    }
+
     interface Builder : IProcessInstance {
         val generation: Int
         val pendingChildren: List<Future<ProcessNodeInstance<*>>>
@@ -319,10 +386,14 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
             // make a copy as the list may be changed due to tickling.
             val nonFinalChildren = mutableListOf<PNIHandle>()
             val successorCounts = IntArray(children.size)
+            val childIndices = HashMap<PNIHandle, Int>(children.size * 2)
+            for ((idx, child) in children.withIndex()) {
+                if (child.handle !in childIndices) childIndices[child.handle] = idx
+            }
 
             for (child in children) { // determine the children of interest
                 for (predHandle in child.predecessors) {
-                    val predIdx = children.indexOfFirst { it.handle == predHandle }
+                    val predIdx = childIndices[predHandle] ?: continue
                     successorCounts[predIdx]++
                 }
                 if (!child.state.isFinal) {
@@ -501,9 +572,15 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
     ) : Builder {
         override var generation: Int = 0
             private set
-        private val _pendingChildren = mutableListOf<InstanceFuture>()
+        private val _pendingChildren = PendingChildren()
         override val pendingChildren: List<Future<ProcessNodeInstance<*>>> get() = _pendingChildren
         internal var rememberedChildren: MutableList<ProcessNodeInstance<*>> = mutableListOf()
+
+        /**
+         * Child node instances that were loaded in bulk together with the instance. When building these are used
+         * directly rather than being looked up one at a time.
+         */
+        internal val loadedChildren: MutableMap<PNIHandle, ProcessNodeInstance<*>> = mutableMapOf()
         override val children: List<PNIHandle>
             get() = rememberedChildren.map(ProcessNodeInstance<*>::handle)
         override val inputs = mutableListOf<ProcessData>()
@@ -528,11 +605,13 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
         override fun storeChild(child: ProcessNodeInstance.Builder<out ExecutableProcessNode, *>): Future<ProcessNodeInstance<*>> {
             return InstanceFuture(child).apply {
                 if (!handle.isValid) throw IllegalArgumentException("Storing a non-existing child")
-                _pendingChildren.firstOrNull { child.handle.isValid && it.origBuilder.handle == child.handle && it.origBuilder != child }
-                    ?.let { _ ->
-                        throw ProcessException("Attempting to store a new child with an already existing handle")
-                    }
-                if (_pendingChildren.none { it.origBuilder == child }) _pendingChildren.add(this)
+                val sameHandle = _pendingChildren.withHandle(child.handle)
+                if (sameHandle != null && sameHandle.origBuilder != child) {
+                    throw ProcessException("Attempting to store a new child with an already existing handle")
+                }
+                if (sameHandle == null && _pendingChildren.withNodeEntry(child.node, child.entryNo)?.origBuilder != child) {
+                    _pendingChildren.add(this)
+                }
             }
         }
 
@@ -557,8 +636,7 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
             entryNo: Int,
             body: ProcessNodeInstance.Builder<out ExecutableProcessNode, *>.() -> Unit
         ) {
-            val existingBuilder = _pendingChildren
-                .firstOrNull { it.origBuilder.node == node && it.origBuilder.entryNo == entryNo }
+            val existingBuilder = _pendingChildren.withNodeEntry(node, entryNo)
                 ?: throw ProcessException("Attempting to update a nonexisting child")
 
             @Suppress("UNCHECKED_CAST")
@@ -570,6 +648,7 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
             if (handle.isValid) data.instances[handle] = newInstance else handle = data.instances.put(newInstance)
             generation = newInstance.generation + 1
             rememberedChildren.replaceBy(newInstance.childNodes.map { it.withPermission() })
+            loadedChildren.clear()
             _pendingChildren.clear()
         }
     }
@@ -589,8 +668,7 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
                 field = value
             }
 
-        private val _pendingChildren =
-            mutableListOf<InstanceFuture>()
+        private val _pendingChildren = PendingChildren()
 
         override val pendingChildren: List<Future<ProcessNodeInstance<*>>> get() = _pendingChildren
 
@@ -652,40 +730,45 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
 
         override fun storeChild(child: ProcessNodeInstance.Builder<out ExecutableProcessNode, ProcessNodeInstance<*>>): Future<ProcessNodeInstance<*>> {
             return InstanceFuture(child).apply {
-                val existingIdx = _pendingChildren.indexOfFirst {
-                    it.origBuilder == child ||
-                        (child.handle.isValid && it.origBuilder.handle == child.handle) ||
-                        (it.origBuilder.node == child.node && it.origBuilder.entryNo == child.entryNo)
+                val handleIdx = _pendingChildren.indexOfHandle(child.handle)
+                val nodeEntryIdx = _pendingChildren.indexOfNodeEntry(child.node, child.entryNo)
+                val existingIdx = when {
+                    handleIdx < 0 -> nodeEntryIdx
+                    nodeEntryIdx < 0 -> handleIdx
+                    else -> minOf(handleIdx, nodeEntryIdx)
                 }
 
                 if (existingIdx >= 0) {
                     _pendingChildren[existingIdx] = this
-                } else if (_pendingChildren.any { child.handle.isValid && it.origBuilder.handle == child.handle && it.origBuilder != child }) {
-                    throw ProcessException("Attempting to store a new child with an already existing handle")
                 } else {
                     _pendingChildren.add(this)
                 }
             }
         }
 
+        override fun getChildNodeInstance(handle: PNIHandle): IProcessNodeInstance {
+            return _pendingChildren.withHandle(handle)?.origBuilder
+                ?: base.childByHandle(handle)
+                ?: throw NoSuchElementException("no child with the handle $handle could be found")
+        }
+
+
+        override fun getChildNodeInstances(nodeId: String): Sequence<IProcessNodeInstance> {
+            val pending = _pendingChildren.map { it.origBuilder }.filter { it.node.id == nodeId }
+            return pending.asSequence() +
+                base.childrenOf(nodeId).asSequence().filter { child -> pending.none { it.entryNo == child.entryNo } }
+        }
 
         override fun getChildBuilder(handle: PNIHandle): ProcessNodeInstance.ExtBuilder<*, *> {
             if (!handle.isValid) throw IllegalArgumentException("Cannot look up with invalid handles")
-            for (child in _pendingChildren) {
-                val origBuilder = child.origBuilder
-                if(origBuilder is ProcessNodeInstance.ExtBuilder<*,*>) {
-                    if (origBuilder.handle == handle) return origBuilder
-                }
-            }
-            for (childHolder in base.childNodes) {
-                val child = childHolder.withPermission()
-                if (child.handle == handle) {
-                    val builder = child.builder(this)
-                    _pendingChildren.add(InstanceFuture(builder))
-                    return builder
-                }
-            }
-            throw NoSuchElementException("no child with the handle $handle could be found")
+            val pending = _pendingChildren.withHandle(handle)?.origBuilder
+            if (pending is ProcessNodeInstance.ExtBuilder<*, *>) return pending
+
+            val child = base.childByHandle(handle)
+                ?: throw NoSuchElementException("no child with the handle $handle could be found")
+            val builder = child.builder(this)
+            _pendingChildren.add(InstanceFuture(builder))
+            return builder
         }
 
         @Suppress("UNCHECKED_CAST")
@@ -693,13 +776,9 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
             return _pendingChildren.asSequence()
                 .filter { it.origBuilder.node == node }
                 .map { it.origBuilder as ProcessNodeInstance.Builder<N, *> } +
-                base.childNodes.asSequence()
-                    .map { it.withPermission() }
+                base.childrenOf(node.id).asSequence()
                     .filter { child ->
-                        child.node == node &&
-                            _pendingChildren.none { pending ->
-                                child.node == pending.origBuilder.node && child.entryNo == pending.origBuilder.entryNo
-                            }
+                        child.node == node && _pendingChildren.indexOfNodeEntry(child.node, child.entryNo) < 0
                     }
                     .map {
                         (it.builder(this) as ProcessNodeInstance.Builder<N, *>).also {
@@ -715,26 +794,18 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
             entryNo: Int,
             body: ProcessNodeInstance.Builder<out ExecutableProcessNode, *>.() -> Unit
         ) {
-            for(existingBuilderFuture in _pendingChildren) {
-                val existingBuilder = existingBuilderFuture.origBuilder
-                if (existingBuilder.node == node && existingBuilder.entryNo == entryNo) {
-                    existingBuilder.body()
-                    return
-                }
+            _pendingChildren.withNodeEntry(node, entryNo)?.let { existingBuilderFuture ->
+                existingBuilderFuture.origBuilder.body()
+                return
             }
 
-            for(secureChildNode in base.childNodes) {
-                val childNode = secureChildNode.withPermission()
-                if (childNode.node == node && childNode.entryNo == entryNo) {
-                    val builder = childNode.builder(this)
-                    builder.body()
-                    if (builder.changed) {
-                        _pendingChildren.add(InstanceFuture(builder))
-                    }
-                    return
-                }
+            val childNode = base.childByNodeEntry(node.id, entryNo)?.takeIf { it.node == node }
+                ?: throw ProcessException("Attempting to update a nonexisting child")
+            val builder = childNode.builder(this)
+            builder.body()
+            if (builder.changed) {
+                _pendingChildren.add(InstanceFuture(builder))
             }
-            throw ProcessException("Attempting to update a nonexisting child")
         }
 
         override fun store(data: MutableProcessEngineDataAccess) {
@@ -807,30 +878,35 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
         open val isFinal: Boolean get() = false
     }
 
-    class ProcessInstanceRef(processInstance: ProcessInstance) : XmlSerializable {
-
-        val handle: PIHandle = processInstance.handle
+    /**
+     * Summary of a process instance as used in listings. This can be created from the instance itself, or directly
+     * from stored data without loading the instance.
+     */
+    class ProcessInstanceRef(
+        val handle: PIHandle,
+        val processModel: Handle<ExecutableProcessModel>,
+        val name: String,
+        val parentActivity: PNIHandle,
+        val uuid: UUID,
+        val state: State
+    ) : XmlSerializable {
+
+        constructor(processInstance: ProcessInstance) : this(
+            processInstance.handle,
+            processInstance.processModel.rootModel.handle,
+            refName(
+                processInstance.name,
+                processInstance.processModel.rootModel.name,
+                processInstance.processModel !is ExecutableProcessModel,
+                processInstance.handle.handleValue
+            ),
+            processInstance.parentActivity,
+            processInstance.uuid,
+            processInstance.state
+        )
 
         val handleValue: Long get() = handle.handleValue
 
-        val processModel: Handle<ExecutableProcessModel> = processInstance.processModel.rootModel.handle
-
-        val name: String = processInstance.name.let {
-            if (it.isNullOrBlank()) {
-                buildString {
-                    append(processInstance.processModel.rootModel.name)
-                    if (processInstance.processModel !is ExecutableProcessModel) append(" child") else append(' ')
-                    append("instance ").append(handleValue)
-                }
-            } else it
-        }
-
-        val parentActivity = processInstance.parentActivity
-
-        val uuid: UUID = processInstance.uuid
-
-        val state = processInstance.state
-
         override fun serialize(out: XmlWriter) {
             out.smartStartTag(Constants.PROCESS_ENGINE_NS, "processInstance", Constants.PROCESS_ENGINE_NS_PREFIX) {
                 writeHandleAttr("handle", handle)
@@ -841,6 +917,18 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
                 writeAttribute("state", state)
             }
         }
+
+        companion object {
+            /** Determine the name to show for an instance, generating one if the instance has no name. */
+            fun refName(instanceName: String?, modelName: String?, isChild: Boolean, handleValue: Long): String {
+                if (!instanceName.isNullOrBlank()) return instanceName
+                return buildString {
+                    append(modelName)
+                    if (isChild) append(" child") else append(' ')
+                    append("instance ").append(handleValue)
+                }
+            }
+        }
     }
 
     val generation: Int
@@ -849,6 +937,32 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
 
     val childNodes: Collection<SecureProcessNodeInstance>
 
+    /** Index of the child node instances by handle. */
+    private val childrenByHandle: Map<PNIHandle, ProcessNodeInstance<*>> by lazy {
+        HashMap<PNIHandle, ProcessNodeInstance<*>>(childNodes.size * 2).apply {
+            for (child in childNodes) {
+                val instance = child.withPermission()
+                if (instance.handle !in this) put(instance.handle, instance)
+            }
+        }
+    }
+
+    /** Index of the child node instances by node id and entry number. */
+    private val childrenByNodeEntry: Map<NodeEntryKey, ProcessNodeInstance<*>> by lazy {
+        HashMap<NodeEntryKey, ProcessNodeInstance<*>>(childNodes.size * 2).apply {
+            for (child in childNodes) {
+                val instance = child.withPermission()
+                val key = NodeEntryKey(instance.node.id, instance.entryNo)
+                if (key !in this) put(key, instance)
+            }
+        }
+    }
+
+    /** Index of the child node instances by node id. */
+    private val childrenByNodeId: Map<String, List<ProcessNodeInstance<*>>> by lazy {
+        childNodes.asSequence().map { it.withPermission() }.groupBy { it.node.id }
+    }
+
     val parentActivity: PNIHandle
 
     val children: Sequence<PNIHandle>
@@ -946,8 +1060,11 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
         }
 
 
+        val loadedChildren = (builder as? BaseBuilder)?.loadedChildren ?: emptyMap()
         val nodes = createdNodes + builder.children.asSequence().map { childHandle ->
-            updatedNodes.remove(childHandle) ?: data.nodeInstance(childHandle).withPermission()
+            updatedNodes.remove(childHandle)
+                ?: loadedChildren[childHandle]
+                ?: data.nodeInstance(childHandle).withPermission()
         }.toList()
 
         assert(updatedNodes.isEmpty()) { "All updated nodes must be used, still missing: [${updatedNodes.values.joinToString()}]" }
@@ -1018,28 +1135,33 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
     }
 
     override fun getChildNodeInstance(handle: PNIHandle): ProcessNodeInstance<*> {
-        return childNodes
-            .asSequence()
-            .map { it.withPermission() }
-            .firstOrNull { it.handle == handle }
-            ?: run {
-                throw NoSuchElementException("Could not find a child instance with handle ${handle}")
-            }
+        return childrenByHandle[handle]
+            ?: throw NoSuchElementException("Could not find a child instance with handle ${handle}")
     }
 
+    private fun childByHandle(handle: PNIHandle): ProcessNodeInstance<*>? = childrenByHandle[handle]
+
+    private fun childByNodeEntry(nodeId: String, entryNo: Int): ProcessNodeInstance<*>? =
+        childrenByNodeEntry[NodeEntryKey(nodeId, entryNo)]
+
+    private fun childrenOf(nodeId: String): List<ProcessNodeInstance<*>> = childrenByNodeId[nodeId] ?: emptyList()
+
     override fun allChildNodeInstances(): Sequence<IProcessNodeInstance> {
         return childNodes.asSequence().map { it.withPermission() }
     }
 
+    override fun getChildNodeInstances(nodeId: String): Sequence<IProcessNodeInstance> {
+        return childrenOf(nodeId).asSequence()
+    }
+
     @Synchronized
     fun getNodeInstances(identified: Identified): Sequence<ProcessNodeInstance<*>> {
-        return childNodes.asSequence().map { it.withPermission() }.filter { it.node.id == identified.id }
+        return childrenOf(identified.id).asSequence()
     }
 
     @Synchronized
     fun getNodeInstance(identified: Identified, entryNo: Int): ProcessNodeInstance<*>? {
-        return childNodes.asSequence().map { it.withPermission() }
-            .firstOrNull { it.node.id == identified.id && it.entryNo == entryNo }
+        return childByNodeEntry(identified.id, entryNo)
     }
 
     @Synchronized
@@ -1054,7 +1176,7 @@ class ProcessInstance : MutableHandleAware<SecureProcessInstance>,
     }
 
     fun getChild(nodeId: String, entryNo: Int): SecureProcessNodeInstance? {
-        return childNodes.firstOrNull { it.withPermission().run { node.id == nodeId && this.entryNo == entryNo } }
+        return childByNodeEntry(nodeId, entryNo)
     }
 
     /**
@@ -17,6 +17,7 @@
 package nl.adaptivity.process.engine
 
 import net.devrieze.util.Transaction
+import nl.adaptivity.util.multiplatform.Runnable
 
 /**
  * A transaction interface for processes. This allow access to the process data without having to pass the transaction in
@@ -25,6 +26,18 @@ import net.devrieze.util.Transaction
 interface ContextProcessTransaction : Transaction {
   val readableEngineData: ProcessEngineDataAccess
     val writableEngineData: MutableProcessEngineDataAccess
+
+    /**
+     * Register an action to be run once this transaction has been committed. Rolled back transactions do not run
+     * these actions.
+     */
+    fun addCommitHandler(runnable: Runnable)
+
+    /**
+     * The instances to tickle once this transaction has been committed, for schedulers that dispatch the tickles on
+     * commit. The transaction clears them on rollback, together with the commit handlers.
+     */
+    val pendingTickles: MutableSet<PIHandle>
 }
 
 interface ProcessTransactionFactory<T: ContextProcessTransaction> {
@@ -31,6 +31,7 @@ expect class CancellationException: IllegalStateException {
 }
 
 expect class LoggerCompat {
+    fun isLoggable(level: Level): Boolean
     fun log(level: Level, message: String)
     fun log(level: Level, message: String, cause: Throwable)
 }
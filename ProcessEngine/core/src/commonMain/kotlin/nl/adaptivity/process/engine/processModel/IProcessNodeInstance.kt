@@ -22,6 +22,9 @@ import net.devrieze.util.security.SecureObject
 import nl.adaptivity.messaging.EndpointDescriptor
 import nl.adaptivity.process.engine.*
 import nl.adaptivity.process.engine.impl.generateXmlString
+import nl.adaptivity.process.processModel.IXmlMessage
+import nl.adaptivity.process.processModel.MessageActivity
+import nl.adaptivity.process.processModel.ReachabilityIndex
 import nl.adaptivity.process.processModel.engine.ExecutableProcessNode
 import nl.adaptivity.util.multiplatform.PrincipalCompat
 import nl.adaptivity.xml.WritableCompactFragment
@@ -63,10 +66,27 @@ interface IProcessNodeInstance : ReadableHandleAware<SecureProcessNodeInstance>
         predecessor: IProcessNodeInstance
     ) = node.evalCondition(nodeInstanceSource, predecessor, this)
 
+    /**
+     * Find the instance of the node with the given id that preceded this instance. The structure of the model is used
+     * to avoid walking the instance graph: a node that is not in a loop, has been instantiated only once and leads to
+     * this node without a join is looked up directly, and otherwise only predecessors from which the node can be
+     * reached are followed.
+     */
     fun resolvePredecessor(nodeInstanceSource: IProcessInstance, nodeName: String): IProcessNodeInstance? {
-        val handle = getPredecessor(nodeInstanceSource, nodeName)
-            ?: throw NullPointerException("Missing predecessor with name $nodeName referenced from node ${node.id}")
-        return nodeInstanceSource.getChildNodeInstance(handle)
+        val reachability = nodeInstanceSource.processModel.reachability
+        fun missing() = NullPointerException("Missing predecessor with name $nodeName referenced from node ${node.id}")
+        if (reachability.isPredecessor(nodeName, node.id) == false) throw missing()
+
+        // Only a path without joins guarantees that the single instance is on the path of this instance, behind a join
+        // it could be on a branch that was not taken.
+        if (reachability.isPredecessor(nodeName, nodeName) == false &&
+            reachability.isSingleEntryPath(nodeName, node.id) == true
+        ) {
+            val candidates = nodeInstanceSource.getChildNodeInstances(nodeName).take(2).toList()
+            if (candidates.size == 1) return candidates.single()
+        }
+
+        return getPredecessor(nodeInstanceSource, nodeName, reachability, HashSet()) ?: throw missing()
     }
 
     fun getResult(name: String): ProcessData? {
@@ -88,21 +108,20 @@ interface IProcessNodeInstance : ReadableHandleAware<SecureProcessNodeInstance>
 
 private fun IProcessNodeInstance.getPredecessor(
     nodeInstanceSource: IProcessInstance,
-    nodeName: String
-): PNIHandle? {
-    // TODO Use process structure knowledge to do this better/faster without as many database lookups.
-    predecessors.asSequence()
-        .map { hPred -> nodeInstanceSource.getChildNodeInstance(hPred) }
-        .forEach { predNode ->
-            if (nodeName == predNode.node.id) {
-                return predNode.handle
-            } else {
-                val result = predNode.getPredecessor(nodeInstanceSource, nodeName)
-                if (result != null) {
-                    return result
-                }
-            }
+    nodeName: String,
+    reachability: ReachabilityIndex,
+    visited: MutableSet<PNIHandle>
+): IProcessNodeInstance? {
+    for (hPred in predecessors) {
+        if (!visited.add(hPred)) continue
+        val predNode = nodeInstanceSource.getChildNodeInstance(hPred)
+        if (nodeName == predNode.node.id) return predNode
+
+        // Branches that cannot contain the node are not walked
+        if (reachability.isPredecessor(nodeName, predNode.node.id) != false) {
+            predNode.getPredecessor(nodeInstanceSource, nodeName, reachability, visited)?.let { return it }
         }
+    }
     return null
 }
 
@@ -117,9 +136,18 @@ fun ActivityInstanceContext.instantiateXmlPlaceholders(
     xmlReader: XmlReader,
     removeWhitespace: Boolean,
     localEndpoint: EndpointDescriptor
+): WritableCompactFragment {
+    val template = PETemplate.compile(xmlReader, null, removeWhitespace)
+    return instantiateXmlPlaceholders(nodeInstanceSource, template, localEndpoint)
+}
+
+fun ActivityInstanceContext.instantiateXmlPlaceholders(
+    nodeInstanceSource: IProcessInstance,
+    template: PETemplate,
+    localEndpoint: EndpointDescriptor
 ): WritableCompactFragment {
     val charArray = generateXmlString(true) { writer ->
-        instantiateXmlPlaceholders(nodeInstanceSource, xmlReader, writer, removeWhitespace, localEndpoint)
+        instantiateXmlPlaceholders(nodeInstanceSource, template, writer, localEndpoint)
     }
 
     return WritableCompactFragment(emptyList<Namespace>(), charArray)
@@ -131,16 +159,43 @@ fun ActivityInstanceContext.instantiateXmlPlaceholders(
     out: XmlWriter,
     removeWhitespace: Boolean,
     localEndpoint: EndpointDescriptor
+) {
+    val template = PETemplate.compile(xmlReader, null, removeWhitespace)
+    instantiateXmlPlaceholders(nodeInstanceSource, template, out, localEndpoint)
+}
+
+/**
+ * Write the template with its placeholders filled in from the defines and (if complete) the results of this
+ * activity.
+ */
+fun ActivityInstanceContext.instantiateXmlPlaceholders(
+    nodeInstanceSource: IProcessInstance,
+    template: PETemplate,
+    out: XmlWriter,
+    localEndpoint: EndpointDescriptor
 ) {
     val defines = getDefines(nodeInstanceSource)
     val pni = nodeInstanceSource.getChildNodeInstance(nodeInstanceHandle)
-    val transformer = PETransformer.create(
-        ProcessNodeInstanceContext(
-            pni,
-            defines,
-            state == NodeInstanceState.Complete, localEndpoint
-        ),
-        removeWhitespace
+    val context = ProcessNodeInstanceContext(
+        pni,
+        defines,
+        state == NodeInstanceState.Complete, localEndpoint
     )
-    transformer.transform(xmlReader, out.filterSubstream())
+    template.instantiate(context, out.filterSubstream())
+}
+
+/**
+ * The template for the body of the message (by default that of the activity). The template compiled for the node is
+ * shared when the message is the one of the node, otherwise the body is compiled here.
+ */
+fun ActivityInstanceContext.messageBodyTemplate(
+    removeWhitespace: Boolean,
+    message: IXmlMessage? = (node as? MessageActivity)?.message
+): PETemplate? {
+    val body = message?.messageBody ?: return null
+    val executableNode = node as? ExecutableProcessNode
+    if (executableNode is MessageActivity && executableNode.message === message) {
+        return executableNode.templates.messageBody(removeWhitespace)
+    }
+    return PETemplate.compile(body.getXmlReader(), null, removeWhitespace)
 }
@@ -163,8 +163,8 @@ abstract class ProcessNodeInstance<out T : ProcessNodeInstance<T>>(
                 XML.encodeToWriter(this, result)
             }
 
-            (node as? MessageActivity)?.message?.messageBody?.let { body ->
-                instantiateXmlPlaceholders(nodeInstanceSource, body.getXmlReader(), out, true, localEndpoint)
+            messageBodyTemplate(removeWhitespace = true)?.let { template ->
+                instantiateXmlPlaceholders(nodeInstanceSource, template, out, localEndpoint)
             }
         }
     }
@@ -177,8 +177,8 @@ abstract class ProcessNodeInstance<out T : ProcessNodeInstance<T>>(
 
         val body: ICompactFragment? = (node as? MessageActivity)?.message?.let { message ->
             try {
-                val xmlReader = message.messageBody.getXmlReader()
-                instantiateXmlPlaceholders(builder.processInstanceBuilder, xmlReader, true, localEndpoint)
+                val template = messageBodyTemplate(removeWhitespace = true, message = message) ?: return@let null
+                instantiateXmlPlaceholders(builder.processInstanceBuilder, template, localEndpoint)
                     as ICompactFragment
             } catch (e: XmlException) {
                 engineData.logger.log(LogLevel.WARNING, "Error processing body", e)
@@ -322,7 +322,10 @@ abstract class ProcessNodeInstance<out T : ProcessNodeInstance<T>>(
                 throw ProcessException("instance ${node.id}:${handle.handleValue}($state) cannot be finished as it is already in a final state.")
             }
             state = Complete
-            node.results.mapTo(results.apply { clear() }) { (it as IPlatformXmlResultType).applyData(resultPayload) }
+            val templates = node.templates
+            node.results.mapTo(results.apply { clear() }) {
+                (it as IPlatformXmlResultType).applyData(resultPayload, templates.result(it))
+            }
         }
 
 
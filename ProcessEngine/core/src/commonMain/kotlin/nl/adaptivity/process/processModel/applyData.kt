@@ -18,13 +18,18 @@ package nl.adaptivity.process.engine.processModel
 
 import nl.adaptivity.process.engine.ActivityInstanceContext
 import nl.adaptivity.process.engine.IProcessInstance
+import nl.adaptivity.process.engine.PETemplate
 import nl.adaptivity.process.engine.ProcessData
 import nl.adaptivity.process.engine.ProcessInstance
 import nl.adaptivity.process.processModel.IPlatformXmlResultType
 import nl.adaptivity.process.processModel.IXmlDefineType
 import nl.adaptivity.xmlutil.util.ICompactFragment
 
-expect fun IPlatformXmlResultType.applyData(payload: ICompactFragment?): ProcessData
+/**
+ * Determine the value of the result from the payload.
+ * @param template The compiled content of the result, if not given the content is compiled for this call.
+ */
+expect fun IPlatformXmlResultType.applyData(payload: ICompactFragment?, template: PETemplate? = null): ProcessData
 
 expect fun IXmlDefineType.applyData(nodeInstanceSource: IProcessInstance, context: ActivityInstanceContext): ProcessData
 
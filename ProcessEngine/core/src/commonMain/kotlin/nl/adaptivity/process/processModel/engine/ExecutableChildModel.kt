@@ -32,6 +32,10 @@ class ExecutableChildModel(
 
     override val endNodeCount by lazy { modelNodes.count { it is ExecutableEndNode } }
 
+    override val reachability: ReachabilityIndex = ReachabilityIndex(modelNodes)
+
+    override val nodeTemplates: NodeTemplates.Cache = NodeTemplates.Cache()
+
     override fun builder(rootBuilder: RootProcessModel.Builder): Builder {
         return Builder(
             rootBuilder, id, modelNodes.map(ExecutableProcessNode::builder), imports,
@@ -37,6 +37,12 @@ interface ExecutableModelCommon : ProcessModel<ExecutableProcessNode> {
 
     val endNodeCount: Int
 
+    /** Index of the predecessor relation, built when the model is created. */
+    override val reachability: ReachabilityIndex
+
+    /** The compiled templates of the nodes, see [ExecutableProcessNode.templates]. */
+    val nodeTemplates: NodeTemplates.Cache
+
     fun toInputs(payload: CompactFragment?): List<ProcessData> {
         // TODO make this work properly
 
@@ -58,6 +58,12 @@ class ExecutableProcessModel : RootProcessModelBase<ExecutableProcessNode>,
     @Transient
     override val endNodeCount by lazy { modelNodes.count { it is ExecutableEndNode } }
 
+    @Transient
+    override val reachability: ReachabilityIndex = ReachabilityIndex(modelNodes)
+
+    @Transient
+    override val nodeTemplates: NodeTemplates.Cache = NodeTemplates.Cache()
+
     @Transient
     override val rootModel
         get() = this
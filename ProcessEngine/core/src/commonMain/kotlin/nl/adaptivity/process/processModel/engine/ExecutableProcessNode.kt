@@ -52,6 +52,10 @@ interface ExecutableProcessNode : ProcessNode, Identified {
     override val identifier: Identifier
         get() = Identifier(id)
 
+    /** The compiled templates of the node, shared by all its instances. */
+    val templates: NodeTemplates
+        get() = ownerModel.nodeTemplates.forNode(this)
+
 //  override val defines: List<XmlDefineType>
 
     /**
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.processModel.engine
+
+import nl.adaptivity.process.engine.PETemplate
+import nl.adaptivity.process.processModel.IXmlDefineType
+import nl.adaptivity.process.processModel.IXmlResultType
+import nl.adaptivity.process.processModel.MessageActivity
+import nl.adaptivity.util.multiplatform.synchronizedCompat
+import nl.adaptivity.xmlutil.SimpleNamespaceContext
+import nl.adaptivity.xmlutil.util.CompactFragment
+
+/**
+ * The compiled templates of a node: the content of its results and defines, and the body of its message. Each
+ * template is compiled on first use and then shared by all instances of the node. Templates are compiled
+ * independently, a template that fails to compile does not affect the other templates of the node.
+ */
+class NodeTemplates private constructor(private val node: ExecutableProcessNode) {
+
+    private val results: List<Lazy<PETemplate?>> = node.results.map { lazy { compile(it.content) } }
+
+    private val defines: List<Lazy<PETemplate?>> = node.defines.map { lazy { compile(it.content) } }
+
+    private val messageBody: PETemplate? by lazy { compileMessageBody(removeWhitespace = false) }
+
+    private val compactMessageBody: PETemplate? by lazy { compileMessageBody(removeWhitespace = true) }
+
+    /** The template for the content of one of the results of the node, `null` if there is no content. */
+    fun result(result: IXmlResultType): PETemplate? {
+        return results.getOrNull(node.results.indexOfFirst { it === result })?.value
+    }
+
+    /** The template for the content of one of the defines of the node, `null` if there is no content. */
+    fun define(define: IXmlDefineType): PETemplate? {
+        return defines.getOrNull(node.defines.indexOfFirst { it === define })?.value
+    }
+
+    /** The template for the body of the message of the node, `null` if it does not send a message. */
+    fun messageBody(removeWhitespace: Boolean): PETemplate? {
+        return if (removeWhitespace) compactMessageBody else messageBody
+    }
+
+    private fun compileMessageBody(removeWhitespace: Boolean): PETemplate? {
+        val body = (node as? MessageActivity)?.message?.messageBody ?: return null
+        return PETemplate.compile(body.getXmlReader(), null, removeWhitespace)
+    }
+
+    /** The templates of all nodes of a model, by node id. */
+    class Cache {
+        private val templates = HashMap<String, NodeTemplates>()
+
+        fun forNode(node: ExecutableProcessNode): NodeTemplates = synchronizedCompat(templates) {
+            templates.getOrPut(node.id) { NodeTemplates(node) }
+        }
+    }
+
+    private companion object {
+        fun compile(content: CompactFragment): PETemplate? = when {
+            content.content.isEmpty() -> null
+            else -> PETemplate.compile(
+                content.getXmlReader(),
+                SimpleNamespaceContext.from(content.namespaces),
+                removeWhitespace = true
+            )
+        }
+    }
+}
@@ -17,26 +17,77 @@
 package nl.adaptivity.process.engine
 
 import net.devrieze.util.CachingHandleMap
+import net.devrieze.util.Handle
 import net.devrieze.util.security.SecureObject
 import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
 import nl.adaptivity.process.processModel.engine.PMHandle
 import java.sql.SQLException
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 
 /**
- * Extension to cachingHandleMap that handles the uuids needed for process models.
+ * Extension to cachingHandleMap that handles the uuids needed for process models. Besides the models themselves it
+ * remembers the uuid to handle mapping so that repeated lookups (such as on every model upload) do not need the
+ * database at all.
  * Created by pdvrieze on 20/05/16.
  */
 class CachingProcessModelMap<T : ContextProcessTransaction>(base: IMutableProcessModelMap<T>, cacheSize: Int) : CachingHandleMap<SecureObject<ExecutableProcessModel>, T>(
       base,
       cacheSize), IMutableProcessModelMap<T> {
 
+  private val uuidHandles = ConcurrentHashMap<UUID, PMHandle>()
+
   override val delegate: IMutableProcessModelMap<T>
     get() = super.delegate as IMutableProcessModelMap<T>
 
   @Throws(SQLException::class)
   override fun getModelWithUuid(transaction: T, uuid: UUID): PMHandle? {
+    uuidHandles[uuid]?.let { return it }
+
     return delegate.inReadonlyTransaction(transaction) { getModelWithUuid(uuid) }
+      ?.also { handle -> rememberUuid(transaction, uuid, handle) }
+  }
+
+  override fun <W : SecureObject<ExecutableProcessModel>> put(transaction: T, value: W): Handle<W> {
+    return super.put(transaction, value).also { handle ->
+      value.withPermission().uuid?.let { uuid -> rememberUuid(transaction, uuid, handle) }
+    }
+  }
+
+  override fun set(
+    transaction: T,
+    handle: Handle<SecureObject<ExecutableProcessModel>>,
+    value: SecureObject<ExecutableProcessModel>
+  ): SecureObject<ExecutableProcessModel>? {
+    forgetHandle(handle)
+    return super.set(transaction, handle, value).also {
+      value.withPermission().uuid?.let { uuid -> rememberUuid(transaction, uuid, handle) }
+    }
+  }
+
+  override fun remove(transaction: T, handle: Handle<SecureObject<ExecutableProcessModel>>): Boolean {
+    forgetHandle(handle)
+    return super.remove(transaction, handle)
+  }
+
+  override fun invalidateCache(handle: Handle<SecureObject<ExecutableProcessModel>>) {
+    forgetHandle(handle)
+    super.invalidateCache(handle)
+  }
+
+  override fun invalidateCache() {
+    uuidHandles.clear()
+    super.invalidateCache()
+  }
+
+  private fun rememberUuid(transaction: T, uuid: UUID, handle: PMHandle) {
+    if (!handle.isValid) return
+    transaction.addRollbackHandler { uuidHandles.remove(uuid, handle) }
+    uuidHandles[uuid] = handle
+  }
+
+  private fun forgetHandle(handle: Handle<*>) {
+    uuidHandles.values.removeAll { it.handleValue == handle.handleValue }
   }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+
+/**
+ * A least recently used cache of compiled process models. Unlike the [CachingProcessModelMap] it is not limited in
+ * the amount of models, but in their (estimated) memory use, so that it can hold many small models or a few large
+ * ones. Entries are keyed by handle and generation. A model that is changed gets a new generation, so a stale entry is
+ * never returned.
+ *
+ * @param maxWeight The maximum total weight of the cached models.
+ */
+internal class CompiledModelCache(private val maxWeight: Long) {
+
+    private data class Key(val namespace: Long, val handle: Long, val generation: Long)
+
+    private class Entry(val model: ExecutableProcessModel, val weight: Long)
+
+    private val entries = LinkedHashMap<Key, Entry>(16, 0.75f, true)
+
+    private var totalWeight = 0L
+
+    /**
+     * Get the model for the handle and generation.
+     * @param namespace Separates handles of different databases.
+     */
+    fun get(namespace: Long, handle: Long, generation: Long): ExecutableProcessModel? = synchronized(this) {
+        entries[Key(namespace, handle, generation)]?.model
+    }
+
+    /**
+     * Store the model, evicting the least recently used models as needed. Models heavier than the whole cache are not
+     * stored.
+     */
+    fun put(namespace: Long, handle: Long, generation: Long, model: ExecutableProcessModel, weight: Long) {
+        if (weight > maxWeight) return
+        synchronized(this) {
+            entries.put(Key(namespace, handle, generation), Entry(model, weight))?.let { totalWeight -= it.weight }
+            totalWeight += weight
+
+            val it = entries.values.iterator()
+            while (totalWeight > maxWeight && it.hasNext()) {
+                totalWeight -= it.next().weight
+                it.remove()
+            }
+        }
+    }
+
+    /** Remove all generations of the model with the given handle. */
+    fun remove(namespace: Long, handle: Long) {
+        synchronized(this) {
+            val it = entries.entries.iterator()
+            while (it.hasNext()) {
+                val (key, entry) = it.next()
+                if (key.namespace == namespace && key.handle == handle) {
+                    totalWeight -= entry.weight
+                    it.remove()
+                }
+            }
+        }
+    }
+
+    companion object {
+        /** The cache shared by all process model factories, it uses at most 1/32th of the maximum heap size. */
+        val shared = CompiledModelCache(Runtime.getRuntime().maxMemory() / 32)
+
+        /** The estimated memory use of a compiled model relative to the size of its stored form. */
+        const val WEIGHT_FACTOR = 8
+    }
+}
@@ -17,6 +17,7 @@
 package nl.adaptivity.process.engine
 
 import io.github.pdvrieze.kotlinsql.monadic.DBTransactionContext
+import io.github.pdvrieze.kotlinsql.monadic.actions.*
 import net.devrieze.util.db.MonadicDBTransaction
 import nl.adaptivity.process.engine.db.ProcessEngineDB
 import nl.adaptivity.util.multiplatform.Runnable
@@ -29,16 +30,55 @@ class ProcessDBTransaction(
     private val engineData: IProcessEngineData<ProcessDBTransaction>
 ) : MonadicDBTransaction<ProcessEngineDB>(dbTransactionContext), ContextProcessTransaction {
     private val pendingProcessInstances =
-        mutableMapOf<PIHandle, ProcessInstance.ExtBuilder>()
+        mutableMapOf<PIHandle, ProcessInstance.Builder>()
 
-    fun pendingProcessInstance(pihandle: PIHandle): ProcessInstance.ExtBuilder? {
+    fun pendingProcessInstance(pihandle: PIHandle): ProcessInstance.Builder? {
         return pendingProcessInstances[pihandle]
     }
 
+    /**
+     * Run the action with the builder registered as pending, so that node instances loaded by it use the builder
+     * rather than loading the instance again.
+     */
+    internal fun <R> withPendingProcessInstance(
+        builder: ProcessInstance.Builder,
+        action: () -> DBAction<ProcessEngineDB, R>
+    ): DBAction<ProcessEngineDB, R> {
+        return value(builder).then { pending ->
+            pendingProcessInstances[pending.handle] = pending
+            action().map { result ->
+                pendingProcessInstances.remove(pending.handle)
+                result
+            }
+        }
+    }
+
+    private val commitHandlers = mutableListOf<Runnable>()
+
+    override val pendingTickles: MutableSet<PIHandle> = LinkedHashSet()
+
     override fun addRollbackHandler(runnable: Runnable) { // Compilation error otherwise
         super<MonadicDBTransaction>.addRollbackHandler(runnable)
     }
 
+    override fun addCommitHandler(runnable: Runnable) {
+        commitHandlers.add(runnable)
+    }
+
+    override fun commit() {
+        super.commit()
+        val handlers = commitHandlers.toList()
+        commitHandlers.clear()
+        handlers.forEach { it.run() }
+    }
+
+    override fun rollback() {
+        commitHandlers.clear()
+        pendingProcessInstances.clear()
+        pendingTickles.clear()
+        super.rollback()
+    }
+
     override val readableEngineData: ProcessEngineDataAccess
         get() = engineData.createReadDelegate(this)
     override val writableEngineData: MutableProcessEngineDataAccess
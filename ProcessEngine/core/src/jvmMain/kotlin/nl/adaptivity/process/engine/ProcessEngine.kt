@@ -55,11 +55,6 @@ import kotlin.contracts.InvocationKind
 import kotlin.contracts.contract
 
 
-private const val MODEL_CACHE_SIZE = 5
-private const val NODE_CACHE_SIZE = 100
-private const val INSTANCE_CACHE_SIZE = 10
-
-
 private fun <T : ContextProcessTransaction, V : Any> wrapInstanceCache(
     base: MutableTransactionedHandleMap<V, T>,
     cacheSize: Int
@@ -88,7 +83,7 @@ private fun <T : ContextProcessTransaction> wrapNodeCache(
     if (cacheSize <= 0) {
         return base
     }
-    return CachingHandleMap(base, cacheSize) { tr, securePNI, handle ->
+    return CachingHandleMap(base, cacheSize, IProcessEngineData.Companion::nodeInstanceGroup) { tr, securePNI, handle ->
         val pni = securePNI.withPermission()
         if (pni.handle == handle) {
             securePNI
@@ -121,7 +116,17 @@ class ProcessEngine<TR : ContextProcessTransaction> {
 
     private val messageService: IMessageService<*>
     private val engineData: IProcessEngineData<TR>
-    private val tickleQueue = ArrayDeque<PIHandle>()
+
+    /**
+     * The scheduler used to run the tickles queued while processing. By default these are processed on the calling
+     * thread, see [ConcurrentTickleScheduler] for running them in parallel.
+     */
+    var tickleScheduler: TickleScheduler<TR> = InlineTickleScheduler()
+        set(value) {
+            field.close()
+            field = value
+        }
+
     private var securityProvider: SecurityProvider = OwnerOnlySecurityProvider("admin")
     private val processContextFactory: ProcessContextFactory<*>
 
@@ -197,13 +202,17 @@ class ProcessEngine<TR : ContextProcessTransaction> {
                 this@DelegateProcessEngineData.invalidateCachePNI(handle)
             }
 
+            override fun invalidateCachedInstance(hProcessInstance: PIHandle) {
+                this@DelegateProcessEngineData.invalidateCachedInstance(hProcessInstance)
+            }
+
             override fun handleFinishedInstance(handle: PIHandle) {
                 processContextFactory.onProcessFinished(this, handle)
                 // Ignore the completion for now. Just keep it in the engine.
             }
 
             override fun queueTickle(instanceHandle: PIHandle) {
-                this@DelegateProcessEngineData.queueTickle(instanceHandle)
+                this@DelegateProcessEngineData.queueTickle(transaction, instanceHandle)
             }
         }
 
@@ -217,14 +226,24 @@ class ProcessEngine<TR : ContextProcessTransaction> {
             return transaction is ContextProcessTransaction && transaction.readableEngineData == this
         }
 
-        override fun queueTickle(instanceHandle: PIHandle) {
-            engine.queueTickle(instanceHandle)
+        override fun queueTickle(transaction: T, instanceHandle: PIHandle) {
+            engine.queueTickle(transaction, instanceHandle)
         }
     }
 
+    /**
+     * The sizes of the caches used in front of the database. A size of 0 disables the cache.
+     */
+    data class CacheSizes(
+        val models: Int = MODEL_CACHE_SIZE,
+        val instances: Int = INSTANCE_CACHE_SIZE,
+        val nodeInstances: Int = NODE_CACHE_SIZE
+    )
+
     class DBProcessEngineData(
         private val messageService: IMessageService<*>,
-        override val logger: LoggerCompat
+        override val logger: LoggerCompat,
+        private val cacheSizes: CacheSizes = CacheSizes()
     ) : IProcessEngineData<ProcessDBTransaction>(),
         DBTransactionFactory<ProcessDBTransaction, ProcessEngineDB> {
 
@@ -259,13 +278,17 @@ class ProcessEngine<TR : ContextProcessTransaction> {
                 this@DBProcessEngineData.invalidateCachePNI(handle)
             }
 
+            override fun invalidateCachedInstance(hProcessInstance: PIHandle) {
+                this@DBProcessEngineData.invalidateCachedInstance(hProcessInstance)
+            }
+
             override fun handleFinishedInstance(handle: PIHandle) {
                 processContextFactory.onProcessFinished(this, handle)
                 // Do nothing at this point. In the future, this will probably lead the node intances to be deleted.
             }
 
             override fun queueTickle(instanceHandle: PIHandle) {
-                this@DBProcessEngineData.queueTickle(instanceHandle)
+                this@DBProcessEngineData.queueTickle(transaction, instanceHandle)
             }
         }
 
@@ -274,27 +297,56 @@ class ProcessEngine<TR : ContextProcessTransaction> {
         private val dbResource: javax.sql.DataSource by lazy {
             DbSet.resourceNameToDataSource(context, DB_RESOURCE).also { dataSource ->
                 ProcessEngineDB(dataSource) {
-                    ensureTables().commit()
+                    ensureTables()
+                        .then(ProcessModelMap.backfillUuids(this))
+                        .commit()
                 }
             }
         }
 
         lateinit var engine: ProcessEngine<ProcessDBTransaction>
 
+        private val nodeInstanceMap: ProcessNodeInstanceMap by lazy { ProcessNodeInstanceMap(this, engine) }
+
+        private val instanceMap: ProcessInstanceMap by lazy { ProcessInstanceMap(this, engine, nodeInstanceMap) { processNodeInstances } }
+
         override val processInstances: MutableTransactionedHandleMap<SecureProcessInstance, ProcessDBTransaction> by lazy {
-            wrapDBInstanceCache(ProcessInstanceMap(this, engine), INSTANCE_CACHE_SIZE)
+            wrapDBInstanceCache(instanceMap, cacheSizes.instances)
         }
 
         override val processNodeInstances: MutableTransactionedHandleMap<SecureProcessNodeInstance, ProcessDBTransaction> by lazy {
-            wrapNodeCache(ProcessNodeInstanceMap(this, engine), NODE_CACHE_SIZE)
+            wrapNodeCache(nodeInstanceMap, cacheSizes.nodeInstances)
         }
 
-        override val processModels = wrapModelCache(ProcessModelMap(this), MODEL_CACHE_SIZE)
+        override val processModels = wrapModelCache(ProcessModelMap(this), cacheSizes.models)
+
+        /**
+         * The counters of the caches (by name) that are enabled.
+         */
+        fun cacheStats(): Map<String, HandleCache.Stats> = buildMap {
+            (processModels as? CachingHandleMap<*, *>)?.let { put("models", it.cacheStats) }
+            (processInstances as? CachingHandleMap<*, *>)?.let { put("instances", it.cacheStats) }
+            (processNodeInstances as? CachingHandleMap<*, *>)?.let { put("nodeInstances", it.cacheStats) }
+        }
 
         override fun createWriteDelegate(transaction: ProcessDBTransaction): MutableProcessEngineDataAccess {
             return DBEngineDataAccess(transaction)
         }
 
+        override fun ownedInstanceRefs(
+            transaction: ProcessDBTransaction,
+            ownerName: String,
+            after: PIHandle,
+            limit: Int
+        ): List<ProcessInstance.ProcessInstanceRef> {
+            val models = transaction.readableEngineData.processModels
+            return with(transaction) {
+                instanceMap.ownedInstanceRefs(transaction, ownerName, after, limit) { pmHandle ->
+                    models[pmHandle]?.withPermission()?.name
+                }.evaluateNow()
+            }
+        }
+
         override fun startTransaction(): ProcessDBTransaction {
             val conn = MonadicDBConnection(dbResource.connection, ProcessEngineDB)
 
@@ -318,8 +370,8 @@ class ProcessEngine<TR : ContextProcessTransaction> {
             return transaction is ProcessDBTransaction
         }
 
-        override fun queueTickle(instanceHandle: PIHandle) {
-            engine.queueTickle(instanceHandle)
+        override fun queueTickle(transaction: ProcessDBTransaction, instanceHandle: PIHandle) {
+            engine.queueTickle(transaction, instanceHandle)
         }
     }
 
@@ -538,7 +590,25 @@ class ProcessEngine<TR : ContextProcessTransaction> {
     }
 
     /**
-     * Get all process instances owned by the user.
+     * Get summaries of the process instances owned by the user, ordered by handle. This does not load the instances
+     * themselves and supports paging by passing the handle of the last instance of the previous page.
+     *
+     * @param after Only return instances with a handle larger than this one.
+     * @param limit The maximum amount of summaries to return.
+     */
+    fun getOwnedProcessInstanceRefs(
+        transaction: TR,
+        user: Principal,
+        after: PIHandle = Handle.invalid(),
+        limit: Int = Int.MAX_VALUE
+    ): List<ProcessInstance.ProcessInstanceRef> {
+        securityProvider.ensurePermission(ProcessEnginePermissions.LIST_INSTANCES, user)
+        return engineData.ownedInstanceRefs(transaction, user.name, after, limit)
+    }
+
+    /**
+     * Get all process instances owned by the user. This loads the instances, use [getOwnedProcessInstanceRefs] when
+     * only a summary is needed.
 
      * @param user The current user in relation to whom we need to find the
      * *          instances.
@@ -590,10 +660,8 @@ class ProcessEngine<TR : ContextProcessTransaction> {
         return tickleInstance(transaction, if (handle < 0) Handle.invalid() else Handle(handle), user)
     }
 
-    fun queueTickle(instanceHandle: PIHandle) {
-        if (instanceHandle !in tickleQueue) {
-            tickleQueue.add(instanceHandle)
-        }
+    fun queueTickle(transaction: TR, instanceHandle: PIHandle) {
+        tickleScheduler.queue(transaction, instanceHandle)
     }
 
     fun tickleInstance(
@@ -603,9 +671,7 @@ class ProcessEngine<TR : ContextProcessTransaction> {
     ): Boolean {
         try {
             transaction.writableEngineData.run {
-                invalidateCachePM(Handle.invalid())
-                invalidateCachePI(Handle.invalid())
-                invalidateCachePNI(Handle.invalid())
+                invalidateCachedInstance(handle)
 
                 securityProvider.ensurePermission(
                     ProcessEnginePermissions.TICKLE_INSTANCE,
@@ -624,13 +690,7 @@ class ProcessEngine<TR : ContextProcessTransaction> {
     }
 
     fun processTickleQueue(transaction: TR, processingTickles: Boolean = false) {
-        if (processingTickles) return
-        while (tickleQueue.isNotEmpty()) {
-            val instanceHandle = tickleQueue.removeFirst()
-            engineData.inWriteTransaction(transaction) {
-                tickleInstance(transaction, instanceHandle, SYSTEMPRINCIPAL, true)
-            }
-        }
+        tickleScheduler.process(this, transaction, processingTickles)
     }
 
     /**
@@ -748,6 +808,22 @@ class ProcessEngine<TR : ContextProcessTransaction> {
         }
     }
 
+    /**
+     * Get the node instances for all the given handles in one transaction. Handles that do not resolve to a node
+     * instance, or to one the user may not read, are skipped. The result is in the order of the handles.
+     */
+    fun getNodeInstances(
+        transaction: TR,
+        handles: Iterable<PNIHandle>,
+        user: Principal
+    ): List<ProcessNodeInstance<*>> {
+        engineData.inReadonlyTransaction(transaction) {
+            return handles.mapNotNull { handle ->
+                nodeInstances[handle]?.ifPermitted(securityProvider, SecureObject.Permissions.READ, user)
+            }
+        }
+    }
+
     @Throws(SQLException::class)
     fun finishInstance(transaction: TR, hProcessInstance: PIHandle) {
         // TODO evict these nodes from the cache (not too bad to keep them though)
@@ -1032,9 +1108,9 @@ class ProcessEngine<TR : ContextProcessTransaction> {
 
     companion object {
 
-        private val MODEL_CACHE_SIZE = 5
-        private val NODE_CACHE_SIZE = 100
-        private val INSTANCE_CACHE_SIZE = 10
+        const val MODEL_CACHE_SIZE = 32
+        const val NODE_CACHE_SIZE = 2048
+        const val INSTANCE_CACHE_SIZE = 256
 
         val CONTEXT_PATH = "java:/comp/env"
         val DB_RESOURCE = "jdbc/processengine"
@@ -1050,14 +1126,19 @@ class ProcessEngine<TR : ContextProcessTransaction> {
         }
 
         @JvmStatic
+        @JvmOverloads
         fun newInstance(
             messageService: IMessageService<*>,
-            logger: LoggerCompat
+            logger: LoggerCompat,
+            cacheSizes: CacheSizes = CacheSizes(),
+            tickleWorkers: Int = 0
         ): ProcessEngine<ProcessDBTransaction> {
-            // TODO enable optional caching
-            val engineData = DBProcessEngineData(messageService, logger)
+            val engineData = DBProcessEngineData(messageService, logger, cacheSizes)
             val pe = ProcessEngine(messageService, engineData)
             engineData.engine = pe // STILL NEEDED to initialize the engine as the factories require the engine
+            if (tickleWorkers > 0) {
+                pe.tickleScheduler = ConcurrentTickleScheduler(pe, tickleWorkers)
+            }
             return pe
         }
 
@@ -25,20 +25,31 @@ import io.github.pdvrieze.kotlinsql.dml.impl._UpdateBuilder
 import io.github.pdvrieze.kotlinsql.dml.impl._Where
 import io.github.pdvrieze.kotlinsql.monadic.actions.*
 import io.github.pdvrieze.kotlinsql.monadic.impl.SelectResultSetRow
+import net.devrieze.util.CachingHandleMap
 import net.devrieze.util.MutableHandleMap
+import net.devrieze.util.MutableTransactionedHandleMap
 import net.devrieze.util.db.AbstractElementFactory
 import net.devrieze.util.db.DbSet
 import net.devrieze.util.security.SYSTEMPRINCIPAL
 import net.devrieze.util.security.SimplePrincipal
 import nl.adaptivity.process.engine.ProcessInstance.State
 import nl.adaptivity.process.engine.db.ProcessEngineDB
+import nl.adaptivity.process.engine.processModel.ProcessNodeInstanceMap
+import nl.adaptivity.process.engine.processModel.SecureProcessNodeInstance
 import nl.adaptivity.xmlutil.util.CompactFragment
 
 
 /**
  * Factory that helps in storing and retrieving process instances from the database.
+ *
+ * @property nodeInstanceCache The (possibly caching) map of node instances used by the engine. Node instances that are
+ *           loaded in bulk with an instance are added to its cache.
  */
-internal class ProcessInstanceElementFactory(private val processEngine: ProcessEngine<*>) :
+internal class ProcessInstanceElementFactory(
+    private val processEngine: ProcessEngine<*>,
+    private val nodeInstances: ProcessNodeInstanceMap,
+    private val nodeInstanceCache: () -> MutableTransactionedHandleMap<SecureProcessNodeInstance, ProcessDBTransaction>
+) :
     AbstractElementFactory<ProcessInstance.BaseBuilder, SecureProcessInstance, ProcessDBTransaction, ProcessEngineDB>() {
 
     override fun getHandleCondition(where: _Where, handle: PIHandle): WhereClause {
@@ -86,13 +97,18 @@ internal class ProcessInstanceElementFactory(private val processEngine: ProcessE
         val builderHandle = builder.handle
 
         return with(transaction) {
-            SELECT(pni.pnihandle)
-                .WHERE { pni.pihandle eq builderHandle }
-                .mapSeq { seq ->
-                    seq.filterNotNull()
-                        .mapTo(builder.rememberedChildren.apply { clear() }) {
-                            transaction.readableEngineData.nodeInstance(it).withPermission()
-                        }
+            nodeInstances.getAllForInstance(transaction, builder)
+                .map { children ->
+                    builder.rememberedChildren.clear()
+                    builder.loadedChildren.clear()
+                    for (secureChild in children) {
+                        val child = secureChild.withPermission()
+                        builder.rememberedChildren.add(child)
+                        builder.loadedChildren[child.handle] = child
+                    }
+                    @Suppress("UNCHECKED_CAST")
+                    (nodeInstanceCache() as? CachingHandleMap<SecureProcessNodeInstance, ProcessDBTransaction>)
+                        ?.cacheLoaded(transaction, children)
                 }.then {
                     val inputs = builder.inputs.apply { clear() }
                     val outputs = builder.outputs.apply { clear() }
@@ -16,21 +16,134 @@
 
 package nl.adaptivity.process.engine
 
+import io.github.pdvrieze.kotlinsql.monadic.DBReceiver
+import io.github.pdvrieze.kotlinsql.monadic.actions.*
 import net.devrieze.util.CachingHandleMap
 import net.devrieze.util.DBTransactionFactory
+import net.devrieze.util.Handle
 import net.devrieze.util.MutableTransactionedHandleMap
 import net.devrieze.util.db.DBHandleMap
 import nl.adaptivity.process.engine.db.ProcessEngineDB
+import nl.adaptivity.process.engine.processModel.PNIHandle
+import nl.adaptivity.process.engine.processModel.ProcessNodeInstanceMap
+import nl.adaptivity.process.engine.processModel.SecureProcessNodeInstance
+import nl.adaptivity.process.processModel.engine.PMHandle
+import java.util.*
 
 
 internal class ProcessInstanceMap(
     transactionFactory: DBTransactionFactory<ProcessDBTransaction, ProcessEngineDB>,
-    processEngine: ProcessEngine<ProcessDBTransaction>
+    processEngine: ProcessEngine<ProcessDBTransaction>,
+    nodeInstances: ProcessNodeInstanceMap,
+    nodeInstanceCache: () -> MutableTransactionedHandleMap<SecureProcessNodeInstance, ProcessDBTransaction>
 ) : DBHandleMap<ProcessInstance.BaseBuilder, SecureProcessInstance, ProcessDBTransaction, ProcessEngineDB>(
     transactionFactory,
-    ProcessInstanceElementFactory(processEngine)
+    ProcessInstanceElementFactory(processEngine, nodeInstances, nodeInstanceCache)
 ) {
 
+    /**
+     * Get the summaries of the first [limit] instances (by handle) owned by the given user with a handle larger than
+     * [after]. This only reads the summary columns of the instances table, joined with the name of their model, and
+     * does not load the instances themselves. The handle range is read in windows (see [readInstanceRefRows]), so only
+     * the rows near the requested page are read rather than all instances of the owner.
+     *
+     * @param modelName Function to get the name of a model, only used for unnamed instances of models stored without
+     *   a name column (before version 4). It is invoked after the rows have been read, at most once per model.
+     */
+    fun ownedInstanceRefs(
+        dbReceiver: DBReceiver<ProcessEngineDB>,
+        ownerName: String,
+        after: PIHandle,
+        limit: Int,
+        modelName: (PMHandle) -> String?
+    ): DBAction<ProcessEngineDB, List<ProcessInstance.ProcessInstanceRef>> {
+        if (limit <= 0) return dbReceiver.value(emptyList())
+
+        val window = limit.toLong() * INSTANCE_REF_WINDOW_FACTOR
+        return readInstanceRefRows(dbReceiver, ownerName, after, limit, window, emptyList()).map { rows ->
+            val modelNames = HashMap<PMHandle, String?>()
+            rows.map { row ->
+                val parent = row.parentActivity ?: Handle.invalid()
+                val instanceModelName = when {
+                    !row.name.isNullOrBlank() -> null
+                    else -> row.modelName ?: modelNames.getOrPut(row.pmHandle) { modelName(row.pmHandle) }
+                }
+                ProcessInstance.ProcessInstanceRef(
+                    row.handle,
+                    Handle(row.pmHandle.handleValue),
+                    ProcessInstance.ProcessInstanceRef.refName(
+                        row.name, instanceModelName, parent.isValid, row.handle.handleValue
+                    ),
+                    parent,
+                    row.uuid,
+                    row.state ?: ProcessInstance.State.NEW
+                )
+            }
+        }
+    }
+
+    /**
+     * Read the summary rows of the instances of the owner with a handle in the range `(after, after + window)`. When
+     * that does not give enough rows, and the owner has instances beyond the range, the next range is read with a
+     * doubled window. The query has no ordering or limit of its own, so the window bounds the rows that are read.
+     */
+    private fun readInstanceRefRows(
+        dbReceiver: DBReceiver<ProcessEngineDB>,
+        ownerName: String,
+        after: PIHandle,
+        limit: Int,
+        window: Long,
+        found: List<InstanceRefRow>
+    ): DBAction<ProcessEngineDB, List<InstanceRefRow>> {
+        val pi = ProcessEngineDB.processInstances
+        val pm = ProcessEngineDB.processModels
+        val end: PIHandle = Handle(
+            if (after.handleValue > Long.MAX_VALUE - window) Long.MAX_VALUE else after.handleValue + window
+        )
+        return with(dbReceiver) {
+            SELECT(pi.pihandle, pi.pmhandle, pi.name, pi.parentActivity, pi.uuid, pi.state, pm.name)
+                .WHERE {
+                    (pi.pmhandle eq pm.pmhandle) AND (pi.owner eq ownerName) AND
+                        (pi.pihandle gt after) AND (pi.pihandle lt end)
+                }
+                .map { wrapper ->
+                    val rows = mutableListOf<InstanceRefRow>()
+                    while (wrapper.next()) {
+                        val (handle, pmHandle, name, parentActivity, uuid, state, storedModelName) = wrapper.rowData
+                        if (handle == null || pmHandle == null || uuid == null) continue
+                        rows.add(InstanceRefRow(handle, pmHandle, name, parentActivity, uuid, state, storedModelName))
+                    }
+                    found + rows.sortedBy { it.handle.handleValue }.take(limit - found.size)
+                }.then { rows ->
+                    // The end of the window is exclusive, so the next window starts just before it
+                    val next: PIHandle = Handle(end.handleValue - 1)
+                    when {
+                        rows.size >= limit || end.handleValue == Long.MAX_VALUE -> value(rows)
+                        else -> SELECT(COUNT(pi.pihandle))
+                            .WHERE { (pi.owner eq ownerName) AND (pi.pihandle gt next) }
+                            .mapSeq { it.single()!! > 0 }
+                            .then { hasMore ->
+                                when {
+                                    hasMore -> readInstanceRefRows(dbReceiver, ownerName, next, limit, window * 2, rows)
+                                    else -> value(rows)
+                                }
+                            }
+                    }
+                }
+        }
+    }
+
+    /** The columns read for an instance summary. */
+    private class InstanceRefRow(
+        val handle: PIHandle,
+        val pmHandle: PMHandle,
+        val name: String?,
+        val parentActivity: PNIHandle?,
+        val uuid: UUID,
+        val state: ProcessInstance.State?,
+        val modelName: String?
+    )
+
     class Cache<T : ContextProcessTransaction>(
         delegate: ProcessInstanceMap,
         cacheSize: Int
@@ -42,4 +155,9 @@ internal class ProcessInstanceMap(
             return (delegate as ProcessInstanceMap).pendingValue(piHandle)
         }
     }
+
+    companion object {
+        /** The size of the first handle window read for a page of instance summaries, relative to the page size. */
+        private const val INSTANCE_REF_WINDOW_FACTOR = 4L
+    }
 }
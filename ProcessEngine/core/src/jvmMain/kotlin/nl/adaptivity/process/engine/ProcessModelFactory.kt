@@ -25,62 +25,103 @@ import io.github.pdvrieze.kotlinsql.dml.WhereClause
 import io.github.pdvrieze.kotlinsql.dml.impl._ListSelect
 import io.github.pdvrieze.kotlinsql.dml.impl._UpdateBuilder
 import io.github.pdvrieze.kotlinsql.dml.impl._Where
-import io.github.pdvrieze.kotlinsql.monadic.actions.DBAction
-import io.github.pdvrieze.kotlinsql.monadic.actions.InsertAction
-import io.github.pdvrieze.kotlinsql.monadic.actions.InsertActionCommon
-import io.github.pdvrieze.kotlinsql.monadic.actions.ValuelessInsertAction
+import io.github.pdvrieze.kotlinsql.monadic.actions.*
 import io.github.pdvrieze.kotlinsql.monadic.impl.SelectResultSetRow
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.cbor.Cbor
 import net.devrieze.util.db.AbstractElementFactory
 import net.devrieze.util.db.DbSet
 import net.devrieze.util.security.SYSTEMPRINCIPAL
 import net.devrieze.util.security.SecureObject
 import net.devrieze.util.security.SimplePrincipal
+import nl.adaptivity.process.engine.db.MAX_MODEL_NAME_LENGTH
 import nl.adaptivity.process.engine.db.ProcessEngineDB
+import nl.adaptivity.process.processModel.RootProcessModel
+import nl.adaptivity.process.processModel.RootProcessModelBase
 import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
 import nl.adaptivity.process.processModel.engine.PMHandle
 import nl.adaptivity.process.processModel.engine.XmlProcessModel
 import nl.adaptivity.xmlutil.serialization.XML
 import nl.adaptivity.xmlutil.xmlStreaming
-import java.io.StringReader
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
 
 
 /**
- * A factory to create process models from the database.
+ * A factory to create process models from the database. Compiled models are kept in the shared
+ * [CompiledModelCache] so that a cache miss in the [CachingProcessModelMap] does not need to parse and compile the
+ * model again. Only when the model is not in there it is created, preferably from its binary form which is read as
+ * part of the main query. The xml is only read (with a separate query) for models without a usable binary form. The
+ * models are created completely in [createBuilder], so the intermediate is the model itself.
  */
 internal class ProcessModelFactory() :
-    AbstractElementFactory<XmlProcessModel.Builder, SecureObject<ExecutableProcessModel>, ProcessDBTransaction, ProcessEngineDB>() {
+    AbstractElementFactory<ExecutableProcessModel, SecureObject<ExecutableProcessModel>, ProcessDBTransaction, ProcessEngineDB>() {
+
+    /** Separates the handles of this factory (and its database) from those of others in the shared cache. */
+    private val cacheNamespace = nextCacheNamespace.getAndIncrement()
+
+    /** The generation of each changed model. Models that were never changed are in generation 0. */
+    private val generations = ConcurrentHashMap<Long, Long>()
 
     override val table: Table
         get() = pm
 
     override val createColumns: List<Column<*, *, *>>
-        get() = listOf(pm.pmhandle, pm.owner, pm.model)
+        get() = listOf(pm.pmhandle, pm.owner, pm.compiled)
 
     override fun createBuilder(
         transaction: ProcessDBTransaction,
         row: SelectResultSetRow<_ListSelect>
-    ): DBAction<ProcessEngineDB, XmlProcessModel.Builder> {
+    ): DBAction<ProcessEngineDB, ExecutableProcessModel> {
         val owner = pm.owner.nullableValue(row)?.let(::SimplePrincipal)
         val handle = pm.pmhandle.value(row)
+        // Read the generation before loading so that a concurrent change makes the result unreachable
+        val generation = generations[handle.handleValue] ?: 0L
 
-        val r: XmlProcessModel.Builder = pm.model.nullableValue(row)?.let {
-            XmlProcessModel.Builder.deserialize(xmlStreaming.newReader(it)).also { xmlModel ->
-                xmlModel.handle = handle.handleValue
-            }
-        } ?: XmlProcessModel.Builder().apply {
-            this.owner = owner ?: SYSTEMPRINCIPAL
-            this.handle = handle.handleValue
+        compiledModels.get(cacheNamespace, handle.handleValue, generation)?.let { model ->
+            return transaction.value(model)
+        }
+
+        val compiled = pm.compiled.nullableValue(row)
+        compiled?.let { decodeCompiled(it) }?.let { builder ->
+            return transaction.value(compile(handle, generation, builder, compiled.size))
+        }
+
+        if (compiled == null) logger.fine("Model $handle has no binary form, loading it from xml")
+        return with(transaction) {
+            SELECT(pm.model)
+                .WHERE { pm.pmhandle eq handle }
+                .mapSeq { it.singleOrNull() }
+        }.map { modelXml ->
+            val builder = modelXml?.let { XmlProcessModel.Builder.deserialize(xmlStreaming.newReader(it)) }
+                ?: XmlProcessModel.Builder().apply { this.owner = owner ?: SYSTEMPRINCIPAL }
+            compile(handle, generation, builder, modelXml?.length ?: 0)
         }
+    }
 
-        return transaction.value(r)
+    /** Create the model from the loaded builder and share it through the [CompiledModelCache]. */
+    private fun compile(
+        handle: PMHandle,
+        generation: Long,
+        builder: RootProcessModel.Builder,
+        storedSize: Int
+    ): ExecutableProcessModel {
+        builder.handle = handle.handleValue
+        val model = ExecutableProcessModel(builder)
+        val weight = storedSize.toLong() * CompiledModelCache.WEIGHT_FACTOR
+        compiledModels.put(cacheNamespace, handle.handleValue, generation, model, weight)
+        return model
     }
 
     override fun createFromBuilder(
         transaction: ProcessDBTransaction,
-        setAccess: DbSet.DBSetAccess<XmlProcessModel.Builder>,
-        builder: XmlProcessModel.Builder
+        setAccess: DbSet.DBSetAccess<ExecutableProcessModel>,
+        builder: ExecutableProcessModel
     ): DBAction<ProcessEngineDB, SecureObject<ExecutableProcessModel>> {
-        return transaction.value(ExecutableProcessModel(builder))
+        return transaction.value(builder)
     }
 
 
@@ -103,15 +144,50 @@ internal class ProcessModelFactory() :
     override fun store(update: _UpdateBuilder, value: SecureObject<ExecutableProcessModel>) {
         value.withPermission().let { processModel ->
             update.SET(pm.owner, processModel.owner.name)
+            update.SET(pm.uuid, processModel.uuid)
             update.SET(pm.model, XML.encodeToString(processModel))
+            update.SET(pm.compiled, encodeCompiled(processModel))
+            update.SET(pm.name, storedName(processModel))
         }
     }
 
+    override fun postStore(
+        transaction: ProcessDBTransaction,
+        handle: PMHandle,
+        oldValue: SecureObject<ExecutableProcessModel>?,
+        newValue: SecureObject<ExecutableProcessModel>
+    ): DBAction<ProcessEngineDB, Boolean> {
+        invalidate(transaction, handle)
+        return transaction.value(true)
+    }
+
+    override fun preRemove(
+        transaction: ProcessDBTransaction,
+        handle: PMHandle
+    ): DBAction<ProcessEngineDB, Boolean> {
+        invalidate(transaction, handle)
+        return transaction.value(true)
+    }
+
+    /**
+     * Move the model to a new generation, both now and when the transaction commits. The latter makes sure that a
+     * model loaded by another transaction before the commit (and so the old version) is not used afterwards.
+     */
+    private fun invalidate(transaction: ProcessDBTransaction, handle: PMHandle) {
+        val handleValue = handle.handleValue
+        val bump = Runnable {
+            generations.merge(handleValue, 1L, Long::plus)
+            compiledModels.remove(cacheNamespace, handleValue)
+        }
+        bump.run()
+        transaction.addCommitHandler(bump)
+    }
+
     override val keyColumn: CustomColumnType<PMHandle, Long, NumericColumnType.BIGINT_T, *, *>.CustomColumn
         get() = pm.pmhandle
 
     override fun insertStatement(transaction: ProcessDBTransaction): ValuelessInsertAction<ProcessEngineDB, Insert> {
-        return with(transaction) { INSERT(pm.owner, pm.model) }
+        return with(transaction) { INSERT(pm.owner, pm.uuid, pm.model, pm.compiled, pm.name) }
     }
 
     override fun insertValues(
@@ -120,12 +196,69 @@ internal class ProcessModelFactory() :
         value: SecureObject<ExecutableProcessModel>
     ): InsertAction<ProcessEngineDB, Insert> {
         return value.withPermission().let { processModel ->
-            insert.listVALUES(processModel.owner.name, XML.encodeToString(processModel))
+            insert.listVALUES(
+                processModel.owner.name,
+                processModel.uuid,
+                XML.encodeToString(processModel),
+                encodeCompiled(processModel),
+                storedName(processModel)
+            )
         }
     }
 
     companion object {
         private val pm = ProcessEngineDB.processModels
+
+        private val compiledModels get() = CompiledModelCache.shared
+
+        private val nextCacheNamespace = AtomicLong()
+
+        private val logger = Logger.getLogger(ProcessModelFactory::class.java.name)
+
+        @OptIn(ExperimentalSerializationApi::class)
+        private val cbor = Cbor { serializersModule = XmlProcessModel.serialModule }
+
+        /**
+         * The serializer of the binary form. This is the serial form of the model that [ExecutableProcessModel] and
+         * [XmlProcessModel.Builder] both delegate to, used directly so that writing and reading use the same serializer.
+         */
+        private val compiledSerializer = RootProcessModelBase.SerialDelegate.serializer()
+
+        /** The name to store in the name column, names that do not fit are left out. */
+        private fun storedName(model: ExecutableProcessModel): String? {
+            return model.name?.takeIf { it.length <= MAX_MODEL_NAME_LENGTH }
+        }
+
+        /**
+         * Create the binary form of the model. As the xml is the authoritative form, models that can not be stored
+         * in binary form are just stored without it.
+         */
+        @OptIn(ExperimentalSerializationApi::class)
+        fun encodeCompiled(model: ExecutableProcessModel): ByteArray? {
+            return try {
+                cbor.encodeToByteArray(compiledSerializer, RootProcessModelBase.SerialDelegate(model))
+            } catch (e: SerializationException) {
+                logger.log(Level.WARNING, "Model ${model.handle} can not be stored in binary form, only storing xml", e)
+                null
+            } catch (e: IllegalStateException) {
+                logger.log(Level.WARNING, "Model ${model.handle} can not be stored in binary form, only storing xml", e)
+                null
+            }
+        }
+
+        /** Read the binary form of a model, or `null` if it can not be read (and the xml should be used). */
+        @OptIn(ExperimentalSerializationApi::class)
+        fun decodeCompiled(data: ByteArray): RootProcessModel.Builder? {
+            return try {
+                RootProcessModelBase.Builder(cbor.decodeFromByteArray(compiledSerializer, data))
+            } catch (e: SerializationException) {
+                logger.log(Level.WARNING, "The binary form of a model can not be read, falling back to xml", e)
+                null
+            } catch (e: IllegalStateException) {
+                logger.log(Level.WARNING, "The binary form of a model can not be read, falling back to xml", e)
+                null
+            }
+        }
     }
 
 }
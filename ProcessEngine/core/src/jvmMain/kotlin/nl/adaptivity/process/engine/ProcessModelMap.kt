@@ -16,6 +16,8 @@
 
 package nl.adaptivity.process.engine
 
+import io.github.pdvrieze.kotlinsql.monadic.DBReceiver
+import io.github.pdvrieze.kotlinsql.monadic.actions.DBAction
 import io.github.pdvrieze.kotlinsql.monadic.actions.mapSeq
 import net.devrieze.util.*
 import net.devrieze.util.db.DBHandleMap
@@ -26,11 +28,12 @@ import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
 import nl.adaptivity.process.processModel.engine.PMHandle
 import nl.adaptivity.process.processModel.engine.XmlProcessModel
 import nl.adaptivity.util.multiplatform.UUID
+import nl.adaptivity.xmlutil.xmlStreaming
 
 
 internal class ProcessModelMap(
     transactionFactory: DBTransactionFactory<ProcessDBTransaction, ProcessEngineDB>
-) : DBHandleMap<XmlProcessModel.Builder, SecureObject<ExecutableProcessModel>, ProcessDBTransaction, ProcessEngineDB>(
+) : DBHandleMap<ExecutableProcessModel, SecureObject<ExecutableProcessModel>, ProcessDBTransaction, ProcessEngineDB>(
     transactionFactory,
     ProcessModelFactory()
 ), IMutableProcessModelMap<ProcessDBTransaction> {
@@ -41,17 +44,49 @@ internal class ProcessModelMap(
     ): PMHandle? {
         return with(transaction) {
             SELECT(processModels.pmhandle)
-                .WHERE { processModels.model LIKE "%$uuid%" }
-                .mapSeq {
-                    it.filterNotNull()
-                        .firstOrNull { handle ->
-                            val candidate: ExecutableProcessModel? = get(transaction, handle)?.withPermission()
-                            uuid == candidate?.uuid
-                        }
-                }.evaluateNow()
+                .WHERE { processModels.uuid eq uuid }
+                .mapSeq { it.filterNotNull().firstOrNull() }
+                .evaluateNow()
         }
     }
 
     override val elementFactory: ProcessModelFactory
         get() = super.elementFactory as ProcessModelFactory
+
+    companion object {
+
+        /**
+         * Fill the uuid column for models that were stored before the column existed (database version 1). Only
+         * the handle and uuid columns are scanned; the model itself is only parsed for rows without a uuid. Rows
+         * whose uuid is already claimed by another model are left empty so that the unique index is not violated.
+         *
+         * @return The amount of models updated.
+         */
+        fun backfillUuids(dbReceiver: DBReceiver<ProcessEngineDB>): DBAction<ProcessEngineDB, Int> {
+            return with(dbReceiver) {
+                SELECT(processModels.pmhandle, processModels.uuid)
+                    .maybeWHERE { null }
+                    .mapEach { handle, uuid -> Pair(handle, uuid) }
+                    .flatMap { rows ->
+                        val seenUuids = rows.mapNotNullTo(HashSet()) { it.second }
+                        rows.mapNotNull { (handle, uuid) -> handle?.takeIf { uuid == null } }.map { handle ->
+                            SELECT(processModels.model)
+                                .WHERE { processModels.pmhandle eq handle }
+                                .mapSeq { it.singleOrNull() }
+                                .then { modelXml ->
+                                    val uuid = modelXml?.let {
+                                        XmlProcessModel.Builder.deserialize(xmlStreaming.newReader(it)).uuid
+                                    }
+                                    if (uuid == null || !seenUuids.add(uuid)) {
+                                        value(0)
+                                    } else {
+                                        UPDATE { SET(processModels.uuid, uuid) }
+                                            .WHERE { processModels.pmhandle eq handle }
+                                    }
+                                }
+                        }
+                    }.map { it.sum() }
+            }
+        }
+    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import net.devrieze.util.security.SYSTEMPRINCIPAL
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Scheduler responsible for running the tickles queued by the engine. Tickles are deduplicated per process instance.
+ */
+abstract class TickleScheduler<TR : ContextProcessTransaction> : AutoCloseable {
+
+    /**
+     * Counters for the tickles run by a scheduler.
+     */
+    class Metrics internal constructor() {
+        private val _queueDepth = AtomicInteger()
+        private val _maxQueueDepth = AtomicInteger()
+        private val _completed = AtomicLong()
+        private val _failed = AtomicLong()
+        private val _totalLatencyNanos = AtomicLong()
+        private val _maxLatencyNanos = AtomicLong()
+
+        /** The amount of tickles waiting or running. */
+        val queueDepth: Int get() = _queueDepth.get()
+        val maxQueueDepth: Int get() = _maxQueueDepth.get()
+        val completed: Long get() = _completed.get()
+        val failed: Long get() = _failed.get()
+
+        /** The average time between queueing a tickle and finishing it in milliseconds. */
+        val averageLatencyMillis: Double
+            get() = when (val count = completed + failed) {
+                0L -> 0.0
+                else -> _totalLatencyNanos.get() / (count * 1_000_000.0)
+            }
+
+        val maxLatencyMillis: Double get() = _maxLatencyNanos.get() / 1_000_000.0
+
+        internal fun queued() {
+            val depth = _queueDepth.incrementAndGet()
+            _maxQueueDepth.accumulateAndGet(depth, ::maxOf)
+        }
+
+        internal fun finished(queuedAtNanos: Long, success: Boolean) {
+            _queueDepth.decrementAndGet()
+            val latency = System.nanoTime() - queuedAtNanos
+            _totalLatencyNanos.addAndGet(latency)
+            _maxLatencyNanos.accumulateAndGet(latency, ::maxOf)
+            if (success) _completed.incrementAndGet() else _failed.incrementAndGet()
+        }
+
+        override fun toString(): String {
+            return "Metrics(queueDepth=$queueDepth, maxQueueDepth=$maxQueueDepth, completed=$completed, " +
+                "failed=$failed, averageLatency=${averageLatencyMillis}ms, maxLatency=${maxLatencyMillis}ms)"
+        }
+    }
+
+    val metrics = Metrics()
+
+    /** Record that the instance needs to be tickled as a result of the given transaction. */
+    abstract fun queue(transaction: TR, instanceHandle: PIHandle)
+
+    /**
+     * Process the tickles queued so far in the context of the given transaction.
+     *
+     * @param processingTickles `true` if this is called from within a tickle. In that case the tickles should not be
+     *                          processed recursively.
+     */
+    abstract fun process(engine: ProcessEngine<TR>, transaction: TR, processingTickles: Boolean)
+
+    override fun close() {}
+}
+
+/**
+ * The default scheduler that runs all queued tickles on the calling thread, as part of the calling transaction.
+ */
+class InlineTickleScheduler<TR : ContextProcessTransaction> : TickleScheduler<TR>() {
+    private val queue = ConcurrentLinkedQueue<PIHandle>()
+    private val queuedAt = ConcurrentHashMap<PIHandle, Long>()
+
+    override fun queue(transaction: TR, instanceHandle: PIHandle) {
+        if (queuedAt.putIfAbsent(instanceHandle, System.nanoTime()) == null) {
+            metrics.queued()
+            queue.add(instanceHandle)
+        }
+    }
+
+    override fun process(engine: ProcessEngine<TR>, transaction: TR, processingTickles: Boolean) {
+        if (processingTickles) return
+        while (true) {
+            val instanceHandle = queue.poll() ?: return
+            val start = queuedAt.remove(instanceHandle) ?: System.nanoTime()
+            var success = false
+            try {
+                engine.tickleInstance(transaction, instanceHandle, SYSTEMPRINCIPAL, true)
+                success = true
+            } finally {
+                metrics.finished(start, success)
+            }
+        }
+    }
+}
+
+/**
+ * Scheduler that runs tickles on a pool of workers, each tickle in its own transaction. Tickles for the same instance
+ * are never run concurrently, if a tickle is queued while one is running for that instance it is run again afterwards.
+ * Tickles queued in a transaction are kept in its [ContextProcessTransaction.pendingTickles] and only dispatched once
+ * that transaction has been committed, so that the worker sees the updated state. A rolled back transaction drops them.
+ *
+ * @param workerCount The maximum amount of tickles running in parallel.
+ * @param tickleInNewTransaction Tickle the instance in a transaction of its own, throwing on failure.
+ */
+class ConcurrentTickleScheduler<TR : ContextProcessTransaction> internal constructor(
+    workerCount: Int,
+    private val tickleInNewTransaction: (PIHandle) -> Unit
+) : TickleScheduler<TR>() {
+
+    constructor(engine: ProcessEngine<TR>, workerCount: Int) : this(workerCount, { instanceHandle ->
+        val transaction = engine.startTransaction()
+        try {
+            engine.tickleInstance(transaction, instanceHandle, SYSTEMPRINCIPAL)
+            transaction.commit()
+        } catch (e: Exception) {
+            transaction.rollback()
+            throw e
+        } finally {
+            transaction.close()
+        }
+    })
+
+    /** Instances with a tickle waiting or running, the value is `true` if another run has been requested. */
+    private val active = ConcurrentHashMap<PIHandle, Boolean>()
+
+    private val queuedAt = ConcurrentHashMap<PIHandle, Long>()
+
+    private val permits = Semaphore(workerCount)
+
+    private val executor: ExecutorService = newWorkerExecutor(workerCount)
+
+    init {
+        require(workerCount > 0) { "At least one tickle worker is needed" }
+    }
+
+    override fun queue(transaction: TR, instanceHandle: PIHandle) {
+        val pending = transaction.pendingTickles
+        if (pending.isEmpty()) {
+            // The first tickle since the last commit, both are cleared on rollback
+            transaction.addCommitHandler {
+                val toDispatch = pending.toList()
+                pending.clear()
+                toDispatch.forEach(::dispatch)
+            }
+        }
+        pending.add(instanceHandle)
+    }
+
+    /** Nothing to do, the tickles are dispatched when the transaction that queued them commits. */
+    override fun process(engine: ProcessEngine<TR>, transaction: TR, processingTickles: Boolean) {}
+
+    private fun dispatch(instanceHandle: PIHandle) {
+        var submit = false
+        active.compute(instanceHandle) { _, rerun ->
+            when (rerun) {
+                null -> { submit = true; false }
+                else -> true
+            }
+        }
+        if (submit) {
+            queuedAt[instanceHandle] = System.nanoTime()
+            metrics.queued()
+            executor.execute { runTickles(instanceHandle) }
+        }
+    }
+
+    private fun runTickles(instanceHandle: PIHandle) {
+        permits.acquire()
+        try {
+            while (true) {
+                val start = queuedAt[instanceHandle] ?: System.nanoTime()
+                metrics.finished(start, tickleOnce(instanceHandle))
+
+                var again = false
+                active.compute(instanceHandle) { _, rerun ->
+                    when (rerun) {
+                        true -> { again = true; false }
+                        else -> null
+                    }
+                }
+                if (!again) return
+                queuedAt[instanceHandle] = System.nanoTime()
+                metrics.queued()
+            }
+        } finally {
+            permits.release()
+        }
+    }
+
+    private fun tickleOnce(instanceHandle: PIHandle): Boolean {
+        try {
+            tickleInNewTransaction(instanceHandle)
+            return true
+        } catch (e: Exception) {
+            logger.log(Level.WARNING, "Failure tickling instance $instanceHandle", e)
+            return false
+        }
+    }
+
+    override fun close() {
+        executor.shutdown()
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            executor.shutdownNow()
+        }
+    }
+
+    companion object {
+        private val logger = Logger.getLogger(ConcurrentTickleScheduler::class.java.name)
+
+        /**
+         * Use virtual threads when the runtime supports them, otherwise a fixed pool of daemon threads.
+         */
+        private fun newWorkerExecutor(workerCount: Int): ExecutorService {
+            try {
+                val factory = Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor")
+                return factory.invoke(null) as ExecutorService
+            } catch (e: ReflectiveOperationException) {
+                val threadCount = AtomicInteger()
+                return Executors.newFixedThreadPool(workerCount) { runnable ->
+                    Thread(runnable, "tickle-worker-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+                }
+            }
+        }
+    }
+}
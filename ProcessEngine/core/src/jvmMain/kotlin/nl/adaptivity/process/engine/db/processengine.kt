@@ -34,7 +34,10 @@ import java.util.*
 
 const val EXTRACONF = "ENGINE=InnoDB CHARSET=utf8"
 
-object ProcessEngineDB : Database(1) {
+/** The longest model name that is stored in the [ProcessEngineDB.processModels] table. */
+const val MAX_MODEL_NAME_LENGTH = 100
+
+object ProcessEngineDB : Database(4) {
 
   val X_UUID = CustomColumnType({ VARCHAR(36) { UNIQUE } }, UUID::toString, UUID::fromString)
   val X_PMHANDLE = CustomColumnType({ BIGINT }, PMHandle::handleValue, { Handle(it) })
@@ -48,6 +51,18 @@ object ProcessEngineDB : Database(1) {
     val pmhandle by X_PMHANDLE { NOT_NULL; AUTO_INCREMENT }
     val owner by VARCHAR(30) { NOT_NULL }
     val model by MEDIUMTEXT()
+    /** The uuid of the model, extracted from the model so that it can be found without parsing. Added in version 2. */
+    val uuid by X_UUID { UNIQUE; NULL }
+    /**
+     * A compact binary (CBOR) form of the model that is faster to load than the xml. It is optional, the xml remains
+     * the authoritative form. Added in version 3.
+     */
+    val compiled by MEDIUMBLOB()
+    /**
+     * The name of the model, extracted from the model so that listings can show it without loading the model. It is
+     * `NULL` for models stored before version 4, and for names that are too long. Added in version 4.
+     */
+    val name by VARCHAR(MAX_MODEL_NAME_LENGTH)
 
     override fun init() {
       INDEX (owner)
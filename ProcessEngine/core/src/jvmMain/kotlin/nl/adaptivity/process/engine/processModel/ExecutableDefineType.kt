@@ -23,19 +23,19 @@ import nl.adaptivity.util.DomUtil
 import nl.adaptivity.xmlutil.SimpleNamespaceContext
 import nl.adaptivity.xmlutil.XmlException
 import nl.adaptivity.xmlutil.XmlUtilInternal
-import nl.adaptivity.xmlutil.siblingsToFragment
 import nl.adaptivity.xmlutil.util.CompactFragment
-import nl.adaptivity.xmlutil.util.ICompactFragment
-import nl.adaptivity.xmlutil.util.XMLFragmentStreamReader
 import org.w3c.dom.NodeList
-import java.io.CharArrayReader
 import java.sql.SQLException
 import javax.xml.xpath.XPathConstants
 
 // TODO Check that context can be non-specific
 actual fun IXmlDefineType.applyData(nodeInstanceSource: IProcessInstance, context: ActivityInstanceContext): ProcessData {
     val nodeInstance = nodeInstanceSource.getChildNodeInstance(context.nodeInstanceHandle)
-    return applyDataImpl(nodeInstanceSource, refNode?.let { nodeInstance.resolvePredecessor(nodeInstanceSource, it)}, context.processContext.processInstanceHandle)
+    return applyDataImpl(
+        nodeInstanceSource,
+        refNode?.let { nodeInstance.resolvePredecessor(nodeInstanceSource, it) },
+        nodeInstance.node.templates.define(this)
+    )
 }
 
 
@@ -45,11 +45,15 @@ actual fun IXmlDefineType.applyFromProcessInstance(processInstance: ProcessInsta
         .allChildNodeInstances { it.node.id == refNode }
         .lastOrNull()
     }
-    return applyDataImpl(processInstance, predecessor, processInstance.handle)
+    return applyDataImpl(processInstance, predecessor, null)
 }
 
 @OptIn(XmlUtilInternal::class)
-private fun IXmlDefineType.applyDataImpl(nodeInstanceSource: IProcessInstance, refNodeInstance: IProcessNodeInstance?, hProcessInstance: PIHandle): ProcessData {
+private fun IXmlDefineType.applyDataImpl(
+    nodeInstanceSource: IProcessInstance,
+    refNodeInstance: IProcessNodeInstance?,
+    template: PETemplate?
+): ProcessData {
     val processData: ProcessData
 
     val predRefName = refNodeInstance?.node?.effectiveRefName(refName)
@@ -67,9 +71,10 @@ private fun IXmlDefineType.applyDataImpl(nodeInstanceSource: IProcessInstance, r
                 null -> ProcessData(name, origpair.content)
                 else -> ProcessData(
                     name,
-                    DomUtil.nodeListToFragment(
-                        xPath.evaluate(origpair.contentFragment, XPathConstants.NODESET) as NodeList
-                    )
+                    (this as? XPathHolder)?.streamingXPath?.evaluate(origpair.content)
+                        ?: DomUtil.nodeListToFragment(
+                            xPath.evaluate(origpair.contentFragment, XPathConstants.NODESET) as NodeList
+                        )
                 )
             }
         }
@@ -81,17 +86,9 @@ private fun IXmlDefineType.applyDataImpl(nodeInstanceSource: IProcessInstance, r
     val content = this@applyDataImpl.content.content
     if (content.isNotEmpty()) {
         try {
-            val transformer = PETransformer.create(SimpleNamespaceContext.from(originalNSContext), processData)
-            val fragmentReader =
-                when (this) {
-                    is ICompactFragment -> XMLFragmentStreamReader.from(this)
-                    else                -> XMLFragmentStreamReader.from(CharArrayReader(content), originalNSContext)
-                }
-
-            val reader = transformer.createFilter(fragmentReader)
-            if (reader.hasNext()) reader.next() // Initialise the reader
-            val transformed = reader.siblingsToFragment()
-            return ProcessData(name, transformed)
+            val compiled = template
+                ?: PETemplate.compile(this.content.getXmlReader(), SimpleNamespaceContext.from(originalNSContext), removeWhitespace = true)
+            return ProcessData(name, compiled.instantiate(processData))
 
         } catch (e: XmlException) {
             throw RuntimeException(e)
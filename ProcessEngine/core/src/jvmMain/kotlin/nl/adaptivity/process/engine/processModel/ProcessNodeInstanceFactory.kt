@@ -17,6 +17,7 @@
 package nl.adaptivity.process.engine.processModel
 
 import io.github.pdvrieze.kotlinsql.ddl.Column
+import io.github.pdvrieze.kotlinsql.ddl.IColumnType
 import io.github.pdvrieze.kotlinsql.ddl.Table
 import io.github.pdvrieze.kotlinsql.dml.Insert
 import io.github.pdvrieze.kotlinsql.dml.WhereClause
@@ -37,6 +38,7 @@ import nl.adaptivity.process.processModel.engine.ExecutableCompositeActivity
 import nl.adaptivity.process.processModel.engine.ExecutableJoin
 import nl.adaptivity.process.processModel.engine.ExecutableProcessNode
 import nl.adaptivity.process.processModel.engine.ExecutableSplit
+import nl.adaptivity.util.multiplatform.PrincipalCompat
 import nl.adaptivity.xmlutil.util.CompactFragment
 
 /**
@@ -77,7 +79,7 @@ internal class ProcessNodeInstanceFactory(val processEngine: ProcessEngine<Proce
         val assignedUser = tbl_pni.assigneduser.nullableValue(row)?.let(processEngine::getPrincipal)
 
         with(transaction) {
-            val processInstanceBuilder: ProcessInstance.ExtBuilder = transaction.pendingProcessInstance(pihandle)
+            val processInstanceBuilder: ProcessInstance.Builder = transaction.pendingProcessInstance(pihandle)
                 ?: processEngine.getProcessInstance(transaction, pihandle, SYSTEMPRINCIPAL).builder()
 
             val processModel = processInstanceBuilder.processModel
@@ -88,62 +90,29 @@ internal class ProcessNodeInstanceFactory(val processEngine: ProcessEngine<Proce
                 .WHERE { tbl_pred.pnihandle eq pnihandle }
                 .mapEach { it!! }
 
-            return when (node) {
-                is ExecutableJoin -> {
-                    predecessorHandles.map { predecessors ->
-                        JoinInstance.BaseBuilder(
-                            node, predecessors, processInstanceBuilder, processInstanceBuilder.owner, entryNo,
-                            if (pnihandle.handleValue < 0) Handle.invalid() else Handle(pnihandle.handleValue), state
-                        )
-                    }
-                }
-
-                is ExecutableSplit -> predecessorHandles.map { predecessors ->
-                    SplitInstance.BaseBuilder(
-                        node,
-                        predecessors.single(),
-                        processInstanceBuilder,
-                        processInstanceBuilder.owner,
-                        entryNo,
-                        if (pnihandle.handleValue < 0) Handle.invalid() else Handle(pnihandle.handleValue),
-                        state
-                    )
+            val predecessorsAndChild: DBAction<ProcessEngineDB, Pair<List<PNIHandle>, PIHandle?>> = when (node) {
+                is ExecutableCompositeActivity -> predecessorHandles.then { predecessors ->
+                    SELECT(tbl_pi.pihandle)
+                        .WHERE { tbl_pi.parentActivity eq pnihandle }
+                        .mapSeq {
+                            Pair(predecessors, it.singleOrNull())
+                        }
                 }
 
-                is ExecutableCompositeActivity -> {
-                    predecessorHandles.then { predecessors ->
-                        SELECT(tbl_pi.pihandle)
-                            .WHERE { tbl_pi.parentActivity eq pnihandle }
-                            .mapSeq {
-                                Pair(predecessors, it.singleOrNull() ?: Handle.invalid())
-                            }
-                    }.map { (predecessors, childInstance) ->
-                        CompositeInstance.BaseBuilder(
-                            node,
-                            predecessors.single(),
-                            processInstanceBuilder,
-                            childInstance,
-                            processInstanceBuilder.owner,
-                            entryNo,
-                            Handle(pnihandle.handleValue),
-                            state
-                        )
-
-                    }
-                }
+                else -> predecessorHandles.map { predecessors -> Pair(predecessors, null) }
+            }
 
-                else -> predecessorHandles.map { predecessors ->
-                    writableEngineData.processContextFactory.createNodeInstance(
-                        node = node,
-                        predecessors = predecessors,
-                        processInstanceBuilder = processInstanceBuilder,
-                        owner = processInstanceBuilder.owner,
-                        entryNo = entryNo,
-                        assignedUser = assignedUser,
-                        handle = if (pnihandle.handleValue < 0) Handle.invalid() else Handle(pnihandle.handleValue),
-                        state = state
-                    )
-                }
+            return predecessorsAndChild.map { (predecessors, childInstance) ->
+                newBuilder(
+                    node = node,
+                    pnihandle = pnihandle,
+                    predecessors = predecessors,
+                    childInstance = childInstance,
+                    processInstanceBuilder = processInstanceBuilder,
+                    entryNo = entryNo,
+                    assignedUser = assignedUser,
+                    state = state
+                )
             }
         }
     }
@@ -171,6 +140,160 @@ internal class ProcessNodeInstanceFactory(val processEngine: ProcessEngine<Proce
         }
     }
 
+    override fun createFromBuilders(
+        transaction: ProcessDBTransaction,
+        setAccess: DbSet.DBSetAccess<ProcessNodeInstance.Builder<out ExecutableProcessNode, ProcessNodeInstance<*>>>,
+        builders: List<ProcessNodeInstance.Builder<out ExecutableProcessNode, ProcessNodeInstance<*>>>
+    ): DBAction<ProcessEngineDB, List<SecureProcessNodeInstance>> {
+        if (builders.isEmpty()) return transaction.value(emptyList())
+
+        // The builders are (in practice) those of a single process instance, so select the data of all node instances
+        // of the instance through a join rather than listing all node instance handles.
+        val builderGroups = builders.groupBy { it.processInstanceBuilder.handle }
+
+        return with(transaction) {
+            value(builderGroups.entries).flatMap { groups ->
+                groups.map { (pihandle, _) ->
+                    SELECT(tbl_nd.pnihandle, tbl_nd.name, tbl_nd.data, tbl_pni.pihandle)
+                        .WHERE { (tbl_nd.pnihandle eq tbl_pni.pnihandle) AND (tbl_pni.pihandle eq pihandle) }
+                        .mapEach { pnihandle, name, data, _ -> Triple(pnihandle!!, name, data) }
+                }
+            }.map { rowGroups ->
+                val dataByHandle = rowGroups.flatten().groupBy { it.first }
+                builders.map { builder ->
+                    val results = dataByHandle[builder.handle].orEmpty().mapNotNull { (_, name, data) ->
+                        if (FAILURE_CAUSE == name && (builder.state == NodeInstanceState.Failed || builder.state == NodeInstanceState.FailRetry)) {
+                            builder.failureCause = Exception(data)
+                            null
+                        } else {
+                            ProcessData(name, CompactFragment(data!!))
+                        }
+                    }
+                    builder.results.replaceBy(results)
+                    builder.build()
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the builders for all node instances of a process instance (selected on [tbl_pni.pihandle]) in bulk. The
+     * builders are created against the pending builder of the instance (when it is being loaded) rather than looking
+     * up (and building) the instance again. Other columns use the row by row default.
+     */
+    override fun <K : Any, S : IColumnType<K, S, C>, C : Column<K, S, C>> createBuilders(
+        transaction: ProcessDBTransaction,
+        foreignKeyColumn: C,
+        key: K
+    ): DBAction<ProcessEngineDB, List<ProcessNodeInstance.Builder<out ExecutableProcessNode, ProcessNodeInstance<*>>>> {
+        if (foreignKeyColumn != tbl_pni.pihandle) return super.createBuilders(transaction, foreignKeyColumn, key)
+
+        @Suppress("UNCHECKED_CAST")
+        val pihandle = key as PIHandle
+        val processInstanceBuilder = transaction.pendingProcessInstance(pihandle)
+            ?: processEngine.getProcessInstance(transaction, pihandle, SYSTEMPRINCIPAL).builder()
+        return createBuilders(transaction, processInstanceBuilder)
+    }
+
+    /**
+     * Create the builders for all node instances of the given process instance. Unlike [createBuilder], that needs
+     * queries for each node instance, this loads the node instances, their predecessors and (for composite
+     * activities) their child instances with one query each (joined on the process instance), and assembles the
+     * builders in memory.
+     */
+    private fun createBuilders(
+        transaction: ProcessDBTransaction,
+        processInstanceBuilder: ProcessInstance.Builder
+    ): DBAction<ProcessEngineDB, List<ProcessNodeInstance.Builder<out ExecutableProcessNode, ProcessNodeInstance<*>>>> {
+        val pihandle = processInstanceBuilder.handle
+        val processModel = processInstanceBuilder.processModel
+
+        return with(transaction) {
+            SELECT(tbl_pni.pnihandle, tbl_pni.nodeid, tbl_pni.state, tbl_pni.entryno, tbl_pni.assigneduser)
+                .WHERE { tbl_pni.pihandle eq pihandle }
+                .map { wrapper ->
+                    val rows = mutableListOf<NodeInstanceRow>()
+                    while (wrapper.next()) {
+                        val (pnihandle, nodeId, state, entryNo, assignedUser) = wrapper.rowData
+                        rows.add(NodeInstanceRow(pnihandle!!, processModel.requireNode(nodeId!!), state!!, entryNo ?: 1, assignedUser))
+                    }
+                    rows
+                }.then { rows ->
+                    if (rows.isEmpty()) {
+                        value(emptyList<ProcessNodeInstance.Builder<out ExecutableProcessNode, ProcessNodeInstance<*>>>())
+                    } else {
+                        SELECT(tbl_pred.pnihandle, tbl_pred.predecessor, tbl_pni.pihandle)
+                            .WHERE { (tbl_pred.pnihandle eq tbl_pni.pnihandle) AND (tbl_pni.pihandle eq pihandle) }
+                            .mapEach { pnihandle, predecessor, _ -> Pair(pnihandle!!, predecessor!!) }
+                            .then { predecessorPairs ->
+                                val predecessors = predecessorPairs.groupBy({ it.first }, { it.second })
+                                val composites = rows.filter { it.node is ExecutableCompositeActivity }
+                                if (composites.isEmpty()) {
+                                    value(Pair(predecessors, emptyMap<PNIHandle, PIHandle>()))
+                                } else {
+                                    SELECT(tbl_pi.parentActivity, tbl_pi.pihandle, tbl_pni.pihandle)
+                                        .WHERE { (tbl_pi.parentActivity eq tbl_pni.pnihandle) AND (tbl_pni.pihandle eq pihandle) }
+                                        .mapEach { parent, child, _ -> Pair(parent!!, child!!) }
+                                        .map { childPairs -> Pair(predecessors, childPairs.toMap()) }
+                                }
+                            }.map { (predecessors, childInstances) ->
+                                rows.map { row ->
+                                    newBuilder(
+                                        node = row.node,
+                                        pnihandle = row.handle,
+                                        predecessors = predecessors[row.handle].orEmpty(),
+                                        childInstance = childInstances[row.handle],
+                                        processInstanceBuilder = processInstanceBuilder,
+                                        entryNo = row.entryNo,
+                                        assignedUser = row.assignedUser?.let(processEngine::getPrincipal),
+                                        state = row.state
+                                    )
+                                }
+                            }
+                    }
+                }
+        }
+    }
+
+    private fun ProcessDBTransaction.newBuilder(
+        node: ExecutableProcessNode,
+        pnihandle: PNIHandle,
+        predecessors: List<PNIHandle>,
+        childInstance: PIHandle?,
+        processInstanceBuilder: ProcessInstance.Builder,
+        entryNo: Int,
+        assignedUser: PrincipalCompat?,
+        state: NodeInstanceState
+    ): ProcessNodeInstance.Builder<out ExecutableProcessNode, ProcessNodeInstance<*>> {
+        val handle: PNIHandle = if (pnihandle.handleValue < 0) Handle.invalid() else Handle(pnihandle.handleValue)
+        return when (node) {
+            is ExecutableJoin -> JoinInstance.BaseBuilder(
+                node, predecessors, processInstanceBuilder, processInstanceBuilder.owner, entryNo, handle, state
+            )
+
+            is ExecutableSplit -> SplitInstance.BaseBuilder(
+                node, predecessors.single(), processInstanceBuilder, processInstanceBuilder.owner, entryNo, handle,
+                state
+            )
+
+            is ExecutableCompositeActivity -> CompositeInstance.BaseBuilder(
+                node, predecessors.single(), processInstanceBuilder, childInstance ?: Handle.invalid(),
+                processInstanceBuilder.owner, entryNo, Handle(pnihandle.handleValue), state
+            )
+
+            else -> writableEngineData.processContextFactory.createNodeInstance(
+                node = node,
+                predecessors = predecessors,
+                processInstanceBuilder = processInstanceBuilder,
+                owner = processInstanceBuilder.owner,
+                entryNo = entryNo,
+                assignedUser = assignedUser,
+                handle = handle,
+                state = state
+            )
+        }
+    }
+
     override fun getPrimaryKeyCondition(where: _Where, instance: SecureProcessNodeInstance): WhereClause {
         return getHandleCondition(where, instance.withPermission().handle)
     }
@@ -188,6 +311,16 @@ internal class ProcessNodeInstanceFactory(val processEngine: ProcessEngine<Proce
         }
     }
 
+    override fun isStoredRowChanged(oldValue: SecureProcessNodeInstance, newValue: SecureProcessNodeInstance): Boolean {
+        val old = oldValue.withPermission()
+        val updated = newValue.withPermission()
+        return old.node.id != updated.node.id || old.hProcessInstance != updated.hProcessInstance || old.state != updated.state
+    }
+
+    /**
+     * Store the predecessors and results. When the old value is known only the difference with it is written:
+     * removed predecessors are deleted, added ones inserted, and only new or changed results are upserted.
+     */
     override fun postStore(
         transaction: ProcessDBTransaction,
         handle: PNIHandle,
@@ -195,37 +328,48 @@ internal class ProcessNodeInstanceFactory(val processEngine: ProcessEngine<Proce
         newValue: SecureProcessNodeInstance
     ): DBAction<ProcessEngineDB, Boolean> {
         return with(transaction) {
-
-            val deleteAction: DBAction<ProcessEngineDB, *> = oldValue?.let { oldValue ->
-                DELETE_FROM(tbl_pred)
-                    .WHERE { tbl_pred.pnihandle eq oldValue.withPermission().handle }
-            } ?: value(Unit)
+            val old = oldValue?.withPermission()
 
             newValue.withPermission().let { newValue ->
-                var action: DBAction<ProcessEngineDB, Any?> = deleteAction
-                if (newValue.predecessors.isNotEmpty()) {
+                var action: DBAction<ProcessEngineDB, Any?> = value(Unit)
+
+                val oldPredecessors = old?.predecessors ?: emptySet()
+                for (removed in oldPredecessors) {
+                    if (removed !in newValue.predecessors) {
+                        action = action.then(
+                            DELETE_FROM(tbl_pred)
+                                .WHERE { (tbl_pred.pnihandle eq handle) AND (tbl_pred.predecessor eq removed) }
+                        )
+                    }
+                }
+
+                val addedPredecessors = newValue.predecessors.filter { it !in oldPredecessors }
+                if (addedPredecessors.isNotEmpty()) {
                     action = action.then(
                         INSERT(tbl_pred.pnihandle, tbl_pred.predecessor)
-                            .VALUES(newValue.predecessors) { pred ->
+                            .VALUES(addedPredecessors) { pred ->
                                 VALUES(handle, pred)
                             })
                 }
 
+                val oldResults = old?.results?.associateBy({ it.name }, { it.content.contentString }) ?: emptyMap()
+                val changedData = newValue.results.mapNotNullTo(mutableListOf<Pair<String?, String?>>()) { data ->
+                    val content = data.content.contentString
+                    if (data.name in oldResults && oldResults[data.name] == content) null else Pair(data.name, content)
+                }
+
                 val isFailure =
                     newValue.state == NodeInstanceState.Failed || newValue.state == NodeInstanceState.FailRetry
-                val results = newValue.results
-                if (results.isNotEmpty() || (isFailure && newValue.failureCause != null)) {
-                    if (results.isNotEmpty()) {
-                        val insertResult = INSERT_OR_UPDATE(tbl_nd.pnihandle, tbl_nd.name, tbl_nd.data)
-                            .VALUES(results) { data -> VALUES(newValue.handle, data.name, data.content.contentString) }
-                        val fc = newValue.failureCause
-
-                        if (isFailure && fc != null) {
-                            insertResult.VALUES(newValue.handle, FAILURE_CAUSE, fc.message)
-                        }
+                val fc = newValue.failureCause
+                if (isFailure && fc != null && (old == null || old.failureCause?.message != fc.message)) {
+                    changedData.add(Pair(FAILURE_CAUSE, fc.message))
+                }
 
-                        action = action.then(insertResult)
-                    }
+                if (changedData.isNotEmpty()) {
+                    action = action.then(
+                        INSERT_OR_UPDATE(tbl_nd.pnihandle, tbl_nd.name, tbl_nd.data)
+                            .VALUES(changedData) { (name, data) -> VALUES(newValue.handle, name, data) }
+                    )
                 }
                 action.map { true }
             }
@@ -287,3 +431,12 @@ internal class ProcessNodeInstanceFactory(val processEngine: ProcessEngine<Proce
     }
 
 }
+
+/** The columns of a node instance row that are needed to create its builder. */
+private class NodeInstanceRow(
+    val handle: PNIHandle,
+    val node: ExecutableProcessNode,
+    val state: NodeInstanceState,
+    val entryNo: Int,
+    val assignedUser: String?
+)
@@ -16,10 +16,13 @@
 
 package nl.adaptivity.process.engine.processModel
 
+import io.github.pdvrieze.kotlinsql.monadic.DBReceiver
+import io.github.pdvrieze.kotlinsql.monadic.actions.DBAction
 import net.devrieze.util.DBTransactionFactory
 import net.devrieze.util.db.DBHandleMap
 import nl.adaptivity.process.engine.ProcessDBTransaction
 import nl.adaptivity.process.engine.ProcessEngine
+import nl.adaptivity.process.engine.ProcessInstance
 import nl.adaptivity.process.engine.db.ProcessEngineDB
 import nl.adaptivity.process.processModel.engine.ExecutableProcessNode
 
@@ -33,4 +36,20 @@ class ProcessNodeInstanceMap(
     ProcessEngineDB>(
     transactionFactory,
     ProcessNodeInstanceFactory(processEngine)
-)
+) {
+
+    /**
+     * Load all node instances belonging to the given process instance in bulk (a fixed number of queries independent
+     * of the amount of node instances). The node instances are created against the given (still loading) builder.
+     */
+    internal fun getAllForInstance(
+        dbReceiver: DBReceiver<ProcessEngineDB>,
+        processInstanceBuilder: ProcessInstance.Builder
+    ): DBAction<ProcessEngineDB, List<SecureProcessNodeInstance>> {
+        return dbReceiver.transaction {
+            withPendingProcessInstance(processInstanceBuilder) {
+                getAll(this, ProcessEngineDB.processNodeInstances.pihandle, processInstanceBuilder.handle)
+            }
+        }
+    }
+}
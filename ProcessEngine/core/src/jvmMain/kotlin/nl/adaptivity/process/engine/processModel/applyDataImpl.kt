@@ -16,21 +16,21 @@
 
 package nl.adaptivity.process.engine.processModel
 
-import nl.adaptivity.process.engine.PETransformer
+import nl.adaptivity.process.engine.PETemplate
 import nl.adaptivity.process.engine.ProcessData
 import nl.adaptivity.process.engine.impl.dom.NodeList
 import nl.adaptivity.process.engine.impl.dom.XPathConstants
 import nl.adaptivity.process.engine.impl.dom.toDocumentFragment
 import nl.adaptivity.process.processModel.IPlatformXmlResultType
+import nl.adaptivity.process.processModel.XPathHolder
 import nl.adaptivity.util.DomUtil
 import nl.adaptivity.xmlutil.SimpleNamespaceContext
 import nl.adaptivity.xmlutil.XmlUtilInternal
-import nl.adaptivity.xmlutil.siblingsToFragment
 import nl.adaptivity.xmlutil.util.CompactFragment
 import nl.adaptivity.xmlutil.util.ICompactFragment
 
 @OptIn(XmlUtilInternal::class)
-actual fun IPlatformXmlResultType.applyData(payload: ICompactFragment?): ProcessData {
+actual fun IPlatformXmlResultType.applyData(payload: ICompactFragment?, template: PETemplate?): ProcessData {
     val xPath = this.xPath
     // shortcircuit missing path
     if (payload == null) {
@@ -39,27 +39,21 @@ actual fun IPlatformXmlResultType.applyData(payload: ICompactFragment?): Process
     val processData = if (path == null || "." == path) {
         ProcessData(name, payload)
     } else {
-        ProcessData(
-            name,
-            DomUtil.nodeListToFragment(
+        // Only paths that the streaming evaluator does not support need a DOM tree
+        val selected = (this as? XPathHolder)?.streamingXPath?.evaluate(payload)
+            ?: DomUtil.nodeListToFragment(
                 xPath!!.evaluate(
                     payload.toDocumentFragment(),
                     XPathConstants.NODESET
                 ) as NodeList
             )
-        )
-
-        // TODO check whether this can use work by CompactFragment implementing InputSource instead
+        ProcessData(name, selected)
     }
     val content = this@applyData.content.content
     if (content.isNotEmpty()) {
-        val transformer = PETransformer.create(SimpleNamespaceContext.from(originalNSContext), processData)
-        val reader = transformer.createFilter(bodyStreamReader)
-
-        if (reader.hasNext()) reader.next() // Initialise the reader
-
-        val transformed = reader.siblingsToFragment()
-        return ProcessData(name, transformed)
+        val compiled = template
+            ?: PETemplate.compile(bodyStreamReader, SimpleNamespaceContext.from(originalNSContext), removeWhitespace = true)
+        return ProcessData(name, compiled.instantiate(processData))
     } else {
         return processData
     }
@@ -16,6 +16,7 @@
 package nl.adaptivity.process.processModel.engine
 
 import kotlinx.serialization.Serializable
+import net.devrieze.util.ObjectPool
 import nl.adaptivity.process.ProcessConsts.Engine
 import nl.adaptivity.process.engine.IProcessInstance
 import nl.adaptivity.process.engine.impl.dom.toDocumentFragment
@@ -46,6 +47,18 @@ actual class ExecutableXPathCondition actual constructor(namespaces: List<Namesp
     override val isOtherwise: Boolean = condition.trim().toLowercase(Locales.ENGLISH) == "otherwise"
     actual override val condition: String = if (isOtherwise) "" else condition
 
+    /**
+     * The compiled expressions of the condition. Compiled expressions are not thread safe, but can be reused by one
+     * evaluation at a time by swapping the resolver they delegate to.
+     */
+    private val compiled = ObjectPool(ObjectPool.DEFAULT_MAX_IDLE) { CompiledCondition(this.condition) }
+
+    init {
+        // Compile once up front so that invalid conditions (including unknown functions) are rejected when the model
+        // is loaded. The compiled expression is kept in the pool for the first evaluation.
+        if (this.condition.isNotBlank()) compiled.use { }
+    }
+
     /**
      * Evaluate the condition.
      *
@@ -59,32 +72,135 @@ actual class ExecutableXPathCondition actual constructor(namespaces: List<Namesp
     actual override fun eval(nodeInstanceSource: IProcessInstance, nodeInstance: IProcessNodeInstance): ConditionResult {
         if (condition.isBlank()) return ConditionResult.TRUE
 
-        val documentBuilder =
-            DocumentBuilderFactory.newInstance().apply { isNamespaceAware = true }.newDocumentBuilder()
+        // TODO expose the node's defines as variables
+        return compiled.use { compiledCondition ->
+            val resolver = ConditionResolver(nodeInstanceSource, nodeInstance, compiledCondition.document)
+            compiledCondition.evaluate(resolver).toResult(resolver)
+        }
+    }
 
-        // TODO process the condition as xpath, expose the node's defines as variables
-        val factory = XPathFactory.newInstance()
-        val resolver = ConditionResolver(nodeInstanceSource, nodeInstance, documentBuilder.newDocument())
-        factory.setXPathFunctionResolver(resolver)
-        factory.setXPathVariableResolver(resolver)
+    override fun toString(): String {
+        return "ExecutableXSLTCondition(label=$label, condition='$condition')"
+    }
 
-        val doc = documentBuilder.newDocument()
+}
 
-        val xpath = factory.newXPath()
+private fun Boolean.toResult(resolver: ConditionResolver) = ConditionResult(this)
 
-        xpath.namespaceContext = SimpleNamespaceContext(Engine.NSPREFIX, Engine.NAMESPACE)
+/**
+ * A condition compiled for use by one evaluation at a time. The expression is compiled once against a resolver that
+ * forwards to the [ConditionResolver] of the evaluation in progress.
+ */
+private class CompiledCondition(condition: String) : XPathFunctionResolver, XPathVariableResolver {
+    val document: Document = synchronized(documentBuilderFactory) { documentBuilderFactory.newDocumentBuilder() }
+        .newDocument()
+
+    private val context = document.createDocumentFragment()
 
-        val expression = xpath.compile(condition)
-        return (expression.evaluate(doc.createDocumentFragment(), XPathConstants.BOOLEAN) as Boolean).toResult(resolver)
+    private var current: ConditionResolver? = null
+
+    private val expression: XPathExpression = synchronized(xpathFactory) { xpathFactory.newXPath() }.run {
+        namespaceContext = SimpleNamespaceContext(Engine.NSPREFIX, Engine.NAMESPACE)
+        xPathFunctionResolver = this@CompiledCondition
+        xPathVariableResolver = this@CompiledCondition
+        compile(condition).also { checkFunctions(condition) }
     }
 
-    override fun toString(): String {
-        return "ExecutableXSLTCondition(label=$label, condition='$condition')"
+    fun evaluate(resolver: ConditionResolver): Boolean {
+        current = resolver
+        try {
+            return expression.evaluate(context, XPathConstants.BOOLEAN) as Boolean
+        } finally {
+            current = null
+        }
+    }
+
+    override fun resolveFunction(functionName: QName, arity: Int): XPathFunction? {
+        if (!ConditionResolver.isKnownFunction(functionName, arity)) return null
+        // The expression may hold on to the resolved function, so return a function that forwards to the current resolver
+        return XPathFunction { args ->
+            val resolver = current ?: throw XPathFunctionException("Condition evaluated outside of an evaluation")
+            val function = resolver.resolveFunction(functionName, arity)
+                ?: throw XPathFunctionException("Unknown function $functionName/$arity")
+            function.evaluate(args)
+        }
     }
 
+    override fun resolveVariable(variableName: QName): Any? {
+        return current?.resolveVariable(variableName)
+    }
+
+    companion object {
+        /**
+         * Factories are expensive to create but not thread safe. They are only used when the pool of a condition needs
+         * a new compiled condition, so sharing them under a lock is cheap.
+         */
+        private val documentBuilderFactory: DocumentBuilderFactory =
+            DocumentBuilderFactory.newInstance().apply { isNamespaceAware = true }
+
+        private val xpathFactory: XPathFactory = XPathFactory.newInstance()
+    }
 }
 
-private fun Boolean.toResult(resolver: ConditionResolver) = ConditionResult(this)
+/**
+ * Check that all engine functions called by the condition are known. The XPath implementation only resolves extension
+ * functions when they are evaluated, so without this check an unknown function would not be reported when the model is
+ * loaded.
+ */
+private fun checkFunctions(condition: String) {
+    val prefix = "${Engine.NSPREFIX}:"
+    var i = 0
+    while (i < condition.length) {
+        val c = condition[i]
+        if (c == '\'' || c == '"') {
+            i = skipLiteral(condition, i)
+        } else if (condition.startsWith(prefix, i) && (i == 0 || !condition[i - 1].isNameChar())) {
+            var end = i + prefix.length
+            while (end < condition.length && condition[end].isNameChar()) ++end
+            var open = end
+            while (open < condition.length && condition[open].isWhitespace()) ++open
+            if (open < condition.length && condition[open] == '(') {
+                val localName = condition.substring(i + prefix.length, end)
+                val arity = arity(condition, open)
+                if (!ConditionResolver.isKnownFunction(QName(Engine.NAMESPACE, localName, Engine.NSPREFIX), arity)) {
+                    throw XPathExpressionException("Unknown function $prefix$localName/$arity in condition: $condition")
+                }
+            }
+            i = end
+        } else {
+            ++i
+        }
+    }
+}
+
+/** Determine the amount of arguments of the function call whose argument list opens at [open]. */
+private fun arity(condition: String, open: Int): Int {
+    var depth = 0
+    var commas = 0
+    var empty = true
+    var i = open + 1
+    while (i < condition.length) {
+        val c = condition[i]
+        when {
+            c == '\'' || c == '"' -> { empty = false; i = skipLiteral(condition, i); continue }
+            c == '(' || c == '[' -> ++depth
+            (c == ')' || c == ']') && depth == 0 -> break
+            c == ')' || c == ']' -> --depth
+            c == ',' && depth == 0 -> ++commas
+        }
+        if (!c.isWhitespace()) empty = false
+        ++i
+    }
+    return if (empty) 0 else commas + 1
+}
+
+/** Get the index after the string literal starting at [start]. */
+private fun skipLiteral(condition: String, start: Int): Int {
+    val end = condition.indexOf(condition[start], start + 1)
+    return if (end < 0) condition.length else end + 1
+}
+
+private fun Char.isNameChar() = isLetterOrDigit() || this == '_' || this == '-' || this == '.'
 
 private class ConditionResolver(nodeSource: IProcessInstance, nodeInstance: IProcessNodeInstance, val document: Document) :
     XPathFunctionResolver, XPathVariableResolver {
@@ -108,7 +224,7 @@ private class ConditionResolver(nodeSource: IProcessInstance, nodeInstance: IPro
     }
 
     override fun resolveFunction(functionName: QName, arity: Int): XPathFunction? {
-        if (functionName.namespaceURI!=Engine.NAMESPACE) return null
+        if (!isKnownFunction(functionName, arity)) return null
         when (functionName.localPart) {
             "node" -> when (arity) {
                 1 -> return defaultNodeFunction
@@ -136,6 +252,11 @@ private class ConditionResolver(nodeSource: IProcessInstance, nodeInstance: IPro
 
     companion object {
         const val DEFAULT_PREFIX="pe"
+
+        /** Determine whether [resolveFunction] provides the function, without needing an evaluation context. */
+        fun isKnownFunction(functionName: QName, arity: Int): Boolean {
+            return functionName.namespaceURI == Engine.NAMESPACE && functionName.localPart == "node" && arity in 1..2
+        }
     }
 
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import net.devrieze.util.CachingHandleMap
+import net.devrieze.util.Handle
+import net.devrieze.util.MutableHandleAware
+import nl.adaptivity.process.MemTransactionedHandleMap
+import nl.adaptivity.process.StubTransaction
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+/**
+ * Test that updates through a [CachingHandleMap] determine what changed against the value stored as seen by the
+ * writing transaction, not against the cache that is shared by all transactions.
+ */
+class TestCachingHandleMapUpdate {
+
+    private val delegate = IsolatingHandleMap()
+
+    private val map = CachingHandleMap<Value, IsolatedTransaction>(delegate, 10)
+
+    private fun storeInitial(): Handle<Value> {
+        val transaction = IsolatedTransaction()
+        return map.put(transaction, Value("a")).also { transaction.commit() }
+    }
+
+    @Test
+    fun testUpdateAfterRollback() {
+        val handle = storeInitial()
+
+        val rolledBack = IsolatedTransaction()
+        map[rolledBack, handle] = Value("b")
+        assertEquals("b", map[rolledBack, handle]?.data)
+        rolledBack.rollback()
+
+        val transaction = IsolatedTransaction()
+        assertEquals("a", map[transaction, handle]?.data)
+        map[transaction, handle] = Value("c")
+        assertEquals("a", delegate.writeBases.last()?.data, "The rolled back value should not be the base of the update")
+    }
+
+    @Test
+    fun testConcurrentUpdate() {
+        val handle = storeInitial()
+
+        val first = IsolatedTransaction()
+        val second = IsolatedTransaction()
+        map[first, handle] = Value("b") // Now cached, but not committed
+
+        map[second, handle] = Value("c")
+        assertEquals("a", delegate.writeBases.last()?.data, "Uncommitted changes should not be the base of the update")
+
+        first.commit()
+        second.commit()
+        assertEquals("c", map[IsolatedTransaction(), handle]?.data)
+    }
+
+    class Value(val data: String) : MutableHandleAware<Value> {
+        override var handle: Handle<Value> = Handle.invalid()
+            private set
+
+        override fun setHandleValue(handleValue: Long) {
+            handle = Handle(handleValue)
+        }
+    }
+
+    /** Transaction that keeps its writes private until commit, and runs its rollback handlers. */
+    class IsolatedTransaction : StubTransaction() {
+        val pending = mutableMapOf<Long, Value>()
+        private val commitHandlers = mutableListOf<() -> Unit>()
+        private val rollbackHandlers = mutableListOf<Runnable>()
+
+        fun onCommit(handler: () -> Unit) {
+            commitHandlers.add(handler)
+        }
+
+        override fun addRollbackHandler(runnable: Runnable) {
+            rollbackHandlers.add(runnable)
+        }
+
+        override fun commit() {
+            commitHandlers.forEach { it() }
+            commitHandlers.clear()
+            rollbackHandlers.clear()
+        }
+
+        override fun rollback() {
+            pending.clear()
+            commitHandlers.clear()
+            rollbackHandlers.forEach { it.run() }
+            rollbackHandlers.clear()
+        }
+    }
+
+    /**
+     * Handle map that gives each transaction its own view, like a database. It records the old value that each write
+     * is based upon.
+     */
+    class IsolatingHandleMap : MemTransactionedHandleMap<Value, IsolatedTransaction>() {
+        /** The old values read by [set] within the writing transaction. */
+        val writeBases = mutableListOf<Value?>()
+
+        override fun get(transaction: IsolatedTransaction, handle: Handle<Value>): Value? {
+            return transaction.pending[handle.handleValue] ?: get(handle)
+        }
+
+        override fun set(transaction: IsolatedTransaction, handle: Handle<Value>, value: Value): Value? {
+            val oldValue = get(transaction, handle)
+            writeBases.add(oldValue)
+            value.setHandleValue(handle.handleValue)
+            transaction.pending[handle.handleValue] = value
+            transaction.onCommit { set(handle, value) }
+            return oldValue
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import nl.adaptivity.process.processModel.engine.XmlProcessModel
+import nl.adaptivity.xmlutil.serialization.XML
+import nl.adaptivity.xmlutil.xmlStreaming
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+/**
+ * Test that the binary form in which [ProcessModelFactory] stores models results in the same model as the xml form.
+ */
+class TestCompiledModelForm {
+
+    private fun modelXml(name: String): String {
+        return javaClass.getResourceAsStream("/nl/adaptivity/process/engine/test/$name")!!
+            .use { it.reader(Charsets.UTF_8).readText() }
+    }
+
+    @Test
+    fun testModel1BinaryFormMatchesXml() = assertBinaryFormMatchesXml("testModel1.xml")
+
+    @Test
+    fun testModel2BinaryFormMatchesXml() = assertBinaryFormMatchesXml("testModel2.xml")
+
+    private fun assertBinaryFormMatchesXml(name: String) {
+        val storedXml = XML.encodeToString(ExecutableProcessModel.deserialize(xmlStreaming.newReader(modelXml(name))))
+
+        // The model as loaded from the stored xml
+        val fromXml = ExecutableProcessModel(XmlProcessModel.Builder.deserialize(xmlStreaming.newReader(storedXml)))
+
+        val compiled = ProcessModelFactory.encodeCompiled(fromXml)
+        assertNotNull(compiled, "The model should have a binary form")
+        val builder = ProcessModelFactory.decodeCompiled(compiled!!)
+        assertNotNull(builder, "The binary form should be readable")
+        val fromCompiled = ExecutableProcessModel(builder!!)
+
+        assertEquals(fromXml, fromCompiled)
+        assertEquals(XML.encodeToString(fromXml), XML.encodeToString(fromCompiled))
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import net.devrieze.util.Handle
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class TestConcurrentTickleScheduler {
+
+    private val engine = EngineTestData.defaultEngine().engine
+
+    private fun handle(value: Long): PIHandle = Handle(value)
+
+    /** Queue the tickles in a transaction of their own and commit it. */
+    private fun ConcurrentTickleScheduler<StubProcessTransaction>.tickleCommitted(vararg handles: PIHandle) {
+        val transaction = engine.startTransaction()
+        handles.forEach { queue(transaction, it) }
+        process(engine, transaction, false)
+        transaction.commit()
+    }
+
+    @Test
+    fun testNothingDispatchedBeforeCommit() {
+        val tickled = ConcurrentLinkedQueue<PIHandle>()
+        val scheduler = ConcurrentTickleScheduler<StubProcessTransaction>(2) { tickled.add(it) }
+
+        val transaction = engine.startTransaction()
+        scheduler.queue(transaction, handle(1))
+        scheduler.process(engine, transaction, false)
+        Thread.sleep(50)
+        assertTrue(tickled.isEmpty(), "No tickle should run before the transaction commits")
+
+        transaction.commit()
+        scheduler.close()
+        assertEquals(listOf(handle(1)), tickled.toList())
+    }
+
+    @Test
+    fun testRolledBackTicklesAreDropped() {
+        val tickled = ConcurrentLinkedQueue<PIHandle>()
+        val scheduler = ConcurrentTickleScheduler<StubProcessTransaction>(2) { tickled.add(it) }
+
+        val transaction = engine.startTransaction()
+        scheduler.queue(transaction, handle(1))
+        scheduler.process(engine, transaction, false)
+        transaction.rollback()
+
+        scheduler.tickleCommitted(handle(2))
+        scheduler.close()
+        assertEquals(listOf(handle(2)), tickled.toList())
+    }
+
+    @Test
+    fun testTicklesOfFailedTransactionDoNotLeak() {
+        val tickled = ConcurrentLinkedQueue<PIHandle>()
+        val scheduler = ConcurrentTickleScheduler<StubProcessTransaction>(2) { tickled.add(it) }
+
+        // The transaction fails before its tickles are processed
+        val transaction = engine.startTransaction()
+        scheduler.queue(transaction, handle(1))
+        transaction.rollback()
+
+        // A later transaction on the same thread only dispatches its own tickles
+        scheduler.tickleCommitted(handle(2))
+        scheduler.close()
+        assertEquals(listOf(handle(2)), tickled.toList())
+    }
+
+    @Test
+    fun testRepeatedTickleWhileRunningCoalesces() {
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val runs = AtomicInteger()
+        val scheduler = ConcurrentTickleScheduler<StubProcessTransaction>(2) {
+            if (runs.incrementAndGet() == 1) {
+                started.countDown()
+                release.await(10, TimeUnit.SECONDS)
+            }
+        }
+
+        scheduler.tickleCommitted(handle(1))
+        assertTrue(started.await(10, TimeUnit.SECONDS))
+        // Both of these arrive while the first tickle is running, together they should cause a single rerun
+        scheduler.tickleCommitted(handle(1))
+        scheduler.tickleCommitted(handle(1))
+        release.countDown()
+        scheduler.close()
+
+        assertEquals(2, runs.get())
+        assertEquals(2L, scheduler.metrics.completed)
+        assertEquals(0, scheduler.metrics.queueDepth)
+    }
+
+    @Test
+    fun testWorkerLimit() {
+        val workerCount = 2
+        val running = AtomicInteger()
+        val maxRunning = AtomicInteger()
+        val release = CountDownLatch(1)
+        val scheduler = ConcurrentTickleScheduler<StubProcessTransaction>(workerCount) {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+            try {
+                release.await(10, TimeUnit.SECONDS)
+            } finally {
+                running.decrementAndGet()
+            }
+        }
+
+        scheduler.tickleCommitted(*Array(5) { handle(it + 1L) })
+        val deadline = System.currentTimeMillis() + 10_000
+        while (running.get() < workerCount && System.currentTimeMillis() < deadline) Thread.sleep(5)
+        Thread.sleep(50)
+        assertEquals(workerCount, running.get())
+
+        release.countDown()
+        scheduler.close()
+        assertEquals(workerCount, maxRunning.get())
+        assertEquals(5L, scheduler.metrics.completed)
+    }
+}
@@ -43,12 +43,15 @@ import org.xml.sax.SAXParseException
 import java.io.*
 import java.nio.charset.Charset
 import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 import java.util.logging.Level
 import java.util.logging.Logger
 import javax.xml.parsers.DocumentBuilder
 import javax.xml.parsers.DocumentBuilderFactory
 import javax.xml.parsers.ParserConfigurationException
 import javax.xml.xpath.XPathConstants
+import javax.xml.xpath.XPathExpressionException
 import javax.xml.xpath.XPathFactory
 import kotlin.reflect.KClass
 
@@ -146,6 +149,73 @@ class TestEngineProcessData {
         }
     }
 
+    @Test
+    fun testTemplateMatchesTransform() {
+        val input = "<umh:postTask xmlns:umh=\"http://adaptivity.nl/userMessageHandler\">\n" +
+            "  <umh:task>\n" +
+            "    <jbi:attribute name=\"owner\" value=\"user\"/>\n" +
+            "    <jbi:element value=\"endpoint\"/>\n" +
+            "  </umh:task>\n" +
+            "</umh:postTask>"
+        val cf = CompactFragment(
+            SimpleNamespaceContext(Collections.singletonMap("jbi", Constants.MODIFY_NS_STR)),
+            input.toCharArray()
+        )
+        val template = PETemplate.compile(cf.getXmlReader(), null, removeWhitespace = true)
+
+        for (user in listOf("Paul", "Anne")) { // The template is reused for different data
+            val data = arrayOf(
+                ProcessData("endpoint", createEndpoint()),
+                ProcessData("user", CompactFragment(user))
+            )
+            val caw = CharArrayWriter()
+            val out = xmlStreaming.newWriter(caw, true)
+            PETransformer.create(SimpleNamespaceContext.from(emptyList()), true, *data)
+                .transform(cf.getXmlReader(), out)
+            out.close()
+            val control = caw.toString()
+
+            assertXmlEquals(control, template.instantiate(*data).contentString)
+        }
+    }
+
+    @Test
+    fun testTemplateXPathConcurrentUse() {
+        val input = "<result><jbi:value value=\"user\" xpath=\"name/text()\"/></result>"
+        val cf = CompactFragment(
+            SimpleNamespaceContext(Collections.singletonMap("jbi", Constants.MODIFY_NS_STR)),
+            input.toCharArray()
+        )
+        val template = PETemplate.compile(cf.getXmlReader(), null, removeWhitespace = true)
+
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val results = (1..50).map { i ->
+                executor.submit<Unit> {
+                    val data = ProcessData("user", CompactFragment("<name>user$i</name>"))
+                    assertXmlEquals("<result>user$i</result>", template.instantiate(data).contentString)
+                }
+            }
+            results.forEach { it.get(30, TimeUnit.SECONDS) }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    @Test
+    fun testTemplateInvalidXPathFailsOnInstantiation() {
+        val input = "<result><jbi:value value=\"user\" xpath=\"name[\"/></result>"
+        val cf = CompactFragment(
+            SimpleNamespaceContext(Collections.singletonMap("jbi", Constants.MODIFY_NS_STR)),
+            input.toCharArray()
+        )
+        val template = PETemplate.compile(cf.getXmlReader(), null, removeWhitespace = true)
+
+        assertThrows(XPathExpressionException::class.java) {
+            template.instantiate(ProcessData("user", CompactFragment("<name>Paul</name>")))
+        }
+    }
+
     companion object {
 
         private var _documentBuilder: DocumentBuilder? = null
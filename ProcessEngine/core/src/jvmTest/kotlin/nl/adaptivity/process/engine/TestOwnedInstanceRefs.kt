@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import net.devrieze.util.Handle
+import net.devrieze.util.security.OwnerOrObjectSecurityProvider
+import nl.adaptivity.process.MemTransactionedHandleMap
+import nl.adaptivity.process.engine.test.ProcessEngineTestSupport
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import nl.adaptivity.xmlutil.xmlStreaming
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.util.*
+import java.util.logging.Logger
+
+/**
+ * Test the summary listing of owned instances, including its paging.
+ */
+class TestOwnedInstanceRefs : ProcessEngineTestSupport() {
+
+    private val engine = ProcessEngine.newTestInstance(
+        messageService, stubTransactionFactory, cacheModels(MemProcessModelMap(), 3),
+        cacheInstances(MemTransactionedHandleMap(), 10), cacheNodes(MemTransactionedHandleMap(::PNI_SET_HANDLE), 30),
+        true, Logger.getAnonymousLogger()
+    ).apply { setSecurityProvider(OwnerOrObjectSecurityProvider(setOf("admin"))) }
+
+    private fun getProcessModel(name: String): ExecutableProcessModel {
+        val stream = javaClass.getResourceAsStream("/nl/adaptivity/process/engine/test/$name")!!
+        return stream.use { ExecutableProcessModel.deserialize(xmlStreaming.newReader(it, "UTF-8")) }
+    }
+
+    private fun startInstances(transaction: StubProcessTransaction, vararg names: String): List<PIHandle> {
+        val modelHandle =
+            engine.addProcessModel(transaction, getProcessModel("testModel1.xml"), testModelOwnerPrincipal).handle
+        return names.map { name ->
+            engine.startProcess(transaction, testModelOwnerPrincipal, modelHandle, name, UUID.randomUUID(), null)
+        }
+    }
+
+    @Test
+    fun testPagesAreOrderedByHandle() {
+        val transaction = engine.startTransaction()
+        val handles = startInstances(transaction, "a", "b", "c", "d", "e").sortedBy { it.handleValue }
+
+        val firstPage = engine.getOwnedProcessInstanceRefs(transaction, testModelOwnerPrincipal, limit = 2)
+        assertEquals(handles.take(2), firstPage.map { it.handle })
+
+        val secondPage =
+            engine.getOwnedProcessInstanceRefs(transaction, testModelOwnerPrincipal, firstPage.last().handle, 2)
+        assertEquals(handles.subList(2, 4), secondPage.map { it.handle })
+
+        val lastPage =
+            engine.getOwnedProcessInstanceRefs(transaction, testModelOwnerPrincipal, secondPage.last().handle, 2)
+        assertEquals(handles.subList(4, 5), lastPage.map { it.handle })
+
+        val all = engine.getOwnedProcessInstanceRefs(transaction, testModelOwnerPrincipal)
+        assertEquals(handles, all.map { it.handle })
+    }
+
+    @Test
+    fun testUnnamedInstanceUsesModelName() {
+        val transaction = engine.startTransaction()
+        val (named, unnamed) = startInstances(transaction, "named", "")
+
+        val refs = engine.getOwnedProcessInstanceRefs(transaction, testModelOwnerPrincipal, Handle.invalid())
+            .associateBy { it.handle }
+        assertEquals("named", refs.getValue(named).name)
+        assertEquals("testModel 1 instance ${unnamed.handleValue}", refs.getValue(unnamed).name)
+    }
+}
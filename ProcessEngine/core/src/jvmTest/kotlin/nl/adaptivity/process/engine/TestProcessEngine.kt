@@ -19,6 +19,7 @@ package nl.adaptivity.process.engine
 import io.github.pdvrieze.xmlutil.testutil.DocDeclEqualityMode
 import io.github.pdvrieze.xmlutil.testutil.assertXmlEquals
 import net.devrieze.util.InputStreamOutputStream
+import net.devrieze.util.security.SimplePrincipal
 import nl.adaptivity.process.engine.ProcessInstance.State
 import nl.adaptivity.process.engine.impl.dom.toFragment
 import nl.adaptivity.process.engine.processModel.IProcessNodeInstance
@@ -217,6 +218,27 @@ class TestProcessEngine : ProcessEngineTestSupport() {
         }
     }
 
+    @Test
+    fun testGetNodeInstancesSkipsDenied() {
+        val model = ExecutableProcessModel.build {
+            owner = testModelOwnerPrincipal
+            val start = startNode { id = "start" }
+            val ac = dummyActivity { id = "ac"; predecessor = start.identifier }
+            val end = endNode { id = "end"; predecessor = ac }
+        }
+        testProcess(model) { processEngine, transaction, model, instanceHandle ->
+            val instance = transaction.readableEngineData.instance(instanceHandle).withPermission()
+            val handles = listOf("start", "ac").map { instance.child(transaction, it).handle }
+
+            val owned = processEngine.getNodeInstances(transaction, handles, testModelOwnerPrincipal)
+            assertEquals(handles, owned.map { it.handle })
+
+            // Instances the user may not read are left out rather than failing the whole lookup
+            val denied = processEngine.getNodeInstances(transaction, handles, SimplePrincipal("stranger"))
+            assertTrue(denied.isEmpty())
+        }
+    }
+
     @Test
     fun testSplitJoin1() {
         testProcess(simpleSplitModel) { processEngine, protoTransaction, model, instanceHandle ->
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import nl.adaptivity.process.engine.test.ProcessEngineTestSupport
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+/**
+ * Test that the reachability index of a model agrees with the structure of the model.
+ */
+class TestReachabilityIndex : ProcessEngineTestSupport() {
+
+    private val model = ExecutableProcessModel.build {
+        owner = testModelOwnerPrincipal
+        val start = startNode { id = "start" }
+        val split = split { id = "split"; predecessor = start.identifier; min = 2; max = 2 }
+        val ac1 = activity { id = "ac1"; message = DummyMessage; predecessor = split.identifier }
+        val ac2 = activity { id = "ac2"; message = DummyMessage; predecessor = split.identifier }
+        val ac3 = activity { id = "ac3"; message = DummyMessage; predecessor = ac2.identifier }
+        val join = join { id = "join"; predecessors(ac1, ac3); min = 2; max = 2 }
+        endNode { id = "end"; predecessor = join }
+    }
+
+    @Test
+    fun testIndexCoversAllNodes() {
+        assertEquals(model.modelNodes.size, model.reachability.size)
+    }
+
+    @Test
+    fun testTransitivePredecessors() {
+        val index = model.reachability
+        for (pred in listOf("start", "split", "ac1", "ac2", "ac3", "join")) {
+            assertEquals(true, index.isPredecessor(pred, "end"), "$pred should precede end")
+            assertEquals(true, index.isSuccessor("end", pred), "end should succeed $pred")
+        }
+        assertEquals(true, index.isPredecessor("ac2", "join"))
+        assertEquals(false, index.isPredecessor("ac1", "ac3"))
+        assertEquals(false, index.isPredecessor("ac3", "ac2"))
+        assertEquals(false, index.isPredecessor("end", "start"))
+        assertEquals(false, index.isPredecessor("join", "join"))
+        assertNull(index.isPredecessor("missing", "end"))
+    }
+
+    @Test
+    fun testSingleEntryPath() {
+        val index = model.reachability
+        assertEquals(true, index.isSingleEntryPath("ac2", "ac3"))
+        assertEquals(true, index.isSingleEntryPath("split", "ac3"))
+        assertEquals(true, index.isSingleEntryPath("start", "ac1"))
+        // Behind the join the node can also be reached through the other branch
+        assertEquals(false, index.isSingleEntryPath("ac1", "end"))
+        assertEquals(false, index.isSingleEntryPath("ac2", "end"))
+        assertEquals(false, index.isSingleEntryPath("start", "end"))
+        assertEquals(false, index.isSingleEntryPath("ac1", "ac3"))
+        assertNull(index.isSingleEntryPath("missing", "end"))
+    }
+
+    @Test
+    fun testNodesUseIndex() {
+        val join = model.getNode("join")!!
+        val ac2 = model.getNode("ac2")!!
+        val ac1 = model.getNode("ac1")!!
+        val ac3 = model.getNode("ac3")!!
+        assertTrue(ac2.isPredecessorOf(join))
+        assertFalse(join.isPredecessorOf(ac2))
+        assertFalse(ac1.isPredecessorOf(ac3))
+    }
+}
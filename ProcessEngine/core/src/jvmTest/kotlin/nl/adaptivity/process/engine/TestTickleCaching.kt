@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import net.devrieze.util.CachingHandleMap
+import net.devrieze.util.security.OwnerOrObjectSecurityProvider
+import nl.adaptivity.process.MemTransactionedHandleMap
+import nl.adaptivity.process.engine.processModel.SecureProcessNodeInstance
+import nl.adaptivity.process.engine.test.ProcessEngineTestSupport
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import nl.adaptivity.xmlutil.xmlStreaming
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.*
+import java.util.logging.Logger
+
+/**
+ * Test that tickling an instance only invalidates the cached state of that instance.
+ */
+class TestTickleCaching : ProcessEngineTestSupport() {
+
+    private fun getProcessModel(name: String): ExecutableProcessModel {
+        val stream = javaClass.getResourceAsStream("/nl/adaptivity/process/engine/test/$name")!!
+        return stream.use { ExecutableProcessModel.deserialize(xmlStreaming.newReader(it, "UTF-8")) }
+    }
+
+    @Test
+    fun testTickleBurstKeepsInstanceCacheWarm() {
+        val instanceCache = CachingHandleMap<SecureProcessInstance, StubProcessTransaction>(
+            MemTransactionedHandleMap(), INSTANCE_COUNT * 2
+        )
+        val nodeCache = CachingHandleMap<SecureProcessNodeInstance, StubProcessTransaction>(
+            MemTransactionedHandleMap(::PNI_SET_HANDLE), INSTANCE_COUNT * 10,
+            IProcessEngineData.Companion::nodeInstanceGroup, ::PNI_SET_HANDLE
+        )
+        val engine = ProcessEngine.newTestInstance(
+            messageService, stubTransactionFactory, cacheModels(MemProcessModelMap(), 3),
+            instanceCache, nodeCache, true, Logger.getAnonymousLogger()
+        ).apply { setSecurityProvider(OwnerOrObjectSecurityProvider(setOf("admin"))) }
+
+        val transaction = engine.startTransaction()
+        val modelHandle =
+            engine.addProcessModel(transaction, getProcessModel("testModel1.xml"), testModelOwnerPrincipal).handle
+        val instanceHandles = (1..INSTANCE_COUNT).map { i ->
+            engine.startProcess(transaction, testModelOwnerPrincipal, modelHandle, "instance$i", UUID.randomUUID(), null)
+        }
+        // Make sure all instances are cached before measuring
+        instanceHandles.forEach { transaction.readableEngineData.instance(it) }
+
+        val before = instanceCache.cacheStats
+        repeat(ROUNDS) {
+            for (tickled in instanceHandles) {
+                engine.tickleInstance(transaction, tickled, testModelOwnerPrincipal)
+                // Reading all instances after a tickle should only miss the instance that was tickled
+                instanceHandles.forEach { transaction.readableEngineData.instance(it) }
+            }
+        }
+        val after = instanceCache.cacheStats
+
+        val hits = after.hits - before.hits
+        val misses = after.misses - before.misses
+        val hitRate = hits.toDouble() / (hits + misses)
+        assertTrue(hitRate > 0.75, "The instance cache hit rate should stay high, but was $hitRate ($after)")
+        assertEquals(0L, after.evictions - before.evictions, "No instances should have been evicted")
+        assertEquals(INSTANCE_COUNT, after.size)
+    }
+
+    @Test
+    fun testInvalidatingColdInstanceLoadsNothing() {
+        val instanceCache = CachingHandleMap<SecureProcessInstance, StubProcessTransaction>(
+            MemTransactionedHandleMap(), INSTANCE_COUNT * 2
+        )
+        val nodeCache = CachingHandleMap<SecureProcessNodeInstance, StubProcessTransaction>(
+            MemTransactionedHandleMap(::PNI_SET_HANDLE), INSTANCE_COUNT * 10,
+            IProcessEngineData.Companion::nodeInstanceGroup, ::PNI_SET_HANDLE
+        )
+        val engine = ProcessEngine.newTestInstance(
+            messageService, stubTransactionFactory, cacheModels(MemProcessModelMap(), 3),
+            instanceCache, nodeCache, true, Logger.getAnonymousLogger()
+        ).apply { setSecurityProvider(OwnerOrObjectSecurityProvider(setOf("admin"))) }
+
+        val transaction = engine.startTransaction()
+        val modelHandle =
+            engine.addProcessModel(transaction, getProcessModel("testModel1.xml"), testModelOwnerPrincipal).handle
+        val instanceHandle =
+            engine.startProcess(transaction, testModelOwnerPrincipal, modelHandle, "instance", UUID.randomUUID(), null)
+        val childHandles = transaction.readableEngineData.instance(instanceHandle).withPermission()
+            .childNodes.map { it.withPermission().handle }
+        childHandles.forEach { transaction.readableEngineData.nodeInstance(it) }
+        assertTrue(childHandles.all { nodeCache.peek(it) != null })
+
+        // Only the instance is evicted, its node instances are still cached
+        instanceCache.invalidateCache(instanceHandle)
+        val before = instanceCache.cacheStats
+        transaction.writableEngineData.invalidateCachedInstance(instanceHandle)
+        val after = instanceCache.cacheStats
+
+        assertEquals(before.misses, after.misses, "Invalidating should not load the instance")
+        assertTrue(childHandles.none { nodeCache.peek(it) != null }, "The node instances should be invalidated")
+    }
+
+    companion object {
+        private const val INSTANCE_COUNT = 10
+        private const val ROUNDS = 5
+    }
+}
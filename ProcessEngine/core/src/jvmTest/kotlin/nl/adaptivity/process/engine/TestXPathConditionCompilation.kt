@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine
+
+import nl.adaptivity.process.processModel.engine.ExecutableXPathCondition
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+import javax.xml.xpath.XPathExpressionException
+
+/**
+ * Test that invalid conditions are rejected when the condition is created, rather than when it is first evaluated.
+ */
+class TestXPathConditionCompilation {
+
+    @Test
+    fun testKnownFunctionsCompile() {
+        ExecutableXPathCondition("pe:node('ac1')/coverage_exists", null)
+        ExecutableXPathCondition("pe:node('ac1', 'result')", null)
+        ExecutableXPathCondition("otherwise", null)
+    }
+
+    @Test
+    fun testUnknownFunctionIsRejected() {
+        assertThrows(XPathExpressionException::class.java) {
+            ExecutableXPathCondition("pe:unknown('ac1')", null)
+        }
+    }
+
+    @Test
+    fun testWrongArityIsRejected() {
+        assertThrows(XPathExpressionException::class.java) {
+            ExecutableXPathCondition("pe:node('ac1', 'result', 'extra')", null)
+        }
+    }
+}
@@ -67,6 +67,7 @@ dependencies {
     testImplementation(project(":JavaCommonApi"))
     testImplementation(project(":DarwinJavaApi"))
     testImplementation(project(":TestSupport"))
+    testImplementation(project(":ProcessEngine:testLib"))
     testImplementation(libs.servletApi)
 //    testImplementation(project(path= ":PE-common", configuration="testRuntime"))
 
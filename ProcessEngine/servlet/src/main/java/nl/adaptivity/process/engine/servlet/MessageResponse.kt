@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.servlet
+
+import nl.adaptivity.process.messaging.ActivityResponse
+import nl.adaptivity.process.util.Constants
+import nl.adaptivity.xmlutil.*
+import nl.adaptivity.xmlutil.util.ICompactFragment
+import org.w3.soapEnvelope.Body
+import org.w3.soapEnvelope.Envelope
+import org.w3.soapEnvelope.Header
+import java.io.InputStream
+
+/**
+ * The response received for a message sent on behalf of an activity.
+ *
+ * @property taskState The task state requested by an `ActivityResponse`, either as root element or in the header
+ *                     of a SOAP envelope. `null` if the response is not an activity response.
+ * @property payload The content of the response, used as the result of the task.
+ * @property hasResult Whether the response carries a result. An empty document or a SOAP envelope with an empty body
+ *                     is a plain acknowledgement that does not.
+ */
+internal class MessageResponse private constructor(
+    val taskState: String?,
+    val payload: ICompactFragment,
+    val hasResult: Boolean
+) {
+
+    companion object {
+        /**
+         * Read the response in a single pass. The content is collected into the payload while the activity response
+         * (if any) is detected from the events as they go past.
+         */
+        fun parse(input: InputStream): MessageResponse {
+            val reader = ActivityResponseDetector(xmlStreaming.newReader(input))
+            val payload = reader.siblingsToFragment()
+            return MessageResponse(reader.taskState, payload, reader.hasContent)
+        }
+    }
+}
+
+/**
+ * Reader that records the task state of an activity response, and whether there is content other than the SOAP
+ * envelope and header, while the content is read through it.
+ */
+private class ActivityResponseDetector(delegate: XmlReader) : XmlDelegatingReader(delegate) {
+
+    var taskState: String? = null
+        private set
+
+    private var level = 0
+
+    private var inEnvelope = false
+
+    private var inHeader = false
+
+    private var inBody = false
+
+    var hasContent = false
+        private set
+
+    override fun next(): EventType {
+        val type = super.next()
+        when (type) {
+            EventType.START_ELEMENT -> {
+                level++
+                when {
+                    level == 1 && isElement(Envelope.NAMESPACE, Envelope.ELEMENTLOCALNAME) -> inEnvelope = true
+
+                    level == 2 && inEnvelope && isElement(Envelope.NAMESPACE, Header.ELEMENTLOCALNAME) ->
+                        inHeader = true
+
+                    level == 2 && inEnvelope && isElement(Envelope.NAMESPACE, Body.ELEMENTLOCALNAME) ->
+                        inBody = true
+
+                    (level == 1 || (level == 3 && inHeader)) && taskState == null &&
+                        isElement(Constants.PROCESS_ENGINE_NS, ActivityResponse.ELEMENTLOCALNAME) ->
+                        // A missing attribute is an invalid state, like an unknown one
+                        taskState = getAttributeValue(null, ActivityResponse.ATTRTASKSTATE) ?: ""
+                }
+                if ((level == 1 && !inEnvelope) || (level > 2 && inBody)) hasContent = true
+            }
+
+            EventType.TEXT,
+            EventType.CDSECT,
+            EventType.ENTITY_REF -> if (inBody && !isXmlWhitespace(text)) hasContent = true
+
+            EventType.END_ELEMENT -> {
+                if (level == 2) {
+                    inHeader = false
+                    inBody = false
+                }
+                level--
+            }
+
+            else -> {}
+        }
+        return type
+    }
+
+    private fun isElement(namespace: String, localName: String): Boolean {
+        return namespaceURI == namespace && this.localName == localName
+    }
+}
@@ -18,7 +18,7 @@ package nl.adaptivity.process.engine.servlet
 
 import jakarta.servlet.ServletContextEvent
 import jakarta.servlet.ServletContextListener
-import nl.adaptivity.messaging.DarwinMessenger
+import nl.adaptivity.messaging.HttpClientMessenger
 import nl.adaptivity.messaging.MessagingRegistry
 
 
@@ -29,7 +29,7 @@ class PEContextListener : ServletContextListener {
     }
 
     override fun contextInitialized(sce: ServletContextEvent) {
-        DarwinMessenger.register()
+        HttpClientMessenger.registerSelected()
     }
 
 }
@@ -50,8 +50,6 @@ import nl.adaptivity.util.commitSerializable
 import nl.adaptivity.xmlutil.*
 import nl.adaptivity.xmlutil.serialization.XML
 import org.jetbrains.annotations.TestOnly
-import org.w3.soapEnvelope.Envelope
-import org.w3c.dom.Element
 import org.w3c.dom.Node
 import java.io.*
 import java.net.URI
@@ -232,7 +230,11 @@ open class ServletProcessEngine<TR : ContextProcessTransaction> : EndpointServle
                 val processInstance =
                     engineData.instance(activityInstanceContext.processContext.processInstanceHandle).withPermission()
 
-                data = activityInstanceContext.instantiateXmlPlaceholders(processInstance, source, false, localEndpoint)
+                val template = activityInstanceContext.messageBodyTemplate(removeWhitespace = false, message = message)
+                data = when (template) {
+                    null -> activityInstanceContext.instantiateXmlPlaceholders(processInstance, source, false, localEndpoint)
+                    else -> activityInstanceContext.instantiateXmlPlaceholders(processInstance, template, localEndpoint)
+                }
 
             } catch (e: Exception) {
                 when (e) {
@@ -461,7 +463,10 @@ open class ServletProcessEngine<TR : ContextProcessTransaction> : EndpointServle
     }
 
     override fun destroy() {
+        // Let the requests that are being handled asynchronously finish before shutting down
+        asyncDispatcher?.close()
         MessagingRegistry.messenger.unregisterEndpoint(this)
+        if (::processEngine.isInitialized) processEngine.tickleScheduler.close()
     }
 
     override fun getServletInfo(): String {
@@ -487,7 +492,16 @@ open class ServletProcessEngine<TR : ContextProcessTransaction> : EndpointServle
 
         val logger = Logger.getLogger(ServletProcessEngine::class.java.name)
 
-        processEngine = ProcessEngine.newInstance(messageService, logger) as ProcessEngine<TR>
+        val defaultSizes = ProcessEngine.CacheSizes()
+        val cacheSizes = ProcessEngine.CacheSizes(
+            models = config.getInitParameter("modelCacheSize")?.toIntOrNull() ?: defaultSizes.models,
+            instances = config.getInitParameter("instanceCacheSize")?.toIntOrNull() ?: defaultSizes.instances,
+            nodeInstances = config.getInitParameter("nodeCacheSize")?.toIntOrNull() ?: defaultSizes.nodeInstances
+        )
+
+        val tickleWorkers = config.getInitParameter("tickleWorkers")?.toIntOrNull() ?: 0
+
+        processEngine = ProcessEngine.newInstance(messageService, logger, cacheSizes, tickleWorkers) as ProcessEngine<TR>
 
         MessagingRegistry.messenger.registerEndpoint(this)
     }
@@ -718,21 +732,28 @@ open class ServletProcessEngine<TR : ContextProcessTransaction> : EndpointServle
 
     /**
      * Get a list of all process instances owned by the current user. This will provide a summary list, providing a subset.
-     * of information from the process instance.
+     * of information from the process instance. The list is ordered by handle and can be paged.
      * @param owner The user.
+     * @param after Only list instances with a handle larger than this (the last handle of the previous page).
+     * @param limit The maximum amount of instances to list.
      * @return A list of process instances.
      */
     @RestMethod(method = HttpMethod.GET, path = "/processInstances")
     @XmlElementWrapper(name = "processInstances", namespace = Constants.PROCESS_ENGINE_NS)
-    fun getProcesInstanceRefs(@RestParam(type = RestParamType.PRINCIPAL) owner: Principal?)
-        : SerializableData<Collection<ProcessInstanceRef>> = translateExceptions {
+    fun getProcesInstanceRefs(
+        @RestParam(type = RestParamType.PRINCIPAL) owner: Principal?,
+        @RestParam(name = "after", type = RestParamType.QUERY) after: Long?,
+        @RestParam(name = "limit", type = RestParamType.QUERY) limit: Int?
+    ): SerializableData<Collection<ProcessInstanceRef>> = translateExceptions {
 
         if (owner == null) throw AuthenticationNeededException()
         processEngine.startTransaction().use { transaction ->
-            val list = ArrayList<ProcessInstanceRef>()
-            for (pi in processEngine.getOwnedProcessInstances(transaction, owner)) {
-                list.add(pi.ref)
-            }
+            val list = processEngine.getOwnedProcessInstanceRefs(
+                transaction,
+                owner,
+                if (after == null || after < 0) Handle.invalid() else Handle(after),
+                limit?.takeIf { it > 0 } ?: Int.MAX_VALUE
+            )
             transaction.commitSerializable(list, INSTANCEREFS_TAG)
         }
     }
@@ -850,6 +871,58 @@ open class ServletProcessEngine<TR : ContextProcessTransaction> : EndpointServle
         }
     }
 
+    /**
+     * Get the data for multiple tasks in one request.
+     * @param handles The comma separated handles of the tasks
+     * @param user A user with appropriate permissions
+     * @return The node instances that could be found, in the order of the handles.
+     */
+    @WebMethod(operationName = "getProcessNodeInstances")
+    fun getProcessNodeInstancesSoap(
+        @WebParam(name = "handles", mode = Mode.IN) handles: String,
+        @WebParam(name = "user", mode = Mode.IN) user: Principal
+    ): List<XmlProcessNodeInstance> = translateExceptions {
+        return getProcessNodeInstances(handles, user)
+    }
+
+    /**
+     * Get the information for multiple tasks. This allows clients to retrieve all tasks they know about in a single
+     * request, rather than one request per task.
+     * @param handles The comma separated handles of the tasks
+     * @param user A user with appropriate permissions
+     * @return The node instances that could be found, in the order of the handles.
+     */
+    @RestMethod(method = HttpMethod.GET, path = "/tasks", get = ["handles"])
+    @XmlElementWrapper(name = "nodeInstances", namespace = Constants.PROCESS_ENGINE_NS)
+    fun getProcessNodeInstances(
+        @RestParam(name = "handles", type = RestParamType.GET) handles: String,
+        @RestParam(type = RestParamType.PRINCIPAL) user: Principal
+    ): List<XmlProcessNodeInstance> = translateExceptions {
+        val nodeHandles = handles.splitToSequence(',')
+            .map { it.trim() }
+            .filter { it.isNotEmpty() }
+            .map { it.toLongOrNull() ?: throw HttpResponseException(HttpServletResponse.SC_BAD_REQUEST, "Invalid handle: $it") }
+            .filter { it >= 0 }
+            .map { Handle<SecureProcessNodeInstance>(it) }
+            .toList()
+
+        processEngine.startTransaction().use { transaction ->
+            val engineData = transaction.readableEngineData
+            val processContextFactory = engineData.processContextFactory
+
+            val nodeInstances = processEngine.getNodeInstances(transaction, nodeHandles, user)
+            transaction.commit(
+                nodeInstances.map { nodeInstance ->
+                    with(nodeInstance) {
+                        val context: ActivityInstanceContext =
+                            processContextFactory.newActivityInstanceContext(engineData, nodeInstance)
+                        context.toSerializable(engineData, messageService.localEndpoint)
+                    }
+                }
+            )
+        }
+    }
+
     /**
      * Update the state of a task.
      * @param handle Handle of the task to update
@@ -965,120 +1038,56 @@ open class ServletProcessEngine<TR : ContextProcessTransaction> : EndpointServle
     /**
      * Handle the completing of sending a message and receiving some sort of
      * reply. If the reply is an ActivityResponse message we handle that
-     * specially.
+     * specially. The reply is parsed once, before the transaction is started,
+     * and marking the task as sent and applying the reply is done in a single
+     * transaction (see [applyMessageResponse]).
      * @throws SQLException
      */
-    @OptIn(ProcessInstanceStorage::class)
     @Throws(FileNotFoundException::class)
     internal fun onMessageCompletion(
         future: Future<out DataSource>,
         handle: PNIHandle,
         owner: Principal
     ) {
-        fun <C : ActivityInstanceContext, TR : ContextProcessTransaction> impl(processEngine: ProcessEngine<TR>) {
-            translateExceptions {
-                // XXX do this better
-                if (future.isCancelled) {
-                    processEngine.startTransaction().use { transaction ->
-                        processEngine.cancelledTask(transaction, handle, owner)
-                        transaction.commit()
-                    }
-                } else {
-                    try {
-                        val result = future.get()
-                        processEngine.startTransaction().use { transaction ->
-                            val inst = processEngine.getNodeInstance(transaction, handle, SYSTEMPRINCIPAL)
-                                ?: throw HttpResponseException(
-                                    404,
-                                    "The process node with handle $handle does not exist or is not visible"
-                                )
-                            assert(inst.state === NodeInstanceState.Pending)
-                            if (inst.state === NodeInstanceState.Pending) {
-                                val processInstance = transaction.readableEngineData.instance(inst.hProcessInstance).withPermission()
-
-                                processInstance.update(transaction.writableEngineData) {
-                                    updateChild(inst) {
-                                        state = NodeInstanceState.Sent
-                                    }
-                                }
-                            }
-                            transaction.commit()
-                        }
-                        try {
-                            val domResult = DomUtil.tryParseXml(result.inputStream) ?: throw HttpResponseException(
-                                HttpServletResponse.SC_BAD_REQUEST,
-                                "Content is not an XML document"
-                            )
-                            var rootNode: Element? = domResult.documentElement
-                            // If we are seeing a Soap Envelope, if there is an activity response in the header treat that as the root node.
-                            if (Envelope.NAMESPACE == rootNode!!.namespaceURI && Envelope.ELEMENTLOCALNAME == rootNode.localName) {
-
-                                val header = DomUtil.getFirstChild(
-                                    rootNode, Envelope.NAMESPACE,
-                                    org.w3.soapEnvelope.Header.ELEMENTLOCALNAME
-                                )
-                                if (header != null) {
-                                    rootNode = DomUtil.getFirstChild(
-                                        header, Constants.PROCESS_ENGINE_NS,
-                                        ActivityResponse.ELEMENTLOCALNAME
-                                    )
-                                }
-                            }
-                            if (rootNode != null) {
-                                // If we receive an ActivityResponse, treat that specially.
-                                if (Constants.PROCESS_ENGINE_NS == rootNode.namespaceURI && ActivityResponse.ELEMENTLOCALNAME == rootNode.localName) {
-                                    val taskStateAttr = rootNode.getAttribute(ActivityResponse.ATTRTASKSTATE)
-                                    try {
-                                        return processEngine.startTransaction().use { transaction ->
-                                            val nodeInstanceState = NodeInstanceState.valueOf(taskStateAttr)
-                                            processEngine.updateTaskState(transaction, handle, nodeInstanceState, owner)
-                                            transaction.commit()
-                                        }
-                                    } catch (e: NullPointerException) {
-                                        e.printStackTrace()
-                                        // ignore
-                                    } catch (e: IllegalArgumentException) {
-                                        processEngine.startTransaction().use { transaction ->
-                                            processEngine.errorTask(transaction, handle, e, owner)
-                                            transaction.commit()
-                                        }
-                                    }
-
-                                }
-                            } else {
-                                processEngine.startTransaction().use { transaction ->
-                                    // XXX By default assume that we have finished the task
-                                    processEngine.finishedTask(transaction, handle, result, owner)
-                                    transaction.commit()
-                                }
-                            }
-
-                        } catch (e: NullPointerException) {
-                            // ignore
-                        } catch (e: IOException) {
-                            // It's not xml or has more than one xml element ignore that and fall back to handling unknown services
-                        }
-
-                    } catch (e: ExecutionException) {
-                        logger.log(Level.INFO, "Task $handle: Error in messaging", e.cause)
-                        processEngine.startTransaction().use { transaction ->
-                            processEngine.errorTask(transaction, handle, e.cause ?: e, owner)
-                            transaction.commit()
-                        }
-                    } catch (e: InterruptedException) {
-                        logger.log(Level.INFO, "Task $handle: Interrupted", e)
-                        processEngine.startTransaction().use { transaction ->
-                            processEngine.cancelledTask(transaction, handle, owner)
-                            transaction.commit()
-                        }
-                    }
-
+        translateExceptions {
+            if (future.isCancelled) {
+                processEngine.startTransaction().use { transaction ->
+                    processEngine.cancelledTask(transaction, handle, owner)
+                    transaction.commit()
                 }
+                return
+            }
 
+            val response = try {
+                future.get().inputStream.use { MessageResponse.parse(it) }
+            } catch (e: ExecutionException) {
+                logger.log(Level.INFO, "Task $handle: Error in messaging", e.cause)
+                processEngine.startTransaction().use { transaction ->
+                    processEngine.errorTask(transaction, handle, e.cause ?: e, owner)
+                    transaction.commit()
+                }
+                return
+            } catch (e: InterruptedException) {
+                logger.log(Level.INFO, "Task $handle: Interrupted", e)
+                processEngine.startTransaction().use { transaction ->
+                    processEngine.cancelledTask(transaction, handle, owner)
+                    transaction.commit()
+                }
+                return
+            } catch (e: XmlException) {
+                // It's not xml, leave the task as sent and fall back to handling unknown services
+                logger.log(Level.INFO, "Task $handle: The response is not an XML document", e)
+                null
+            } catch (e: IOException) {
+                logger.log(Level.INFO, "Task $handle: The response could not be read", e)
+                null
             }
 
+            processEngine.startTransaction().use { transaction ->
+                applyMessageResponse(processEngine, transaction, handle, response, owner)
+                transaction.commit()
+            }
         }
-
     }
 
     override fun isSameService(other: EndpointDescriptor?): Boolean {
@@ -1123,6 +1132,60 @@ open class ServletProcessEngine<TR : ContextProcessTransaction> : EndpointServle
                 return logger
             }
 
+        /**
+         * Apply the response to a message to the task that sent it. A pending task is marked as sent. An
+         * ActivityResponse updates the task state, and a response that carries a result finishes the task. A plain
+         * acknowledgement leaves the task as it is, as does a missing or unreadable (`null`) response. Responses for
+         * tasks that are already final are ignored, as the service may have moved the task forward by itself.
+         */
+        @OptIn(ProcessInstanceStorage::class)
+        internal fun <TR : ContextProcessTransaction> applyMessageResponse(
+            processEngine: ProcessEngine<TR>,
+            transaction: TR,
+            handle: PNIHandle,
+            response: MessageResponse?,
+            owner: Principal
+        ) {
+            val inst = processEngine.getNodeInstance(transaction, handle, SYSTEMPRINCIPAL)
+                ?: throw HttpResponseException(
+                    404,
+                    "The process node with handle $handle does not exist or is not visible"
+                )
+            when {
+                inst.state === NodeInstanceState.Pending -> {
+                    val processInstance = transaction.readableEngineData.instance(inst.hProcessInstance).withPermission()
+
+                    processInstance.update(transaction.writableEngineData) {
+                        updateChild(inst) {
+                            state = NodeInstanceState.Sent
+                        }
+                    }
+                }
+
+                inst.state.isFinal -> {
+                    logger.log(Level.INFO, "Task $handle: Ignoring the response as the task is already ${inst.state}")
+                    return
+                }
+            }
+
+            val taskState = response?.taskState
+            when {
+                response == null -> {}
+
+                // If we receive an ActivityResponse, treat that specially.
+                taskState != null -> try {
+                    processEngine.updateTaskState(transaction, handle, NodeInstanceState.valueOf(taskState), owner)
+                } catch (e: IllegalArgumentException) {
+                    processEngine.errorTask(transaction, handle, e, owner)
+                }
+
+                response.hasResult -> processEngine.finishTask(transaction, handle, response.payload, owner)
+
+                // A plain acknowledgement, the service will update the task itself
+                else -> {}
+            }
+        }
+
         private val REFS_TAG = QName(SERVICE_NS, "processModels")
 
 
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.servlet
+
+import nl.adaptivity.messaging.EndpointDescriptorImpl
+import nl.adaptivity.process.MessageSendingResult
+import nl.adaptivity.process.engine.*
+import nl.adaptivity.process.engine.processModel.NodeInstanceState
+import nl.adaptivity.process.engine.test.ProcessEngineTestSupport
+import nl.adaptivity.process.processModel.AuthorizationInfo
+import nl.adaptivity.process.processModel.IXmlMessage
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import nl.adaptivity.xmlutil.QName
+import nl.adaptivity.xmlutil.xmlStreaming
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.net.URI
+
+/**
+ * Tests for the state changes of a task when the response to its message is received
+ * ([ServletProcessEngine.applyMessageResponse]).
+ */
+class TestMessageCompletion : ProcessEngineTestSupport(messageService = SentMessageService()) {
+
+    private val model = ExecutableProcessModel.deserialize(xmlStreaming.newReader(MODEL))
+
+    private fun response(content: String) = MessageResponse.parse(content.byteInputStream())
+
+    private fun testMessage(
+        body: (ProcessEngine<StubProcessTransaction>, StubProcessTransaction, PNIHandle) -> Unit
+    ) {
+        testProcess(
+            { messageService, transactionFactory ->
+                defaultEngineFactory(messageService, transactionFactory, ProcessContextFactory.DEFAULT)
+            },
+            model
+        ) { engine, transaction, _, _ ->
+            body(engine, transaction, messageService.getMessageNode(0))
+        }
+    }
+
+    private fun ProcessEngine<StubProcessTransaction>.respond(
+        transaction: StubProcessTransaction,
+        handle: PNIHandle,
+        content: String
+    ) {
+        ServletProcessEngine.applyMessageResponse(
+            this, transaction, handle, response(content), testModelOwnerPrincipal
+        )
+    }
+
+    private fun StubProcessTransaction.state(handle: PNIHandle): NodeInstanceState {
+        return readableEngineData.nodeInstance(handle).withPermission().state
+    }
+
+    @Test
+    fun testPlainAcknowledgementLeavesTaskSent() = testMessage { engine, transaction, handle ->
+        assertEquals(NodeInstanceState.Sent, transaction.state(handle))
+
+        engine.respond(transaction, handle, EMPTY_ENVELOPE)
+        assertEquals(NodeInstanceState.Sent, transaction.state(handle))
+    }
+
+    @Test
+    fun testActivityResponseUpdatesState() = testMessage { engine, transaction, handle ->
+        engine.respond(transaction, handle, "<pe:ActivityResponse xmlns:pe=\"$PE_NS\" taskState=\"Acknowledged\"/>")
+        assertEquals(NodeInstanceState.Acknowledged, transaction.state(handle))
+
+        // A task moved forward by the service is left alone by a later acknowledgement
+        engine.respond(transaction, handle, EMPTY_ENVELOPE)
+        assertEquals(NodeInstanceState.Acknowledged, transaction.state(handle))
+    }
+
+    @Test
+    fun testInvalidActivityResponseFailsTask() = testMessage { engine, transaction, handle ->
+        engine.respond(transaction, handle, "<pe:ActivityResponse xmlns:pe=\"$PE_NS\" taskState=\"Unknown\"/>")
+        assertEquals(NodeInstanceState.Failed, transaction.state(handle))
+    }
+
+    @Test
+    fun testResultFinishesTask() = testMessage { engine, transaction, handle ->
+        engine.respond(transaction, handle, "<result>42</result>")
+        assertEquals(NodeInstanceState.Complete, transaction.state(handle))
+
+        val results = transaction.readableEngineData.nodeInstance(handle).withPermission().results
+        assertEquals("42", results.single { it.name == "value" }.content.contentString)
+
+        // A late response to a finished task is ignored
+        engine.respond(transaction, handle, "<result>43</result>")
+        assertEquals(NodeInstanceState.Complete, transaction.state(handle))
+    }
+
+    /** Message service that reports messages as sent, but not yet acknowledged. */
+    private class SentMessageService : StubMessageService(
+        EndpointDescriptorImpl(QName.valueOf("processEngine"), "processEngine", URI.create("http://localhost/"))
+    ) {
+        override fun sendMessage(
+            engineData: ProcessEngineDataAccess,
+            protoMessage: IXmlMessage,
+            activityInstanceContext: ActivityInstanceContext,
+            authData: AuthorizationInfo?
+        ): MessageSendingResult {
+            super.sendMessage(engineData, protoMessage, activityInstanceContext, authData)
+            return MessageSendingResult.SENT
+        }
+    }
+
+    companion object {
+        const val PE_NS = "http://adaptivity.nl/ProcessEngine/"
+
+        const val EMPTY_ENVELOPE =
+            "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\"><soap:Body/></soap:Envelope>"
+
+        const val MODEL = """<processModel xmlns="http://adaptivity.nl/ProcessEngine/" owner="modelOwner" name="messageCompletion">
+    <start id="start"/>
+    <activity id="ac1" predecessor="start">
+        <result name="value" path="/result/text()"/>
+        <message type="application/xml" endpoint="internal" operation="postValue"
+                 serviceNS="http://example.org/service" serviceName="service" url="/service">
+            <request xmlns="http://example.org/service"/>
+        </message>
+    </activity>
+    <end id="end" predecessor="ac1"/>
+</processModel>"""
+    }
+}
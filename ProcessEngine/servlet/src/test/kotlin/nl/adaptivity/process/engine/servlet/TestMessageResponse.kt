@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.servlet
+
+import io.github.pdvrieze.xmlutil.testutil.assertXmlEquals
+import nl.adaptivity.process.messaging.ActivityResponse
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.w3.soapEnvelope.Envelope
+
+/**
+ * Tests for reading the responses to activity messages with [MessageResponse].
+ */
+class TestMessageResponse {
+
+    private fun parse(response: String) = MessageResponse.parse(response.byteInputStream())
+
+    @Test
+    fun testPlainResult() {
+        val response = parse("<result><value>42</value></result>")
+        assertNull(response.taskState)
+        assertTrue(response.hasResult)
+        assertXmlEquals("<result><value>42</value></result>", response.payload.contentString)
+    }
+
+    @Test
+    fun testActivityResponseRoot() {
+        val response = parse("<pe:$ACTIVITY_RESPONSE xmlns:pe=\"$PE_NS\" taskState=\"Acknowledged\"/>")
+        assertEquals("Acknowledged", response.taskState)
+    }
+
+    @Test
+    fun testActivityResponseWithoutState() {
+        val response = parse("<pe:$ACTIVITY_RESPONSE xmlns:pe=\"$PE_NS\"/>")
+        assertEquals("", response.taskState, "A missing state is recorded as an invalid state")
+    }
+
+    @Test
+    fun testActivityResponseInSoapHeader() {
+        val response = parse(
+            "<soap:Envelope xmlns:soap=\"$SOAP_NS\"><soap:Header>" +
+                "<pe:$ACTIVITY_RESPONSE xmlns:pe=\"$PE_NS\" taskState=\"Taken\"/>" +
+                "</soap:Header><soap:Body/></soap:Envelope>"
+        )
+        assertEquals("Taken", response.taskState)
+        assertFalse(response.hasResult)
+    }
+
+    @Test
+    fun testActivityResponseOnlyAtTopOfBody() {
+        val response = parse(
+            "<soap:Envelope xmlns:soap=\"$SOAP_NS\"><soap:Body>" +
+                "<pe:$ACTIVITY_RESPONSE xmlns:pe=\"$PE_NS\" taskState=\"Taken\"/>" +
+                "</soap:Body></soap:Envelope>"
+        )
+        assertNull(response.taskState, "Only the header of an envelope can hold the activity response")
+        assertTrue(response.hasResult)
+    }
+
+    @Test
+    fun testSoapBodyIsResult() {
+        val response = parse(
+            "<soap:Envelope xmlns:soap=\"$SOAP_NS\"><soap:Body><result>42</result></soap:Body></soap:Envelope>"
+        )
+        assertNull(response.taskState)
+        assertTrue(response.hasResult)
+    }
+
+    @Test
+    fun testEmptySoapBodyIsAcknowledgement() {
+        val response = parse(
+            "<soap:Envelope xmlns:soap=\"$SOAP_NS\">\n  <soap:Header/>\n  <soap:Body>\n  </soap:Body>\n</soap:Envelope>"
+        )
+        assertNull(response.taskState)
+        assertFalse(response.hasResult)
+    }
+
+    companion object {
+        const val PE_NS = ActivityResponse.NAMESPACE
+        const val ACTIVITY_RESPONSE = ActivityResponse.ELEMENTLOCALNAME
+        const val SOAP_NS = Envelope.NAMESPACE
+    }
+}
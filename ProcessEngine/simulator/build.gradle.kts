@@ -79,11 +79,12 @@ kotlin {
         val jvmMain by getting {
             dependsOn(javaMain)
             dependencies {
+                implementation(project(":ProcessEngine:testLib"))
             }
         }
         val jvmTest by getting {
             dependencies {
-
+                implementation(kotlin("test-junit5"))
             }
         }
     }
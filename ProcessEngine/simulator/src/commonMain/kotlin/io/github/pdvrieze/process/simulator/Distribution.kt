@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.pdvrieze.process.simulator
+
+import io.github.pdvrieze.process.simulator.utils.nextExponentialVariate
+import io.github.pdvrieze.process.simulator.utils.nextGaussian
+import io.github.pdvrieze.process.simulator.utils.nextLogNormal
+import kotlin.math.ln
+import kotlin.math.sqrt
+import kotlin.random.Random
+
+/**
+ * A distribution of (non-negative) durations, used for the inter-arrival times of process instances and the service
+ * times of activities. Durations are in simulated time units, the simulator does not attach a meaning to them.
+ */
+fun interface Distribution {
+    fun sample(random: Random): Double
+
+    companion object {
+        /** Always the same duration. */
+        fun constant(value: Double): Distribution {
+            require(value >= 0.0) { "Durations can not be negative" }
+            return Distribution { value }
+        }
+
+        /** Uniformly distributed between [min] and [max]. */
+        fun uniform(min: Double, max: Double): Distribution {
+            require(min in 0.0..max) { "Invalid range [$min, $max]" }
+            return Distribution { it.nextDouble(min, max) }
+        }
+
+        /** Exponentially distributed with the given [mean] (this gives Poisson arrivals). */
+        fun exponential(mean: Double): Distribution {
+            require(mean > 0.0) { "The mean must be positive" }
+            val frequency = 1.0 / mean
+            return Distribution { it.nextExponentialVariate(frequency) }
+        }
+
+        /** Normally distributed, negative samples are truncated to 0. */
+        fun normal(mean: Double, stdDev: Double): Distribution {
+            return Distribution { it.nextGaussian(mean, stdDev).coerceAtLeast(0.0) }
+        }
+
+        /** Log-normally distributed with the given parameters of the underlying normal distribution. */
+        fun logNormal(mu: Double, sigma: Double): Distribution {
+            return Distribution { it.nextLogNormal(mu, sigma) }
+        }
+
+        /**
+         * Log-normally distributed with the given [mean] and [stdDev] of the actual durations, rather than of their
+         * logarithm.
+         */
+        fun logNormalWithMean(mean: Double, stdDev: Double): Distribution {
+            require(mean > 0.0) { "The mean must be positive" }
+            val sigma2 = ln(1.0 + (stdDev * stdDev) / (mean * mean))
+            return logNormal(ln(mean) - sigma2 / 2, sqrt(sigma2))
+        }
+    }
+}
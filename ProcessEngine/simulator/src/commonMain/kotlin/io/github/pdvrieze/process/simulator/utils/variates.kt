@@ -1,5 +1,6 @@
 package io.github.pdvrieze.process.simulator.utils
 
+import kotlin.math.exp
 import kotlin.math.ln
 import kotlin.math.sqrt
 import kotlin.random.Random
@@ -35,3 +36,12 @@ fun Random.nextGaussians(mean: Double=0.0, stdDev: Double=1.0): Pair<Double, Dou
 fun Random.nextGaussian(mean: Double=0.0, stdDev: Double=1.0): Double {
     return nextGaussians(mean, stdDev).first
 }
+
+/**
+ * Log-normally distributed variate.
+ * @param mu The mean of the logarithm of the variate
+ * @param sigma The standard deviation of the logarithm of the variate
+ */
+fun Random.nextLogNormal(mu: Double = 0.0, sigma: Double = 1.0): Double {
+    return exp(nextGaussian(mu, sigma))
+}
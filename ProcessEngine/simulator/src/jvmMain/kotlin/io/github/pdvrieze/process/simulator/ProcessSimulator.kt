@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2019.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.pdvrieze.process.simulator
+
+import net.devrieze.util.security.RolePrincipal
+import nl.adaptivity.messaging.EndpointDescriptorImpl
+import nl.adaptivity.process.engine.*
+import nl.adaptivity.process.engine.processModel.PNIHandle
+import nl.adaptivity.process.engine.test.ProcessEngineTestSupport
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import nl.adaptivity.process.processModel.engine.PMHandle
+import java.lang.management.ManagementFactory
+import java.net.URI
+import java.util.PriorityQueue
+import java.util.UUID
+import javax.xml.namespace.QName
+import kotlin.random.Random
+
+/**
+ * Discrete event simulation of the load on a process engine. Instances of [model] arrive with inter-arrival times
+ * drawn from [arrivals]. They are executed by a real [ProcessEngine] using the in-memory stores of the engine tests.
+ * Every task the engine sends is queued at its activity. Each activity handles at most `servers` tasks at the same
+ * time, with service times drawn from its distribution (see [activity]). Time is virtual: the simulation jumps from
+ * event to event, so a run takes as long as the engine needs to do the work.
+ *
+ * Besides the queueing behaviour the simulation measures the CPU time and allocations of the engine itself.
+ */
+class ProcessSimulator(
+    val model: ExecutableProcessModel,
+    val arrivals: Distribution,
+    private val random: Random = Random.Default,
+) {
+
+    private val activityConfigs = mutableMapOf<String, ActivityConfig>()
+
+    /** The service time of activities that have not been configured with [activity]. */
+    var defaultServiceTime: Distribution = Distribution.constant(0.0)
+
+    /**
+     * Configure the handling of tasks for an activity.
+     * @param id The id of the activity in the model (or one of its child models)
+     * @param serviceTime The distribution of the time needed to handle a task
+     * @param servers The amount of tasks that can be handled at the same time
+     */
+    fun activity(id: String, serviceTime: Distribution, servers: Int = 1): ProcessSimulator = apply {
+        require(servers > 0) { "An activity needs at least one server" }
+        activityConfigs[id] = ActivityConfig(serviceTime, servers)
+    }
+
+    /**
+     * Run a simulation with a fresh engine.
+     * @param duration The simulated time after which the simulation stops.
+     * @param warmup The initial simulated time that is excluded from the statistics.
+     * @param maxInstances The maximum amount of instances to start.
+     */
+    fun run(duration: Double, warmup: Double = 0.0, maxInstances: Int = Int.MAX_VALUE): SimulationReport {
+        require(warmup in 0.0..duration) { "The warm-up must be within the duration of the simulation" }
+        return Run(duration, warmup, maxInstances).execute()
+    }
+
+    private class ActivityConfig(val serviceTime: Distribution, val servers: Int)
+
+    private class Event(val time: Double, val sequence: Long, val action: () -> Unit) : Comparable<Event> {
+        override fun compareTo(other: Event): Int = when (val c = time.compareTo(other.time)) {
+            0 -> sequence.compareTo(other.sequence)
+            else -> c
+        }
+    }
+
+    private class Task(val handle: PNIHandle, val arrival: Double)
+
+    /** The state of a single simulation run. */
+    private inner class Run(val duration: Double, val warmup: Double, val maxInstances: Int) {
+
+        private val clock = VirtualClock()
+
+        private val events = PriorityQueue<Event>()
+
+        private var eventSequence = 0L
+
+        private val messageService = StubMessageService(localEndpoint)
+
+        private val engine: ProcessEngine<StubProcessTransaction> = ProcessEngineTestSupport.defaultEngineFactory(
+            messageService,
+            object : ProcessTransactionFactory<StubProcessTransaction> {
+                override fun startTransaction(engineData: IProcessEngineData<StubProcessTransaction>): StubProcessTransaction {
+                    return StubProcessTransaction(engineData)
+                }
+            },
+            ProcessContextFactory.DEFAULT
+        )
+
+        private val transaction = engine.startTransaction()
+
+        private lateinit var modelHandle: PMHandle
+
+        private val stations = mutableMapOf<String, Station>()
+
+        /** Start times of the running instances. */
+        private val running = HashMap<PIHandle, Double>()
+
+        private var arrived = 0
+
+        private var started = 0
+
+        private var completed = 0
+
+        private var failed = 0
+
+        private var latencies = DoubleArray(256)
+
+        private var latencyCount = 0
+
+        private val meter = EngineMeter()
+
+        fun execute(): SimulationReport {
+            transaction.use {
+                modelHandle = engine.addProcessModel(transaction, model, simulatorPrincipal).handle
+                if (warmup > 0.0) schedule(warmup) { resetStatistics() }
+                scheduleArrival()
+
+                while (true) {
+                    val event = events.poll() ?: break
+                    if (event.time > duration) break
+                    clock.advanceTo(event.time)
+                    event.action()
+                }
+                clock.advanceTo(duration)
+                return report()
+            }
+        }
+
+        private fun schedule(time: Double, action: () -> Unit) {
+            events.add(Event(time, eventSequence++, action))
+        }
+
+        private fun scheduleArrival() {
+            if (arrived >= maxInstances) return
+            schedule(clock.now + arrivals.sample(random)) {
+                arrived++
+                val instanceHandle = meter.measure {
+                    engine.startProcess(transaction, simulatorPrincipal, modelHandle, "sim$arrived", UUID.randomUUID(), null)
+                }
+                started++
+                running[instanceHandle] = clock.now
+                dispatchMessages()
+                checkFinished(instanceHandle)
+                scheduleArrival()
+            }
+        }
+
+        /** Queue all tasks sent by the engine at their activity. */
+        private fun dispatchMessages() {
+            if (messageService.messages.isEmpty()) return
+            val messages = messageService.messages.toList()
+            messageService.clear()
+            val engineData = transaction.readableEngineData
+            for (message in messages) {
+                val nodeId = engineData.nodeInstance(message.source).withPermission().node.id
+                station(nodeId).arrive(Task(message.source, clock.now))
+            }
+        }
+
+        private fun finishTask(handle: PNIHandle) {
+            val nodeInstance = meter.measure { engine.finishTask(transaction, handle, null, simulatorPrincipal) }
+            dispatchMessages()
+            checkFinished(rootInstance(nodeInstance.hProcessInstance))
+        }
+
+        /** Find the top level instance, for tasks that are part of a child instance. */
+        private fun rootInstance(handle: PIHandle): PIHandle {
+            val engineData = transaction.readableEngineData
+            var current = handle
+            while (true) {
+                val parent = engineData.instance(current).withPermission().parentActivity
+                if (!parent.isValid) return current
+                current = engineData.nodeInstance(parent).withPermission().hProcessInstance
+            }
+        }
+
+        private fun checkFinished(instanceHandle: PIHandle) {
+            val startTime = running[instanceHandle] ?: return
+            val state = transaction.readableEngineData.instance(instanceHandle).withPermission().state
+            if (!state.isFinal) return
+
+            running.remove(instanceHandle)
+            if (state == ProcessInstance.State.FINISHED) {
+                completed++
+                if (latencyCount == latencies.size) latencies = latencies.copyOf(latencyCount * 2)
+                latencies[latencyCount++] = clock.now - startTime
+            } else {
+                failed++
+            }
+        }
+
+        private fun station(nodeId: String): Station = stations.getOrPut(nodeId) {
+            val config = activityConfigs[nodeId]
+            Station(config?.serviceTime ?: defaultServiceTime, config?.servers ?: Int.MAX_VALUE)
+        }
+
+        private fun resetStatistics() {
+            started = 0
+            completed = 0
+            failed = 0
+            latencyCount = 0
+            meter.reset()
+            for (station in stations.values) station.resetStatistics()
+        }
+
+        private fun report(): SimulationReport {
+            return SimulationReport(
+                simulatedTime = duration - warmup,
+                startedInstances = started,
+                completedInstances = completed,
+                failedInstances = failed,
+                latency = SimulationReport.LatencyStatistics.of(latencies.copyOf(latencyCount)),
+                activities = stations.entries.sortedBy { it.key }.associate { (id, station) -> id to station.statistics() },
+                engineCpuNanos = meter.cpuNanos,
+                engineAllocatedBytes = meter.allocatedBytes,
+            )
+        }
+
+        /** The queue and servers of a single activity. */
+        private inner class Station(val serviceTime: Distribution, val servers: Int) {
+            private val queue = ArrayDeque<Task>()
+
+            private var busy = 0
+
+            private var lastChange = clock.now
+
+            private var queueArea = 0.0
+
+            private var busyArea = 0.0
+
+            private var maxQueueLength = 0
+
+            private var served = 0
+
+            private var waited = 0
+
+            private var totalWait = 0.0
+
+            private var statisticsStart = clock.now
+
+            fun arrive(task: Task) {
+                accumulate()
+                if (busy < servers) {
+                    start(task)
+                } else {
+                    queue.addLast(task)
+                    if (queue.size > maxQueueLength) maxQueueLength = queue.size
+                }
+            }
+
+            private fun start(task: Task) {
+                busy++
+                waited++
+                totalWait += clock.now - task.arrival
+                schedule(clock.now + serviceTime.sample(random)) { complete(task) }
+            }
+
+            private fun complete(task: Task) {
+                accumulate()
+                busy--
+                served++
+                queue.removeFirstOrNull()?.let { start(it) }
+                finishTask(task.handle)
+            }
+
+            /** Add the time weighted queue length and server use since the last change. */
+            private fun accumulate() {
+                val elapsed = clock.now - lastChange
+                queueArea += queue.size * elapsed
+                busyArea += busy * elapsed
+                lastChange = clock.now
+            }
+
+            fun resetStatistics() {
+                accumulate()
+                queueArea = 0.0
+                busyArea = 0.0
+                maxQueueLength = queue.size
+                served = 0
+                waited = 0
+                totalWait = 0.0
+                statisticsStart = clock.now
+            }
+
+            fun statistics(): SimulationReport.ActivityStatistics {
+                accumulate()
+                val period = clock.now - statisticsStart
+                return SimulationReport.ActivityStatistics(
+                    servers = servers,
+                    served = served,
+                    meanQueueLength = if (period > 0.0) queueArea / period else 0.0,
+                    maxQueueLength = maxQueueLength,
+                    meanWait = if (waited > 0) totalWait / waited else 0.0,
+                    utilization = if (period > 0.0 && servers != Int.MAX_VALUE) busyArea / (period * servers) else 0.0,
+                )
+            }
+        }
+    }
+
+    /** Clock for simulated time. It only moves forward. */
+    private class VirtualClock {
+        var now: Double = 0.0
+            private set
+
+        fun advanceTo(time: Double) {
+            if (time > now) now = time
+        }
+    }
+
+    /** Measurement of the CPU time and allocations of the current thread while calling the engine. */
+    private class EngineMeter {
+        private val threadBean = ManagementFactory.getThreadMXBean()
+
+        private val allocationBean = (threadBean as? com.sun.management.ThreadMXBean)
+            ?.takeIf { it.isThreadAllocatedMemorySupported && it.isThreadAllocatedMemoryEnabled }
+
+        private val cpuSupported = threadBean.isCurrentThreadCpuTimeSupported && threadBean.isThreadCpuTimeEnabled
+
+        var cpuNanos: Long = if (cpuSupported) 0L else -1L
+            private set
+
+        var allocatedBytes: Long = if (allocationBean != null) 0L else -1L
+            private set
+
+        fun <R> measure(action: () -> R): R {
+            val startCpu = if (cpuSupported) threadBean.currentThreadCpuTime else 0L
+            val startAllocated = allocationBean?.currentThreadAllocatedBytes ?: 0L
+            try {
+                return action()
+            } finally {
+                if (cpuSupported) cpuNanos += threadBean.currentThreadCpuTime - startCpu
+                allocationBean?.let { allocatedBytes += it.currentThreadAllocatedBytes - startAllocated }
+            }
+        }
+
+        fun reset() {
+            if (cpuNanos >= 0) cpuNanos = 0L
+            if (allocatedBytes >= 0) allocatedBytes = 0L
+        }
+    }
+
+    companion object {
+        private val localEndpoint = EndpointDescriptorImpl(
+            QName.valueOf("processEngine"), "processEngine",
+            URI.create("http://localhost/")
+        )
+
+        private val simulatorPrincipal = object : RolePrincipal {
+            override fun hasRole(role: String): Boolean = role == "admin"
+
+            override fun getName(): String = "simulator"
+        }
+    }
+}
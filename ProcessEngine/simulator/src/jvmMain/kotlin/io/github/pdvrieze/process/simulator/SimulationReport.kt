@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2019.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.pdvrieze.process.simulator
+
+/**
+ * The result of a [ProcessSimulator] run. All statistics only cover the measured period (after the warm-up).
+ *
+ * @property simulatedTime The length of the measured period in simulated time units.
+ * @property startedInstances The amount of instances started.
+ * @property completedInstances The amount of instances that finished successfully.
+ * @property failedInstances The amount of instances that ended in another final state.
+ * @property latency The distribution of the (simulated) time between the start and end of instances.
+ * @property activities Queueing statistics per activity id.
+ * @property engineCpuNanos The CPU time spent inside the engine (or -1 if not supported by the JVM).
+ * @property engineAllocatedBytes The memory allocated inside the engine (or -1 if not supported by the JVM).
+ */
+class SimulationReport(
+    val simulatedTime: Double,
+    val startedInstances: Int,
+    val completedInstances: Int,
+    val failedInstances: Int,
+    val latency: LatencyStatistics,
+    val activities: Map<String, ActivityStatistics>,
+    val engineCpuNanos: Long,
+    val engineAllocatedBytes: Long,
+) {
+    /** Completed instances per simulated time unit. */
+    val throughput: Double get() = if (simulatedTime > 0.0) completedInstances / simulatedTime else 0.0
+
+    /** Engine CPU time per started instance, -1 if unknown. */
+    val engineCpuNanosPerInstance: Long
+        get() = if (engineCpuNanos < 0 || startedInstances == 0) -1 else engineCpuNanos / startedInstances
+
+    /** Memory allocated by the engine per started instance, -1 if unknown. */
+    val engineAllocatedBytesPerInstance: Long
+        get() = if (engineAllocatedBytes < 0 || startedInstances == 0) -1 else engineAllocatedBytes / startedInstances
+
+    override fun toString(): String = buildString {
+        appendLine("Simulated time: $simulatedTime")
+        appendLine("Instances: started=$startedInstances, completed=$completedInstances, failed=$failedInstances")
+        appendLine("Throughput: ${throughput.fmt()} instances/unit")
+        appendLine("Latency: $latency")
+        appendLine("Engine per instance: cpu=${engineCpuNanosPerInstance}ns, allocated=${engineAllocatedBytesPerInstance}B")
+        for ((id, stats) in activities) {
+            appendLine("  $id: $stats")
+        }
+    }
+
+    /** Percentiles of the instance latencies. All values are 0 when no instance completed. */
+    class LatencyStatistics(
+        val count: Int,
+        val mean: Double,
+        val p50: Double,
+        val p90: Double,
+        val p99: Double,
+        val max: Double,
+    ) {
+        override fun toString(): String {
+            return "count=$count, mean=${mean.fmt()}, p50=${p50.fmt()}, p90=${p90.fmt()}, p99=${p99.fmt()}, max=${max.fmt()}"
+        }
+
+        companion object {
+            fun of(samples: DoubleArray): LatencyStatistics {
+                if (samples.isEmpty()) return LatencyStatistics(0, 0.0, 0.0, 0.0, 0.0, 0.0)
+                val sorted = samples.sortedArray()
+                fun percentile(p: Double) = sorted[((sorted.size - 1) * p).toInt()]
+                return LatencyStatistics(
+                    sorted.size, sorted.average(), percentile(0.5), percentile(0.9), percentile(0.99), sorted.last()
+                )
+            }
+        }
+    }
+
+    /**
+     * Queueing statistics for a single activity.
+     * @property servers The amount of tasks the activity can handle concurrently ([Int.MAX_VALUE] for no limit).
+     * @property served The amount of tasks that were completed.
+     * @property meanQueueLength The time weighted average amount of waiting tasks.
+     * @property maxQueueLength The largest amount of waiting tasks.
+     * @property meanWait The average time tasks waited before being handled.
+     * @property utilization The fraction of the capacity in use (0 for activities without a limit).
+     */
+    class ActivityStatistics(
+        val servers: Int,
+        val served: Int,
+        val meanQueueLength: Double,
+        val maxQueueLength: Int,
+        val meanWait: Double,
+        val utilization: Double,
+    ) {
+        override fun toString(): String {
+            return "served=$served, queue(mean=${meanQueueLength.fmt()}, max=$maxQueueLength), " +
+                "wait=${meanWait.fmt()}, utilization=${utilization.fmt()}"
+        }
+    }
+}
+
+private fun Double.fmt(): String = "%.3f".format(this)
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2019.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.pdvrieze.process.simulator
+
+import net.devrieze.util.security.RolePrincipal
+import nl.adaptivity.process.messaging.InvokableMethod
+import nl.adaptivity.process.messaging.RESTMethodDesc
+import nl.adaptivity.process.processModel.IXmlMessage
+import nl.adaptivity.process.processModel.engine.ExecutableProcessModel
+import nl.adaptivity.xmlutil.util.CompactFragment
+import nl.adaptivity.xmlutil.util.ICompactFragment
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import javax.xml.namespace.QName
+import kotlin.random.Random
+
+class TestProcessSimulator {
+
+    private object SimMessage : IXmlMessage {
+        override val targetMethod: InvokableMethod
+            get() = RESTMethodDesc(QName("sim"), "POST", "/sim", "application/x-sim")
+        override val operation: String?
+            get() = null
+        override val messageBody: ICompactFragment
+            get() = CompactFragment("")
+        override val url: String?
+            get() = "/sim"
+    }
+
+    private val owner = object : RolePrincipal {
+        override fun hasRole(role: String): Boolean = role == "admin"
+
+        override fun getName(): String = "simOwner"
+    }
+
+    private val model = ExecutableProcessModel.build {
+        owner = this@TestProcessSimulator.owner
+        name = "simulated"
+        val start = startNode { id = "start" }
+        val ac1 = activity { id = "ac1"; message = SimMessage; predecessor = start.identifier }
+        val ac2 = activity { id = "ac2"; message = SimMessage; predecessor = ac1.identifier }
+        endNode { id = "end"; predecessor = ac2.identifier }
+    }
+
+    @Test
+    fun testDeterministicWithoutQueueing() {
+        val report = ProcessSimulator(model, Distribution.constant(10.0))
+            .activity("ac1", Distribution.constant(2.0))
+            .activity("ac2", Distribution.constant(3.0))
+            .run(duration = 2000.0, maxInstances = 100)
+
+        assertEquals(100, report.startedInstances)
+        assertEquals(100, report.completedInstances)
+        assertEquals(0, report.failedInstances)
+        assertEquals(5.0, report.latency.p50, 1e-9)
+        assertEquals(5.0, report.latency.max, 1e-9)
+
+        val ac1 = report.activities.getValue("ac1")
+        assertEquals(100, ac1.served)
+        assertEquals(0, ac1.maxQueueLength)
+        assertEquals(0.1, ac1.utilization, 1e-6)
+        assertEquals(0.15, report.activities.getValue("ac2").utilization, 1e-6)
+    }
+
+    @Test
+    fun testQueueingUnderLoad() {
+        // Arrivals every 2 units on average, ac2 needs 3 units: with 2 servers the utilization is 0.75
+        val report = ProcessSimulator(model, Distribution.exponential(2.0), Random(42))
+            .activity("ac1", Distribution.logNormalWithMean(1.0, 0.5), servers = 1)
+            .activity("ac2", Distribution.exponential(3.0), servers = 2)
+            .run(duration = 5000.0, warmup = 500.0)
+
+        assertTrue(report.completedInstances > 1000) { "Too few instances completed: ${report.completedInstances}" }
+        assertEquals(0.5, report.throughput, 0.1)
+        assertTrue(report.latency.p99 >= report.latency.p50)
+
+        val ac2 = report.activities.getValue("ac2")
+        assertEquals(0.75, ac2.utilization, 0.1)
+        assertTrue(ac2.meanQueueLength > 0.0)
+        assertTrue(ac2.maxQueueLength > 0)
+    }
+}
@@ -254,7 +254,7 @@ open class ProcessEngineTestSupport(
         }
 
         fun cacheNodes(base: MutableTransactionedHandleMap<SecureProcessNodeInstance, StubProcessTransaction>, count: Int): MutableTransactionedHandleMap<SecureProcessNodeInstance, StubProcessTransaction> {
-            return CachingHandleMap(base, count, ::PNI_SET_HANDLE)
+            return CachingHandleMap(base, count, IProcessEngineData.Companion::nodeInstanceGroup, ::PNI_SET_HANDLE)
         }
 
         fun cacheModels(base: IMutableProcessModelMap<StubProcessTransaction>, count: Int): IMutableProcessModelMap<StubProcessTransaction> {
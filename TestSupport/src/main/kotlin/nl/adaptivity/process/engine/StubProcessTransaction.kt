@@ -45,10 +45,31 @@ class StubProcessTransaction(private val engineData: IProcessEngineData<StubProc
 
     }
 
+    private val commitHandlers = mutableListOf<Runnable>()
+
+    override val pendingTickles: MutableSet<PIHandle> = LinkedHashSet()
+
     override fun addRollbackHandler(runnable: Runnable) {
         super<StubTransaction>.addRollbackHandler(runnable)
     }
 
+    override fun addCommitHandler(runnable: Runnable) {
+        commitHandlers.add(runnable)
+    }
+
+    override fun commit() {
+        super.commit()
+        val handlers = commitHandlers.toList()
+        commitHandlers.clear()
+        handlers.forEach { it.run() }
+    }
+
+    override fun rollback() {
+        commitHandlers.clear()
+        pendingTickles.clear()
+        super.rollback()
+    }
+
     fun ProcessEngine<StubProcessTransaction>.testProcess(
         model: ExecutableProcessModel,
         owner: Principal,
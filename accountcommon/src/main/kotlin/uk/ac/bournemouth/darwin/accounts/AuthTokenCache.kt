@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.bournemouth.darwin.accounts
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.logging.Level
+import java.util.logging.Logger
+import javax.sql.DataSource
+
+/**
+ * Cache that maps authentication tokens to their user and the roles of that user. Entries expire after [ttlMillis],
+ * and the cache holds at most [maxEntries] tokens and users, evicting the least recently used ones first. A cached
+ * token is never used after its lifetime ([MAXTOKENLIFETIME] since its last use) has passed.
+ *
+ * Using a token does not write to the database directly. Instead the use is recorded and written out in batches every
+ * [flushIntervalMillis]. Expired tokens are removed from the database every [sweepIntervalMillis] rather than on each
+ * request.
+ *
+ * Use [invalidateToken] on logout, and [invalidateUser] when the roles of a user change.
+ */
+public class AuthTokenCache internal constructor(
+    private val store: TokenStore,
+    public val maxEntries: Int,
+    public val ttlMillis: Long,
+    public val flushIntervalMillis: Long,
+    public val sweepIntervalMillis: Long,
+    private val clock: () -> Long
+) : AutoCloseable {
+
+    public constructor(
+        dataSource: DataSource,
+        maxEntries: Int = DEFAULT_MAX_ENTRIES,
+        ttlMillis: Long = DEFAULT_TTL_MILLIS,
+        flushIntervalMillis: Long = DEFAULT_FLUSH_INTERVAL_MILLIS,
+        sweepIntervalMillis: Long = DEFAULT_SWEEP_INTERVAL_MILLIS
+    ) : this(
+        DataSourceTokenStore(dataSource),
+        maxEntries,
+        ttlMillis,
+        flushIntervalMillis,
+        sweepIntervalMillis,
+        System::currentTimeMillis
+    )
+
+    /** The information cached for a token. */
+    public class TokenInfo(public val user: String, public val keyId: Int?, public val roles: List<String>)
+
+    /**
+     * A cached token. The epoch is the last use of the token (in seconds), including uses that have not been flushed
+     * yet, and determines when the token itself expires.
+     */
+    private class TokenEntry(val user: String, val keyId: Int?, val expires: Long, @Volatile var epoch: Long) {
+        fun isValid(nowMillis: Long): Boolean {
+            return expires > nowMillis && epoch > nowMillis / 1000 - MAXTOKENLIFETIME
+        }
+    }
+
+    private class RoleEntry(val roles: List<String>, val expires: Long)
+
+    private val tokens = boundedMap<Pair<String, String>, TokenEntry>(maxEntries)
+
+    private val roles = boundedMap<String, RoleEntry>(maxEntries)
+
+    /** Pending epoch updates for tokens, keyed by (token, remote address). */
+    private val pendingEpochs = ConcurrentHashMap<Pair<String, String>, Long>()
+
+    /** Pending last use updates for keys. */
+    private val pendingKeyUses = ConcurrentHashMap<Int, Long>()
+
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "AuthTokenCache").apply { isDaemon = true }
+    }
+
+    init {
+        executor.scheduleWithFixedDelay(::flushSafely, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS)
+        executor.scheduleWithFixedDelay(::sweepSafely, 0L, sweepIntervalMillis, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Get the user and roles for the given token. Only when the token is not in the cache is the database consulted.
+     * The use of the token is recorded for the next flush.
+     *
+     * @return The token information, or `null` if the token is not valid for the address.
+     */
+    public fun lookup(token: String, remoteAddr: String): TokenInfo? {
+        val key = token to remoteAddr
+        val now = clock()
+        val nowSeconds = now / 1000
+        val entry = synchronized(tokens) { tokens[key] }?.takeIf { it.isValid(now) }
+            ?: store.tokenOwner(token, remoteAddr)
+                ?.let { owner -> TokenEntry(owner.user, owner.keyId, now + ttlMillis, owner.epoch) }
+                ?.takeIf { it.isValid(now) }
+                ?.also { synchronized(tokens) { tokens[key] = it } }
+            ?: run {
+                synchronized(tokens) { tokens.remove(key) }
+                pendingEpochs.remove(key)
+                return null
+            }
+
+        entry.epoch = nowSeconds
+        pendingEpochs[key] = nowSeconds
+        entry.keyId?.let { pendingKeyUses[it] = nowSeconds }
+
+        return TokenInfo(entry.user, entry.keyId, rolesFor(entry.user))
+    }
+
+    /** Get the roles of the user, from the cache if possible. */
+    public fun rolesFor(user: String): List<String> {
+        val now = clock()
+        synchronized(roles) { roles[user] }?.takeIf { it.expires > now }?.let { return it.roles }
+
+        val userRoles = store.userRoles(user)
+        synchronized(roles) { roles[user] = RoleEntry(userRoles, now + ttlMillis) }
+        return userRoles
+    }
+
+    /** Forget the token, for example because the user logged out. */
+    public fun invalidateToken(token: String) {
+        synchronized(tokens) { tokens.keys.removeAll { it.first == token } }
+        pendingEpochs.keys.removeAll { it.first == token }
+    }
+
+    /** Forget the cached roles (and tokens) of the user, for example because the roles of the user changed. */
+    public fun invalidateUser(user: String) {
+        synchronized(roles) { roles.remove(user) }
+        synchronized(tokens) { tokens.values.removeAll { it.user == user } }
+    }
+
+    /** Forget everything. */
+    public fun invalidateAll() {
+        synchronized(roles) { roles.clear() }
+        synchronized(tokens) { tokens.clear() }
+    }
+
+    /** Write all pending token and key uses to the database in a single transaction. */
+    public fun flush() {
+        val epochs = HashMap<Pair<String, String>, Long>()
+        for (key in pendingEpochs.keys) {
+            pendingEpochs.remove(key)?.let { epochs[key] = it }
+        }
+        val keyUses = HashMap<Int, Long>()
+        for (key in pendingKeyUses.keys) {
+            pendingKeyUses.remove(key)?.let { keyUses[key] = it }
+        }
+        if (epochs.isNotEmpty() || keyUses.isNotEmpty()) {
+            store.recordUsage(epochs, keyUses)
+        }
+    }
+
+    /** Remove expired tokens from the database. */
+    public fun sweep() {
+        val removed = store.removeExpiredTokens()
+        if (removed > 0) logger.fine { "Removed $removed expired authentication tokens" }
+    }
+
+    private fun flushSafely() {
+        try {
+            flush()
+        } catch (e: Exception) {
+            logger.log(Level.WARNING, "Failure to record token use", e)
+        }
+    }
+
+    private fun sweepSafely() {
+        try {
+            sweep()
+        } catch (e: Exception) {
+            logger.log(Level.WARNING, "Failure to remove expired tokens", e)
+        }
+    }
+
+    /** Stop the background tasks, writing out the pending updates. */
+    override fun close() {
+        caches.values.remove(this)
+        executor.shutdown()
+        flushSafely()
+    }
+
+    public companion object {
+        public const val DEFAULT_MAX_ENTRIES: Int = 10_000
+        public const val DEFAULT_TTL_MILLIS: Long = 60_000L
+        public const val DEFAULT_FLUSH_INTERVAL_MILLIS: Long = 30_000L
+        public const val DEFAULT_SWEEP_INTERVAL_MILLIS: Long = 600_000L
+
+        private val logger = Logger.getLogger(AuthTokenCache::class.java.name)
+
+        private val caches = ConcurrentHashMap<DataSource, AuthTokenCache>()
+
+        /**
+         * Get the cache shared by all users of the given data source. A closed cache is replaced by a new one on the
+         * next call.
+         */
+        @JvmStatic
+        public fun forDataSource(dataSource: DataSource): AuthTokenCache {
+            return caches.computeIfAbsent(dataSource) { AuthTokenCache(it) }
+        }
+
+        /** Close the shared cache for the data source, if there is one. */
+        @JvmStatic
+        public fun release(dataSource: DataSource) {
+            caches[dataSource]?.close()
+        }
+
+        private fun <K, V> boundedMap(maxEntries: Int): LinkedHashMap<K, V> {
+            return object : LinkedHashMap<K, V>(16, 0.75f, true) {
+                override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, V>?): Boolean = size > maxEntries
+            }
+        }
+    }
+}
+
+/** The storage operations used by [AuthTokenCache]. */
+internal interface TokenStore {
+    /** Get the owner of the token if it is valid for the address and has not expired. */
+    fun tokenOwner(token: String, remoteAddr: String): TokenOwner?
+
+    fun userRoles(user: String): List<String>
+
+    /** Record token and key uses, see [AccountDb.recordUsage]. */
+    fun recordUsage(tokenEpochs: Map<Pair<String, String>, Long>, keyUses: Map<Int, Long>): Int
+
+    /** Remove the expired tokens, returning the amount removed. */
+    fun removeExpiredTokens(): Int
+}
+
+private class DataSourceTokenStore(private val dataSource: DataSource) : TokenStore {
+    override fun tokenOwner(token: String, remoteAddr: String): TokenOwner? {
+        return accountDb(dataSource) { tokenOwner(token, remoteAddr) }
+    }
+
+    override fun userRoles(user: String): List<String> = accountDb(dataSource) { getUserRoles(user) }
+
+    override fun recordUsage(tokenEpochs: Map<Pair<String, String>, Long>, keyUses: Map<Int, Long>): Int {
+        return accountDb(dataSource) { recordUsage(tokenEpochs, keyUses) }
+    }
+
+    override fun removeExpiredTokens(): Int = accountDb(dataSource) { forceCleanAuthTokens() }
+}
@@ -64,6 +64,9 @@ public const val KEY_ALGORITHM: String = "RSA"
 private inline fun SecureRandom.nextBytes(len: Int): ByteArray = ByteArray(len).also { buffer -> nextBytes(buffer) }
 
 
+/** The owner of an authentication token, and the epoch (in seconds) at which the token was last used. */
+internal class TokenOwner(val user: String, val keyId: Int?, val epoch: Long)
+
 public open class AccountDb(private val dataSource: DataSource) {
 
     private val u: WebAuthDB.users get() = WebAuthDB.users
@@ -324,6 +327,56 @@ public open class AccountDb(private val dataSource: DataSource) {
         }
     }
 
+    /**
+     * Look up the user and key id for the token without recording its use. Callers are responsible for recording the
+     * use through [recordUsage]. Expired tokens are not returned.
+     */
+    internal fun tokenOwner(token: String, remoteAddr: String): TokenOwner? {
+        return WebAuthDB(dataSource) {
+            SELECT(t.user, t.keyid, t.epoch)
+                .WHERE { (t.token eq token) AND (t.ip eq remoteAddr) AND (t.epoch gt (nowSeconds - MAXTOKENLIFETIME)) }
+                .mapSingleOrNull { user, keyid, epoch ->
+                    if (user == null || epoch == null) null else TokenOwner(user, keyid, epoch)
+                }
+                .commit()
+        }
+    }
+
+    /**
+     * Record the last use of a number of tokens and keys in a single transaction.
+     *
+     * A token is only updated when it had not expired at the recorded epoch, so that recording a use can not revive an
+     * expired token.
+     *
+     * @param tokenEpochs The epoch (in seconds) to record for each (token, remote address) pair.
+     * @param keyUses The last use (in seconds) to record for each key id.
+     * @return The amount of updated rows.
+     */
+    internal fun recordUsage(tokenEpochs: Map<Pair<String, String>, Long>, keyUses: Map<Int, Long>): Int {
+        if (tokenEpochs.isEmpty() && keyUses.isEmpty()) return 0
+        return WebAuthDB(dataSource) {
+            transaction {
+                val tokenUpdates = tokenEpochs.entries.fold(value(0)) { action, (key, epoch) ->
+                    action.then { count ->
+                        UPDATE { SET(t.epoch, epoch) }
+                            .WHERE {
+                                (t.token eq key.first) AND (t.ip eq key.second) AND
+                                    (t.epoch gt (epoch - MAXTOKENLIFETIME))
+                            }
+                            .map { count + it }
+                    }
+                }
+                keyUses.entries.fold(tokenUpdates) { action, (keyId, lastUse) ->
+                    action.then { count ->
+                        UPDATE { SET(p.lastUse, lastUse) }
+                            .WHERE { p.keyid eq keyId }
+                            .map { count + it }
+                    }
+                }.commit()
+            }
+        }
+    }
+
     public fun String.base64Decode(): ByteArray {
         try {
             return Base64.getUrlDecoder().decode(this)
@@ -394,9 +447,17 @@ public open class AccountDb(private val dataSource: DataSource) {
 
     public fun cleanAuthTokens() {
         if (nowSeconds - lastTokenClean > 60000) {
-            WebAuthDB(dataSource) { DELETE_FROM(t).WHERE { t.epoch lt (nowSeconds - MAXTOKENLIFETIME) }.commit() }
-            lastTokenClean = nowSeconds
+            forceCleanAuthTokens()
+        }
+    }
+
+    /** Remove all expired tokens, regardless of when this was last done. */
+    public fun forceCleanAuthTokens(): Int {
+        val removed = WebAuthDB(dataSource) {
+            DELETE_FROM(t).WHERE { t.epoch lt (nowSeconds - MAXTOKENLIFETIME) }.commit()
         }
+        lastTokenClean = nowSeconds
+        return removed
     }
 
     public fun cleanChallenges() {
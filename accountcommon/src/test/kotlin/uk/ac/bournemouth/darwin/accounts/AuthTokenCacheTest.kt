@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.ac.bournemouth.darwin.accounts
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+/**
+ * Tests for the expiry of tokens in [AuthTokenCache]. The store emulates the token table, but (unlike the database)
+ * also returns expired tokens so that the checks of the cache itself are tested.
+ */
+class AuthTokenCacheTest {
+
+    private var now = 1_000_000_000_000L
+
+    private val store = FakeTokenStore()
+
+    private val cache = AuthTokenCache(store, 100, Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, Long.MAX_VALUE / 2) { now }
+
+    @AfterEach
+    fun closeCache() {
+        cache.close()
+    }
+
+    private val nowSeconds get() = now / 1000
+
+    @Test
+    fun testExpiredTokenIsRejected() {
+        store.tokens[TOKEN to ADDRESS] = TokenOwner(USER, null, nowSeconds - MAXTOKENLIFETIME - 1)
+
+        assertNull(cache.lookup(TOKEN, ADDRESS))
+
+        cache.flush()
+        assertTrue(store.recordedEpochs.isEmpty(), "Using an expired token should not be recorded")
+    }
+
+    @Test
+    fun testCachedTokenExpires() {
+        store.tokens[TOKEN to ADDRESS] = TokenOwner(USER, null, nowSeconds)
+        assertEquals(USER, cache.lookup(TOKEN, ADDRESS)?.user)
+        cache.flush()
+        assertEquals(nowSeconds, store.recordedEpochs.single()[TOKEN to ADDRESS])
+        store.recordedEpochs.clear()
+
+        // The token is not used for longer than its lifetime, the cache entry itself has not expired
+        now += (MAXTOKENLIFETIME + 1) * 1000L
+        val lookupsBefore = store.lookups
+        assertNull(cache.lookup(TOKEN, ADDRESS))
+        assertEquals(lookupsBefore + 1, store.lookups, "The expired entry should be looked up again")
+
+        cache.flush()
+        assertTrue(store.recordedEpochs.isEmpty(), "The flush should not revive the expired token")
+    }
+
+    @Test
+    fun testUseExtendsLifetime() {
+        store.tokens[TOKEN to ADDRESS] = TokenOwner(USER, null, nowSeconds)
+        assertNotNull(cache.lookup(TOKEN, ADDRESS))
+
+        now += (MAXTOKENLIFETIME - 10) * 1000L
+        assertNotNull(cache.lookup(TOKEN, ADDRESS))
+
+        now += 20 * 1000L
+        assertEquals(USER, cache.lookup(TOKEN, ADDRESS)?.user, "The token was used less than its lifetime ago")
+        assertEquals(1, store.lookups, "The token should have been served from the cache")
+    }
+
+    private class FakeTokenStore : TokenStore {
+        val tokens = mutableMapOf<Pair<String, String>, TokenOwner>()
+
+        val recordedEpochs = mutableListOf<Map<Pair<String, String>, Long>>()
+
+        var lookups = 0
+
+        override fun tokenOwner(token: String, remoteAddr: String): TokenOwner? {
+            ++lookups
+            return tokens[token to remoteAddr]
+        }
+
+        override fun userRoles(user: String): List<String> = listOf("user")
+
+        override fun recordUsage(tokenEpochs: Map<Pair<String, String>, Long>, keyUses: Map<Int, Long>): Int {
+            if (tokenEpochs.isNotEmpty()) recordedEpochs.add(tokenEpochs)
+            return tokenEpochs.size + keyUses.size
+        }
+
+        override fun removeExpiredTokens(): Int = 0
+    }
+
+    companion object {
+        private const val TOKEN = "token"
+        private const val ADDRESS = "127.0.0.1"
+        private const val USER = "user"
+    }
+}
@@ -6,6 +6,9 @@ CREATE TABLE `processmodels` (
   `pmhandle` BIGINT NOT NULL AUTO_INCREMENT,
   `owner` varchar(30) NOT NULL,
   `model` MEDIUMTEXT,
+  `uuid` varchar(36) NULL UNIQUE,
+  `compiled` MEDIUMBLOB NULL,
+  `name` varchar(100) NULL,
   INDEX ( `owner` ),
   PRIMARY KEY ( `pmhandle` )
 ) ENGINE=InnoDB CHARSET=utf8;
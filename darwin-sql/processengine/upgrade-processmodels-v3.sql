@@ -0,0 +1,3 @@
+-- Upgrade the processmodels table to schema version 3: store the binary (compiled) form of the models.
+-- Existing models keep a NULL binary form and are loaded from their xml until they are next updated.
+ALTER TABLE `processmodels` ADD COLUMN `compiled` MEDIUMBLOB NULL AFTER `uuid`;
@@ -0,0 +1,3 @@
+-- Upgrade the processmodels table to schema version 4: store the name of the models next to them.
+-- Existing models keep a NULL name, the engine reads the name from the model itself for those.
+ALTER TABLE `processmodels` ADD COLUMN `name` varchar(100) NULL AFTER `compiled`;
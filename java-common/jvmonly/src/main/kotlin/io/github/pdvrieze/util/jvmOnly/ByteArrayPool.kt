@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.pdvrieze.util.jvmOnly
+
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Pool of small scratch buffers for copying streams, so that handling a request does not need to allocate its own
+ * buffers. At most [MAX_POOLED] buffers are retained.
+ */
+object ByteArrayPool {
+
+    const val BUFFER_SIZE: Int = 8192
+
+    private const val MAX_POOLED = 64
+
+    private val buffers = ConcurrentLinkedQueue<ByteArray>()
+
+    private val pooled = AtomicInteger()
+
+    fun acquire(): ByteArray {
+        return buffers.poll()?.also { pooled.decrementAndGet() } ?: ByteArray(BUFFER_SIZE)
+    }
+
+    fun release(buffer: ByteArray) {
+        if (buffer.size != BUFFER_SIZE) return
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            buffers.offer(buffer)
+        } else {
+            pooled.decrementAndGet()
+        }
+    }
+
+    inline fun <R> withBuffer(action: (ByteArray) -> R): R {
+        val buffer = acquire()
+        try {
+            return action(buffer)
+        } finally {
+            release(buffer)
+        }
+    }
+}
+
+/**
+ * Copy the content of the stream to [out] using a pooled buffer.
+ * @return The amount of bytes copied.
+ */
+fun InputStream.copyPooled(out: OutputStream): Long = ByteArrayPool.withBuffer { buffer ->
+    var total = 0L
+    var count = read(buffer)
+    while (count >= 0) {
+        out.write(buffer, 0, count)
+        total += count
+        count = read(buffer)
+    }
+    total
+}
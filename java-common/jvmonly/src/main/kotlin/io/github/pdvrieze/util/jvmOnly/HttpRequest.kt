@@ -298,41 +298,20 @@ class HttpRequest(input: BufferedReader, var uri: String) {
 }
 
 
-private class BytesDatasource(
-    private val content: ByteArray,
-    private val name: String,
-    private val contentType: MimeType
-                             ) : DataSource {
-
-    @Throws(IOException::class)
-    override fun getOutputStream(): OutputStream {
-        throw UnsupportedOperationException()
-    }
-
-    override fun getName(): String {
-        return name
-    }
-
-    @Throws(IOException::class)
-    override fun getInputStream(): InputStream {
-        return ByteArrayInputStream(content)
-    }
-
-    override fun getContentType(): String {
-        return contentType.toString()
-    }
-}
-
-
-private fun toDataSource(content: ByteArrayOutputStream, name: String, contentType: MimeType): DataSource {
-    return BytesDatasource(content.toByteArray(), name, contentType)
+private fun toDataSource(content: SpoolingOutputStream, name: String, contentType: MimeType): DataSource {
+    return content.toDataSource(name, contentType.toString())
 }
 
 
+/**
+ * Parse multipart form data into the receiver. Parts larger than [spoolThreshold] bytes are kept in temporary files
+ * rather than in memory (see [SpoolingOutputStream]).
+ */
 fun <M : MutableMap<String, DataSource>> InputStream.parseMultipartFormDataTo(
     receiver: M,
     contentType: MimeType,
-    @Suppress("UNUSED_PARAMETER") encoding: String? = null
+    @Suppress("UNUSED_PARAMETER") encoding: String? = null,
+    spoolThreshold: Int = SpoolingOutputStream.DEFAULT_THRESHOLD
                                                                              ): M {
 
     val boundary = contentType.getParameter("boundary") ?: throw IllegalArgumentException(
@@ -351,7 +330,7 @@ fun <M : MutableMap<String, DataSource>> InputStream.parseMultipartFormDataTo(
         var curPos = 0 // We just optionally read a CRLF
         var stage = 2
         var contentDisposition: MimeType? = null
-        var content: ByteArrayOutputStream? = null
+        var content: SpoolingOutputStream? = null
         var wsBuffer: ByteArrayOutputStream? = null
         var headerLine: StringBuilder? = null
         var elementContentType = HttpRequest.TEXT_PLAIN
@@ -423,16 +402,16 @@ fun <M : MutableMap<String, DataSource>> InputStream.parseMultipartFormDataTo(
                 if (b == Const._CR.code) {
                     b = input.read()
                     if (b != Const._LF.code) {
-                        content?.close()
+                        content?.dispose()
                         throw IllegalArgumentException("Header lines should be separated by CRLF, not CR only")
                     }
                     if (headerLine == null) {
-                        content?.close()
+                        content?.dispose()
                         throw AssertionError("Headerline is null, but never should be")
                     }
                     if (headerLine.length == 0) {
                         headerLine = null
-                        content = ByteArrayOutputStream()
+                        content = SpoolingOutputStream(spoolThreshold)
                         stage = 0
                     } else {
                         val s = headerLine.toString()
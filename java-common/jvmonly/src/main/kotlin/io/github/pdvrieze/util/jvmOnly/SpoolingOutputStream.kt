@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.pdvrieze.util.jvmOnly
+
+import java.io.*
+import javax.activation.DataSource
+
+/**
+ * Output stream that keeps its content in memory until it grows beyond [threshold] bytes, after which the content is
+ * moved to a temporary file. The content can be read (repeatedly) after the stream has been closed. Use [dispose] to
+ * remove the temporary file.
+ */
+class SpoolingOutputStream(private val threshold: Int = DEFAULT_THRESHOLD) : OutputStream() {
+
+    private var memory: MemoryBuffer? = MemoryBuffer(minOf(threshold, ByteArrayPool.BUFFER_SIZE))
+
+    private var file: File? = null
+
+    private var fileStream: OutputStream? = null
+
+    private var closed = false
+
+    /** The amount of bytes written. */
+    var size: Long = 0L
+        private set
+
+    /** `true` if the content has been moved to a temporary file. */
+    val isSpooled: Boolean get() = file != null
+
+    override fun write(b: Int) {
+        reserve(1).write(b)
+        size++
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        reserve(len).write(b, off, len)
+        size += len
+    }
+
+    private fun reserve(count: Int): OutputStream {
+        if (closed) throw IOException("The stream has been closed")
+        fileStream?.let { return it }
+        val memory = memory!!
+        if (memory.size() + count <= threshold) return memory
+
+        val newFile = File.createTempFile("spool", ".tmp")
+        val out = BufferedOutputStream(FileOutputStream(newFile), ByteArrayPool.BUFFER_SIZE)
+        memory.writeTo(out)
+        this.memory = null
+        file = newFile
+        fileStream = out
+        return out
+    }
+
+    override fun flush() {
+        fileStream?.flush()
+    }
+
+    override fun close() {
+        if (!closed) {
+            closed = true
+            fileStream?.close()
+            fileStream = null
+        }
+    }
+
+    /** Open the content for reading. The stream is closed if that has not happened yet. */
+    fun openInputStream(): InputStream {
+        close()
+        file?.let { return BufferedInputStream(FileInputStream(it), ByteArrayPool.BUFFER_SIZE) }
+        return memory?.openInputStream() ?: throw IOException("The content has been disposed")
+    }
+
+    /** Create a data source that reads the content. Closing the data source disposes of the content. */
+    fun toDataSource(name: String?, contentType: String?): DataSource = SpooledDataSource(this, name, contentType)
+
+    /** Release the content, removing the temporary file if there is one. */
+    fun dispose() {
+        close()
+        memory = null
+        file?.delete()
+        file = null
+    }
+
+    /** Buffer that can be read without copying. It is only read once the spool is closed, so it no longer changes. */
+    private class MemoryBuffer(initialSize: Int) : ByteArrayOutputStream(initialSize) {
+        fun openInputStream(): InputStream = ByteArrayInputStream(buf, 0, count)
+    }
+
+    private class SpooledDataSource(
+        private val spool: SpoolingOutputStream,
+        private val name: String?,
+        private val contentType: String?
+    ) : DataSource, AutoCloseable {
+
+        override fun getInputStream(): InputStream = spool.openInputStream()
+
+        override fun close() = spool.dispose()
+
+        override fun getOutputStream(): OutputStream = throw UnsupportedOperationException()
+
+        override fun getContentType(): String? = contentType
+
+        override fun getName(): String? = name
+
+        override fun toString(): String {
+            return "SpooledDataSource [name=$name, contentType=$contentType, size=${spool.size}]"
+        }
+    }
+
+    companion object {
+        /** Content larger than this is moved to disk. */
+        const val DEFAULT_THRESHOLD: Int = 64 * 1024
+
+        /** Read all of the stream into a (closed) spool. */
+        fun spool(input: InputStream, threshold: Int = DEFAULT_THRESHOLD): SpoolingOutputStream {
+            return SpoolingOutputStream(threshold).also { spool ->
+                spool.use { input.copyPooled(it) }
+            }
+        }
+    }
+}
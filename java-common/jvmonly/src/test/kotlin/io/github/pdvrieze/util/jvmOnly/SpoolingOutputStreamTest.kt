@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.pdvrieze.util.jvmOnly
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.IOException
+
+class SpoolingOutputStreamTest {
+
+    private fun content(size: Int) = ByteArray(size) { (it % 251).toByte() }
+
+    @Test
+    fun testContentUpToThresholdStaysInMemory() {
+        val data = content(THRESHOLD)
+        val spool = SpoolingOutputStream.spool(data.inputStream(), THRESHOLD)
+        assertFalse(spool.isSpooled)
+        assertEquals(THRESHOLD.toLong(), spool.size)
+        assertArrayEquals(data, spool.openInputStream().use { it.readBytes() })
+        spool.dispose()
+    }
+
+    @Test
+    fun testContentBeyondThresholdIsSpooled() {
+        val data = content(THRESHOLD + 1)
+        val spool = SpoolingOutputStream(THRESHOLD)
+        spool.write(data, 0, THRESHOLD)
+        assertFalse(spool.isSpooled)
+        spool.write(data[THRESHOLD].toInt())
+        assertTrue(spool.isSpooled)
+        spool.close()
+
+        assertEquals(data.size.toLong(), spool.size)
+        assertArrayEquals(data, spool.openInputStream().use { it.readBytes() })
+        spool.dispose()
+    }
+
+    @Test
+    fun testReadRepeatedlyAfterClose() {
+        for (size in intArrayOf(THRESHOLD / 2, THRESHOLD * 3)) {
+            val data = content(size)
+            val spool = SpoolingOutputStream.spool(data.inputStream(), THRESHOLD)
+            assertThrows<IOException> { spool.write(1) }
+            val first = spool.openInputStream()
+            val second = spool.openInputStream()
+            assertArrayEquals(data, second.use { it.readBytes() })
+            assertArrayEquals(data, first.use { it.readBytes() })
+            spool.dispose()
+        }
+    }
+
+    @Test
+    fun testDisposedContentCannotBeRead() {
+        for (size in intArrayOf(THRESHOLD / 2, THRESHOLD * 3)) {
+            val spool = SpoolingOutputStream.spool(content(size).inputStream(), THRESHOLD)
+            spool.dispose()
+            assertThrows<IOException> { spool.openInputStream() }
+        }
+    }
+
+    companion object {
+        private const val THRESHOLD = 1024
+    }
+}
@@ -16,15 +16,14 @@
 
 package net.devrieze.util
 
-import net.devrieze.util.CachingHandleMap.WrappingIterator
 import nl.adaptivity.util.multiplatform.*
 import nl.adaptivity.util.net.devrieze.util.HasForEach
 import nl.adaptivity.util.net.devrieze.util.MutableHasForEach
 
 
 /**
- * A [HandleMap] that caches its results. Note that the [remove][WrappingIterator.remove] method on the iterator is not
- * efficient if the elements do not implement Handle as it will loop through the cache to find the underlying value.
+ * A [HandleMap] that caches its results. The cache itself is a [HandleCache], a hashed least recently used cache.
+ * Entries stored as part of a transaction are invalidated when that transaction is rolled back.
 
  * @author Paul de Vrieze
  *
@@ -32,14 +31,22 @@ import nl.adaptivity.util.net.devrieze.util.MutableHasForEach
  * @param T The transaction type that is used
  * @property delegate The underlying handlemap
  * @param cacheSize How many elements should be stored in the cache
+ * @param groupOf Function that determines the group of a cached value for [invalidateCacheGroup], or `null`.
  * @property handleAssigner Function that may update the value. If it returns null, the value will not be cached.
  */
 open class CachingHandleMap<V : Any, T : Transaction>(
     protected open val delegate: MutableTransactionedHandleMap<V, T>,
     cacheSize: Int,
+    groupOf: ((V) -> Long?)?,
     val handleAssigner: (T, V, Handle<V>) -> V?
 ) : AbstractTransactionedHandleMap<V, T>(), Closeable, AutoCloseable {
 
+    constructor(
+        delegate: MutableTransactionedHandleMap<V, T>,
+        cacheSize: Int,
+        handleAssigner: (T, V, Handle<V>) -> V?
+    ) : this(delegate, cacheSize, null, handleAssigner)
+
     constructor(
         delegate: MutableTransactionedHandleMap<V, T>,
         cacheSize: Int
@@ -77,16 +84,12 @@ open class CachingHandleMap<V : Any, T : Transaction>(
         }
     }
 
-    private var cacheHead = 0
-    internal val cacheHandles: LongArray
-    internal val cacheValues: Array<V?>
+    private val cache = HandleCache(cacheSize, groupOf = groupOf)
     private val pendingHandles: MutableSet<Handle<V>> = createCachingMapHandleSet()
 
-    init {
-        cacheHandles = LongArray(cacheSize)
-        @Suppress("UNCHECKED_CAST")
-        cacheValues = arrayOfNulls<Any>(cacheSize) as Array<V?>
-    }
+    /** The hit, miss and eviction counters of the cache. */
+    val cacheStats: HandleCache.Stats
+        get() = cache.stats()
 
     override fun <W : V> put(transaction: T, value: W): Handle<W> {
         val handle = delegate.put(transaction, value)
@@ -105,7 +108,18 @@ open class CachingHandleMap<V : Any, T : Transaction>(
         }
     }
 
-    private fun putCache(transaction: T, handle: Handle<V>, nonUpdatedValue: V?) {
+    /**
+     * Cache values that were loaded from the delegate in bulk, bypassing [get]. Values that are already cached are
+     * left alone as those may be newer than what was loaded.
+     */
+    fun cacheLoaded(transaction: T, values: Iterable<V>) {
+        for (value in values) {
+            val handle = (value as? ReadableHandleAware<*>)?.handle ?: continue
+            if (cache.peek(handle.handleValue) == null) putCache(transaction, value)
+        }
+    }
+
+    private fun putCache(transaction: T, handle: Handle<V>, nonUpdatedValue: V?, stamp: Long = -1L) {
         if (nonUpdatedValue != null) { // never store null
             if (handle.isValid) {
                 val updatedValue = handleAssigner(transaction, nonUpdatedValue, handle)
@@ -116,17 +130,8 @@ open class CachingHandleMap<V : Any, T : Transaction>(
                         updatedValue.handle != handle)
                 ) return
 
-                synchronizedCompat(cacheHandles) {
+                if (cache.put(handle.handleValue, updatedValue, stamp)) {
                     transaction.addRollbackHandler { invalidateCache(handle) }
-                    val pos = cacheHead
-                    val handleValue = handle.handleValue
-                    if (cacheHandles[pos] != handleValue) {
-                        removeFromCache(handleValue)
-                    }
-                    cacheHandles[pos] = handleValue
-                    cacheValues[pos] = updatedValue
-                    cacheHead = (pos + 1) % cacheValues.size
-
                 }
             }
         }
@@ -141,32 +146,21 @@ open class CachingHandleMap<V : Any, T : Transaction>(
         }
     }
 
-    private fun getFromCache(handle: Long): V? {
-        synchronizedCompat(cacheHandles) {
-            for (i in cacheHandles.indices) {
-                if (cacheHandles[i] == handle) {
-                    return cacheValues[i]
-                }
-            }
-            return null
-        }
-    }
-
     override fun get(transaction: T, handle: Handle<V>): V? {
         if (!handle.isValid) return null
-        var value: V?
-        synchronizedCompat(cacheHandles) {
-            value = getFromCache(handle.handleValue)
-            if (value != null) {
-                return value
-            }
-            value = delegate[transaction, handle]
-            return value?.apply { storeInCache(transaction, handle, this) }
-        }
+        val handleValue = handle.handleValue
+        cache[handleValue]?.let { return it }
+
+        // Loading happens outside of any lock. The stamp makes sure that a value loaded concurrently with an
+        // invalidation of the same segment is not cached.
+        val stamp = cache.stamp(handleValue)
+        val value = delegate[transaction, handle] ?: return null
+        if (!isPending(handle)) putCache(transaction, handle, value, stamp)
+        return value
     }
 
     override fun contains(transaction: T, handle: Handle<V>): Boolean {
-        if (getFromCache(handle.handleValue) != null) {
+        if (cache.peek(handle.handleValue) != null) {
             return true
         }
         return delegate.contains(transaction, handle)
@@ -181,31 +175,23 @@ open class CachingHandleMap<V : Any, T : Transaction>(
     }
 
     override fun set(transaction: T, handle: Handle<V>, value: V): V? {
+        // The cache is shared between transactions, so a cached value is not necessarily what this transaction sees as
+        // stored. The delegate reads the old value itself (within the transaction) to determine what changed.
         invalidateCache(handle)
         delegate[transaction, handle] = value
-        return storeInCache(transaction, handle, delegate[transaction, handle] as V)
+        return storeInCache(transaction, handle, value)
     }
 
     private fun storeInCache(transaction: T, pHandle: Handle<V>, pV: V): V {
         if (!isPending(pHandle)) {
-            val handle = pHandle.handleValue
-            synchronizedCompat(cacheHandles) {
-                removeFromCache(handle) // remove whatever old value was there
-                putCache(transaction, pHandle, pV)
-            }
+            cache.remove(pHandle.handleValue) // remove whatever old value was there
+            putCache(transaction, pHandle, pV)
         }
         return pV
     }
 
     private fun removeFromCache(handle: Long) {
-        for (i in cacheHandles.indices) {
-            if (cacheHandles[i] == handle) {
-                cacheHandles[i] = -1
-                cacheValues[i] = null
-                assert(getFromCache(handle) == null)
-                return
-            }
-        }
+        cache.remove(handle)
     }
 
     private fun isPending(handle: Handle<V>): Boolean {
@@ -217,11 +203,23 @@ open class CachingHandleMap<V : Any, T : Transaction>(
     }
 
     override fun invalidateCache() {
-        synchronizedCompat(cacheHandles) {
-            cacheHandles.fill(-1)
-            cacheValues.fill(null)
-            cacheHead = 0
-        }
+        cache.clear()
+    }
+
+    /** Get the cached value for the handle, if any, without loading it or affecting the cache counters. */
+    fun peek(handle: Handle<V>): V? = cache.peek(handle.handleValue)
+
+    /**
+     * Invalidate all cached values in the group. Unlike [invalidateCacheWhere] this does not visit the entire cache, but
+     * the map must have been created with a group function.
+     */
+    fun invalidateCacheGroup(group: Long) {
+        cache.removeGroup(group)
+    }
+
+    /** Invalidate all cached values that match the predicate. */
+    fun invalidateCacheWhere(predicate: (V) -> Boolean) {
+        cache.removeIf(predicate)
     }
 
     @Deprecated("")
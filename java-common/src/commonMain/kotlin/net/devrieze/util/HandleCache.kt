@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package net.devrieze.util
+
+import nl.adaptivity.util.multiplatform.synchronizedCompat
+
+/**
+ * A least recently used cache keyed by handle value. The cache is split into independently locked segments so that
+ * lookups of different handles do not contend on a single lock. Each segment keeps a hash map for lookup and an access
+ * ordered linked list for eviction, so all operations are constant time.
+ *
+ * @param capacity The maximum amount of elements kept in the cache. A capacity of 0 disables caching.
+ * @param segmentCount The amount of segments. This is rounded up to a power of two.
+ * @param groupOf Optional function that determines the group of a value. When given, each segment keeps an index of
+ *   the handles per group so that [removeGroup] does not need to visit every element.
+ */
+class HandleCache<V : Any>(
+    val capacity: Int,
+    segmentCount: Int = defaultSegmentCount(capacity),
+    private val groupOf: ((V) -> Long?)? = null
+) {
+
+    /**
+     * Snapshot of the counters of a cache.
+     */
+    class Stats(val hits: Long, val misses: Long, val evictions: Long, val size: Int, val capacity: Int) {
+        val hitRate: Double
+            get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+
+        override fun toString(): String {
+            return "Stats(hits=$hits, misses=$misses, evictions=$evictions, size=$size/$capacity)"
+        }
+    }
+
+    private class Entry<V>(val handle: Long, var value: V) {
+        var group: Long? = null
+        var prev: Entry<V>? = null
+        var next: Entry<V>? = null
+    }
+
+    private class Segment<V : Any>(val capacity: Int, private val groupOf: ((V) -> Long?)?) {
+        private val entries = HashMap<Long, Entry<V>>()
+
+        /** The handles of the entries in each group, only maintained if there is a group function. */
+        private val groups = HashMap<Long, MutableSet<Long>>()
+
+        /** Most recently used entry */
+        private var head: Entry<V>? = null
+
+        /** Least recently used entry, the first candidate for eviction */
+        private var tail: Entry<V>? = null
+
+        var hits: Long = 0L
+        var misses: Long = 0L
+        var evictions: Long = 0L
+
+        /** Incremented whenever an element is removed, this allows detecting invalidation during a load. */
+        var removals: Long = 0L
+
+        val size: Int get() = entries.size
+
+        fun get(handle: Long): V? = synchronizedCompat(this) {
+            val entry = entries[handle]
+            if (entry == null) {
+                misses++
+                null
+            } else {
+                hits++
+                moveToFront(entry)
+                entry.value
+            }
+        }
+
+        fun peek(handle: Long): V? = synchronizedCompat(this) { entries[handle]?.value }
+
+        fun stamp(): Long = synchronizedCompat(this) { removals }
+
+        fun put(handle: Long, value: V, stamp: Long): Boolean = synchronizedCompat(this) {
+            if (stamp >= 0 && stamp != removals) return@synchronizedCompat false
+
+            val existing = entries[handle]
+            if (existing != null) {
+                unindex(existing)
+                existing.value = value
+                index(existing)
+                moveToFront(existing)
+            } else {
+                if (entries.size >= capacity) {
+                    tail?.let { lru ->
+                        unlink(lru)
+                        unindex(lru)
+                        entries.remove(lru.handle)
+                        evictions++
+                    }
+                }
+                val entry = Entry(handle, value)
+                entries[handle] = entry
+                index(entry)
+                linkFront(entry)
+            }
+            true
+        }
+
+        fun remove(handle: Long): Unit = synchronizedCompat(this) {
+            entries.remove(handle)?.let { unlink(it); unindex(it) }
+            removals++
+        }
+
+        fun removeGroup(group: Long): Unit = synchronizedCompat(this) {
+            val handles = groups.remove(group) ?: return@synchronizedCompat
+            for (handle in handles) {
+                entries.remove(handle)?.let { unlink(it) }
+            }
+            removals++
+        }
+
+        fun removeIf(predicate: (V) -> Boolean): Unit = synchronizedCompat(this) {
+            val iterator = entries.values.iterator()
+            var removed = false
+            while (iterator.hasNext()) {
+                val entry = iterator.next()
+                if (predicate(entry.value)) {
+                    iterator.remove()
+                    unlink(entry)
+                    unindex(entry)
+                    removed = true
+                }
+            }
+            if (removed) removals++
+        }
+
+        fun clear(): Unit = synchronizedCompat(this) {
+            entries.clear()
+            groups.clear()
+            head = null
+            tail = null
+            removals++
+        }
+
+        private fun index(entry: Entry<V>) {
+            val group = groupOf?.invoke(entry.value) ?: return
+            entry.group = group
+            groups.getOrPut(group) { HashSet() }.add(entry.handle)
+        }
+
+        private fun unindex(entry: Entry<V>) {
+            val group = entry.group ?: return
+            entry.group = null
+            val handles = groups[group] ?: return
+            handles.remove(entry.handle)
+            if (handles.isEmpty()) groups.remove(group)
+        }
+
+        private fun moveToFront(entry: Entry<V>) {
+            if (head === entry) return
+            unlink(entry)
+            linkFront(entry)
+        }
+
+        private fun linkFront(entry: Entry<V>) {
+            entry.prev = null
+            entry.next = head
+            head?.prev = entry
+            head = entry
+            if (tail == null) tail = entry
+        }
+
+        private fun unlink(entry: Entry<V>) {
+            val prev = entry.prev
+            val next = entry.next
+            if (prev == null) head = next else prev.next = next
+            if (next == null) tail = prev else next.prev = prev
+            entry.prev = null
+            entry.next = null
+        }
+    }
+
+    private val segments: Array<Segment<V>>
+
+    private val segmentMask: Int
+
+    init {
+        require(capacity >= 0) { "The cache capacity can not be negative" }
+        var count = 1
+        while (count < segmentCount.coerceIn(1, maxOf(1, capacity))) count = count shl 1
+        segmentMask = count - 1
+        val segmentCapacity = (capacity + count - 1) / count
+        segments = Array(count) { Segment(segmentCapacity, groupOf) }
+    }
+
+    private fun segmentFor(handle: Long): Segment<V> {
+        // Handles are mostly sequential, spread them so that neighbours end up in different segments.
+        val h = (handle xor (handle ushr 32)).toInt()
+        val spread = h xor (h ushr 16)
+        return segments[spread and segmentMask]
+    }
+
+    /** Look up the value for the handle, recording a hit or miss and marking it as recently used. */
+    operator fun get(handle: Long): V? {
+        if (capacity == 0) return null
+        return segmentFor(handle).get(handle)
+    }
+
+    /** Look up the value without affecting the counters or the eviction order. */
+    fun peek(handle: Long): V? {
+        if (capacity == 0) return null
+        return segmentFor(handle).peek(handle)
+    }
+
+    /**
+     * Get a stamp that can be passed to [put] to only store the value if no removal happened in the meanwhile.
+     * This is used to avoid caching values loaded concurrently with an invalidation.
+     */
+    fun stamp(handle: Long): Long = segmentFor(handle).stamp()
+
+    /**
+     * Store the value in the cache, evicting the least recently used element of the segment if needed.
+     *
+     * @param stamp The result of [stamp] taken before loading the value, or `-1` to store unconditionally.
+     * @return `true` if the value was stored.
+     */
+    fun put(handle: Long, value: V, stamp: Long = -1L): Boolean {
+        if (capacity == 0) return false
+        return segmentFor(handle).put(handle, value, stamp)
+    }
+
+    fun remove(handle: Long) {
+        segmentFor(handle).remove(handle)
+    }
+
+    /** Remove all values matching the predicate. This visits every element, so it is linear in the cache size. */
+    fun removeIf(predicate: (V) -> Boolean) {
+        for (segment in segments) segment.removeIf(predicate)
+    }
+
+    /**
+     * Remove all values in the given group. This only visits the values of the group (and each segment once), but
+     * requires the cache to have been created with a group function.
+     */
+    fun removeGroup(group: Long) {
+        check(groupOf != null) { "The cache has no group function" }
+        for (segment in segments) segment.removeGroup(group)
+    }
+
+    fun clear() {
+        for (segment in segments) segment.clear()
+    }
+
+    val size: Int get() = segments.sumOf { it.size }
+
+    /** Get a snapshot of the cache counters. */
+    fun stats(): Stats {
+        var hits = 0L
+        var misses = 0L
+        var evictions = 0L
+        var size = 0
+        for (segment in segments) {
+            synchronizedCompat(segment) {
+                hits += segment.hits
+                misses += segment.misses
+                evictions += segment.evictions
+                size += segment.size
+            }
+        }
+        return Stats(hits, misses, evictions, size, capacity)
+    }
+
+    companion object {
+        /** Small caches use a single segment, larger ones one segment for every 64 elements up to 16 segments. */
+        fun defaultSegmentCount(capacity: Int): Int = (capacity / 64).coerceIn(1, 16)
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2018.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package net.devrieze.util
+
+import nl.adaptivity.util.multiplatform.synchronizedCompat
+
+/**
+ * A pool of reusable objects that are expensive to create but not thread safe, such as compiled XPath expressions.
+ * Each object is used by one caller at a time. Unlike a thread local the pooled objects are shared by all threads, so
+ * the pool stays effective when work runs on many short lived (virtual) threads.
+ *
+ * @param maxIdle The maximum amount of idle objects kept, objects returned to a full pool are dropped.
+ * @param create Function to create a new object when none is idle.
+ */
+class ObjectPool<T : Any>(private val maxIdle: Int, private val create: () -> T) {
+
+    private val idle = ArrayDeque<T>()
+
+    /** Run [body] with an object from the pool. The object must not be used after [body] returns. */
+    fun <R> use(body: (T) -> R): R {
+        val element = synchronizedCompat(idle) { idle.removeLastOrNull() } ?: create()
+        try {
+            return body(element)
+        } finally {
+            synchronizedCompat(idle) { if (idle.size < maxIdle) idle.addLast(element) }
+        }
+    }
+
+    companion object {
+        /** A reasonable amount of idle objects for a pool shared by the worker threads of a server. */
+        const val DEFAULT_MAX_IDLE = 16
+    }
+}
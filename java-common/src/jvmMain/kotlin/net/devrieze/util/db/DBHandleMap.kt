@@ -16,7 +16,9 @@
 
 package net.devrieze.util.db
 
+import io.github.pdvrieze.kotlinsql.ddl.Column
 import io.github.pdvrieze.kotlinsql.ddl.Database
+import io.github.pdvrieze.kotlinsql.ddl.IColumnType
 import io.github.pdvrieze.kotlinsql.monadic.DBReceiver
 import io.github.pdvrieze.kotlinsql.monadic.actions.DBAction
 import io.github.pdvrieze.kotlinsql.monadic.actions.mapSeq
@@ -94,6 +96,32 @@ open class DBHandleMap<TMP, V : Any, TR : MonadicDBTransaction<DB>, DB : Databas
         }
     }
 
+    /**
+     * Get all elements with the given value for a (foreign key) column. The builders are created together through
+     * [ElementFactory.createBuilders] and finished together through [ElementFactory.createFromBuilders], so that
+     * factories can load related data in bulk rather than per element.
+     */
+    fun <K : Any, S : IColumnType<K, S, C>, C : Column<K, S, C>> getAll(
+        dbReceiver: DBReceiver<DB>,
+        foreignKeyColumn: C,
+        key: K
+    ): DBAction<DB, List<V>> {
+        dbReceiver.transaction {
+            return elementFactory.createBuilders(this, foreignKeyColumn, key)
+                .then { builders -> createAll(this, builders) }
+        }
+    }
+
+    /**
+     * Finish the given (already created) builders in one go. This is for subclasses that have a more efficient way
+     * of creating the builders than a row at a time.
+     */
+    protected fun createAll(dbReceiver: DBReceiver<DB>, builders: List<TMP>): DBAction<DB, List<V>> {
+        dbReceiver.transaction {
+            return elementFactory.createFromBuilders(this, FactoryAccess(), builders)
+        }
+    }
+
     fun castOrGet(handle: Handle<V>): V? = withDB { dbReceiver ->
         castOrGet(dbReceiver, handle)
     }
@@ -114,6 +142,10 @@ open class DBHandleMap<TMP, V : Any, TR : MonadicDBTransaction<DB>, DB : Databas
         set(dbReceiver, handle, value)
     }
 
+    /**
+     * Store the value. The old value is read within the transaction, values from caches shared between transactions
+     * may not be what is stored. It is passed to the element factory so that only the changed data is written.
+     */
     @Throws(SQLException::class)
     override fun set(transaction: TR, handle: Handle<V>, value: V): V? {
 
@@ -146,13 +178,17 @@ open class DBHandleMap<TMP, V : Any, TR : MonadicDBTransaction<DB>, DB : Databas
 
         return dbReceiver.transaction {
             val tr = this
-            UPDATE { elementFactory.store(this, newValueWithHandle) }
-                .WHERE { elementFactory.filter(this) AND elementFactory.getHandleCondition(this, handle) }
-                .then {
-                    elementFactory.postStore(tr, handle, oldValue, newValueWithHandle)
-                        .then(value(oldValue))
+            val updateAction: DBAction<DB, Any?> = when {
+                oldValue != null && !elementFactory.isStoredRowChanged(oldValue, newValueWithHandle) -> value(Unit)
 
-                }
+                else -> UPDATE { elementFactory.store(this, newValueWithHandle) }
+                    .WHERE { elementFactory.filter(this) AND elementFactory.getHandleCondition(this, handle) }
+            }
+            updateAction.then {
+                elementFactory.postStore(tr, handle, oldValue, newValueWithHandle)
+                    .then(value(oldValue))
+
+            }
         }
     }
 
@@ -34,6 +34,7 @@ package net.devrieze.util.db
 
 import io.github.pdvrieze.kotlinsql.ddl.Column
 import io.github.pdvrieze.kotlinsql.ddl.Database
+import io.github.pdvrieze.kotlinsql.ddl.IColumnType
 import io.github.pdvrieze.kotlinsql.ddl.Table
 import io.github.pdvrieze.kotlinsql.dml.Insert
 import io.github.pdvrieze.kotlinsql.dml.WhereClause
@@ -81,6 +82,36 @@ interface ElementFactory<BUILDER, T : Any, in TR: MonadicDBTransaction<DB>, DB:
     @Throws(SQLException::class)
     fun createBuilder(transaction: TR, row: SelectResultSetRow<_ListSelect>): DBAction<DB, BUILDER>
 
+    /**
+     * Hook to create the builders of all elements with the given value for a (foreign key) column. Factories that
+     * need related data for each builder can override this to load that data for all of them with a query each. By
+     * default this selects the elements with a single query and invokes [createBuilder] for each row.
+     *
+     * @param transaction The connection to use
+     *
+     * @param foreignKeyColumn The column to select the elements on.
+     *
+     * @param key The value of the column for the wanted elements.
+     *
+     * @throws SQLException When something goes wrong.
+     */
+    @Throws(SQLException::class)
+    fun <K : Any, S : IColumnType<K, S, C>, C : Column<K, S, C>> createBuilders(
+        transaction: TR,
+        foreignKeyColumn: C,
+        key: K
+    ): DBAction<DB, List<BUILDER>> {
+        return with(transaction) {
+            SELECT(createColumns)
+                .WHERE { (foreignKeyColumn eq key) AND filter(this) }
+                .flatMapEach { row ->
+                    sequence {
+                        yield(createBuilder(transaction, row))
+                    }.asIterable()
+                }
+        }
+    }
+
     /**
      * Hook to allow for subsequent queries to update the intermediate.
      *
@@ -94,6 +125,28 @@ interface ElementFactory<BUILDER, T : Any, in TR: MonadicDBTransaction<DB>, DB:
     @Throws(SQLException::class)
     fun createFromBuilder(transaction: TR, setAccess: DbSet.DBSetAccess<BUILDER>, builder: BUILDER): DBAction<DB, T>
 
+    /**
+     * Hook to finish a batch of builders at once. Factories that load related data in [createFromBuilder] can
+     * override this to load that data for all builders with a single query. By default this just invokes
+     * [createFromBuilder] for each builder.
+     *
+     * @param transaction The connection to use
+     *
+     * @param builders The builders that have been created.
+     *
+     * @throws SQLException When something goes wrong.
+     */
+    @Throws(SQLException::class)
+    fun createFromBuilders(
+        transaction: TR,
+        setAccess: DbSet.DBSetAccess<BUILDER>,
+        builders: List<BUILDER>
+    ): DBAction<DB, List<T>> {
+        return with(transaction) {
+            value(builders).flatMap { bs -> bs.map { builder -> createFromBuilder(transaction, setAccess, builder) } }
+        }
+    }
+
     /**
      * Get an SQL condition that would select the given object.
      * @param instance
@@ -182,4 +235,10 @@ interface ElementFactory<BUILDER, T : Any, in TR: MonadicDBTransaction<DB>, DB:
      * Determine whether the two values are equal as far as storage is concerned. By default only on object identity
      */
     fun isEqualForStorage(oldValue: T?, newValue: T): Boolean = (oldValue === newValue)
+
+    /**
+     * Determine whether the columns written by [store] differ between the two values. If they do not, the update
+     * statement is skipped and only [postStore] is invoked. By default the row is always considered changed.
+     */
+    fun isStoredRowChanged(oldValue: T, newValue: T): Boolean = true
 }
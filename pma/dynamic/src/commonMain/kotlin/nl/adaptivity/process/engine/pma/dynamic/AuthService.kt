@@ -27,7 +27,7 @@ import nl.adaptivity.process.engine.pma.models.*
 import nl.adaptivity.process.engine.processModel.PNIHandle
 import nl.adaptivity.process.engine.processModel.SecureProcessNodeInstance
 import nl.adaptivity.util.multiplatform.PrincipalCompat
-import nl.adaptivity.util.nl.adaptivity.util.kotlin.removeIfTo
+import nl.adaptivity.util.multiplatform.synchronizedCompat
 import kotlin.random.Random
 import kotlin.random.nextUInt
 
@@ -42,44 +42,45 @@ class AuthService(
         ServiceId("${serviceName.serviceName}:${random.nextUInt().toString(16)}")
 
     private val registeredClients = mutableMapOf<String, ClientInfo>()
-    private val authorizationCodes = mutableMapOf<AuthorizationCode, PmaAuthToken>()
-    private val activeTokens = mutableListOf<PmaAuthToken>()
+    private val tokens = PmaTokenStore()
     private val globalPermissions =
         mutableMapOf<String, MutableMap<String, AuthScope>>()
 
-    private val tokenPermissions = mutableMapOf<String, MutableList<PermissionScopeHolder>>()
-
     init {
         registeredClients[adminUser.id] = ClientInfo(adminUser.id, adminUser.id, adminUser.secret)
         globalPermissions[adminUser.id] = mutableMapOf(serviceInstanceId.serviceId to ADMIN)
     }
 
-    private fun doLog(authInfo: PmaAuthInfo?, message: String) {
-        when (authInfo) {
+    /** Log an audit message. The message is only created when it is actually logged. */
+    private inline fun doLog(authInfo: PmaAuthInfo?, message: () -> String) {
+        if (!logger.isLoggable(Level.INFO)) return
+        val prefix = when (authInfo) {
             is PmaAuthToken -> {
                 val processNodeInstance = authInfo.nodeInstanceHandle
                 val nodeId = nodeLookup[processNodeInstance] ?: "<unknown node>"
-                logger.log(
-                    Level.INFO,
-                    "[$nodeId:${processNodeInstance.handleValue}>${authInfo.principal.name}] - $message"
-                )
+                "[$nodeId:${processNodeInstance.handleValue}>${authInfo.principal.name}]"
             }
 
-            is PmaIdSecretAuthInfo -> logger.log(Level.INFO, "[GLOBAL>${authInfo.principal.name}] - $message")
-            null -> logger.log(Level.INFO, "[UNAUTH] - $message")
-            else -> logger.log(Level.INFO, "[GLOBAL>${authInfo}] - $message")
+            is PmaIdSecretAuthInfo -> "[GLOBAL>${authInfo.principal.name}]"
+            null -> "[UNAUTH]"
+            else -> "[GLOBAL>${authInfo}]"
         }
+        logger.log(Level.INFO, "$prefix - ${message()}")
     }
 
-    private fun doLog(message: String) {
-        logger.log(Level.INFO, "[UNAUTH] - $message")
+    private inline fun doLog(message: () -> String) {
+        if (logger.isLoggable(Level.INFO)) logger.log(Level.INFO, "[UNAUTH] - ${message()}")
+    }
+
+    private fun globalScope(principalName: String, serviceId: String): AuthScope? = synchronizedCompat(globalPermissions) {
+        globalPermissions[principalName]?.get(serviceId)
     }
 
     private fun effectiveUserScope(principal: PrincipalCompat, targetService: ServiceId<*>): AuthScope {
         if (principal is PmaAuthToken.Principal) {
             return effectiveUserScope(principal.token, targetService)
         } else {
-            return globalPermissions[principal.name]?.get(targetService) ?: EMPTYSCOPE
+            return globalScope(principal.name, targetService.serviceId) ?: EMPTYSCOPE
         }
     }
 
@@ -96,16 +97,13 @@ class AuthService(
 
     private fun effectiveUserScope(authToken: PmaAuthToken, targetService: ServiceId<*>): AuthScope {
         when {
-            authToken !in activeTokens -> throw AuthorizationException("The token $authToken is no longer valid")
+            authToken !in tokens -> throw AuthorizationException("The token $authToken is no longer valid")
             targetService != authToken.serviceId -> throw AuthorizationException("The token $authToken is not for service $targetService")
         }
 
-        val tokenScope =
-            (tokenPermissions[authToken.token]?.fold(authToken.scope) { l: AuthScope, r -> l.union(r.scope) }
-                ?: authToken.scope)
-
-        return globalPermissions[authToken.principal.name]?.get(targetService)?.union(tokenScope)
-            ?: tokenScope
+        return tokens.effectiveScope(authToken, targetService) {
+            globalScope(authToken.principal.name, targetService.serviceId)
+        }
     }
 
     private fun validateAuthInfo(
@@ -116,10 +114,9 @@ class AuthService(
         when (authInfo) {
             is PmaIdSecretAuthInfo -> validateUserPermission(authInfo, serviceId, scope)
             is PmaAuthToken -> validateAuthTokenPermission(authInfo, serviceId, scope)
-            else -> doLog(
-                authInfo,
+            else -> doLog(authInfo) {
                 "validateAuthInfo(clientId = $serviceId, authInfo = $authInfo, scope = $scope)"
-            )
+            }
         }
     }
 
@@ -137,10 +134,9 @@ class AuthService(
         if (!effectiveScope.includes(useScope)) {
             throw AuthorizationException("No permission found for token $authToken to $serviceId.${useScope.description}")
         }
-        doLog(
-            authToken,
+        doLog(authToken) {
             "validateTokenPermissions(clientId = $serviceId, token = $authToken, scope = ${useScope.description})"
-        )
+        }
     }
 
     private fun validateUserPermission(
@@ -149,8 +145,9 @@ class AuthService(
         useScope: UseAuthScope
     ) {
         val principal = authInfo.principal
-        if (registeredClients[principal.name]?.secret != authInfo.secret) {
-            throw AuthorizationException("Password mismatch for client $principal (${registeredClients[principal.name]?.secret} != ${authInfo.secret})")
+        val registeredSecret = synchronizedCompat(registeredClients) { registeredClients[principal.name]?.secret }
+        if (registeredSecret != authInfo.secret) {
+            throw AuthorizationException("Password mismatch for client $principal ($registeredSecret != ${authInfo.secret})")
         }
         if (useScope == IDENTIFY) return // Username/password always includes identification. Shortcircuit this case.
 
@@ -159,12 +156,9 @@ class AuthService(
             throw AuthorizationException("No permission found for token $principal to $serviceId.${useScope.description}")
         }
 
-        val source =
-            Throwable().stackTrace[2].let { "${it.className.substringAfterLast('.')}.${it.methodName.substringBefore('-')}" }
-        doLog(
-            authInfo,
-            "validateUserPermissions(serviceId = $serviceId, idSecret = $authInfo, scope = ${useScope.description}) from $source"
-        )
+        doLog(authInfo) {
+            "validateUserPermissions(serviceId = $serviceId, idSecret = $authInfo, scope = ${useScope.description})"
+        }
     }
 
     private fun createPmaAuthTokenImpl(
@@ -191,15 +185,8 @@ class AuthService(
         scope: AuthScope,
         associatedUserName: String
     ): PmaAuthToken {
-        activeTokens.lastOrNull {
-            it.principal.name == authorizedClient &&
-                it.nodeInstanceHandle == nodeInstanceHandle &&
-                it.serviceId == targetServiceId &&
-                it.scope == scope
-        }?.let { return it }
-
-        return PmaAuthToken(authorizedClient, nodeInstanceHandle, Random.nextString(), targetServiceId, scope, associatedUserName).also {
-            activeTokens.add(it)
+        return tokens.getOrAdd(authorizedClient, nodeInstanceHandle, targetServiceId, scope) {
+            PmaAuthToken(authorizedClient, nodeInstanceHandle, Random.nextString(), targetServiceId, scope, associatedUserName)
         }
     }
 
@@ -229,9 +216,9 @@ class AuthService(
             authorizedServiceOrUser = authorizedServiceOrUser,
             identifiedUser = clientFromId(identifiedUserName ?: "<unknown user"),
         )
-        authorizationCodes[authorizationCode] = token
+        tokens.putAuthorizationCode(authorizationCode, token)
 
-        doLog(requestorAuth, "createAuthorizationCode(code = ${authorizationCode.code}, token = $token)")
+        doLog(requestorAuth) { "createAuthorizationCode(code = ${authorizationCode.code}, token = $token)" }
 
         return authorizationCode
     }
@@ -254,8 +241,6 @@ class AuthService(
 //        validateAuthServiceAccess(requestorAuth, GRANT_GLOBAL_PERMISSION.context(clientId, serviceId, reqScope))
 
         val requestingUserPermissions: AuthScope = effectiveUserScope(requestorAuth, serviceInstanceId)
-            globalPermissions[requestorAuth.principal.name]?.get(serviceInstanceId.serviceId)
-                ?.takeIf { it.includes(ADMIN) } ?: globalPermissions.get(requestorAuth.principal.name)?.get(serviceId)
 
         val nodeInstanceHandle: PNIHandle = (requestorAuth as? PmaAuthToken)?.nodeInstanceHandle ?: Handle.invalid()
 
@@ -263,7 +248,7 @@ class AuthService(
             return unsecuredCreateOrReuseToken(clientId, nodeInstanceHandle, serviceId, reqScope, identifiedUser)
         }
 
-        val clientGlobalPermissions = globalPermissions[clientId]?.get(serviceId)
+        val clientGlobalPermissions = globalScope(clientId, serviceId.serviceId)
 
         val effectiveScope: AuthScope
 
@@ -322,12 +307,7 @@ class AuthService(
 
         // TODO look up permissions for taskIdentityToken
 
-        val existingToken = activeTokens.firstOrNull {
-            it.principal.name == clientId &&
-                it.nodeInstanceHandle == nodeInstanceHandle &&
-                it.serviceId == serviceId &&
-                it.scope == effectiveScope
-        }
+        val existingToken = tokens.findToken(clientId, nodeInstanceHandle, serviceId, effectiveScope)
 
         if (existingToken != null) {
             return existingToken
@@ -342,19 +322,23 @@ class AuthService(
         service: Service,
         scope: AuthScope
     ) {
-        globalPermissions.compute(clientName) { _, map ->
-            when (map) {
-                null -> mutableMapOf(service.serviceInstanceId.serviceId to scope)
-                else -> map.apply {
-                    compute(service.serviceInstanceId.serviceId) { k, oldScope ->
-                        when (oldScope) {
-                            null -> scope
-                            else -> oldScope.union(scope)
+        synchronizedCompat(globalPermissions) {
+            globalPermissions.compute(clientName) { _, map ->
+                when (map) {
+                    null -> mutableMapOf(service.serviceInstanceId.serviceId to scope)
+                    else -> map.apply {
+                        compute(service.serviceInstanceId.serviceId) { k, oldScope ->
+                            when (oldScope) {
+                                null -> scope
+                                else -> oldScope.union(scope)
+                            }
                         }
                     }
                 }
             }
         }
+        // Cached scopes include the global permissions
+        tokens.invalidateScopes()
     }
 
     fun userHasPermission(
@@ -462,17 +446,17 @@ class AuthService(
         // We just want to check the client to identify itself.
         validateAuthServiceAccess(requestorAuth, IDENTIFY)
 
-        val token = authorizationCodes[authorizationCode]
+        val token = tokens.getAuthorizationCode(authorizationCode)
             ?: throw AuthorizationException("authorization code invalid")
 
         if (authorizationCode.authorizedServiceOrUser != requestorAuth.principal.name)
             throw AuthorizationException("Invalid client for authorization code (code target ${authorizationCode.authorizedServiceOrUser}) != (resolver ${requestorAuth.principal})\n    Token: $token")
 
-        if (token !in activeTokens) throw AuthorizationException("Token ${token} expired before being exchanged")
+        if (token !in tokens) throw AuthorizationException("Token ${token} expired before being exchanged")
 
-        authorizationCodes.remove(authorizationCode)
+        tokens.removeAuthorizationCode(authorizationCode)
 
-        doLog(requestorAuth, "authTokenFromAuthorization(authorization = $authorizationCode) = $token")
+        doLog(requestorAuth) { "authTokenFromAuthorization(authorization = $authorizationCode) = $token" }
 
         return token
     }
@@ -527,7 +511,7 @@ class AuthService(
             exchangedToken.associatedUserName
         )
 
-        doLog(requestorAuth, "exchangeDelegateToken(exchanged = ${exchangedToken}, token = $newToken)")
+        doLog(requestorAuth) { "exchangeDelegateToken(exchanged = ${exchangedToken}, token = $newToken)" }
         return newToken
     }
 
@@ -548,13 +532,12 @@ class AuthService(
     ): AuthorizationCode {
         val token = getAuthCommon(tokenIdentity, clientId, requestorAuth, serviceId, reqScope)
         val authorizationCode = AuthorizationCode(Random.nextString(), clientId, clientFromId(tokenIdentity))
-        authorizationCodes[authorizationCode] = token
+        tokens.putAuthorizationCode(authorizationCode, token)
 
-        if (token !in activeTokens) {
-            activeTokens.add(token)
-            doLog(requestorAuth, "getAuthorizationCode($requestorAuth) = $authorizationCode -> $token")
+        if (tokens.add(token)) {
+            doLog(requestorAuth) { "getAuthorizationCode($requestorAuth) = $authorizationCode -> $token" }
         }
-        doLog(requestorAuth, "getAuthorizationCode($requestorAuth) = $authorizationCode -> $token")
+        doLog(requestorAuth) { "getAuthorizationCode($requestorAuth) = $authorizationCode -> $token" }
         return authorizationCode
     }
 
@@ -573,11 +556,10 @@ class AuthService(
         reqScope: AuthScope
     ): PmaAuthToken {
         val token = getAuthCommon(tokenIdentity, requestorAuth.principal.name, requestorAuth, serviceId, reqScope)
-        if (token !in activeTokens) {
-            doLog(requestorAuth, "getAuthTokenDirect($requestorAuth) - reuse = $token")
-            activeTokens.add(token)
+        if (tokens.add(token)) {
+            doLog(requestorAuth) { "getAuthTokenDirect($requestorAuth) - reuse = $token" }
         }
-        doLog(requestorAuth, "getAuthTokenDirect($requestorAuth) = $token")
+        doLog(requestorAuth) { "getAuthTokenDirect($requestorAuth) = $token" }
         return token
     }
 
@@ -599,8 +581,8 @@ class AuthService(
             effectiveScope,
             auth.principal.name
         ).also {
-            activeTokens.add(it)
-            doLog(it, "loginDirect($auth) = $it")
+            tokens.add(it)
+            doLog(it) { "loginDirect($auth) = $it" }
         }
     }
 
@@ -618,7 +600,7 @@ class AuthService(
         scope: AuthScope
     ) {
         val authToken =
-            authorizationCodes[authorizationCode] ?: throw AuthorizationException("Invalid authorization code")
+            tokens.getAuthorizationCode(authorizationCode) ?: throw AuthorizationException("Invalid authorization code")
         grantPermission(requestorAuth, authToken, service, scope)
     }
 
@@ -646,10 +628,9 @@ class AuthService(
         validateAuthServiceAccess(requestorAuth, neededScope)
 
         if (taskIdToken.serviceId != serviceId) throw AuthorizationException("Cannot grant permission for a token for one service to work against another service")
-        assert(taskIdToken in activeTokens)
-        val tokenPermissionList = tokenPermissions.getOrPut(taskIdToken.token) { mutableListOf() }
-        doLog(requestorAuth, "grantPermission(token = ${taskIdToken.token}, serviceId = $serviceId, scope = $scope)")
-        tokenPermissionList.add(PermissionScopeHolder(scope))
+        assert(taskIdToken in tokens)
+        doLog(requestorAuth) { "grantPermission(token = ${taskIdToken.token}, serviceId = $serviceId, scope = $scope)" }
+        tokens.grant(taskIdToken, scope)
     }
 
     /**
@@ -661,16 +642,13 @@ class AuthService(
         requestorAuth: PmaAuthInfo,
         hNodeInstance: PNIHandle
     ) {
-        doLog(requestorAuth, "invalidateActivityTokens($hNodeInstance)")
+        doLog(requestorAuth) { "invalidateActivityTokens($hNodeInstance)" }
         validateAuthServiceAccess(requestorAuth, INVALIDATE_ACTIVITY.context(hNodeInstance))
 
-        val invalidatedTokens = mutableListOf<PmaAuthToken>()
-        authorizationCodes.values.removeIfTo(invalidatedTokens) { it.nodeInstanceHandle == hNodeInstance }
-        activeTokens.removeIfTo(invalidatedTokens) { it.nodeInstanceHandle == hNodeInstance }
+        val invalidatedTokens = tokens.removeForNodeInstance(hNodeInstance)
 
         for (token in invalidatedTokens) {
-            doLog("invalidateActivityTokens/token($hNodeInstance, $token)")
-            tokenPermissions.remove(token.token)
+            doLog { "invalidateActivityTokens/token($hNodeInstance, $token)" }
         }
     }
 
@@ -706,15 +684,18 @@ class AuthService(
         secret: String,
         name: String = user.name.substringBeforeLast(':')
     ): PmaIdSecretAuthInfo {
-        doLog("registerClient($user)")
+        doLog { "registerClient($user)" }
         validateAuthServiceAccess(requestorAuth, REGISTER_CLIENT)
 
-        var actualPrincipal = user
-        while (actualPrincipal.name in registeredClients) {
-            actualPrincipal = clientFromId("${name}:${random.nextUInt().toString(16)}")
-        }
+        val actualPrincipal = synchronizedCompat(registeredClients) {
+            var actualPrincipal = user
+            while (actualPrincipal.name in registeredClients) {
+                actualPrincipal = clientFromId("${name}:${random.nextUInt().toString(16)}")
+            }
 
-        registeredClients[actualPrincipal.name] = ClientInfo(actualPrincipal.name, name, secret)
+            registeredClients[actualPrincipal.name] = ClientInfo(actualPrincipal.name, name, secret)
+            actualPrincipal
+        }
         return PmaIdSecretAuthInfo(actualPrincipal, secret)
     }
 
@@ -727,7 +708,7 @@ class AuthService(
         if (token.principal.name != requestorAuth.principal.name) { // A user/service can always verify their own tokens
             validateAuthServiceAccess(requestorAuth, VALIDATE_AUTH(token.serviceId))
         }
-        return token in activeTokens
+        return token in tokens
     }
 
     /**
@@ -743,7 +724,7 @@ class AuthService(
         service: Service,
         scope: AuthScope
     ) {
-        doLog(requestorAuth, "registerGlobalPermissions($requestorAuth, $authorizedClient, ${service.serviceInstanceId}, $scope)")
+        doLog(requestorAuth) { "registerGlobalPermissions($requestorAuth, $authorizedClient, ${service.serviceInstanceId}, $scope)" }
         validateAuthServiceAccess(
             requestorAuth,
             GRANT_GLOBAL_PERMISSION.context(authorizedClient.name, service, scope)
@@ -752,12 +733,6 @@ class AuthService(
     }
 
 
-    private data class PermissionScopeHolder(val scope: AuthScope) {
-        override fun toString(): String {
-            return "Permission(${scope.description})"
-        }
-    }
-
     override fun toString(): String {
         return "AuthService"
     }
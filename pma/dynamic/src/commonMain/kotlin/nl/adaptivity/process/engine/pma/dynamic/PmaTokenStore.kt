@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.pma
+
+import nl.adaptivity.process.engine.pma.models.AuthScope
+import nl.adaptivity.process.engine.pma.models.ServiceId
+import nl.adaptivity.process.engine.processModel.PNIHandle
+import nl.adaptivity.util.multiplatform.synchronizedCompat
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Thread safe store of the active tokens and outstanding authorization codes of the [AuthService]. Tokens are indexed
+ * by their token string and by node instance. The effective scope of a token against a service is cached, the cache is
+ * invalidated when permissions are granted to the token or (through [invalidateScopes]) when global permissions change.
+ *
+ * The validation path ([contains], [getAuthorizationCode] and cached [effectiveScope] lookups) reads concurrent maps
+ * without locking. The lock is only taken for updates that involve more than one index, and for the computation of
+ * scopes that are not cached yet.
+ */
+internal class PmaTokenStore {
+
+    private val lock = Any()
+
+    private val byToken = ConcurrentHashMap<String, PmaAuthToken>()
+
+    /** Guarded by [lock]. */
+    private val byNodeInstance = HashMap<PNIHandle, MutableList<PmaAuthToken>>()
+
+    private val authorizationCodes = ConcurrentHashMap<AuthorizationCode, PmaAuthToken>()
+
+    /** Guarded by [lock]. */
+    private val codesByNodeInstance = HashMap<PNIHandle, MutableList<AuthorizationCode>>()
+
+    /** The permissions granted to tokens, by token string. The lists are replaced (under [lock]), never modified. */
+    private val tokenPermissions = ConcurrentHashMap<String, List<AuthScope>>()
+
+    /** Cache of effective scopes, by token string and then by service id. Entries are only added under [lock]. */
+    private val scopeCache = ConcurrentHashMap<String, ConcurrentHashMap<String, AuthScope>>()
+
+    /** Determine whether the token is active (the same token instance was added and not removed). */
+    operator fun contains(token: PmaAuthToken): Boolean = byToken[token.token] === token
+
+    /** Add the token to the store if it is not active yet. */
+    fun add(token: PmaAuthToken): Boolean = synchronizedCompat(lock) {
+        if (byToken[token.token] === token) return false
+        byToken[token.token] = token
+        byNodeInstance.getOrPut(token.nodeInstanceHandle) { mutableListOf() }.add(token)
+        true
+    }
+
+    /** Find the most recently added active token that matches all the parameters. */
+    fun findToken(
+        principalName: String,
+        nodeInstanceHandle: PNIHandle,
+        serviceId: ServiceId<*>,
+        scope: AuthScope
+    ): PmaAuthToken? = synchronizedCompat(lock) {
+        byNodeInstance[nodeInstanceHandle]?.lastOrNull {
+            it.principal.name == principalName && it.serviceId == serviceId && it.scope == scope
+        }
+    }
+
+    /** Find the existing token, or create and add a new one. */
+    fun getOrAdd(
+        principalName: String,
+        nodeInstanceHandle: PNIHandle,
+        serviceId: ServiceId<*>,
+        scope: AuthScope,
+        factory: () -> PmaAuthToken
+    ): PmaAuthToken = synchronizedCompat(lock) {
+        findToken(principalName, nodeInstanceHandle, serviceId, scope)
+            ?: factory().also { add(it) }
+    }
+
+    fun putAuthorizationCode(code: AuthorizationCode, token: PmaAuthToken): Unit = synchronizedCompat(lock) {
+        authorizationCodes.put(code, token)?.let { removeCodeIndex(code, it) }
+        codesByNodeInstance.getOrPut(token.nodeInstanceHandle) { mutableListOf() }.add(code)
+    }
+
+    fun getAuthorizationCode(code: AuthorizationCode): PmaAuthToken? = authorizationCodes[code]
+
+    fun removeAuthorizationCode(code: AuthorizationCode): PmaAuthToken? = synchronizedCompat(lock) {
+        authorizationCodes.remove(code)?.also { removeCodeIndex(code, it) }
+    }
+
+    private fun removeCodeIndex(code: AuthorizationCode, token: PmaAuthToken) {
+        val codes = codesByNodeInstance[token.nodeInstanceHandle] ?: return
+        codes.remove(code)
+        if (codes.isEmpty()) codesByNodeInstance.remove(token.nodeInstanceHandle)
+    }
+
+    /** Record an additional permission for the token. */
+    fun grant(token: PmaAuthToken, scope: AuthScope): Unit = synchronizedCompat(lock) {
+        tokenPermissions[token.token] = (tokenPermissions[token.token] ?: emptyList()) + scope
+        scopeCache.remove(token.token)
+    }
+
+    /**
+     * Get the effective scope of the token against the service. This is the scope of the token itself, combined with
+     * the permissions granted to it and the result of [globalScope]. The result is cached, [globalScope] is only
+     * invoked when the scope is not yet known.
+     */
+    fun effectiveScope(
+        token: PmaAuthToken,
+        serviceId: ServiceId<*>,
+        globalScope: () -> AuthScope?
+    ): AuthScope {
+        scopeCache[token.token]?.get(serviceId.serviceId)?.let { return it }
+
+        // Computed under the lock so that a concurrent grant or invalidation can not be overwritten by a stale scope
+        return synchronizedCompat(lock) {
+            val serviceScopes = scopeCache.getOrPut(token.token) { ConcurrentHashMap() }
+            serviceScopes[serviceId.serviceId]?.let { return it }
+
+            val tokenScope = (tokenPermissions[token.token] ?: emptyList())
+                .fold(token.scope) { l: AuthScope, r -> l.union(r) }
+            val effectiveScope = globalScope()?.union(tokenScope) ?: tokenScope
+            serviceScopes[serviceId.serviceId] = effectiveScope
+            effectiveScope
+        }
+    }
+
+    /** Drop all cached scopes, for example because global permissions changed. */
+    fun invalidateScopes(): Unit = synchronizedCompat(lock) {
+        scopeCache.clear()
+    }
+
+    /**
+     * Remove all tokens and authorization codes associated with the node instance.
+     * @return The removed tokens
+     */
+    fun removeForNodeInstance(nodeInstanceHandle: PNIHandle): List<PmaAuthToken> = synchronizedCompat(lock) {
+        val removed = mutableListOf<PmaAuthToken>()
+        codesByNodeInstance.remove(nodeInstanceHandle)?.forEach { code ->
+            authorizationCodes.remove(code)?.let { removed.add(it) }
+        }
+        byNodeInstance.remove(nodeInstanceHandle)?.forEach { token ->
+            byToken.remove(token.token, token)
+            removed.add(token)
+        }
+        for (token in removed) {
+            tokenPermissions.remove(token.token)
+            scopeCache.remove(token.token)
+        }
+        removed
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2019.
+ *
+ * This file is part of ProcessManager.
+ *
+ * ProcessManager is free software: you can redistribute it and/or modify it under the terms of version 3 of the
+ * GNU Lesser General Public License as published by the Free Software Foundation.
+ *
+ * ProcessManager is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with ProcessManager.  If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+
+package nl.adaptivity.process.engine.pma
+
+import net.devrieze.util.Handle
+import nl.adaptivity.process.engine.pma.models.ANYSCOPE
+import nl.adaptivity.process.engine.pma.models.AuthScope
+import nl.adaptivity.process.engine.pma.models.EMPTYSCOPE
+import nl.adaptivity.process.engine.pma.models.ServiceId
+import nl.adaptivity.process.engine.processModel.PNIHandle
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.test.*
+
+class TestPmaTokenStore {
+
+    private val store = PmaTokenStore()
+
+    private val service = ServiceId<Nothing>("service")
+
+    private fun handle(value: Long): PNIHandle = Handle(value)
+
+    private fun token(name: String, nodeInstance: Long, scope: AuthScope = EMPTYSCOPE) =
+        PmaAuthToken("client", handle(nodeInstance), name, service, scope, "user")
+
+    @Test
+    fun testAddAndRemoveForNodeInstance() {
+        val token1 = token("t1", 1)
+        val token2 = token("t2", 2)
+        assertTrue(store.add(token1))
+        assertFalse(store.add(token1))
+        assertTrue(store.add(token2))
+        assertTrue(token1 in store)
+        assertFalse(token("t1", 1) in store, "Only the same token instance is active")
+
+        assertSame(token1, store.findToken("client", handle(1), service, EMPTYSCOPE))
+        assertEquals(listOf(token1), store.removeForNodeInstance(handle(1)))
+
+        assertFalse(token1 in store)
+        assertNull(store.findToken("client", handle(1), service, EMPTYSCOPE))
+        assertTrue(token2 in store)
+    }
+
+    @Test
+    fun testGetOrAddReusesToken() {
+        val token = store.getOrAdd("client", handle(1), service, EMPTYSCOPE) { token("t1", 1) }
+        assertTrue(token in store)
+        assertSame(token, store.getOrAdd("client", handle(1), service, EMPTYSCOPE) { fail("Token should be reused") })
+    }
+
+    @Test
+    fun testAuthorizationCodes() {
+        val token = token("t1", 1)
+        val code = AuthorizationCode("code", "client")
+        store.putAuthorizationCode(code, token)
+        assertSame(token, store.getAuthorizationCode(code))
+        assertSame(token, store.removeAuthorizationCode(code))
+        assertNull(store.getAuthorizationCode(code))
+
+        store.putAuthorizationCode(code, token)
+        store.removeForNodeInstance(handle(1))
+        assertNull(store.getAuthorizationCode(code), "Codes are removed with their node instance")
+    }
+
+    @Test
+    fun testEffectiveScopeIsCachedUntilInvalidated() {
+        val token = token("t1", 1)
+        store.add(token)
+        var globalLookups = 0
+        val global = { ++globalLookups; null }
+
+        assertSame(EMPTYSCOPE, store.effectiveScope(token, service, global))
+        assertSame(EMPTYSCOPE, store.effectiveScope(token, service, global))
+        assertEquals(1, globalLookups)
+
+        store.grant(token, ANYSCOPE)
+        assertSame(ANYSCOPE, store.effectiveScope(token, service, global), "Granting invalidates the cached scope")
+        assertEquals(2, globalLookups)
+
+        store.invalidateScopes()
+        store.effectiveScope(token, service, global)
+        assertEquals(3, globalLookups)
+    }
+
+    @Test
+    fun testConcurrentValidationAndUpdates() {
+        val threadCount = 8
+        val rounds = 500
+        val shared = token("shared", 0).also { store.add(it) }
+        val start = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(threadCount)
+        try {
+            val results = (1..threadCount).map { thread ->
+                executor.submit<Unit> {
+                    start.await()
+                    repeat(rounds) { round ->
+                        val nodeInstance = thread * 10_000L + round
+                        val token = token("t$nodeInstance", nodeInstance)
+                        assertTrue(store.add(token))
+                        assertTrue(token in store)
+                        assertSame(EMPTYSCOPE, store.effectiveScope(token, service) { null })
+                        assertTrue(shared in store)
+                        assertSame(EMPTYSCOPE, store.effectiveScope(shared, service) { null })
+                        assertEquals(listOf(token), store.removeForNodeInstance(handle(nodeInstance)))
+                        assertFalse(token in store)
+                    }
+                }
+            }
+            start.countDown()
+            results.forEach { it.get(30, TimeUnit.SECONDS) }
+        } finally {
+            executor.shutdownNow()
+        }
+        assertTrue(shared in store)
+    }
+}
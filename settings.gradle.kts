@@ -76,6 +76,7 @@ include(":ProcessEngine:core")
 include(":ProcessEngine:testLib")
 include(":ProcessEngine:servlet")
 include(":ProcessEngine:simulator")
+include(":ProcessEngine:benchmarks")
 
 include(":TestSupport")
 include(":DarwinClients:ProcessEngine")